@@ -0,0 +1,100 @@
+package org.notabarista.storage.benchmark;
+
+import org.notabarista.storage.api.validator.ContentType;
+import org.notabarista.storage.api.validator.ContentTypeValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.validation.Payload;
+import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of validating the content types of a ten file upload with {@code @ContentType(contentTypes = "image/*")},
+ * with and without sniffing the file headers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentTypeValidatorBenchmark {
+
+    private static final byte[] JPEG_HEADER = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0};
+    private static final byte[] PNG_HEADER = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private ContentTypeValidator validator;
+    private ContentTypeValidator sniffingValidator;
+    private MultipartFile[] files;
+
+    @Setup
+    public void setUp() {
+        validator = new ContentTypeValidator();
+        validator.initialize(imageContentType(false));
+        sniffingValidator = new ContentTypeValidator();
+        sniffingValidator.initialize(imageContentType(true));
+        files = new MultipartFile[10];
+        for (int i = 0; i < files.length; i++) {
+            byte[] content = new byte[256 * 1024];
+            byte[] header = i % 2 == 0 ? JPEG_HEADER : PNG_HEADER;
+            System.arraycopy(header, 0, content, 0, header.length);
+            files[i] = new MockMultipartFile("files", "image" + i + ".jpg", i % 2 == 0 ? "image/jpeg" : "image/png", content);
+        }
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return validator.isValid(files, null);
+    }
+
+    @Benchmark
+    public boolean isValidSniffing() {
+        return sniffingValidator.isValid(files, null);
+    }
+
+    static ContentType imageContentType(boolean sniff) {
+        return new ContentType() {
+            @Override
+            public String message() {
+                return "Invalid content type";
+            }
+
+            @Override
+            public Class<?>[] groups() {
+                return new Class<?>[0];
+            }
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public Class<? extends Payload>[] payload() {
+                return new Class[0];
+            }
+
+            @Override
+            public String[] contentTypes() {
+                return new String[]{"image/*"};
+            }
+
+            @Override
+            public boolean sniff() {
+                return sniff;
+            }
+
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return ContentType.class;
+            }
+        };
+    }
+}
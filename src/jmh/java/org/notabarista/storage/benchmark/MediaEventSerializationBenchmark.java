@@ -0,0 +1,60 @@
+package org.notabarista.storage.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.notabarista.kafka.MediaEvent;
+import org.notabarista.kafka.MediaEventType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serializing a {@link MediaEvent} to JSON as {@code MediaEventProducer} does for every message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MediaEventSerializationBenchmark {
+
+    @Param({"1", "10"})
+    private int mediaURLCount;
+
+    private ObjectMapper objectMapper;
+    private MediaEvent mediaEvent;
+
+    @Setup
+    public void setUp() {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        List<String> mediaURLs = new ArrayList<>();
+        for (int i = 0; i < mediaURLCount; i++) {
+            mediaURLs.add("https://media-storage.s3.filebase.com/IMG_000" + i + ".jpg");
+        }
+        mediaEvent = MediaEvent.builder()
+                               .mediaEventType(MediaEventType.ADD)
+                               .itemID("61256e2d1b9a4c3f5e8d7a90")
+                               .mediaURLs(mediaURLs)
+                               .userID("user")
+                               .build();
+    }
+
+    @Benchmark
+    public String writeValueAsString() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(mediaEvent);
+    }
+}
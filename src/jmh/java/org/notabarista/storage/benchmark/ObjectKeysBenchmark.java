@@ -0,0 +1,34 @@
+package org.notabarista.storage.benchmark;
+
+import org.notabarista.storage.service.ObjectKeys;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.MalformedURLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mapping a media URL to its object key, done for every URL passed to {@code delete}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ObjectKeysBenchmark {
+
+    private final String mediaURL = "https://media-storage.s3.filebase.com/IMG_0001.jpg";
+
+    @Benchmark
+    public String fromMediaURL() throws MalformedURLException {
+        return ObjectKeys.fromMediaURL(mediaURL);
+    }
+}
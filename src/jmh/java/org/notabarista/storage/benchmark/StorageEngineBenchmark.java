@@ -0,0 +1,167 @@
+package org.notabarista.storage.benchmark;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.FilebaseStorageService;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.NioStorageService;
+import org.notabarista.storage.service.StorageService;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.nio.LocalS3Server;
+import org.notabarista.storage.service.nio.NioBucketStore;
+import org.notabarista.storage.service.nio.NioS3Client;
+import org.notabarista.storage.service.resilience.AdaptiveLimiter;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads per second of the blocking {@code filebase} engine against the non-blocking {@code nio} engine
+ * ({@code storage.engine}), both talking HTTP to a local S3 stand-in that answers every request after
+ * {@code latencyMillis}. The blocking engine gets request and upload pools sized like Tomcat's, so threads and not an
+ * upload cap limit it; the non-blocking one the {@code mediaIoExecutor} default for its catalog checks and links.
+ * <p>
+ * Next to the throughput, every iteration prints the peak number of client threads, those of the stand-in not
+ * counted, and the heap in use after it; run with {@code -prof gc} for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageEngineBenchmark {
+
+    private static final String BUCKET_NAME = "media-storage";
+    private static final int CONCURRENT_REQUESTS = 1000;
+    private static final int TOMCAT_MAX_THREADS = 200;
+    private static final int MEDIA_IO_THREADS = 32;
+
+    @Param({"filebase", "nio"})
+    private String engine;
+
+    @Param({"20"})
+    private int latencyMillis;
+
+    private LocalS3Server server;
+    private AmazonS3Client s3Client;
+    private NioS3Client nioS3Client;
+    private ExecutorService ioExecutor;
+    private ExecutorService uploadExecutor;
+    private StorageService storageService;
+    private MultipartFile[] files;
+    private int peakThreads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new LocalS3Server(BUCKET_NAME, latencyMillis);
+        AWSStaticCredentialsProvider credentials = new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret"));
+        s3Client = (AmazonS3Client) AmazonS3ClientBuilder
+                .standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.endpoint(), "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(2 * TOMCAT_MAX_THREADS))
+                .withCredentials(credentials)
+                .build();
+        int ioThreads = "nio".equals(engine) ? MEDIA_IO_THREADS : TOMCAT_MAX_THREADS;
+        ioExecutor = Executors.newFixedThreadPool(ioThreads, new CustomizableThreadFactory("media-io-"));
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        StorageServiceBenchmark.FakeMediaService mediaService = new StorageServiceBenchmark.FakeMediaService();
+        DerivativeService derivativeService = new DerivativeService(s3Client, BUCKET_NAME, s3Client, mediaService, storageMetrics, ioExecutor,
+                false, new int[0], false, 0.85f);
+        IoExecutor mediaIoExecutor = new IoExecutor(ioExecutor, Duration.ofMinutes(1));
+        if ("nio".equals(engine)) {
+            nioS3Client = new NioS3Client(s3Client, BUCKET_NAME, "us-east-1", credentials, 2, Duration.ofSeconds(10),
+                    Duration.ofMinutes(1), Duration.ofMinutes(1), Duration.ofMinutes(1), 3, Duration.ofMillis(100), 64, null,
+                    storageMetrics);
+            storageService = new NioStorageService(new StorageServiceBenchmark.FakeItemService(), mediaService, derivativeService,
+                    new NioBucketStore(nioS3Client, null, storageMetrics, 1000), storageMetrics, mediaIoExecutor, 4, false, true);
+        } else {
+            uploadExecutor = Executors.newFixedThreadPool(TOMCAT_MAX_THREADS, new CustomizableThreadFactory("media-upload-"));
+            S3UploadEngine uploadEngine = new S3UploadEngine(s3Client, storageMetrics, uploadExecutor, 16 * 1024 * 1024, 8 * 1024 * 1024, 3, 8);
+            storageService = new FilebaseStorageService(new StorageServiceBenchmark.FakeItemService(), mediaService, derivativeService,
+                    s3Client, BUCKET_NAME, s3Client, uploadEngine, storageMetrics, uploadExecutor, mediaIoExecutor,
+                    AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 4, 1000, false, true);
+        }
+        files = new MultipartFile[]{new MockMultipartFile("files", "image.jpg", "image/jpeg", new byte[16 * 1024])};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ioExecutor.shutdownNow();
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdownNow();
+        }
+        if (nioS3Client != null) {
+            nioS3Client.shutdown();
+        }
+        s3Client.shutdown();
+        server.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPeakThreads() {
+        peakThreads = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printResources() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("%n[%s] peak client threads: %d, heap used: %d MiB%n", engine, peakThreads,
+                memory.getHeapMemoryUsage().getUsed() / (1024 * 1024));
+    }
+
+    /**
+     * {@value #CONCURRENT_REQUESTS} single file upload requests arriving at once.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CONCURRENT_REQUESTS)
+    public void uploads() {
+        List<CompletableFuture<List<String>>> requests = new ArrayList<>(CONCURRENT_REQUESTS);
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            requests.add(storageService.storeAsync("item", files, "user"));
+        }
+        peakThreads = Math.max(peakThreads, clientThreads());
+        for (CompletableFuture<List<String>> request : requests) {
+            request.join();
+        }
+    }
+
+    private static int clientThreads() {
+        return (int) Thread.getAllStackTraces().keySet().stream()
+                           .filter(thread -> !thread.getName().startsWith(LocalS3Server.THREAD_NAME_PREFIX))
+                           .count();
+    }
+}
@@ -0,0 +1,224 @@
+package org.notabarista.storage.benchmark;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.BulkItemResult;
+import org.notabarista.storage.service.FilebaseStorageService;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ItemService;
+import org.notabarista.storage.service.MediaService;
+import org.notabarista.storage.service.StorageService;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.resilience.AdaptiveLimiter;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code store} and {@code delete} of {@link FilebaseStorageService} end to end against in-process fakes of the
+ * bucket, the catalog and the media event producer, i.e. the overhead of the service itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageServiceBenchmark {
+
+    private static final String BUCKET_NAME = "media-storage";
+
+    @Param({"1", "10"})
+    private int fileCount;
+
+    @Param({"262144"})
+    private int fileSize;
+
+    @Param({"false", "true"})
+    private boolean contentAddressedKeys;
+
+    private ExecutorService uploadExecutor;
+    private ExecutorService partUploadExecutor;
+    private StorageService storageService;
+    private MultipartFile[] files;
+    private List<String> mediaURLs;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        uploadExecutor = Executors.newFixedThreadPool(16);
+        partUploadExecutor = Executors.newFixedThreadPool(8);
+        FakeBucket bucket = new FakeBucket();
+        AmazonS3Client s3Client = (AmazonS3Client) AmazonS3ClientBuilder
+                .standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration("https://s3.filebase.com", "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))
+                .build();
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        S3UploadEngine uploadEngine = new S3UploadEngine(bucket, storageMetrics, partUploadExecutor, 16 * 1024 * 1024, 8 * 1024 * 1024, 3, 8);
+        FakeMediaService mediaService = new FakeMediaService();
+        DerivativeService derivativeService = new DerivativeService(bucket, BUCKET_NAME, s3Client, mediaService, storageMetrics, uploadExecutor,
+                false, new int[0], false, 0.85f);
+        storageService = new FilebaseStorageService(new FakeItemService(), mediaService, derivativeService, bucket, BUCKET_NAME, s3Client,
+                uploadEngine, storageMetrics, uploadExecutor, new IoExecutor(uploadExecutor, Duration.ofMinutes(1)),
+                AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 4, 1000,
+                contentAddressedKeys, true);
+
+        files = new MultipartFile[fileCount];
+        mediaURLs = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            files[i] = new MockMultipartFile("files", "image" + i + ".jpg", "image/jpeg", new byte[fileSize]);
+            mediaURLs.add(s3Client.getResourceUrl(BUCKET_NAME, "image" + i + ".jpg"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        uploadExecutor.shutdownNow();
+        partUploadExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public List<String> store() throws Exception {
+        return storageService.store("item", files, "user");
+    }
+
+    @Benchmark
+    public void delete() throws Exception {
+        storageService.delete("item", mediaURLs, "user");
+    }
+
+    /**
+     * Accepts every request; uploads are drained so the stream handling of the service is part of the measurement.
+     */
+    static class FakeBucket extends AbstractAmazonS3 {
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+            try {
+                input.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new PutObjectResult();
+        }
+
+        /**
+         * Reference markers.
+         */
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, String content) {
+            return new PutObjectResult();
+        }
+
+        @Override
+        public void deleteObject(String bucketName, String key) {
+        }
+
+        @Override
+        public boolean doesObjectExist(String bucketName, String objectName) {
+            return false;
+        }
+
+        /**
+         * No reference markers and no derivatives: every deleted object is untracked.
+         */
+        @Override
+        public ListObjectsV2Result listObjectsV2(ListObjectsV2Request listObjectsV2Request) {
+            return new ListObjectsV2Result();
+        }
+
+        @Override
+        public DeleteObjectsResult deleteObjects(DeleteObjectsRequest deleteObjectsRequest) {
+            return new DeleteObjectsResult(List.of());
+        }
+    }
+
+    static class FakeItemService implements ItemService {
+        @Override
+        public boolean itemExists(String itemID, String userID) {
+            return true;
+        }
+
+        @Override
+        public Map<String, Boolean> itemsExist(Collection<String> itemIDs, String userID) {
+            Map<String, Boolean> owned = new LinkedHashMap<>();
+            itemIDs.forEach(itemID -> owned.put(itemID, true));
+            return owned;
+        }
+
+        @Override
+        public void invalidate(String itemID) {
+        }
+    }
+
+    static class FakeMediaService implements MediaService {
+        @Override
+        public void addMedia(String itemID, String userID, List<String> mediaURLs) {
+        }
+
+        @Override
+        public void deleteMedia(String itemID, String userID, List<String> mediaURLs) {
+        }
+
+        @Override
+        public List<BulkItemResult> addMediaAll(Map<String, List<String>> mediaURLsByItem, String userID) {
+            List<BulkItemResult> results = new ArrayList<>();
+            mediaURLsByItem.forEach((itemID, mediaURLs) -> results.add(BulkItemResult.succeeded(itemID, mediaURLs)));
+            return results;
+        }
+
+        @Override
+        public CompletableFuture<Void> addMediaAsync(String itemID, String userID, List<String> mediaURLs) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteMediaAsync(String itemID, String userID, List<String> mediaURLs) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<List<BulkItemResult>> addMediaAllAsync(Map<String, List<String>> mediaURLsByItem, String userID) {
+            return CompletableFuture.completedFuture(addMediaAll(mediaURLsByItem, userID));
+        }
+    }
+}
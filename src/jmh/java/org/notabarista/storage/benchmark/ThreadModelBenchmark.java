@@ -0,0 +1,163 @@
+package org.notabarista.storage.benchmark;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.AnonymousAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.notabarista.storage.config.VirtualThreads;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.FilebaseStorageService;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.StorageService;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.resilience.AdaptiveLimiter;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads per second with request handling and uploads on platform threads, sized like Tomcat's and the
+ * {@code mediaUploadExecutor} defaults, against virtual threads with the same upload limit. The bucket answers every
+ * PUT, reference markers included, after {@code putLatencyMillis}, so the thread model and not the CPU decides the throughput.
+ * <p>
+ * The {@code virtual} runs need Java 21 or newer, on older JDKs their setup fails.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThreadModelBenchmark {
+
+    private static final String BUCKET_NAME = "media-storage";
+    private static final int CONCURRENT_REQUESTS = 1000;
+    private static final int TOMCAT_MAX_THREADS = 200;
+
+    @Param({"platform", "virtual"})
+    private String threadModel;
+
+    @Param({"16", "256"})
+    private int maxConcurrentUploads;
+
+    @Param({"20"})
+    private int putLatencyMillis;
+
+    private ExecutorService requestExecutor;
+    private ExecutorService uploadExecutor;
+    private ExecutorService partUploadExecutor;
+    private StorageService storageService;
+    private MultipartFile[] files;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("virtual".equals(threadModel)) {
+            requestExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+            uploadExecutor = VirtualThreads.newBoundedExecutor(maxConcurrentUploads, -1);
+            partUploadExecutor = VirtualThreads.newBoundedExecutor(8, -1);
+        } else {
+            requestExecutor = Executors.newFixedThreadPool(TOMCAT_MAX_THREADS, new CustomizableThreadFactory("http-nio-"));
+            uploadExecutor = new ThreadPoolExecutor(maxConcurrentUploads, maxConcurrentUploads, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(64), new CustomizableThreadFactory("media-upload-"), new ThreadPoolExecutor.CallerRunsPolicy());
+            partUploadExecutor = Executors.newFixedThreadPool(8);
+        }
+
+        SlowBucket bucket = new SlowBucket(putLatencyMillis);
+        AmazonS3Client s3Client = (AmazonS3Client) AmazonS3ClientBuilder
+                .standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration("https://s3.filebase.com", "us-east-1"))
+                .withCredentials(new AWSStaticCredentialsProvider(new AnonymousAWSCredentials()))
+                .build();
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        S3UploadEngine uploadEngine = new S3UploadEngine(bucket, storageMetrics, partUploadExecutor, 16 * 1024 * 1024, 8 * 1024 * 1024, 3, 8);
+        StorageServiceBenchmark.FakeMediaService mediaService = new StorageServiceBenchmark.FakeMediaService();
+        DerivativeService derivativeService = new DerivativeService(bucket, BUCKET_NAME, s3Client, mediaService, storageMetrics, uploadExecutor,
+                false, new int[0], false, 0.85f);
+        storageService = new FilebaseStorageService(new StorageServiceBenchmark.FakeItemService(), mediaService, derivativeService,
+                bucket, BUCKET_NAME, s3Client, uploadEngine, storageMetrics, uploadExecutor,
+                new IoExecutor(uploadExecutor, Duration.ofMinutes(1)),
+                AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 4, 1000, false, true);
+        files = new MultipartFile[]{new MockMultipartFile("files", "image.jpg", "image/jpeg", new byte[16 * 1024])};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        requestExecutor.shutdownNow();
+        uploadExecutor.shutdownNow();
+        partUploadExecutor.shutdownNow();
+    }
+
+    /**
+     * {@value #CONCURRENT_REQUESTS} single file upload requests arriving at once.
+     */
+    @Benchmark
+    @OperationsPerInvocation(CONCURRENT_REQUESTS)
+    public void uploads() throws Exception {
+        List<Future<List<String>>> requests = new ArrayList<>(CONCURRENT_REQUESTS);
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            requests.add(requestExecutor.submit(() -> storageService.store("item", files, "user")));
+        }
+        for (Future<List<String>> request : requests) {
+            request.get();
+        }
+    }
+
+    static class SlowBucket extends StorageServiceBenchmark.FakeBucket {
+
+        private final long latencyMillis;
+
+        SlowBucket(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+            await();
+            return super.putObject(bucketName, key, input, metadata);
+        }
+
+        @Override
+        public PutObjectResult putObject(String bucketName, String key, String content) {
+            await();
+            return super.putObject(bucketName, key, content);
+        }
+
+        private void await() {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
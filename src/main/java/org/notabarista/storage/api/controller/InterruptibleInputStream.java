@@ -0,0 +1,60 @@
+package org.notabarista.storage.api.controller;
+
+import org.apache.commons.fileupload.RequestContext;
+import org.apache.commons.fileupload.servlet.ServletRequestContext;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A request body handed to an I/O thread. The servlet stream must not be read once the async request has completed
+ * and the container may have recycled it; the I/O executor interrupts a call at its deadline and only lets the
+ * request complete after the call returned, so every read fails with an {@link InterruptedIOException} once the
+ * reading thread has been interrupted instead of blocking on the connection.
+ */
+class InterruptibleInputStream extends FilterInputStream {
+
+    InterruptibleInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * The multipart body of {@code request} for a streaming {@code ServletFileUpload}, read through an
+     * {@link InterruptibleInputStream}.
+     */
+    static RequestContext requestContext(HttpServletRequest request) {
+        return new ServletRequestContext(request) {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new InterruptibleInputStream(super.getInputStream());
+            }
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkInterrupted();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkInterrupted();
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkInterrupted();
+        return super.skip(n);
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Request body read interrupted");
+        }
+    }
+}
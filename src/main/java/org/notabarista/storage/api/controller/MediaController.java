@@ -1,17 +1,35 @@
 package org.notabarista.storage.api.controller;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import lombok.extern.log4j.Log4j2;
-import org.notabarista.exception.AbstractNotabaristaException;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.notabarista.storage.api.validator.ContentType;
+import org.notabarista.storage.config.MultipartConfig;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.service.BulkItemResult;
 import org.notabarista.storage.service.MediaService;
 import org.notabarista.storage.service.StorageService;
+import org.notabarista.storage.service.derivative.MediaVariant;
+import org.notabarista.storage.service.derivative.VariantService;
+import org.notabarista.storage.service.download.DownloadService;
+import org.notabarista.storage.service.spool.SpooledUploadStatus;
+import org.notabarista.storage.service.spool.WriteBehindService;
+import org.notabarista.storage.service.upload.DirectUpload;
+import org.notabarista.storage.service.upload.DirectUploadRequest;
+import org.notabarista.storage.service.upload.DirectUploadService;
 import org.notabarista.util.NABConstants;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.AntPathMatcher;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -19,12 +37,21 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotEmpty;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Log4j2
 @RestController
@@ -33,42 +60,201 @@ import java.util.List;
 @Validated
 public class MediaController {
 
+    private static final AntPathMatcher PATH_MATCHER = new AntPathMatcher();
+
     private final StorageService storageService;
     private final MediaService mediaService;
+    private final ServletFileUpload streamingFileUpload;
+    private final DirectUploadService directUploadService;
+    private final VariantService variantService;
+    private final DownloadService downloadService;
+    private final WriteBehindService writeBehindService;
+    private final CacheControl variantCacheControl;
+    private final int maxBulkItems;
 
-    public MediaController(StorageService storageService, MediaService mediaService) {
+    public MediaController(StorageService storageService, MediaService mediaService, ServletFileUpload streamingFileUpload,
+                           DirectUploadService directUploadService, VariantService variantService, DownloadService downloadService,
+                           WriteBehindService writeBehindService, @Value("${storage.variants.max-age:1d}") Duration variantMaxAge,
+                           @Value("${storage.bulk.max-items:100}") int maxBulkItems) {
         this.storageService = storageService;
         this.mediaService = mediaService;
+        this.streamingFileUpload = streamingFileUpload;
+        this.directUploadService = directUploadService;
+        this.variantService = variantService;
+        this.downloadService = downloadService;
+        this.writeBehindService = writeBehindService;
+        this.variantCacheControl = CacheControl.maxAge(variantMaxAge).cachePublic();
+        this.maxBulkItems = maxBulkItems;
     }
 
+    /**
+     * Stores the files and links them to the item. In write-behind mode the files are only spooled to local disk
+     * before the response, a {@code 202} pointing to the status of the upload under {@code /uploads/{uploadID}}.
+     */
     @PostMapping
-    public ResponseEntity<List<String>> storeFiles(@RequestParam("itemID") @NotBlank String itemID,
-                                                   @RequestParam("files") @NotEmpty @ContentType(contentTypes = "image/*") MultipartFile[] files,
-                                                   @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) throws AbstractNotabaristaException, IOException {
-        List<String> mediaURLs = storageService.store(itemID, files, userId);
-        return new ResponseEntity<>(mediaURLs, HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<List<String>>> storeFiles(@RequestParam("itemID") @NotBlank String itemID,
+                                                                      @RequestParam("files") @NotEmpty @ContentType(contentTypes = "image/*", sniff = true) MultipartFile[] files,
+                                                                      @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        if (writeBehindService.isEnabled()) {
+            return writeBehindService.spoolAsync(itemID, files, userId)
+                                     .thenApply(upload -> ResponseEntity.accepted()
+                                                                        .location(URI.create("/uploads/" + upload.getUploadID()))
+                                                                        .body(upload.getMediaURLs()));
+        }
+        return storageService.storeAsync(itemID, files, userId)
+                             .thenApply(mediaURLs -> new ResponseEntity<>(mediaURLs, HttpStatus.OK));
+    }
+
+    /**
+     * Stores the image files of a multipart body as they arrive, without spooling them first. The item ID is part of
+     * the path since request parameters of a multipart body are only known once it has been read.
+     */
+    @PostMapping(value = MultipartConfig.STREAMING_UPLOAD_PATH + "{itemID}", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public CompletableFuture<ResponseEntity<List<String>>> streamFiles(@PathVariable("itemID") @NotBlank String itemID,
+                                                                       @RequestHeader(NABConstants.UID_HEADER_NAME) String userId,
+                                                                       HttpServletRequest request) throws IOException, FileUploadException {
+        return storageService.storeStreamAsync(itemID, streamingFileUpload.getItemIterator(InterruptibleInputStream.requestContext(request)), userId)
+                             .thenApply(mediaURLs -> new ResponseEntity<>(mediaURLs, HttpStatus.OK));
+    }
+
+    /**
+     * Stores files for several items in one request, the name of each file part being the ID of the item it belongs
+     * to. Items succeed or fail on their own; the response lists the outcome of every item.
+     */
+    @PostMapping(value = "/bulk", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public CompletableFuture<ResponseEntity<List<BulkItemResult>>> storeBulk(@RequestHeader(NABConstants.UID_HEADER_NAME) String userId,
+                                                                             MultipartHttpServletRequest request) {
+        Map<String, List<MultipartFile>> filesByItem = new LinkedHashMap<>(request.getMultiFileMap());
+        checkBulkSize(filesByItem);
+        return storageService.storeAllAsync(filesByItem, userId)
+                             .thenApply(results -> new ResponseEntity<>(results, HttpStatus.OK));
+    }
+
+    /**
+     * Presigned {@code PUT} URLs the client uploads the files to directly, bypassing this service.
+     */
+    @PostMapping("/presigned")
+    public CompletableFuture<ResponseEntity<List<DirectUpload>>> presignUploads(@RequestParam("itemID") @NotBlank String itemID,
+                                                                                @RequestBody @NotEmpty List<DirectUploadRequest> files,
+                                                                                @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return directUploadService.presignAsync(itemID, files, userId)
+                                  .thenApply(uploads -> new ResponseEntity<>(uploads, HttpStatus.OK));
+    }
+
+    @PostMapping("/presigned/confirm")
+    public CompletableFuture<ResponseEntity<List<String>>> confirmUploads(@RequestParam("itemID") @NotBlank String itemID,
+                                                                          @RequestBody @NotEmpty List<DirectUpload> uploads,
+                                                                          @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return directUploadService.confirmAsync(itemID, uploads, userId)
+                                  .thenApply(mediaURLs -> new ResponseEntity<>(mediaURLs, HttpStatus.OK));
+    }
+
+    /**
+     * The object stored under the key following {@code /media/}, honouring {@code Range}, {@code If-Range},
+     * {@code If-None-Match} and {@code If-Modified-Since}. Not modified and partial responses never transfer more
+     * than the requested bytes.
+     */
+    @GetMapping(value = "/media/**", params = {"!w", "!h", "!fmt"})
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getMedia(@RequestHeader HttpHeaders headers,
+                                                                             HttpServletRequest request) {
+        return downloadService.prepareAsync(objectKey(request), headers)
+                              .thenApply(download -> {
+                                  ResponseEntity.BodyBuilder response = ResponseEntity.status(download.getStatus())
+                                                                                      .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+                                  if (download.getETag() != null) {
+                                      response.eTag(download.getETag());
+                                  }
+                                  if (download.getLastModified() >= 0) {
+                                      response.lastModified(download.getLastModified());
+                                  }
+                                  if (download.getContentRange() != null) {
+                                      response.header(HttpHeaders.CONTENT_RANGE, download.getContentRange());
+                                  }
+                                  if (!download.hasBody()) {
+                                      return response.build();
+                                  }
+                                  return response.contentType(MediaType.parseMediaType(download.getContentType()))
+                                                 .contentLength(download.getContentLength())
+                                                 .body(outputStream -> downloadService.transfer(download, outputStream));
+                              });
+    }
+
+    /**
+     * The image stored under the key following {@code /media/}, scaled down to fit {@code w} by {@code h} pixels and
+     * encoded as {@code fmt}, {@code jpeg} or {@code png}.
+     */
+    @GetMapping("/media/**")
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> getVariant(@RequestParam(value = "w", required = false) Integer width,
+                                                                               @RequestParam(value = "h", required = false) Integer height,
+                                                                               @RequestParam(value = "fmt", required = false) String format,
+                                                                               HttpServletRequest request) throws IOException {
+        return variantService.getAsync(objectKey(request), width, height, format)
+                             .thenApply(variant -> ResponseEntity.ok()
+                                                                 .contentType(MediaType.parseMediaType(variant.getContentType()))
+                                                                 .contentLength(variant.getSize())
+                                                                 .cacheControl(variantCacheControl)
+                                                                 .body(outputStream -> writeVariant(variant, outputStream)));
+    }
+
+    @GetMapping("/uploads/{uploadID}")
+    public ResponseEntity<SpooledUploadStatus> getUpload(@PathVariable("uploadID") String uploadID,
+                                                         @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return new ResponseEntity<>(writeBehindService.status(uploadID, userId), HttpStatus.OK);
     }
 
     @DeleteMapping
-    public ResponseEntity<String> deleteFiles(@RequestParam("itemID") @NotBlank String itemID, @RequestBody @NotEmpty List<String> mediaURLs,
-                                              @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) throws AbstractNotabaristaException, JsonProcessingException, MalformedURLException {
-        storageService.delete(itemID, mediaURLs, userId);
-        return new ResponseEntity<>("Media files deleted successfully!", HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<String>> deleteFiles(@RequestParam("itemID") @NotBlank String itemID, @RequestBody @NotEmpty List<String> mediaURLs,
+                                                                 @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return storageService.deleteAsync(itemID, mediaURLs, userId)
+                             .thenApply(ignored -> {
+                                 variantService.invalidate(mediaURLs);
+                                 return new ResponseEntity<>("Media files deleted successfully!", HttpStatus.OK);
+                             });
     }
 
     @PostMapping("/links")
-    public ResponseEntity<String> saveLinks(@RequestParam("itemID") @NotBlank String itemID,
-                                            @RequestBody @NotEmpty List<String> mediaURLs,
-                                            @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) throws IOException, AbstractNotabaristaException {
-        mediaService.addMedia(itemID, userId, mediaURLs);
-        return new ResponseEntity<>("Media file links saved!", HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<String>> saveLinks(@RequestParam("itemID") @NotBlank String itemID,
+                                                               @RequestBody @NotEmpty List<String> mediaURLs,
+                                                               @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return mediaService.addMediaAsync(itemID, userId, mediaURLs)
+                           .thenApply(ignored -> new ResponseEntity<>("Media file links saved!", HttpStatus.OK));
+    }
+
+    /**
+     * Links media URLs to several items, keyed by item ID; items succeed or fail on their own.
+     */
+    @PostMapping("/links/bulk")
+    public CompletableFuture<ResponseEntity<List<BulkItemResult>>> saveLinksBulk(@RequestBody Map<String, List<String>> mediaURLsByItem,
+                                                                                 @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        checkBulkSize(mediaURLsByItem);
+        return mediaService.addMediaAllAsync(mediaURLsByItem, userId)
+                           .thenApply(results -> new ResponseEntity<>(results, HttpStatus.OK));
     }
 
     @DeleteMapping("/links")
-    public ResponseEntity<String> deleteLinks(@RequestParam("itemID") @NotBlank String itemID, @RequestBody @NotEmpty List<String> mediaURLs,
-                                              @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) throws JsonProcessingException, AbstractNotabaristaException {
-        mediaService.deleteMedia(itemID, userId, mediaURLs);
-        return new ResponseEntity<>("Media file links deleted successfully!", HttpStatus.OK);
+    public CompletableFuture<ResponseEntity<String>> deleteLinks(@RequestParam("itemID") @NotBlank String itemID, @RequestBody @NotEmpty List<String> mediaURLs,
+                                                                 @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return mediaService.deleteMediaAsync(itemID, userId, mediaURLs)
+                           .thenApply(ignored -> new ResponseEntity<>("Media file links deleted successfully!", HttpStatus.OK));
     }
 
+    private void checkBulkSize(Map<String, ?> items) {
+        if (items.isEmpty()) {
+            throw new MediaStorageException("At least one item is required");
+        }
+        if (items.size() > maxBulkItems) {
+            throw new MediaStorageException("At most " + maxBulkItems + " items per request");
+        }
+    }
+
+    private static String objectKey(HttpServletRequest request) {
+        return PATH_MATCHER.extractPathWithinPattern((String) request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE),
+                (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE));
+    }
+
+    private static void writeVariant(MediaVariant variant, OutputStream outputStream) throws IOException {
+        try (variant) {
+            variant.writeTo(outputStream);
+        }
+    }
 }
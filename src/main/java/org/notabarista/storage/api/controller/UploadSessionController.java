@@ -0,0 +1,84 @@
+package org.notabarista.storage.api.controller;
+
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.service.upload.UploadSessionService;
+import org.notabarista.storage.service.upload.UploadSessionStatus;
+import org.notabarista.util.NABConstants;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.constraints.NotBlank;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resumable uploads: open a session for a file, {@code PUT} its chunks at their offsets in any order, retrying the
+ * ones that failed, ask which offsets have been received and complete the session to store the file.
+ */
+@Log4j2
+@RestController
+@CrossOrigin
+@RequestMapping("/sessions")
+@Validated
+public class UploadSessionController {
+
+    private final UploadSessionService uploadSessionService;
+
+    public UploadSessionController(UploadSessionService uploadSessionService) {
+        this.uploadSessionService = uploadSessionService;
+    }
+
+    @PostMapping
+    public CompletableFuture<ResponseEntity<UploadSessionStatus>> createSession(@RequestParam("itemID") @NotBlank String itemID,
+                                                                                @RequestParam("fileName") @NotBlank String fileName,
+                                                                                @RequestParam("contentType") @NotBlank String contentType,
+                                                                                @RequestParam("size") long size,
+                                                                                @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return uploadSessionService.createAsync(itemID, fileName, contentType, size, userId)
+                                   .thenApply(status -> new ResponseEntity<>(status, HttpStatus.OK));
+    }
+
+    @PutMapping(value = "/{sessionID}/chunks/{offset}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public CompletableFuture<ResponseEntity<UploadSessionStatus>> uploadChunk(@PathVariable("sessionID") String sessionID,
+                                                                              @PathVariable("offset") long offset,
+                                                                              @RequestHeader(NABConstants.UID_HEADER_NAME) String userId,
+                                                                              HttpServletRequest request) throws IOException {
+        return uploadSessionService.uploadChunkAsync(sessionID, offset, new InterruptibleInputStream(request.getInputStream()),
+                                                     request.getContentLengthLong(), userId)
+                                   .thenApply(status -> new ResponseEntity<>(status, HttpStatus.OK));
+    }
+
+    @GetMapping("/{sessionID}")
+    public ResponseEntity<UploadSessionStatus> getSession(@PathVariable("sessionID") String sessionID,
+                                                          @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return new ResponseEntity<>(uploadSessionService.status(sessionID, userId), HttpStatus.OK);
+    }
+
+    @PostMapping("/{sessionID}/complete")
+    public CompletableFuture<ResponseEntity<List<String>>> completeSession(@PathVariable("sessionID") String sessionID,
+                                                                           @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return uploadSessionService.completeAsync(sessionID, userId)
+                                   .thenApply(mediaURL -> new ResponseEntity<>(List.of(mediaURL), HttpStatus.OK));
+    }
+
+    @DeleteMapping("/{sessionID}")
+    public CompletableFuture<ResponseEntity<String>> abortSession(@PathVariable("sessionID") String sessionID,
+                                                                  @RequestHeader(NABConstants.UID_HEADER_NAME) String userId) {
+        return uploadSessionService.abortAsync(sessionID, userId)
+                                   .thenApply(ignored -> new ResponseEntity<>("Upload session aborted!", HttpStatus.OK));
+    }
+}
@@ -1,6 +1,9 @@
 package org.notabarista.storage.api.controller.errorhandling;
 
+import org.apache.commons.fileupload.FileUploadException;
+import org.notabarista.storage.exception.MediaNotFoundException;
 import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.exception.StorageUnavailableException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -15,6 +18,8 @@ import javax.validation.ConstraintViolationException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 @ControllerAdvice
 public class MediaExceptionHandler extends ResponseEntityExceptionHandler {
@@ -32,12 +37,46 @@ public class MediaExceptionHandler extends ResponseEntityExceptionHandler {
                 new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
     }
 
+    @ExceptionHandler(value = MediaNotFoundException.class)
+    protected ResponseEntity<Object> handleMediaNotFoundException(RuntimeException ex, WebRequest request) {
+        return handleExceptionInternal(ex, ex.getMessage(),
+                new HttpHeaders(), HttpStatus.NOT_FOUND, request);
+    }
+
+    @ExceptionHandler(value = StorageUnavailableException.class)
+    protected ResponseEntity<Object> handleStorageUnavailableException(StorageUnavailableException ex, WebRequest request) {
+        HttpHeaders headers = new HttpHeaders();
+        if (ex.getRetryAfter() != null) {
+            headers.set(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, (ex.getRetryAfter().toMillis() + 999) / 1000)));
+        }
+        return handleExceptionInternal(ex, ex.getMessage(),
+                headers, HttpStatus.SERVICE_UNAVAILABLE, request);
+    }
+
     @ExceptionHandler(value = MalformedURLException.class)
     protected ResponseEntity<Object> handleMalformedURLException(MalformedURLException ex, WebRequest request) {
         return handleExceptionInternal(ex, "Invalid URL.",
                 new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
     }
 
+    @ExceptionHandler(value = FileUploadException.class)
+    protected ResponseEntity<Object> handleFileUploadException(FileUploadException ex, WebRequest request) {
+        return handleExceptionInternal(ex, "Invalid multipart request: " + ex.getMessage(),
+                new HttpHeaders(), HttpStatus.BAD_REQUEST, request);
+    }
+
+    @ExceptionHandler(value = RejectedExecutionException.class)
+    protected ResponseEntity<Object> handleRejectedExecutionException(RejectedExecutionException ex, WebRequest request) {
+        return handleExceptionInternal(ex, "Too many pending media requests, try again later.",
+                new HttpHeaders(), HttpStatus.SERVICE_UNAVAILABLE, request);
+    }
+
+    @ExceptionHandler(value = TimeoutException.class)
+    protected ResponseEntity<Object> handleTimeoutException(TimeoutException ex, WebRequest request) {
+        return handleExceptionInternal(ex, "Media request timed out.",
+                new HttpHeaders(), HttpStatus.SERVICE_UNAVAILABLE, request);
+    }
+
     @ExceptionHandler({ ConstraintViolationException.class })
     public ResponseEntity<Object> handleConstraintViolation(ConstraintViolationException ex, WebRequest request) {
         List<String> errors = new ArrayList<String>();
@@ -0,0 +1,29 @@
+package org.notabarista.storage.api.endpoint;
+
+import org.notabarista.storage.service.ItemService;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.stereotype.Component;
+
+/**
+ * {@code DELETE /actuator/itemownership/{itemID}} drops the cached ownership checks of an item, e.g. after it changed owner.
+ * <p>
+ * The endpoint is excluded from the web exposure in {@code application.yml}, since the actuator is not authenticated.
+ * Expose it only on an internal management port ({@code management.server.port}) or over JMX.
+ */
+@Component
+@Endpoint(id = "itemownership")
+public class ItemOwnershipCacheEndpoint {
+
+    private final ItemService itemService;
+
+    public ItemOwnershipCacheEndpoint(ItemService itemService) {
+        this.itemService = itemService;
+    }
+
+    @DeleteOperation
+    public void invalidate(@Selector String itemID) {
+        itemService.invalidate(itemID);
+    }
+}
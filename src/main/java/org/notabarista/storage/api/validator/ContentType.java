@@ -18,4 +18,10 @@ public @interface ContentType {
     Class<? extends Payload>[] payload() default {};
 
     String[] contentTypes();
+
+    /**
+     * Also detect the real format of each file from its first bytes and check it against {@link #contentTypes()}, for
+     * files declared as one of the formats {@link ImageFormatSniffer} detects.
+     */
+    boolean sniff() default false;
 }
@@ -5,32 +5,61 @@ import org.springframework.web.multipart.MultipartFile;
 
 import javax.validation.ConstraintValidator;
 import javax.validation.ConstraintValidatorContext;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 public class ContentTypeValidator implements ConstraintValidator<ContentType, MultipartFile[]> {
 
+    // header buffers are reused per request thread, sniffing reads only the first bytes of each part
+    private static final ThreadLocal<byte[]> HEADER_BUFFER = ThreadLocal.withInitial(() -> new byte[ImageFormatSniffer.HEADER_LENGTH]);
+
     private Set<String> validContentTypes;
+    private boolean sniff;
 
     @Override
     public void initialize(ContentType constraint) {
         validContentTypes = Arrays.stream(constraint.contentTypes()).collect(Collectors.toSet());
+        sniff = constraint.sniff();
     }
 
     @Override
     public boolean isValid(MultipartFile[] files, ConstraintValidatorContext context) {
         for (MultipartFile file : files) {
-            String shortenedContentType = StringUtils.isNotBlank(file.getContentType()) ?
-                    file.getContentType().replaceFirst("[^/]*$", "*")
-                    : null;
-            if (shortenedContentType == null || !validContentTypes.contains(shortenedContentType)) {
+            if (!isValidContentType(file.getContentType())) {
                 context.disableDefaultConstraintViolation();
                 context.buildConstraintViolationWithTemplate("Invalid content type: " + file.getContentType())
                        .addConstraintViolation();
                 return false;
             }
+            // image types the sniffer does not know are taken at their declared type
+            if (sniff && ImageFormatSniffer.isDetectable(file.getContentType()) && !isValidContentType(sniffContentType(file))) {
+                context.disableDefaultConstraintViolation();
+                context.buildConstraintViolationWithTemplate("Invalid file content: " + file.getOriginalFilename())
+                       .addConstraintViolation();
+                return false;
+            }
         }
         return true;
     }
+
+    private boolean isValidContentType(String contentType) {
+        if (StringUtils.isBlank(contentType)) {
+            return false;
+        }
+        int slash = contentType.indexOf('/');
+        String shortenedContentType = slash < 0 ? "*" : contentType.substring(0, slash + 1) + "*";
+        return validContentTypes.contains(shortenedContentType) || validContentTypes.contains(contentType);
+    }
+
+    private static String sniffContentType(MultipartFile file) {
+        byte[] header = HEADER_BUFFER.get();
+        try (InputStream inputStream = file.getInputStream()) {
+            return ImageFormatSniffer.detect(header, inputStream.readNBytes(header, 0, header.length));
+        } catch (IOException e) {
+            return null;
+        }
+    }
 }
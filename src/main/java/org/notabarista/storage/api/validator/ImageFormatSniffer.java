@@ -0,0 +1,127 @@
+package org.notabarista.storage.api.validator;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Detects the image format of a file from its first bytes (magic numbers), independent of the declared content type.
+ * Only files declared as one of the detected formats are checked against their bytes, see {@link #isDetectable}.
+ */
+public final class ImageFormatSniffer {
+
+    /**
+     * Number of leading bytes needed to detect every supported format.
+     */
+    public static final int HEADER_LENGTH = 32;
+
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] PNG = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] GIF87A = ascii("GIF87a");
+    private static final byte[] GIF89A = ascii("GIF89a");
+    private static final byte[] RIFF = ascii("RIFF");
+    private static final byte[] WEBP = ascii("WEBP");
+    private static final byte[] FTYP = ascii("ftyp");
+    private static final byte[][] AVIF_BRANDS = {ascii("avif"), ascii("avis")};
+    private static final byte[][] HEIC_BRANDS = {ascii("heic"), ascii("heix"), ascii("heim"), ascii("heis")};
+    private static final Set<String> DETECTABLE_CONTENT_TYPES = Set.of("image/jpeg", "image/jpg", "image/pjpeg", "image/png",
+            "image/gif", "image/webp", "image/avif", "image/heic", "image/heif");
+
+    private ImageFormatSniffer() {
+    }
+
+    /**
+     * Whether files declared as {@code contentType} can be checked against their bytes, i.e. whether it is one of the
+     * formats {@link #detect} recognizes. Other image types, such as BMP, TIFF, SVG or ICO, are taken at their declared
+     * type.
+     */
+    public static boolean isDetectable(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int parameters = contentType.indexOf(';');
+        String mediaType = parameters < 0 ? contentType : contentType.substring(0, parameters);
+        return DETECTABLE_CONTENT_TYPES.contains(mediaType.trim().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Detects the format of a stream from its next bytes and pushes them back, so the stream can still be read in
+     * full. Its pushback buffer must hold at least {@link #HEADER_LENGTH} bytes.
+     */
+    public static String detect(PushbackInputStream inputStream) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int length = inputStream.readNBytes(header, 0, header.length);
+        inputStream.unread(header, 0, length);
+        return detect(header, length);
+    }
+
+    /**
+     * Returns the content type of the image whose first {@code length} bytes are in {@code header}, or {@code null}
+     * if it is none of JPEG, PNG, GIF, WebP, AVIF or HEIC.
+     */
+    public static String detect(byte[] header, int length) {
+        if (startsWith(header, length, 0, JPEG)) {
+            return "image/jpeg";
+        }
+        if (startsWith(header, length, 0, PNG)) {
+            return "image/png";
+        }
+        if (startsWith(header, length, 0, GIF87A) || startsWith(header, length, 0, GIF89A)) {
+            return "image/gif";
+        }
+        if (startsWith(header, length, 0, RIFF) && startsWith(header, length, 8, WEBP)) {
+            return "image/webp";
+        }
+        if (startsWith(header, length, 4, FTYP)) {
+            return detectIsoMediaBrand(header, length);
+        }
+        return null;
+    }
+
+    /**
+     * AVIF and HEIC are ISO base media files starting with an {@code ftyp} box: box size, {@code ftyp}, major brand,
+     * minor version and the compatible brands. The major brand decides; a generic HEIF major brand such as
+     * {@code mif1} falls back to the compatible brands.
+     */
+    private static String detectIsoMediaBrand(byte[] header, int length) {
+        int boxSize = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        int end = Math.min(length, boxSize);
+        String contentType = contentTypeOfBrand(header, end, 8);
+        for (int offset = 16; contentType == null && offset + 4 <= end; offset += 4) {
+            contentType = contentTypeOfBrand(header, end, offset);
+        }
+        return contentType;
+    }
+
+    private static String contentTypeOfBrand(byte[] header, int length, int offset) {
+        for (byte[] brand : AVIF_BRANDS) {
+            if (startsWith(header, length, offset, brand)) {
+                return "image/avif";
+            }
+        }
+        for (byte[] brand : HEIC_BRANDS) {
+            if (startsWith(header, length, offset, brand)) {
+                return "image/heic";
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset, byte[] magic) {
+        if (offset + magic.length > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
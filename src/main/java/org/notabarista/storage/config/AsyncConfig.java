@@ -0,0 +1,123 @@
+package org.notabarista.storage.config;
+
+import org.notabarista.storage.service.IoExecutor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class AsyncConfig implements WebMvcConfigurer {
+
+    @Value("${storage.io.threads:32}")
+    private int ioThreads;
+
+    @Value("${storage.io.queue-capacity:256}")
+    private int ioQueueCapacity;
+
+    @Value("${storage.io.timeout:60s}")
+    private Duration ioTimeout;
+
+    @Value("${storage.io.links.threads:8}")
+    private int linkIoThreads;
+
+    @Value("${storage.io.links.queue-capacity:256}")
+    private int linkIoQueueCapacity;
+
+    @Value("${storage.io.links.timeout:10s}")
+    private Duration linkIoTimeout;
+
+    @Value("${spring.mvc.async.request-timeout:#{null}}")
+    private Duration asyncRequestTimeout;
+
+    @Value("${storage.io.streaming.threads:32}")
+    private int streamingThreads;
+
+    @Value("${storage.io.streaming.queue-capacity:64}")
+    private int streamingQueueCapacity;
+
+    @Value("${storage.derivatives.threads:0}")
+    private int derivativeThreads;
+
+    @Value("${storage.derivatives.queue-capacity:64}")
+    private int derivativeQueueCapacity;
+
+    @Value("${storage.virtual-threads.enabled:false}")
+    private boolean virtualThreads;
+
+    /**
+     * Runs media uploads and deletes once the controller has released the servlet thread.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public IoExecutor mediaIoExecutor() {
+        return new IoExecutor(boundedPool(ioThreads, ioQueueCapacity, "media-io-"), ioTimeout);
+    }
+
+    /**
+     * Runs the {@code /links} operations. Kept apart from {@link #mediaIoExecutor()} so a backlog of uploads
+     * does not hold up the cheap link updates.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public IoExecutor mediaLinkIoExecutor() {
+        return new IoExecutor(boundedPool(linkIoThreads, linkIoQueueCapacity, "media-link-io-"), linkIoTimeout);
+    }
+
+    /**
+     * Writes {@code StreamingResponseBody} responses, i.e. media downloads, in place of Boot's default
+     * {@code applicationTaskExecutor} and its unbounded queue. Once the queue is full further downloads are rejected
+     * with 503 instead of piling up.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService mediaStreamingExecutor() {
+        return boundedPool(streamingThreads, streamingQueueCapacity, "media-streaming-");
+    }
+
+    /**
+     * Also makes sure the I/O deadlines pass before the async request times out: an I/O call that reads the request
+     * body is interrupted at its deadline and the request only completes once it returned, whereas a request that
+     * times out first completes while the call may still be reading.
+     */
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(new ConcurrentTaskExecutor(mediaStreamingExecutor()));
+        Duration ioDeadline = ioTimeout.compareTo(linkIoTimeout) >= 0 ? ioTimeout : linkIoTimeout;
+        if (asyncRequestTimeout == null) {
+            configurer.setDefaultTimeout(ioDeadline.multipliedBy(3).dividedBy(2).toMillis());
+        } else if (asyncRequestTimeout.compareTo(ioDeadline) <= 0) {
+            throw new IllegalStateException("spring.mvc.async.request-timeout " + asyncRequestTimeout
+                    + " must be longer than the I/O timeout " + ioDeadline);
+        }
+    }
+
+    /**
+     * Decodes and scales images for derivatives. The work is CPU bound, so the pool runs on platform threads, one per
+     * core unless {@code storage.derivatives.threads} says otherwise, and rejects images once its queue is full.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService mediaDerivativeExecutor() {
+        int threads = derivativeThreads > 0 ? derivativeThreads : Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(derivativeQueueCapacity), new CustomizableThreadFactory("media-derivative-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private ExecutorService boundedPool(int threads, int queueCapacity, String threadNamePrefix) {
+        if (virtualThreads) {
+            return VirtualThreads.newBoundedExecutor(threads, queueCapacity);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory(threadNamePrefix));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
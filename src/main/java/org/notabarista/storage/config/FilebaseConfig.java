@@ -1,16 +1,38 @@
 package org.notabarista.storage.config;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.nio.NioS3Client;
+import org.notabarista.storage.service.resilience.AdaptiveLimiter;
+import org.notabarista.storage.service.resilience.CircuitBreaker;
+import org.notabarista.storage.service.resilience.ResilientS3;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
+@Log4j2
 public class FilebaseConfig {
 
     @Value("${filebase.access.key}")
@@ -25,14 +47,213 @@ public class FilebaseConfig {
     @Value("${filebase.region}")
     private String region;
 
+    @Value("${filebase.max-connections:64}")
+    private int maxConnections;
+
+    @Value("${filebase.upload.max-concurrent:16}")
+    private int maxConcurrentUploads;
+
+    @Value("${filebase.upload.queue-capacity:64}")
+    private int uploadQueueCapacity;
+
+    @Value("${filebase.upload.multipart.buffers:8}")
+    private int partBuffers;
+
+    @Value("${storage.virtual-threads.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${filebase.bucket}")
+    private String bucketName;
+
+    @Value("${filebase.nio.threads:2}")
+    private int nioThreads;
+
+    @Value("${filebase.nio.connect-timeout:10s}")
+    private Duration nioConnectTimeout;
+
+    @Value("${filebase.nio.max-retries:3}")
+    private int nioMaxRetries;
+
+    @Value("${filebase.nio.retry-delay:100ms}")
+    private Duration nioRetryDelay;
+
+    @Value("${filebase.resilience.enabled:true}")
+    private boolean resilience;
+
+    @Value("${filebase.resilience.timeout.read:5s}")
+    private Duration readTimeout;
+
+    @Value("${filebase.resilience.timeout.delete:10s}")
+    private Duration deleteTimeout;
+
+    @Value("${filebase.resilience.timeout.write:2m}")
+    private Duration writeTimeout;
+
+    @Value("${filebase.resilience.hedge.enabled:true}")
+    private boolean hedging;
+
+    @Value("${filebase.resilience.hedge.percentile:0.95}")
+    private double hedgePercentile;
+
+    @Value("${filebase.resilience.hedge.min-delay:50ms}")
+    private Duration hedgeMinDelay;
+
+    @Value("${filebase.resilience.hedge.min-samples:100}")
+    private int hedgeMinSamples;
+
+    @Value("${filebase.resilience.bulkhead.max-concurrent:${filebase.max-connections:64}}")
+    private int maxConcurrentCalls;
+
+    @Value("${filebase.resilience.bulkhead.max-wait:100ms}")
+    private Duration bulkheadMaxWait;
+
+    @Value("${filebase.resilience.circuit.window:50}")
+    private int circuitWindow;
+
+    @Value("${filebase.resilience.circuit.minimum-calls:20}")
+    private int circuitMinimumCalls;
+
+    @Value("${filebase.resilience.circuit.failure-rate:0.5}")
+    private double circuitFailureRate;
+
+    @Value("${filebase.resilience.circuit.open-duration:30s}")
+    private Duration circuitOpenDuration;
+
+    @Value("${filebase.resilience.circuit.half-open-calls:5}")
+    private int circuitHalfOpenCalls;
+
+    @Value("${filebase.limiter.enabled:true}")
+    private boolean requestLimiter;
+
+    @Value("${filebase.limiter.initial-limit:32}")
+    private int requestLimiterInitialLimit;
+
+    @Value("${filebase.limiter.min-limit:4}")
+    private int requestLimiterMinLimit;
+
+    @Value("${filebase.limiter.max-limit:256}")
+    private int requestLimiterMaxLimit;
+
+    @Value("${filebase.limiter.smoothing:0.2}")
+    private double requestLimiterSmoothing;
+
+    /**
+     * The plain client. Only its local helpers, like {@code getResourceUrl}, should be used directly; calls to
+     * Filebase go through the {@link #resilientS3(StorageMetrics) resilient} client.
+     */
     @Bean
     public AmazonS3 s3() {
-        AWSCredentials awsCredentials =
-                new BasicAWSCredentials(accessKey, secretKey);
+        if (maxConnections < maxConcurrentUploads + partBuffers) {
+            log.warn("filebase.max-connections {} is below the {} concurrent uploads and {} part uploads, requests will wait for connections",
+                    maxConnections, maxConcurrentUploads, partBuffers);
+        }
+        ClientConfiguration clientConfiguration = new ClientConfiguration().withMaxConnections(maxConnections);
+        if (resilience) {
+            // the resilient client does not time out writes itself, see ResilientS3
+            int writeTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, writeTimeout.toMillis());
+            clientConfiguration.withRequestTimeout(writeTimeoutMillis).withClientExecutionTimeout(writeTimeoutMillis);
+        }
         return AmazonS3ClientBuilder
                 .standard()
                 .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region))
-                .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
+                .withCredentials(credentialsProvider())
+                .withClientConfiguration(clientConfiguration)
                 .build();
     }
+
+    /**
+     * The client injected wherever an {@link AmazonS3} is needed: timeouts per operation, hedged idempotent calls,
+     * a bulkhead and a circuit breaker around {@link #s3()}.
+     */
+    @Bean
+    @Primary
+    public AmazonS3 resilientS3(StorageMetrics storageMetrics) {
+        if (!resilience) {
+            return s3();
+        }
+        ExecutorService callExecutor = virtualThreads
+                ? VirtualThreads.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool(new CustomizableThreadFactory("filebase-s3-"));
+        return new ResilientS3(s3(), callExecutor,
+                new ResilientS3.Timeouts(readTimeout, deleteTimeout),
+                new ResilientS3.Hedging(hedging, hedgePercentile, hedgeMinDelay, hedgeMinSamples),
+                maxConcurrentCalls, bulkheadMaxWait, s3CircuitBreaker(storageMetrics), storageMetrics).proxy();
+    }
+
+    /**
+     * The health of Filebase as seen by all of its clients: the blocking and the non-blocking one open and close it
+     * together.
+     */
+    @Bean
+    public CircuitBreaker s3CircuitBreaker(StorageMetrics storageMetrics) {
+        return new CircuitBreaker("filebase", circuitWindow, circuitMinimumCalls, circuitFailureRate,
+                circuitOpenDuration, circuitHalfOpenCalls,
+                state -> storageMetrics.recordS3CircuitTransition(state.name().toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * Adaptive limit of the uploads and deletes of {@code storage.engine=filebase} in flight, exported as
+     * {@code storage.limiter.*}; without it every request is admitted and waits for the I/O threads.
+     */
+    @Bean
+    public AdaptiveLimiter mediaRequestLimiter(StorageMetrics storageMetrics) {
+        if (!requestLimiter) {
+            return AdaptiveLimiter.unlimited("media-requests");
+        }
+        AdaptiveLimiter limiter = new AdaptiveLimiter("media-requests", requestLimiterInitialLimit, requestLimiterMinLimit,
+                requestLimiterMaxLimit, requestLimiterSmoothing);
+        storageMetrics.gaugeLimiter(limiter, AdaptiveLimiter::getLimit, AdaptiveLimiter::getInFlight);
+        return limiter;
+    }
+
+    /**
+     * The non-blocking client of {@code storage.engine=nio}. It signs like {@link #s3()} and builds its URLs, and shares
+     * the timeouts, the bulkhead size and the circuit breaker of the resilient client.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(name = "storage.engine", havingValue = "nio")
+    public NioS3Client nioS3Client(StorageMetrics storageMetrics) {
+        return new NioS3Client((AmazonS3Client) s3(), bucketName, region, credentialsProvider(), nioThreads, nioConnectTimeout,
+                readTimeout, deleteTimeout, writeTimeout, nioMaxRetries, nioRetryDelay,
+                resilience ? maxConcurrentCalls : Integer.MAX_VALUE, resilience ? s3CircuitBreaker(storageMetrics) : null,
+                storageMetrics);
+    }
+
+    private AWSCredentialsProvider credentialsProvider() {
+        AWSCredentials awsCredentials =
+                new BasicAWSCredentials(accessKey, secretKey);
+        return new AWSStaticCredentialsProvider(awsCredentials);
+    }
+
+    /**
+     * Shared pool for media uploads and batched deletes. Its size is the global cap on concurrent Filebase PUTs
+     * across all requests; once the queue is full the submitting request thread does the work itself instead of failing.
+     * With virtual threads the cap is a semaphore and the uploads waiting for it do not queue up.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService mediaUploadExecutor() {
+        if (virtualThreads) {
+            return VirtualThreads.newBoundedExecutor(maxConcurrentUploads, -1);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrentUploads, maxConcurrentUploads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(uploadQueueCapacity), new CustomizableThreadFactory("media-upload-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Uploads the parts of multipart uploads. One thread per part buffer, so a part never waits for a thread
+     * while holding a buffer.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService mediaPartUploadExecutor() {
+        if (virtualThreads) {
+            return VirtualThreads.newBoundedExecutor(partBuffers, -1);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(partBuffers, partBuffers, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new CustomizableThreadFactory("media-part-upload-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
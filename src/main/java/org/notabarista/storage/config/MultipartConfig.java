@@ -0,0 +1,54 @@
+package org.notabarista.storage.config;
+
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.http.HttpServletRequest;
+
+@Configuration
+public class MultipartConfig {
+
+    /**
+     * Requests below this path are parsed by the controller while their body is read.
+     */
+    public static final String STREAMING_UPLOAD_PATH = "/stream/";
+
+    private static final UrlPathHelper URL_PATH_HELPER = new UrlPathHelper();
+
+    @Value("${spring.servlet.multipart.max-file-size:1MB}")
+    private DataSize maxFileSize;
+
+    @Value("${spring.servlet.multipart.max-request-size:10MB}")
+    private DataSize maxRequestSize;
+
+    /**
+     * The standard resolver, except for streaming uploads: resolving them would make the container spool every
+     * part to disk before the handler runs.
+     */
+    @Bean
+    public MultipartResolver multipartResolver() {
+        return new StandardServletMultipartResolver() {
+            @Override
+            public boolean isMultipart(HttpServletRequest request) {
+                return !URL_PATH_HELPER.getPathWithinApplication(request).startsWith(STREAMING_UPLOAD_PATH) && super.isMultipart(request);
+            }
+        };
+    }
+
+    /**
+     * Parser of streaming uploads, with the same size limits as the spooled uploads.
+     */
+    @Bean
+    public ServletFileUpload streamingFileUpload() {
+        ServletFileUpload fileUpload = new ServletFileUpload();
+        fileUpload.setFileSizeMax(maxFileSize.toBytes());
+        fileUpload.setSizeMax(maxRequestSize.toBytes());
+        return fileUpload;
+    }
+}
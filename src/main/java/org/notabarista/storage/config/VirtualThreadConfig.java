@@ -0,0 +1,25 @@
+package org.notabarista.storage.config;
+
+import lombok.extern.log4j.Log4j2;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Opt-in mode for Java 21 and newer, {@code storage.virtual-threads.enabled=true}: Tomcat handles every request on
+ * its own virtual thread, and the upload and I/O executors start a virtual thread per task. Concurrency is then
+ * bounded by the S3 connection pool ({@code filebase.max-connections}), the executor limits and
+ * {@code catalog.max-concurrent-requests} instead of by the number of platform threads.
+ */
+@Configuration
+@ConditionalOnProperty(name = "storage.virtual-threads.enabled", havingValue = "true")
+@Log4j2
+public class VirtualThreadConfig {
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        log.info("Handling requests on virtual threads");
+        return protocolHandler -> protocolHandler.setExecutor(VirtualThreads.newVirtualThreadPerTaskExecutor());
+    }
+}
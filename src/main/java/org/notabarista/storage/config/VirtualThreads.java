@@ -0,0 +1,131 @@
+package org.notabarista.storage.config;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors running each task on its own virtual thread. The service is built for Java 11, so the JDK support is
+ * looked up at runtime; {@link #isSupported()} is false before Java 21.
+ */
+public final class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findNewVirtualThreadPerTaskExecutor();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @throws IllegalStateException if the JDK has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads need Java 21 or newer, running on Java " + Runtime.version().feature());
+        }
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e.getCause());
+        }
+    }
+
+    /**
+     * A virtual thread executor of which at most {@code maxConcurrency} tasks run at once, the others wait for a
+     * permit on their own virtual thread. Like a thread pool with a bounded queue it rejects a task once
+     * {@code maxPending} tasks are already waiting; a negative {@code maxPending} lets any number wait.
+     */
+    public static ExecutorService newBoundedExecutor(int maxConcurrency, int maxPending) {
+        return new BoundedExecutor(newVirtualThreadPerTaskExecutor(), maxConcurrency, maxPending);
+    }
+
+    private static Method findNewVirtualThreadPerTaskExecutor() {
+        if (Runtime.version().feature() < 21) {
+            return null;
+        }
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static final class BoundedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final Semaphore running;
+        private final Semaphore admitted;
+
+        BoundedExecutor(ExecutorService delegate, int maxConcurrency, int maxPending) {
+            this.delegate = delegate;
+            this.running = new Semaphore(Math.max(1, maxConcurrency));
+            this.admitted = maxPending < 0 ? null : new Semaphore(Math.max(1, maxConcurrency) + maxPending);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            if (admitted != null && !admitted.tryAcquire()) {
+                throw new RejectedExecutionException("Too many pending tasks");
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        running.acquireUninterruptibly();
+                        try {
+                            task.run();
+                        } finally {
+                            running.release();
+                        }
+                    } finally {
+                        releaseAdmission();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                releaseAdmission();
+                throw e;
+            }
+        }
+
+        private void releaseAdmission() {
+            if (admitted != null) {
+                admitted.release();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
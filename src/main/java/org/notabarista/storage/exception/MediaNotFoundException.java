@@ -0,0 +1,7 @@
+package org.notabarista.storage.exception;
+
+public class MediaNotFoundException extends MediaStorageException {
+    public MediaNotFoundException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,25 @@
+package org.notabarista.storage.exception;
+
+import java.time.Duration;
+
+/**
+ * The storage backend did not answer in time or is not accepting calls right now; the request can be retried later,
+ * after {@link #getRetryAfter()} if that is known.
+ */
+public class StorageUnavailableException extends MediaStorageException {
+
+    private final Duration retryAfter;
+
+    public StorageUnavailableException(String message) {
+        this(message, null);
+    }
+
+    public StorageUnavailableException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
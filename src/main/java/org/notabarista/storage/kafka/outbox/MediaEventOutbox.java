@@ -0,0 +1,319 @@
+package org.notabarista.storage.kafka.outbox;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.log4j.Log4j2;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.notabarista.kafka.MediaEvent;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.kafka.producer.MediaEventProducer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Durable local outbox for media events. {@link #append(MediaEvent)} records the event in an fsync'ed journal and
+ * returns; a relay thread sends the journaled events to Kafka in order, retrying with backoff until the broker
+ * acknowledges them. It sends a run of up to {@value #RELAY_RUN_SIZE} events before it waits for their
+ * acknowledgements, so the producer can batch and linger over them. The offset of the last acknowledged event is
+ * checkpointed, so after a restart the relay replays everything after it (at-least-once delivery).
+ * <p>
+ * An event that cannot be deserialized or serialized fails the same way on every attempt. After
+ * {@code max-poison-attempts} such failures it is moved to a dead-letter journal in {@code dead-letter/} and counted
+ * in {@code media.events.outbox.dead-lettered}, so it does not hold up the events behind it.
+ */
+@Component
+@Log4j2
+public class MediaEventOutbox {
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String DEAD_LETTER_DIRECTORY = "dead-letter";
+    private static final int CHECKPOINT_INTERVAL = 100;
+    private static final int RELAY_RUN_SIZE = 500;
+
+    private final MediaEventProducer mediaEventProducer;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final Path directory;
+    private final long segmentSize;
+    private final Duration sendTimeout;
+    private final Duration maxRetryBackoff;
+    private final int maxPoisonAttempts;
+    private final ReentrantLock relayLock = new ReentrantLock();
+    private final Condition eventAppended = relayLock.newCondition();
+
+    private OutboxJournal journal;
+    private OutboxJournal deadLetters;
+    private Thread relay;
+    private volatile boolean running;
+    private volatile long relayedOffset;
+    private Counter relayedEvents;
+    private Counter relayFailures;
+    private Counter deadLettered;
+
+    public MediaEventOutbox(MediaEventProducer mediaEventProducer, ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                            @Value("${kafka.outbox.enabled:false}") boolean enabled,
+                            @Value("${kafka.outbox.directory:${java.io.tmpdir}/be-storage-service/outbox}") Path directory,
+                            @Value("${kafka.outbox.segment-size:64MB}") DataSize segmentSize,
+                            @Value("${kafka.outbox.send-timeout:10s}") Duration sendTimeout,
+                            @Value("${kafka.outbox.max-retry-backoff:30s}") Duration maxRetryBackoff,
+                            @Value("${kafka.outbox.max-poison-attempts:5}") int maxPoisonAttempts) {
+        this.mediaEventProducer = mediaEventProducer;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.directory = directory;
+        this.segmentSize = segmentSize.toBytes();
+        this.sendTimeout = sendTimeout;
+        this.maxRetryBackoff = maxRetryBackoff;
+        this.maxPoisonAttempts = Math.max(1, maxPoisonAttempts);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        journal = new OutboxJournal(directory, segmentSize);
+        deadLetters = new OutboxJournal(directory.resolve(DEAD_LETTER_DIRECTORY), segmentSize);
+        relayedOffset = Math.max(readCheckpoint(), journal.getStartOffset());
+        relayedEvents = Counter.builder("media.events.outbox.relayed").register(meterRegistry);
+        relayFailures = Counter.builder("media.events.outbox.relay.failures").register(meterRegistry);
+        deadLettered = Counter.builder("media.events.outbox.dead-lettered").register(meterRegistry);
+        Gauge.builder("media.events.outbox.backlog", this, outbox -> outbox.journal.getEndOffset() - outbox.relayedOffset)
+             .baseUnit("bytes")
+             .register(meterRegistry);
+        log.info("Media event outbox in '{}' resumes relaying at offset {} of {}", directory, relayedOffset, journal.getEndOffset());
+
+        running = true;
+        relay = new Thread(this::relay, "media-event-outbox-relay");
+        relay.setDaemon(true);
+        relay.start();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records the event durably; it is sent to Kafka asynchronously.
+     */
+    public void append(MediaEvent mediaEvent) throws JsonProcessingException {
+        byte[] payload = objectMapper.writeValueAsBytes(mediaEvent);
+        try {
+            journal.sync(journal.append(payload));
+        } catch (IOException e) {
+            log.error("Could not record media event for item {} in outbox: {}", mediaEvent.getItemID(), e.getMessage());
+            throw new MediaStorageException("Could not record media event");
+        }
+
+        relayLock.lock();
+        try {
+            eventAppended.signal();
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    /**
+     * Records the events durably with a single fsync for all of them; they are sent to Kafka asynchronously.
+     */
+    public void appendAll(List<MediaEvent> mediaEvents) throws JsonProcessingException {
+        if (mediaEvents.isEmpty()) {
+            return;
+        }
+        List<byte[]> payloads = new ArrayList<>(mediaEvents.size());
+        for (MediaEvent mediaEvent : mediaEvents) {
+            payloads.add(objectMapper.writeValueAsBytes(mediaEvent));
+        }
+        try {
+            long endOffset = 0;
+            for (byte[] payload : payloads) {
+                endOffset = journal.append(payload);
+            }
+            journal.sync(endOffset);
+        } catch (IOException e) {
+            log.error("Could not record {} media events in outbox: {}", mediaEvents.size(), e.getMessage());
+            throw new MediaStorageException("Could not record media events");
+        }
+
+        relayLock.lock();
+        try {
+            eventAppended.signal();
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        relay.interrupt();
+        relay.join(sendTimeout.toMillis());
+        writeCheckpoint(relayedOffset);
+        journal.close();
+        deadLetters.close();
+    }
+
+    private void relay() {
+        long sinceCheckpoint = 0;
+        long backoffMillis = 100;
+        int poisonAttempts = 0;
+        while (running) {
+            OutboxJournal.Record record = null;
+            try {
+                List<OutboxJournal.Record> run = readRun();
+                if (run.isEmpty()) {
+                    if (sinceCheckpoint > 0) {
+                        checkpoint();
+                        sinceCheckpoint = 0;
+                    }
+                    awaitAppend();
+                    continue;
+                }
+
+                record = run.get(0);
+                List<Future<?>> sends = new ArrayList<>(run.size());
+                for (OutboxJournal.Record next : run) {
+                    try {
+                        sends.add(mediaEventProducer.sendMediaEvent(objectMapper.readValue(next.getPayload(), MediaEvent.class)));
+                    } catch (Exception e) {
+                        if (sends.isEmpty()) {
+                            throw e;
+                        }
+                        // the events before it are relayed first, it fails at the head of the next run
+                        break;
+                    }
+                }
+                long deadline = System.nanoTime() + sendTimeout.toNanos();
+                for (int index = 0; index < sends.size(); index++) {
+                    record = run.get(index);
+                    sends.get(index).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    relayedOffset = record.getNextOffset();
+                    relayedEvents.increment();
+                    backoffMillis = 100;
+                    poisonAttempts = 0;
+                    sinceCheckpoint++;
+                }
+                if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    checkpoint();
+                    sinceCheckpoint = 0;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                relayFailures.increment();
+                if (record != null && isPoison(e) && ++poisonAttempts >= maxPoisonAttempts) {
+                    try {
+                        deadLetter(record, e);
+                        poisonAttempts = 0;
+                        backoffMillis = 100;
+                        sinceCheckpoint++;
+                        continue;
+                    } catch (IOException deadLetterFailure) {
+                        log.error("Could not move media event at outbox offset {} to the dead letters: {}", relayedOffset,
+                                deadLetterFailure.getMessage());
+                    }
+                }
+                log.error("Could not relay media event at outbox offset {}, retrying in {} ms: {}", relayedOffset, backoffMillis, e.getMessage());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, maxRetryBackoff.toMillis());
+            }
+        }
+    }
+
+    /**
+     * The records from the relayed offset on, at most {@value #RELAY_RUN_SIZE} of them.
+     */
+    private List<OutboxJournal.Record> readRun() throws IOException {
+        List<OutboxJournal.Record> run = new ArrayList<>();
+        long offset = relayedOffset;
+        while (run.size() < RELAY_RUN_SIZE) {
+            OutboxJournal.Record record = journal.read(offset);
+            if (record == null) {
+                break;
+            }
+            run.add(record);
+            offset = record.getNextOffset();
+        }
+        return run;
+    }
+
+    /**
+     * Whether the event itself is at fault, so retrying cannot help: it does not deserialize from the journal, or the
+     * producer cannot serialize or accept it. Broker and network failures are retried without limit.
+     */
+    private static boolean isPoison(Exception e) {
+        Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof JsonProcessingException || cause instanceof SerializationException
+                || cause instanceof RecordTooLargeException;
+    }
+
+    private void deadLetter(OutboxJournal.Record record, Exception e) throws IOException {
+        deadLetters.sync(deadLetters.append(record.getPayload()));
+        log.error("Moved media event at outbox offset {} to the dead letters after {} attempts: {}", relayedOffset, maxPoisonAttempts,
+                e.getMessage());
+        relayedOffset = record.getNextOffset();
+        deadLettered.increment();
+    }
+
+    private void awaitAppend() throws InterruptedException {
+        relayLock.lock();
+        try {
+            if (journal.getEndOffset() <= relayedOffset) {
+                eventAppended.await(1, TimeUnit.SECONDS);
+            }
+        } finally {
+            relayLock.unlock();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        writeCheckpoint(relayedOffset);
+        journal.deleteBefore(relayedOffset);
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return Long.parseLong(Files.readString(checkpoint, StandardCharsets.UTF_8).trim());
+    }
+
+    private void writeCheckpoint(long offset) throws IOException {
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(temporary, Long.toString(offset), StandardCharsets.UTF_8);
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,278 @@
+package org.notabarista.storage.kafka.outbox;
+
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of opaque records split into segment files. Offsets are contiguous across segments: a segment is
+ * named after the offset of its first byte and the next segment starts where the previous one ended.
+ * <p>
+ * Each record is stored as {@code [length][crc32][payload]}. A torn record at the tail of the last segment, left by a
+ * crash during a write, is truncated on open.
+ */
+@Log4j2
+class OutboxJournal implements Closeable {
+
+    static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    private final Object syncLock = new Object();
+
+    // guarded by this
+    private FileChannel activeChannel;
+    private long activeBaseOffset;
+    private volatile long endOffset;
+    // guarded by syncLock
+    private long syncedOffset;
+    // confined to the reading thread
+    private FileChannel readChannel;
+    private long readBaseOffset = -1;
+
+    OutboxJournal(Path directory, long segmentSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                 .forEach(file -> segments.put(baseOffset(file), file));
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, segmentPath(0L));
+        }
+
+        Map.Entry<Long, Path> lastSegment = segments.lastEntry();
+        activeBaseOffset = lastSegment.getKey();
+        activeChannel = FileChannel.open(lastSegment.getValue(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = recover(activeChannel);
+        activeChannel.position(validLength);
+        endOffset = activeBaseOffset + validLength;
+        syncedOffset = endOffset;
+    }
+
+    /**
+     * Writes the record and returns the offset right after it. The record is readable at once but only durable after
+     * {@link #sync(long)} with that offset has returned.
+     */
+    synchronized long append(byte[] payload) throws IOException {
+        openChannel();
+        if (activeChannel.position() >= segmentSize) {
+            roll();
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt(checksum(payload)).put(payload).flip();
+        while (record.hasRemaining()) {
+            activeChannel.write(record);
+        }
+        endOffset = activeBaseOffset + activeChannel.position();
+        return endOffset;
+    }
+
+    /**
+     * Forces everything up to {@code offset} to disk. Concurrent callers share one fsync: the caller that gets the
+     * lock syncs all records written so far, the ones queued behind it usually find their offset covered already.
+     * <p>
+     * A caller interrupted while it writes or forces closes the channel for everyone. Only that caller fails; the
+     * others reopen the channel and force it again, their records are written already.
+     */
+    void sync(long offset) throws IOException {
+        synchronized (syncLock) {
+            if (syncedOffset >= offset) {
+                return;
+            }
+            FileChannel channel;
+            long target;
+            synchronized (this) {
+                channel = openChannel();
+                target = endOffset;
+            }
+            while (true) {
+                try {
+                    channel.force(false);
+                    break;
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    synchronized (this) {
+                        if (channel != activeChannel) {
+                            // rolled over in the meantime, which forced the segment before closing it
+                            break;
+                        }
+                        channel = openChannel();
+                    }
+                }
+            }
+            syncedOffset = target;
+        }
+    }
+
+    long getStartOffset() {
+        return segments.firstKey();
+    }
+
+    long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * Reads the record starting at {@code offset}, or returns {@code null} when there is none yet.
+     */
+    Record read(long offset) throws IOException {
+        if (offset >= endOffset) {
+            return null;
+        }
+        Map.Entry<Long, Path> segment = segments.floorEntry(offset);
+        if (segment == null) {
+            throw new IOException("No outbox segment holds offset " + offset);
+        }
+        if (segment.getKey() != readBaseOffset || !readChannel.isOpen()) {
+            closeReadChannel();
+            readChannel = FileChannel.open(segment.getValue(), StandardOpenOption.READ);
+            readBaseOffset = segment.getKey();
+        }
+
+        long position = offset - readBaseOffset;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(readChannel, header, position);
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(readChannel, payload, position + HEADER_SIZE);
+        if (checksum(payload.array()) != checksum) {
+            throw new IOException("Corrupt outbox record at offset " + offset);
+        }
+        return new Record(payload.array(), offset + HEADER_SIZE + length);
+    }
+
+    /**
+     * Deletes the segments whose records all lie before {@code offset}.
+     */
+    void deleteBefore(long offset) throws IOException {
+        for (Map.Entry<Long, Path> segment : segments.headMap(offset, false).entrySet()) {
+            Long nextBaseOffset = segments.higherKey(segment.getKey());
+            if (nextBaseOffset == null || nextBaseOffset > offset) {
+                break;
+            }
+            segments.remove(segment.getKey());
+            if (segment.getKey() == readBaseOffset) {
+                closeReadChannel();
+            }
+            Files.deleteIfExists(segment.getValue());
+            log.debug("Deleted relayed outbox segment '{}'", segment.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeReadChannel();
+        if (activeChannel.isOpen()) {
+            activeChannel.force(false);
+            activeChannel.close();
+        }
+    }
+
+    private void closeReadChannel() throws IOException {
+        if (readChannel != null) {
+            readChannel.close();
+            readChannel = null;
+            readBaseOffset = -1;
+        }
+    }
+
+    /**
+     * The active channel; an interrupted writer closes it, then it is reopened at the last complete record.
+     */
+    private synchronized FileChannel openChannel() throws IOException {
+        if (!activeChannel.isOpen()) {
+            activeChannel = FileChannel.open(segments.get(activeBaseOffset), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            activeChannel.truncate(endOffset - activeBaseOffset);
+            activeChannel.position(endOffset - activeBaseOffset);
+        }
+        return activeChannel;
+    }
+
+    private void roll() throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+        activeBaseOffset = endOffset;
+        Path segment = segmentPath(activeBaseOffset);
+        activeChannel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(activeBaseOffset, segment);
+        log.info("Rolled outbox to segment '{}'", segment);
+    }
+
+    private long recover(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_SIZE);
+            if (checksum(payload.array()) != checksum) {
+                break;
+            }
+            position += HEADER_SIZE + length;
+        }
+        if (position < size) {
+            log.warn("Truncating torn outbox record at offset {} of segment {}", position, activeBaseOffset);
+            channel.truncate(position);
+            channel.force(false);
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of outbox segment");
+            }
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+
+    private Path segmentPath(long baseOffset) {
+        return directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    }
+
+    private static long baseOffset(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    @Value
+    static class Record {
+        byte[] payload;
+        long nextOffset;
+    }
+}
@@ -2,20 +2,43 @@ package org.notabarista.storage.kafka.producer;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.log4j.Log4j2;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.header.internals.RecordHeader;
 import org.notabarista.kafka.MediaEvent;
+import org.notabarista.kafka.MediaEventType;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Component
 @Log4j2
@@ -23,27 +46,138 @@ public class MediaEventProducer {
 
     private final KafkaTemplate<String, String> kafkaTemplate;
     private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final long coalesceWindowMillis;
+    private final ScheduledExecutorService flushScheduler;
+    // pending coalesced event per itemID, guarded by itself
+    private final Map<String, PendingEvent> pendingEvents = new HashMap<>();
+    // coalesced events taken out of pendingEvents, in the order they are handed to the producer
+    private final Queue<PendingEvent> dueEvents = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final Counter requestedEvents;
+    private final Counter sentMessages;
+    private final DistributionSummary messageBytes;
 
-    public MediaEventProducer(KafkaTemplate<String, String> kafkaTemplate, ObjectMapper objectMapper) {
+    public MediaEventProducer(KafkaTemplate<String, String> kafkaTemplate, ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                              @Value("${kafka.media-events.coalesce-window:0ms}") Duration coalesceWindow) {
         this.kafkaTemplate = kafkaTemplate;
         this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.coalesceWindowMillis = coalesceWindow.toMillis();
+        this.flushScheduler = coalesceWindowMillis > 0
+                ? Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("media-event-flush-"))
+                : null;
+        this.requestedEvents = Counter.builder("media.events.requested").register(meterRegistry);
+        this.sentMessages = Counter.builder("media.events.sent").register(meterRegistry);
+        this.messageBytes = DistributionSummary.builder("media.events.bytes").baseUnit("bytes").register(meterRegistry);
     }
 
+    /**
+     * Sends the event to the default topic. With a coalesce window configured, events of the same type and user for
+     * the same item that arrive within the window are merged into one event; an event of another type for that item
+     * sends the pending one first so the order per item is kept.
+     * <p>
+     * Coalesced events are handed to the producer outside of the lock on the pending events, so a producer that
+     * blocks, e.g. on a metadata fetch or a full buffer, only holds up the thread sending and not every thread
+     * recording an event.
+     */
     public ListenableFuture<SendResult<String, String>> sendMediaEvent(MediaEvent mediaEvent) throws JsonProcessingException {
+        requestedEvents.increment();
+        if (flushScheduler == null) {
+            return send(mediaEvent);
+        }
+
+        String itemID = mediaEvent.getItemID();
+        PendingEvent nextEvent;
+        synchronized (pendingEvents) {
+            PendingEvent pendingEvent = pendingEvents.get(itemID);
+            if (pendingEvent != null && pendingEvent.accepts(mediaEvent)) {
+                pendingEvent.merge(mediaEvent);
+                return pendingEvent.result;
+            }
+            if (pendingEvent != null) {
+                pendingEvents.remove(itemID);
+                dueEvents.add(pendingEvent);
+            }
+            nextEvent = new PendingEvent(mediaEvent);
+            pendingEvents.put(itemID, nextEvent);
+            flushScheduler.schedule(() -> flush(itemID, nextEvent), coalesceWindowMillis, TimeUnit.MILLISECONDS);
+        }
+        sendDueEvents();
+        return nextEvent.result;
+    }
+
+    /**
+     * Sends several events back to back, without waiting in between, so the producer packs them into as few
+     * requests to the brokers as their partitions allow.
+     */
+    public List<ListenableFuture<SendResult<String, String>>> sendMediaEvents(List<MediaEvent> mediaEvents) throws JsonProcessingException {
+        List<ListenableFuture<SendResult<String, String>>> results = new ArrayList<>(mediaEvents.size());
+        for (MediaEvent mediaEvent : mediaEvents) {
+            results.add(sendMediaEvent(mediaEvent));
+        }
+        return results;
+    }
+
+    private void flush(String itemID, PendingEvent pendingEvent) {
+        synchronized (pendingEvents) {
+            if (pendingEvents.remove(itemID, pendingEvent)) {
+                dueEvents.add(pendingEvent);
+            }
+        }
+        sendDueEvents();
+    }
+
+    /**
+     * Hands the due events to the producer in the order they were queued. One thread at a time sends; a thread that
+     * finds another one sending leaves its events to it.
+     */
+    private void sendDueEvents() {
+        while (!dueEvents.isEmpty() && sendLock.tryLock()) {
+            try {
+                PendingEvent dueEvent;
+                while ((dueEvent = dueEvents.poll()) != null) {
+                    dueEvent.send();
+                }
+            } finally {
+                sendLock.unlock();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushPendingEvents() {
+        if (flushScheduler == null) {
+            return;
+        }
+        flushScheduler.shutdown();
+        synchronized (pendingEvents) {
+            dueEvents.addAll(pendingEvents.values());
+            pendingEvents.clear();
+        }
+        sendDueEvents();
+    }
+
+    private ListenableFuture<SendResult<String, String>> send(MediaEvent mediaEvent) throws JsonProcessingException {
         String key = mediaEvent.getItemID();
         String value = objectMapper.writeValueAsString(mediaEvent);
 
         ProducerRecord<String, String> producerRecord = buildProducerRecord(kafkaTemplate.getDefaultTopic(), key, value);
+        sentMessages.increment();
+        messageBytes.record(value.getBytes(StandardCharsets.UTF_8).length);
 
+        Timer.Sample sendSample = Timer.start(meterRegistry);
         ListenableFuture<SendResult<String, String>> result = kafkaTemplate.send(producerRecord);
         result.addCallback(new ListenableFutureCallback<>() {
             @Override
             public void onFailure(Throwable ex) {
+                sendSample.stop(sendTimer(StorageMetrics.OUTCOME_ERROR));
                 handleFailure(key, value, ex);
             }
 
             @Override
             public void onSuccess(SendResult<String, String> result) {
+                sendSample.stop(sendTimer(StorageMetrics.OUTCOME_SUCCESS));
                 handleSuccess(key, value, result);
             }
         });
@@ -51,6 +185,13 @@ public class MediaEventProducer {
         return result;
     }
 
+    private Timer sendTimer(String outcome) {
+        return Timer.builder("storage.kafka.send")
+                    .description("Time from handing a media event to the producer until the broker acknowledged it")
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+    }
+
     private ProducerRecord<String, String> buildProducerRecord(String topic, String key, String value) {
         return new ProducerRecord<>(topic, null, key, value, List.of(new RecordHeader("event-source", "scanner".getBytes())));
     }
@@ -79,7 +220,49 @@ public class MediaEventProducer {
     }
 
     private void handleSuccess(String key, String value, SendResult<String, String> result) {
-        log.info("Message sent successfully for key : {} and the value is {} , partition is {}", key, value, result.getRecordMetadata().partition());
+        log.info("Message sent successfully for key : {}, partition is {}", key, result.getRecordMetadata().partition());
+        log.debug("Message value for key {} is {}", key, value);
+    }
+
+    /**
+     * Media event collected during the coalesce window, completed once the merged event has been sent.
+     */
+    private class PendingEvent {
+        private final MediaEventType mediaEventType;
+        private final String itemID;
+        private final String userID;
+        private final Set<String> mediaURLs;
+        private final SettableListenableFuture<SendResult<String, String>> result = new SettableListenableFuture<>();
+
+        PendingEvent(MediaEvent mediaEvent) {
+            this.mediaEventType = mediaEvent.getMediaEventType();
+            this.itemID = mediaEvent.getItemID();
+            this.userID = mediaEvent.getUserID();
+            this.mediaURLs = new LinkedHashSet<>(mediaEvent.getMediaURLs());
+        }
+
+        boolean accepts(MediaEvent mediaEvent) {
+            return mediaEventType == mediaEvent.getMediaEventType() && Objects.equals(userID, mediaEvent.getUserID());
+        }
+
+        void merge(MediaEvent mediaEvent) {
+            mediaURLs.addAll(mediaEvent.getMediaURLs());
+        }
+
+        void send() {
+            try {
+                MediaEventProducer.this.send(MediaEvent.builder()
+                                                       .mediaEventType(mediaEventType)
+                                                       .itemID(itemID)
+                                                       .mediaURLs(new ArrayList<>(mediaURLs))
+                                                       .userID(userID)
+                                                       .build())
+                                       .addCallback(result::set, result::setException);
+            } catch (JsonProcessingException | RuntimeException e) {
+                log.error("Error sending the coalesced message with key {}, exception is {}", itemID, e.getMessage());
+                result.setException(e);
+            }
+        }
     }
 
 }
@@ -0,0 +1,396 @@
+package org.notabarista.storage.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Meters of the storage pipeline: catalog ownership checks, calls to the Filebase S3 API, uploaded, stored and downloaded bytes,
+ * the hit rate of content-addressed deduplication, the creation of image derivatives, the on-demand image variants
+ * with their local cache, how often the resilience layer around the S3 client steps in, the adaptive limit of
+ * concurrent media requests and how the tiers of {@code storage.engine=tiered} are used.
+ * Timers are tagged with the outcome of the call so failures and their latency show up separately.
+ */
+@Component
+public class StorageMetrics {
+
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String OUTCOME_ERROR = "error";
+
+    @FunctionalInterface
+    public interface Call<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Counter uploadedBytes;
+    private final DistributionSummary uploadSize;
+    private final Counter storedBytes;
+    private final Counter downloadedBytes;
+    private final Counter dedupHits;
+    private final Counter dedupMisses;
+    private final Counter dedupSavedBytes;
+    private final Counter variantCacheHits;
+    private final Counter variantCacheMisses;
+    private final Counter variantCacheEvictions;
+
+    public StorageMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        this.uploadedBytes = Counter.builder("storage.upload.bytes")
+                                    .baseUnit("bytes")
+                                    .register(meterRegistry);
+        this.uploadSize = DistributionSummary.builder("storage.upload.size")
+                                             .baseUnit("bytes")
+                                             .publishPercentileHistogram()
+                                             .register(meterRegistry);
+        this.storedBytes = Counter.builder("storage.stored.bytes")
+                                  .baseUnit("bytes")
+                                  .register(meterRegistry);
+        this.downloadedBytes = Counter.builder("storage.download.bytes")
+                                      .baseUnit("bytes")
+                                      .register(meterRegistry);
+        this.dedupHits = Counter.builder("storage.dedup.requests")
+                                .tag("result", "hit")
+                                .register(meterRegistry);
+        this.dedupMisses = Counter.builder("storage.dedup.requests")
+                                  .tag("result", "miss")
+                                  .register(meterRegistry);
+        this.dedupSavedBytes = Counter.builder("storage.dedup.saved.bytes")
+                                      .baseUnit("bytes")
+                                      .register(meterRegistry);
+        this.variantCacheHits = Counter.builder("storage.variants.cache.requests")
+                                       .tag("result", "hit")
+                                       .register(meterRegistry);
+        this.variantCacheMisses = Counter.builder("storage.variants.cache.requests")
+                                         .tag("result", "miss")
+                                         .register(meterRegistry);
+        this.variantCacheEvictions = Counter.builder("storage.variants.cache.evictions")
+                                            .register(meterRegistry);
+    }
+
+    /**
+     * Times a call to the S3 API, e.g. {@code putObject} or {@code deleteObjects}.
+     */
+    public <T, E extends Exception> T timeS3(String operation, Call<T, E> call) throws E {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = OUTCOME_ERROR;
+        try {
+            T result = call.call();
+            outcome = OUTCOME_SUCCESS;
+            return result;
+        } finally {
+            sample.stop(Timer.builder("storage.s3.requests")
+                             .tag("operation", operation)
+                             .tag("outcome", outcome)
+                             .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Times a call of the non-blocking S3 client from its start until the returned future completes.
+     */
+    public <T> CompletableFuture<T> timeS3Async(String operation, Supplier<CompletableFuture<T>> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((value, failure) -> sample.stop(Timer.builder("storage.s3.requests")
+                                                                         .tag("operation", operation)
+                                                                         .tag("outcome", failure == null ? OUTCOME_SUCCESS : OUTCOME_ERROR)
+                                                                         .register(meterRegistry)));
+    }
+
+    /**
+     * Times a catalog ownership check, tagged {@code owned}, {@code not_owned} or {@code error}.
+     */
+    public <E extends Exception> boolean timeOwnershipCheck(Call<Boolean, E> call) throws E {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = OUTCOME_ERROR;
+        try {
+            boolean owned = call.call();
+            outcome = owned ? "owned" : "not_owned";
+            return owned;
+        } finally {
+            sample.stop(Timer.builder("storage.catalog.ownership.check")
+                             .tag("outcome", outcome)
+                             .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Times a batched catalog ownership check of several items.
+     */
+    public <T, E extends Exception> T timeBatchOwnershipCheck(Call<T, E> call) throws E {
+        return time("storage.catalog.ownership.batch", call);
+    }
+
+    /**
+     * Times the creation of the derivatives of one original image.
+     */
+    public <T, E extends Exception> T timeDerivatives(Call<T, E> call) throws E {
+        return time("storage.derivatives", call);
+    }
+
+    /**
+     * Times the rendering of an on-demand image variant, from reading the original to the encoded variant.
+     */
+    public <T, E extends Exception> T timeVariantRender(Call<T, E> call) throws E {
+        return time("storage.variants.render", call);
+    }
+
+    /**
+     * Bytes sent to the bucket by one upload.
+     */
+    public void recordUpload(long bytes) {
+        uploadedBytes.increment(bytes);
+        uploadSize.record(bytes);
+    }
+
+    /**
+     * Bytes of objects newly created in the bucket, as opposed to bytes sent to it.
+     */
+    public void recordStored(long bytes) {
+        storedBytes.increment(bytes);
+    }
+
+    /**
+     * Bytes of stored objects streamed to clients.
+     */
+    public void recordDownload(long bytes) {
+        downloadedBytes.increment(bytes);
+    }
+
+    /**
+     * Outcome of looking up a content address; {@code bytes} of a hit did not have to be stored again.
+     */
+    public void recordDeduplication(boolean hit, long bytes) {
+        if (hit) {
+            dedupHits.increment();
+            dedupSavedBytes.increment(bytes);
+        } else {
+            dedupMisses.increment();
+        }
+    }
+
+    /**
+     * Outcome of looking up an image variant in the local cache.
+     */
+    public void recordVariantCacheLookup(boolean hit) {
+        if (hit) {
+            variantCacheHits.increment();
+        } else {
+            variantCacheMisses.increment();
+        }
+    }
+
+    public void recordVariantCacheEviction() {
+        variantCacheEvictions.increment();
+    }
+
+    /**
+     * Reports the bytes held by the local cache of image variants.
+     */
+    public <T> void gaugeVariantCacheSize(T cache, ToDoubleFunction<T> size) {
+        Gauge.builder("storage.variants.cache.size", cache, size)
+             .baseUnit("bytes")
+             .register(meterRegistry);
+    }
+
+    /**
+     * Reports the write-behind uploads acknowledged but not yet drained to the bucket.
+     */
+    public <T> void gaugeSpooledUploads(T uploads, ToDoubleFunction<T> pending) {
+        Gauge.builder("storage.spool.pending", uploads, pending)
+             .register(meterRegistry);
+    }
+
+    /**
+     * Gauges the write-behind uploads that were given up on and wait in the spool for an operator; alert when non-zero.
+     */
+    public <T> void gaugeFailedSpooledUploads(T uploads, ToDoubleFunction<T> failed) {
+        Gauge.builder("storage.spool.failed", uploads, failed)
+             .register(meterRegistry);
+    }
+
+    /**
+     * A media request shed because the adaptive concurrency limit in front of the bucket was reached.
+     */
+    public void recordLimiterRejection(String operation) {
+        Counter.builder("storage.limiter.rejected")
+               .tag("operation", operation)
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * Reports the current adaptive concurrency limit of media requests and the requests holding a slot of it.
+     */
+    public <T> void gaugeLimiter(T limiter, ToDoubleFunction<T> limit, ToDoubleFunction<T> inFlight) {
+        Gauge.builder("storage.limiter.limit", limiter, limit)
+             .register(meterRegistry);
+        Gauge.builder("storage.limiter.in-flight", limiter, inFlight)
+             .register(meterRegistry);
+    }
+
+    /**
+     * A read of {@code storage.engine=tiered}, served from the local hot tier or from the bucket.
+     */
+    public void recordTierRead(boolean hot) {
+        Counter.builder("storage.tier.reads")
+               .tag("tier", hot ? "hot" : "cold")
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * A frequently read object copied from the bucket to the hot tier.
+     */
+    public void recordTierPromotion(long bytes) {
+        Counter.builder("storage.tier.promotions")
+               .register(meterRegistry)
+               .increment();
+        Counter.builder("storage.tier.promotions.bytes")
+               .baseUnit("bytes")
+               .register(meterRegistry)
+               .increment(bytes);
+    }
+
+    /**
+     * A rarely read object evicted from the hot tier, it is read from the bucket from now on.
+     */
+    public void recordTierDemotion(long bytes) {
+        Counter.builder("storage.tier.demotions")
+               .register(meterRegistry)
+               .increment();
+        Counter.builder("storage.tier.demotions.bytes")
+               .baseUnit("bytes")
+               .register(meterRegistry)
+               .increment(bytes);
+    }
+
+    /**
+     * A background copy of a new object from the hot tier to the bucket.
+     */
+    public void recordTierCopy(String outcome) {
+        Counter.builder("storage.tier.copies")
+               .tag("outcome", outcome)
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * Reports the share of tiered reads served from the hot tier since the start.
+     */
+    public <T> void gaugeTierHitRatio(T store, ToDoubleFunction<T> hitRatio) {
+        Gauge.builder("storage.tier.hit-ratio", store, hitRatio)
+             .register(meterRegistry);
+    }
+
+    /**
+     * Reports the bytes held by the hot tier.
+     */
+    public <T> void gaugeTierHotSize(T store, ToDoubleFunction<T> size) {
+        Gauge.builder("storage.tier.hot.size", store, size)
+             .baseUnit("bytes")
+             .register(meterRegistry);
+    }
+
+    /**
+     * Reports the objects in the hot tier not yet copied to the bucket.
+     */
+    public <T> void gaugeTierPendingCopies(T store, ToDoubleFunction<T> pending) {
+        Gauge.builder("storage.tier.copies.pending", store, pending)
+             .register(meterRegistry);
+    }
+
+    /**
+     * An S3 call that did not answer within the timeout of its operation.
+     */
+    public void recordS3Timeout(String operation) {
+        Counter.builder("storage.s3.timeouts")
+               .tag("operation", operation)
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * A hedged second attempt of an S3 call; {@code won} when its answer was used instead of the first attempt's.
+     */
+    public void recordS3Hedge(String operation, boolean won) {
+        Counter.builder("storage.s3.hedges")
+               .tag("operation", operation)
+               .tag("result", won ? "won" : "lost")
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * An S3 call refused because the bulkhead had no free slot.
+     */
+    public void recordS3BulkheadRejection(String operation) {
+        Counter.builder("storage.s3.bulkhead.rejected")
+               .tag("operation", operation)
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * An S3 call refused because the circuit breaker is open.
+     */
+    public void recordS3CircuitRejection(String operation) {
+        Counter.builder("storage.s3.circuit.rejected")
+               .tag("operation", operation)
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * The circuit breaker of the S3 client moved to {@code state}.
+     */
+    public void recordS3CircuitTransition(String state) {
+        Counter.builder("storage.s3.circuit.transitions")
+               .tag("state", state)
+               .register(meterRegistry)
+               .increment();
+    }
+
+    /**
+     * Reports the S3 calls holding a bulkhead slot.
+     */
+    public <T> void gaugeS3CallsInFlight(T bulkhead, ToDoubleFunction<T> inFlight) {
+        Gauge.builder("storage.s3.bulkhead.in-flight", bulkhead, inFlight)
+             .register(meterRegistry);
+    }
+
+    /**
+     * Reports the state of the circuit breaker of the S3 client: 0 closed, 1 half open, 2 open.
+     */
+    public <T> void gaugeS3CircuitState(T circuitBreaker, ToDoubleFunction<T> state) {
+        Gauge.builder("storage.s3.circuit.state", circuitBreaker, state)
+             .register(meterRegistry);
+    }
+
+    private <T, E extends Exception> T time(String name, Call<T, E> call) throws E {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = OUTCOME_ERROR;
+        try {
+            T result = call.call();
+            outcome = OUTCOME_SUCCESS;
+            return result;
+        } finally {
+            sample.stop(Timer.builder(name)
+                             .tag("outcome", outcome)
+                             .register(meterRegistry));
+        }
+    }
+}
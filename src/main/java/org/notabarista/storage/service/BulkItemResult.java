@@ -0,0 +1,25 @@
+package org.notabarista.storage.service;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Outcome of one item of a bulk request: the media URLs stored or linked for it, or why the item failed. Items of a
+ * bulk request succeed or fail independently of each other.
+ */
+@Value
+public class BulkItemResult {
+    String itemID;
+    boolean succeeded;
+    List<String> mediaURLs;
+    String error;
+
+    public static BulkItemResult succeeded(String itemID, List<String> mediaURLs) {
+        return new BulkItemResult(itemID, true, mediaURLs, null);
+    }
+
+    public static BulkItemResult failed(String itemID, String error) {
+        return new BulkItemResult(itemID, false, List.of(), error);
+    }
+}
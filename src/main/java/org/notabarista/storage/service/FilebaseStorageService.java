@@ -1,40 +1,132 @@
 package org.notabarista.storage.service;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.CountingInputStream;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadException;
 import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.api.validator.ImageFormatSniffer;
 import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.metrics.StorageMetrics.Call;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.resilience.AdaptiveLimiter;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
+/**
+ * {@link StorageService} on the blocking S3 client of the AWS SDK, the default {@code storage.engine}.
+ * <p>
+ * Uploads and deletes pass an {@link AdaptiveLimiter} before they are queued for the I/O threads: the number of them
+ * in flight follows the latency of the S3 calls they make, and requests over the limit fail right away with a
+ * {@link StorageUnavailableException} carrying a {@code Retry-After} instead of waiting in a queue.
+ * <p>
+ * Items refer to stored objects through the markers of {@link ObjectKeys#reference}, stored before the objects. An
+ * object is deleted once no other item refers to it, so items can share content-addressed objects.
+ */
 @Service
+@ConditionalOnProperty(name = "storage.engine", havingValue = "filebase", matchIfMissing = true)
 @Log4j2
 public class FilebaseStorageService implements StorageService {
 
+    private static final int MAX_DELETE_BATCH_SIZE = 1000;
+    private static final String NO_SUCH_KEY = "NoSuchKey";
+
     private final ItemService itemService;
     private final MediaService mediaService;
+    private final DerivativeService derivativeService;
     private final AmazonS3 bucket;
     private final String mediaStorageBucketName;
     private final AmazonS3Client s3Client;
+    private final S3UploadEngine uploadEngine;
+    private final StorageMetrics storageMetrics;
+    private final ExecutorService uploadExecutor;
+    private final IoExecutor ioExecutor;
+    private final AdaptiveLimiter requestLimiter;
+    private final Duration retryAfter;
+    private final int uploadParallelism;
+    private final int deleteBatchSize;
+    private final boolean contentAddressedKeys;
+    private final boolean deleteUntracked;
 
-    public FilebaseStorageService(ItemService itemService, MediaService mediaService,
-                                  AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, AmazonS3Client s3Client) {
+    public FilebaseStorageService(ItemService itemService, MediaService mediaService, DerivativeService derivativeService,
+                                  AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, AmazonS3Client s3Client,
+                                  S3UploadEngine uploadEngine, StorageMetrics storageMetrics, @Qualifier("mediaUploadExecutor") ExecutorService uploadExecutor,
+                                  @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                                  @Qualifier("mediaRequestLimiter") AdaptiveLimiter requestLimiter,
+                                  @Value("${filebase.limiter.retry-after:1s}") Duration retryAfter,
+                                  @Value("${filebase.upload.parallelism:4}") int uploadParallelism,
+                                  @Value("${filebase.delete.batch-size:1000}") int deleteBatchSize,
+                                  @Value("${filebase.object-keys.content-addressed:false}") boolean contentAddressedKeys,
+                                  @Value("${filebase.object-keys.delete-untracked:true}") boolean deleteUntracked) {
         this.itemService = itemService;
         this.mediaService = mediaService;
+        this.derivativeService = derivativeService;
         this.bucket = bucket;
         this.mediaStorageBucketName = mediaStorageBucketName;
         this.s3Client = s3Client;
+        this.uploadEngine = uploadEngine;
+        this.storageMetrics = storageMetrics;
+        this.uploadExecutor = uploadExecutor;
+        this.ioExecutor = ioExecutor;
+        this.requestLimiter = requestLimiter;
+        this.retryAfter = retryAfter;
+        this.uploadParallelism = Math.max(1, uploadParallelism);
+        this.deleteBatchSize = Math.max(1, Math.min(MAX_DELETE_BATCH_SIZE, deleteBatchSize));
+        this.contentAddressedKeys = contentAddressedKeys;
+        this.deleteUntracked = deleteUntracked;
     }
 
     @Override
@@ -43,43 +135,768 @@ public class FilebaseStorageService implements StorageService {
             throw new MediaStorageException("Item not found");
         }
 
+        List<StoredObject> storedObjects = uploadAll(itemID, files);
+        List<String> mediaURLs = new ArrayList<>(storedObjects.size());
+        List<String> objectKeys = new ArrayList<>(storedObjects.size());
+        for (StoredObject storedObject : storedObjects) {
+            mediaURLs.add(storedObject.url);
+            objectKeys.add(storedObject.key);
+        }
+
+        derivativeService.addMedia(itemID, userID, mediaURLs, objectKeys);
+
+        return mediaURLs;
+    }
+
+    @Override
+    public CompletableFuture<List<String>> storeAsync(String itemID, MultipartFile[] files, String userID) {
+        return limited("store", () -> ioExecutor.supply(() -> store(itemID, files, userID)));
+    }
+
+    @Override
+    public List<String> storeStream(String itemID, FileItemIterator files, String userID) throws AbstractNotabaristaException, IOException {
+        if (!itemService.itemExists(itemID, userID)) {
+            throw new MediaStorageException("Item not found");
+        }
+
+        List<StoredObject> storedObjects = new ArrayList<>();
+        List<String> objectKeys = new ArrayList<>();
         List<String> mediaURLs = new ArrayList<>();
-        for (MultipartFile file : files) {
-            log.info("Uploading media file '{}', content type '{}'", file.getResource().getFilename(), file.getContentType());
-            ObjectMetadata objectMetadata = new ObjectMetadata();
-            objectMetadata.setUserMetadata(Map.of("itemID", itemID));
-            objectMetadata.setContentType(file.getContentType());
-            bucket.putObject(mediaStorageBucketName, file.getOriginalFilename(), file.getInputStream(), objectMetadata);
-            String resourceUrl = s3Client.getResourceUrl(mediaStorageBucketName, file.getOriginalFilename());
-            log.info("Uploaded media file '{}', content type '{}', URL '{}'",
-                    file.getResource().getFilename(), file.getContentType(), resourceUrl);
-            mediaURLs.add(resourceUrl);
+        try {
+            while (files.hasNext()) {
+                FileItemStream file = files.next();
+                if (file.isFormField()) {
+                    continue;
+                }
+                StoredObject storedObject;
+                try (InputStream inputStream = file.openStream()) {
+                    storedObject = upload(itemID, file, inputStream);
+                }
+                storedObjects.add(storedObject);
+                mediaURLs.add(storedObject.url);
+                objectKeys.add(storedObject.key);
+            }
+        } catch (FileUploadException | FileUploadIOException e) {
+            rollback(itemID, storedObjects);
+            Throwable cause = e instanceof FileUploadIOException ? e.getCause() : e;
+            throw new MediaStorageException("Invalid multipart request: " + cause.getMessage());
+        } catch (IOException | RuntimeException e) {
+            rollback(itemID, storedObjects);
+            throw e;
+        }
+        if (mediaURLs.isEmpty()) {
+            throw new MediaStorageException("At least one file is required");
         }
 
-        mediaService.addMedia(itemID, userID, mediaURLs);
+        derivativeService.addMedia(itemID, userID, mediaURLs, objectKeys);
 
         return mediaURLs;
     }
 
+    @Override
+    public CompletableFuture<List<String>> storeStreamAsync(String itemID, FileItemIterator files, String userID) {
+        return limited("storeStream", () -> ioExecutor.supply(() -> storeStream(itemID, files, userID)));
+    }
+
+    @Override
+    public List<BulkItemResult> storeAll(Map<String, List<MultipartFile>> filesByItem, String userID) throws AbstractNotabaristaException {
+        Map<String, Boolean> owned = itemService.itemsExist(filesByItem.keySet(), userID);
+
+        // error per item in request order, null for the items whose files are uploaded
+        Map<String, String> errors = new LinkedHashMap<>();
+        List<String> fileItemIDs = new ArrayList<>();
+        List<MultipartFile> files = new ArrayList<>();
+        for (Map.Entry<String, List<MultipartFile>> item : filesByItem.entrySet()) {
+            String error = null;
+            if (!Boolean.TRUE.equals(owned.get(item.getKey()))) {
+                error = "Item not found";
+            } else if (item.getValue().isEmpty()) {
+                error = "At least one file is required";
+            } else {
+                error = item.getValue().stream().map(FilebaseStorageService::checkImage).filter(Objects::nonNull).findFirst().orElse(null);
+            }
+            errors.put(item.getKey(), error);
+            if (error == null) {
+                for (MultipartFile file : item.getValue()) {
+                    fileItemIDs.add(item.getKey());
+                    files.add(file);
+                }
+            }
+        }
+
+        StoredObject[] storedObjects = new StoredObject[files.size()];
+        Exception[] failures = new Exception[files.size()];
+        uploadEach(fileItemIDs, files, storedObjects, failures);
+
+        Map<String, List<String>> mediaURLsByItem = new LinkedHashMap<>();
+        Map<String, List<String>> objectKeysByItem = new LinkedHashMap<>();
+        Map<String, List<StoredObject>> storedObjectsByItem = new LinkedHashMap<>();
+        for (int index = 0; index < files.size(); index++) {
+            String itemID = fileItemIDs.get(index);
+            if (failures[index] != null) {
+                if (errors.get(itemID) == null) {
+                    errors.put(itemID, "Media upload failed: " + failures[index].getMessage());
+                }
+                continue;
+            }
+            StoredObject storedObject = storedObjects[index];
+            mediaURLsByItem.computeIfAbsent(itemID, ignored -> new ArrayList<>()).add(storedObject.url);
+            objectKeysByItem.computeIfAbsent(itemID, ignored -> new ArrayList<>()).add(storedObject.key);
+            storedObjectsByItem.computeIfAbsent(itemID, ignored -> new ArrayList<>()).add(storedObject);
+        }
+        for (Map.Entry<String, String> item : errors.entrySet()) {
+            if (item.getValue() != null) {
+                // an item is stored with all of its files or none of them
+                rollback(item.getKey(), storedObjectsByItem.getOrDefault(item.getKey(), List.of()));
+                mediaURLsByItem.remove(item.getKey());
+                objectKeysByItem.remove(item.getKey());
+            }
+        }
+
+        Map<String, BulkItemResult> results = new LinkedHashMap<>();
+        errors.forEach((itemID, error) -> results.put(itemID, error != null ? BulkItemResult.failed(itemID, error) : null));
+        if (!mediaURLsByItem.isEmpty()) {
+            List<BulkItemResult> linked;
+            try {
+                linked = derivativeService.addMediaAll(userID, mediaURLsByItem, objectKeysByItem);
+            } catch (RuntimeException e) {
+                mediaURLsByItem.keySet().forEach(itemID -> rollbackUnlinked(itemID, storedObjectsByItem.get(itemID)));
+                throw e;
+            }
+            for (BulkItemResult result : linked) {
+                results.put(result.getItemID(), result);
+                if (!result.isSucceeded() && mediaURLsByItem.containsKey(result.getItemID())) {
+                    rollbackUnlinked(result.getItemID(), storedObjectsByItem.get(result.getItemID()));
+                }
+            }
+        }
+        return new ArrayList<>(results.values());
+    }
+
+    @Override
+    public CompletableFuture<List<BulkItemResult>> storeAllAsync(Map<String, List<MultipartFile>> filesByItem, String userID) {
+        return limited("storeAll", () -> ioExecutor.supply(() -> storeAll(filesByItem, userID)));
+    }
+
+    /**
+     * Uploads the files concurrently, keeping at most {@code uploadParallelism} of them in flight for this request.
+     * The returned objects follow the order of {@code files}. On the first failure the files not yet started are
+     * skipped and the uploaded files are rolled back.
+     */
+    private List<StoredObject> uploadAll(String itemID, MultipartFile[] files) throws IOException {
+        StoredObject[] storedObjects = new StoredObject[files.length];
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(uploadExecutor);
+        List<Future<Integer>> uploads = new ArrayList<>(files.length);
+        AtomicBoolean aborted = new AtomicBoolean();
+        int submitted = 0;
+        int completed = 0;
+        try {
+            while (completed < files.length) {
+                while (submitted < files.length && submitted - completed < uploadParallelism) {
+                    int index = submitted++;
+                    uploads.add(completionService.submit(() -> {
+                        if (!aborted.get()) {
+                            storedObjects[index] = upload(itemID, files[index]);
+                        }
+                        return index;
+                    }));
+                }
+                completionService.take().get();
+                completed++;
+            }
+        } catch (ExecutionException e) {
+            aborted.set(true);
+            rollback(uploads, index -> itemID, storedObjects);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MediaStorageException("Media upload failed: " + cause.getMessage());
+        } catch (InterruptedException e) {
+            aborted.set(true);
+            rollback(uploads, index -> itemID, storedObjects);
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Media upload interrupted");
+        }
+
+        return Arrays.asList(storedObjects);
+    }
+
+    /**
+     * Uploads files of different items concurrently like {@link #uploadAll}, but keeps going when one of them fails:
+     * each file ends up with either its stored object or its failure.
+     */
+    private void uploadEach(List<String> itemIDs, List<MultipartFile> files, StoredObject[] storedObjects, Exception[] failures) {
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(uploadExecutor);
+        List<Future<Integer>> uploads = new ArrayList<>(files.size());
+        AtomicBoolean aborted = new AtomicBoolean();
+        int submitted = 0;
+        int completed = 0;
+        try {
+            while (completed < files.size()) {
+                while (submitted < files.size() && submitted - completed < uploadParallelism) {
+                    int index = submitted++;
+                    uploads.add(completionService.submit(() -> {
+                        if (aborted.get()) {
+                            return index;
+                        }
+                        try {
+                            storedObjects[index] = upload(itemIDs.get(index), files.get(index));
+                        } catch (Exception e) {
+                            log.error("Could not upload media file '{}' of item {}: {}", files.get(index).getOriginalFilename(),
+                                    itemIDs.get(index), e.getMessage());
+                            failures[index] = e;
+                        }
+                        return index;
+                    }));
+                }
+                completionService.take();
+                completed++;
+            }
+        } catch (InterruptedException e) {
+            aborted.set(true);
+            rollback(uploads, itemIDs::get, storedObjects);
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Media upload interrupted");
+        }
+    }
+
+    /**
+     * The same check {@code @ContentType(contentTypes = "image/*", sniff = true)} applies to the files of a single
+     * item: the reason a file is rejected, or {@code null}.
+     */
+    static String checkImage(MultipartFile file) {
+        String contentType = file.getContentType();
+        if (contentType == null || !contentType.startsWith("image/")) {
+            return "Invalid content type: " + contentType;
+        }
+        if (!ImageFormatSniffer.isDetectable(contentType)) {
+            return null;
+        }
+        byte[] header = new byte[ImageFormatSniffer.HEADER_LENGTH];
+        try (InputStream inputStream = file.getInputStream()) {
+            if (ImageFormatSniffer.detect(header, inputStream.readNBytes(header, 0, header.length)) == null) {
+                return "Invalid file content: " + file.getOriginalFilename();
+            }
+        } catch (IOException e) {
+            return "Invalid file content: " + file.getOriginalFilename();
+        }
+        return null;
+    }
+
+    private StoredObject upload(String itemID, MultipartFile file) throws IOException {
+        String objectKey = contentAddressedKeys ? ObjectKeys.contentAddressed(digest(file), file.getOriginalFilename()) : file.getOriginalFilename();
+        retain(objectKey, itemID);
+        try {
+            return upload(itemID, file, objectKey);
+        } catch (IOException | RuntimeException e) {
+            dropReference(objectKey, itemID);
+            throw e;
+        }
+    }
+
+    private StoredObject upload(String itemID, MultipartFile file, String objectKey) throws IOException {
+        if (contentAddressedKeys) {
+            boolean exists = objectExists(objectKey);
+            storageMetrics.recordDeduplication(exists, file.getSize());
+            if (exists) {
+                String resourceUrl = resourceUrl(objectKey);
+                log.info("Media file '{}' is already stored as '{}', URL '{}'", file.getOriginalFilename(), objectKey, resourceUrl);
+                return new StoredObject(objectKey, resourceUrl, false);
+            }
+        }
+
+        log.info("Uploading media file '{}', content type '{}'", file.getResource().getFilename(), file.getContentType());
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setUserMetadata(Map.of("itemID", itemID));
+        objectMetadata.setContentType(file.getContentType());
+        uploadEngine.upload(mediaStorageBucketName, objectKey, file, objectMetadata);
+        String resourceUrl = resourceUrl(objectKey);
+        storageMetrics.recordUpload(file.getSize());
+        storageMetrics.recordStored(file.getSize());
+        log.info("Uploaded media file '{}', content type '{}', URL '{}'",
+                file.getResource().getFilename(), file.getContentType(), resourceUrl);
+        return new StoredObject(objectKey, resourceUrl, true);
+    }
+
+    /**
+     * Uploads a streamed file part. Its content type and leading bytes are checked the same way
+     * {@code @ContentType(contentTypes = "image/*", sniff = true)} checks a spooled file.
+     * <p>
+     * With content-addressed keys the digest is computed while the part is uploaded to a staging key; the object is
+     * then copied to its content address within the bucket unless that address is taken already.
+     */
+    private StoredObject upload(String itemID, FileItemStream file, InputStream inputStream) throws IOException {
+        String contentType = file.getContentType();
+        if (contentType == null || !contentType.startsWith("image/")) {
+            throw new MediaStorageException("Invalid content type: " + contentType);
+        }
+        PushbackInputStream content = new PushbackInputStream(inputStream, ImageFormatSniffer.HEADER_LENGTH);
+        if (ImageFormatSniffer.isDetectable(contentType) && ImageFormatSniffer.detect(content) == null) {
+            throw new MediaStorageException("Invalid file content: " + file.getName());
+        }
+
+        log.info("Streaming media file '{}', content type '{}'", file.getName(), contentType);
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setUserMetadata(Map.of("itemID", itemID));
+        objectMetadata.setContentType(contentType);
+        MessageDigest digest = contentAddressedKeys ? ObjectKeys.newContentDigest() : null;
+        CountingInputStream countingContent = new CountingInputStream(digest != null ? new DigestInputStream(content, digest) : content);
+        String uploadKey = contentAddressedKeys ? ObjectKeys.STAGING_PREFIX + UUID.randomUUID() : file.getName();
+        if (digest == null) {
+            retain(uploadKey, itemID);
+        }
+        try {
+            uploadEngine.upload(mediaStorageBucketName, uploadKey, countingContent, objectMetadata);
+        } catch (IOException | RuntimeException e) {
+            if (digest == null) {
+                dropReference(uploadKey, itemID);
+            }
+            throw e;
+        }
+        long size = countingContent.getByteCount();
+        storageMetrics.recordUpload(size);
+
+        String objectKey = uploadKey;
+        boolean created = true;
+        if (digest != null) {
+            objectKey = ObjectKeys.contentAddressed(digest.digest(), file.getName());
+            try {
+                retain(objectKey, itemID);
+                created = !objectExists(objectKey);
+                storageMetrics.recordDeduplication(!created, size);
+                if (created) {
+                    String targetKey = objectKey;
+                    storageMetrics.timeS3("copyObject", () -> bucket.copyObject(mediaStorageBucketName, uploadKey, mediaStorageBucketName, targetKey));
+                }
+            } catch (RuntimeException e) {
+                dropReference(objectKey, itemID);
+                throw e;
+            } finally {
+                deleteStaged(uploadKey);
+            }
+        }
+        if (created) {
+            storageMetrics.recordStored(size);
+        }
+        String resourceUrl = resourceUrl(objectKey);
+        log.info("Streamed media file '{}', content type '{}', URL '{}'", file.getName(), contentType, resourceUrl);
+        return new StoredObject(objectKey, resourceUrl, created);
+    }
+
+    /**
+     * The content digest of a spooled upload, read in a pass of its own before anything is sent. The container holds
+     * the file in memory or on local disk, so the second read is local; knowing the key up front lets a duplicate skip
+     * the upload, where digesting during the upload would send every file to a staging key and copy and delete it
+     * there, as streamed parts must.
+     */
+    static byte[] digest(MultipartFile file) throws IOException {
+        MessageDigest digest = ObjectKeys.newContentDigest();
+        try (InputStream inputStream = new DigestInputStream(file.getInputStream(), digest)) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+    private boolean objectExists(String objectKey) {
+        return timeS3("getObjectMetadata", () -> bucket.doesObjectExist(mediaStorageBucketName, objectKey));
+    }
+
+    private String resourceUrl(String objectKey) {
+        return storageMetrics.timeS3("getResourceUrl", () -> s3Client.getResourceUrl(mediaStorageBucketName, objectKey));
+    }
+
+    private void deleteStaged(String stagingKey) {
+        try {
+            timeS3("deleteObject", () -> {
+                bucket.deleteObject(mediaStorageBucketName, stagingKey);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.error("Could not delete staged object '{}' in bucket '{}': {}", stagingKey, mediaStorageBucketName, e.getMessage());
+        }
+    }
+
+    /**
+     * Records that {@code itemID} refers to the object about to be stored under {@code objectKey}, before it is
+     * stored, so a concurrent delete of another item keeps the object. Plain keys need the marker as well: they are
+     * the file names of the clients, and items uploading the same name share the object stored under it.
+     */
+    private void retain(String objectKey, String itemID) {
+        timeS3("putObject", () -> bucket.putObject(mediaStorageBucketName, ObjectKeys.reference(objectKey, itemID), ""));
+    }
+
+    private void dropReference(String objectKey, String itemID) {
+        try {
+            timeS3("deleteObject", () -> {
+                bucket.deleteObject(mediaStorageBucketName, ObjectKeys.reference(objectKey, itemID));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.error("Could not drop the reference of item {} to object '{}': {}", itemID, objectKey, e.getMessage());
+        }
+    }
+
+    private void rollback(List<Future<Integer>> uploads, IntFunction<String> itemIDs, StoredObject[] storedObjects) {
+        // uploads that have not started yet see the abort flag and skip; wait for the ones already in flight
+        for (Future<Integer> upload : uploads) {
+            try {
+                upload.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // already reported by the failing upload
+            }
+        }
+
+        Map<String, List<StoredObject>> storedObjectsByItem = new LinkedHashMap<>();
+        for (int index = 0; index < storedObjects.length; index++) {
+            if (storedObjects[index] != null) {
+                storedObjectsByItem.computeIfAbsent(itemIDs.apply(index), ignored -> new ArrayList<>()).add(storedObjects[index]);
+            }
+        }
+        storedObjectsByItem.forEach(this::rollback);
+    }
+
+    /**
+     * Rolls back an item that was stored but not linked. Derivatives may have been created for it while it was linked,
+     * those of the deleted objects are deleted with them.
+     */
+    private void rollbackUnlinked(String itemID, List<StoredObject> storedObjects) {
+        if (!derivativeService.isEnabled()) {
+            rollback(itemID, storedObjects);
+            return;
+        }
+        for (String objectKey : rollback(itemID, storedObjects)) {
+            try {
+                List<String> derivativeKeys = derivativeService.derivativeKeys(objectKey);
+                if (!derivativeKeys.isEmpty()) {
+                    deleteObjects(derivativeKeys);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not delete derivatives of '{}': {}", objectKey, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the references of the item to the objects it stored and deletes the objects it created, unless another
+     * item refers to them by now. Failures are logged, not passed on.
+     *
+     * @return the keys of the deleted objects
+     */
+    private List<String> rollback(String itemID, List<StoredObject> storedObjects) {
+        if (storedObjects.isEmpty()) {
+            return List.of();
+        }
+        List<String> objectKeys = new ArrayList<>(storedObjects.size());
+        Set<String> createdKeys = new HashSet<>();
+        for (StoredObject storedObject : storedObjects) {
+            objectKeys.add(storedObject.key);
+            if (storedObject.created) {
+                createdKeys.add(storedObject.key);
+            }
+        }
+        Set<String> releasedKeys;
+        try {
+            releasedKeys = release(itemID, objectKeys, createdKeys, true);
+        } catch (RuntimeException e) {
+            log.error("Could not roll back objects {} in bucket '{}': {}", objectKeys, mediaStorageBucketName, e.getMessage());
+            return List.of();
+        }
+        List<String> deletedKeys = new ArrayList<>();
+        for (String objectKey : releasedKeys) {
+            try {
+                log.info("Rolling back uploaded object '{}' in bucket '{}'", objectKey, mediaStorageBucketName);
+                timeS3("deleteObject", () -> {
+                    bucket.deleteObject(mediaStorageBucketName, objectKey);
+                    return null;
+                });
+                if (createdKeys.contains(objectKey)) {
+                    deletedKeys.add(objectKey);
+                }
+            } catch (RuntimeException e) {
+                log.error("Could not roll back object '{}' in bucket '{}': {}", objectKey, mediaStorageBucketName, e.getMessage());
+            }
+        }
+        return deletedKeys;
+    }
+
+    /**
+     * What to delete once {@code itemID} no longer refers to the objects: its own reference markers, and the objects
+     * of {@code deletable} no other item refers to, see {@link ObjectKeys#isReleased}. The markers of all objects are
+     * listed at once.
+     */
+    private Set<String> release(String itemID, List<String> objectKeys, Set<String> deletable, boolean deleteUntracked) {
+        Map<String, List<String>> referencesByObject = awaitListings(submitListings(objectKeys, this::listReferences));
+        Set<String> releasedKeys = new LinkedHashSet<>();
+        for (Map.Entry<String, List<String>> listing : referencesByObject.entrySet()) {
+            String objectKey = listing.getKey();
+            List<String> references = listing.getValue();
+            String reference = ObjectKeys.reference(objectKey, itemID);
+            if (references.contains(reference)) {
+                releasedKeys.add(reference);
+            }
+            if (!deletable.contains(objectKey)) {
+                continue;
+            }
+            if (ObjectKeys.isReleased(objectKey, itemID, references, deleteUntracked)) {
+                releasedKeys.add(objectKey);
+            } else {
+                log.info("Keeping object '{}', other items refer to it", objectKey);
+            }
+        }
+        return releasedKeys;
+    }
+
+    private List<String> listReferences(String objectKey) {
+        ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(mediaStorageBucketName)
+                                                                     .withPrefix(ObjectKeys.references(objectKey));
+        List<String> references = new ArrayList<>();
+        ListObjectsV2Result listing;
+        do {
+            listing = timeS3("listObjectsV2", () -> bucket.listObjectsV2(listRequest));
+            for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                references.add(object.getKey());
+            }
+            listRequest.setContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+        return references;
+    }
+
+    /**
+     * Starts a listing of each distinct key on the upload threads, like the batches of {@link #deleteObjects}.
+     */
+    private Map<String, Future<List<String>>> submitListings(Collection<String> objectKeys, Function<String, List<String>> listing) {
+        Map<String, Future<List<String>>> listings = new LinkedHashMap<>();
+        for (String objectKey : objectKeys) {
+            if (!listings.containsKey(objectKey)) {
+                listings.put(objectKey, uploadExecutor.submit(() -> listing.apply(objectKey)));
+            }
+        }
+        return listings;
+    }
+
+    /**
+     * Waits for the listings of {@link #submitListings}, failing with the first failure. Listings change nothing, on
+     * an interrupt the ones still running are cancelled.
+     */
+    private static Map<String, List<String>> awaitListings(Map<String, Future<List<String>>> listings) {
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, Future<List<String>>> listing : listings.entrySet()) {
+                results.put(listing.getKey(), listing.getValue().get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MediaStorageException("Media listing failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            listings.values().forEach(listing -> listing.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Media listing interrupted");
+        }
+        return results;
+    }
+
     @Override
     public void delete(String itemID, List<String> mediaURLs, String userID) throws MalformedURLException, JsonProcessingException, AbstractNotabaristaException {
         if (!itemService.itemExists(itemID, userID)) {
             throw new MediaStorageException("Item not found");
         }
 
+        List<String> objectKeys = new ArrayList<>(mediaURLs.size());
         for (String mediaURL : mediaURLs) {
-            // https://{BUCKET}.s3.filebase.com/{OBJECT_KEY}
-            URL aURL = new URL(mediaURL);
-            String objectKey = aURL.getPath().substring(1);
-            if (!bucket.doesObjectExist(mediaStorageBucketName, objectKey)) {
-                throw new MediaStorageException("Unknown media file: " + objectKey);
+            objectKeys.add(ObjectKeys.fromMediaURL(mediaURL));
+        }
+
+        // the derivatives and the reference markers of all objects are listed at once, before anything is deleted
+        Map<String, Future<List<String>>> derivativeListings = derivativeService.isEnabled()
+                ? submitListings(objectKeys, derivativeService::derivativeKeys)
+                : Map.of();
+        Set<String> deletedKeys = release(itemID, objectKeys, new HashSet<>(objectKeys), deleteUntracked);
+        Map<String, List<String>> derivativeKeysByOriginal = awaitListings(derivativeListings);
+        if (!deletedKeys.isEmpty()) {
+            deleteObjects(new ArrayList<>(deletedKeys));
+        }
+        log.info("Unlinking media files with URLs {}, deleted {}", mediaURLs, deletedKeys);
+
+        mediaService.deleteMedia(itemID, userID, withDerivatives(mediaURLs, derivativeKeysByOriginal, deletedKeys));
+    }
+
+    /**
+     * Deletes the objects in batches of up to {@code deleteBatchSize}, failing with a {@link MediaStorageException}
+     * naming the first one that could not be deleted.
+     */
+    private void deleteObjects(List<String> objectKeys) {
+        List<Future<List<DeleteError>>> batches = new ArrayList<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        for (int from = 0; from < objectKeys.size(); from += deleteBatchSize) {
+            List<String> batch = objectKeys.subList(from, Math.min(from + deleteBatchSize, objectKeys.size()));
+            batches.add(uploadExecutor.submit(() -> aborted.get() ? List.<DeleteError>of() : deleteBatch(batch)));
+        }
+
+        List<DeleteError> deleteErrors = new ArrayList<>();
+        try {
+            for (Future<List<DeleteError>> batch : batches) {
+                deleteErrors.addAll(batch.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MediaStorageException("Media deletion failed: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            // batches that have not started yet see the abort flag and skip; wait for the ones in flight, the request
+            // ends with them
+            aborted.set(true);
+            for (Future<List<DeleteError>> batch : batches) {
+                try {
+                    batch.get();
+                } catch (ExecutionException ignored) {
+                    // the deletion already failed
+                } catch (InterruptedException again) {
+                    break;
+                }
             }
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Media deletion interrupted");
+        }
 
-            log.info("Deleting object '{}' in bucket '{}'", objectKey, mediaStorageBucketName);
-            bucket.deleteObject(mediaStorageBucketName, objectKey);
-            log.info("Deleted media file with URL '{}'", mediaURL);
+        if (!deleteErrors.isEmpty()) {
+            DeleteError deleteError = deleteErrors.get(0);
+            log.error("Could not delete {} of {} objects in bucket '{}', first error: {} {}", deleteErrors.size(), objectKeys.size(),
+                    mediaStorageBucketName, deleteError.getCode(), deleteError.getMessage());
+            if (NO_SUCH_KEY.equals(deleteError.getCode())) {
+                throw new MediaStorageException("Unknown media file: " + deleteError.getKey());
+            }
+            throw new MediaStorageException("Could not delete media file: " + deleteError.getKey());
         }
+    }
 
-        mediaService.deleteMedia(itemID, userID, mediaURLs);
+    @Override
+    public CompletableFuture<Void> deleteAsync(String itemID, List<String> mediaURLs, String userID) {
+        return limited("delete", () -> ioExecutor.supply(() -> {
+            delete(itemID, mediaURLs, userID);
+            return null;
+        }));
+    }
+
+    /**
+     * Runs a request within the adaptive concurrency limit, or fails it right away when the limit is reached. The
+     * latency of its S3 calls adjusts the limit, see {@link #timeS3}; failures that tell the bucket is overloaded lower
+     * it. The request holds its slot until its future completes, which the {@link IoExecutor} only does once the call
+     * returned, also when it timed out, and the call waits for the S3 work it started.
+     */
+    private <T> CompletableFuture<T> limited(String operation, Supplier<CompletableFuture<T>> request) {
+        if (!requestLimiter.tryAcquire()) {
+            storageMetrics.recordLimiterRejection(operation);
+            return CompletableFuture.failedFuture(new StorageUnavailableException("Too many media requests in flight, try again later", retryAfter));
+        }
+        CompletableFuture<T> result;
+        try {
+            result = request.get();
+        } catch (RuntimeException e) {
+            requestLimiter.onIgnored();
+            throw e;
+        }
+        return result.whenComplete((value, failure) -> {
+            if (failure == null) {
+                requestLimiter.onSuccess();
+            } else if (isOverload(failure)) {
+                requestLimiter.onDropped();
+            } else {
+                requestLimiter.onIgnored();
+            }
+        });
+    }
+
+    /**
+     * Times an S3 call of a request and gives its latency to the limiter. A request is made of any number of calls of
+     * any size, so its own latency tells little about queueing at the bucket; that of a single call does. The uploads
+     * of the {@link S3UploadEngine} and the copies of staged uploads are not sampled, they take as long as the file is
+     * large.
+     */
+    private <T, E extends Exception> T timeS3(String operation, Call<T, E> call) throws E {
+        long startedAt = System.nanoTime();
+        T result = storageMetrics.timeS3(operation, call);
+        requestLimiter.sample(System.nanoTime() - startedAt);
+        return result;
+    }
+
+    private static boolean isOverload(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof AmazonServiceException) {
+            return ((AmazonServiceException) cause).getStatusCode() >= 500 || ((AmazonServiceException) cause).getStatusCode() == 429;
+        }
+        return cause instanceof StorageUnavailableException || cause instanceof TimeoutException
+                || cause instanceof RejectedExecutionException || cause instanceof AmazonClientException;
+    }
+
+    /**
+     * Deletes the stored derivatives of deleted originals and returns the media URLs to unlink, including those of
+     * the derivatives of all unlinked originals. Derivatives of originals other items still refer to are kept like
+     * their originals.
+     */
+    private List<String> withDerivatives(List<String> mediaURLs, Map<String, List<String>> derivativeKeysByOriginal, Set<String> deletedOriginals) {
+        Set<String> unlinkedURLs = new LinkedHashSet<>(mediaURLs);
+        List<String> deletedKeys = new ArrayList<>();
+        derivativeKeysByOriginal.forEach((objectKey, derivativeKeys) -> {
+            for (String derivativeKey : derivativeKeys) {
+                unlinkedURLs.add(resourceUrl(derivativeKey));
+                if (deletedOriginals.contains(objectKey)) {
+                    deletedKeys.add(derivativeKey);
+                }
+            }
+        });
+        for (int from = 0; from < deletedKeys.size(); from += deleteBatchSize) {
+            try {
+                List<DeleteError> deleteErrors = deleteBatch(deletedKeys.subList(from, Math.min(from + deleteBatchSize, deletedKeys.size())));
+                deleteErrors.stream()
+                            .filter(deleteError -> !NO_SUCH_KEY.equals(deleteError.getCode()))
+                            .findFirst()
+                            .ifPresent(deleteError -> log.warn("Could not delete derivative '{}': {} {}", deleteError.getKey(),
+                                    deleteError.getCode(), deleteError.getMessage()));
+            } catch (RuntimeException e) {
+                log.warn("Could not delete derivatives in bucket '{}': {}", mediaStorageBucketName, e.getMessage());
+            }
+        }
+        return new ArrayList<>(unlinkedURLs);
+    }
+
+    /**
+     * Deletes up to {@code deleteBatchSize} objects with a single multi-object delete request and returns the keys
+     * that could not be deleted.
+     */
+    private List<DeleteError> deleteBatch(List<String> objectKeys) {
+        log.info("Deleting {} objects in bucket '{}'", objectKeys.size(), mediaStorageBucketName);
+        DeleteObjectsRequest deleteObjectsRequest = new DeleteObjectsRequest(mediaStorageBucketName)
+                .withKeys(objectKeys.toArray(new String[0]))
+                .withQuiet(true);
+        try {
+            timeS3("deleteObjects", () -> bucket.deleteObjects(deleteObjectsRequest));
+            return List.of();
+        } catch (MultiObjectDeleteException e) {
+            return e.getErrors();
+        }
+    }
+
+    static final class StoredObject {
+
+        final String key;
+        final String url;
+        /** false if the content was stored already and the object belongs to others as well */
+        final boolean created;
+
+        StoredObject(String key, String url, boolean created) {
+            this.key = key;
+            this.url = url;
+            this.created = created;
+        }
     }
 }
@@ -0,0 +1,103 @@
+package org.notabarista.storage.service;
+
+import org.notabarista.storage.metrics.StorageMetrics.Call;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking S3 and Kafka work off the servlet threads. Every call gets a deadline: a call still queued then is
+ * dropped, a running one is interrupted. The returned future only completes once the call has returned, failing with
+ * a {@link TimeoutException} if it failed after its deadline, so whatever the call cleans up on its way out, and any
+ * request body it reads, is done with before the caller answers. A full executor fails the future right away with a
+ * {@link RejectedExecutionException} instead of queueing without bound. Cancelling the returned future interrupts the
+ * call as well.
+ */
+public class IoExecutor {
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
+    private static final ScheduledThreadPoolExecutor DEADLINES = deadlines();
+
+    private final ExecutorService executor;
+    private final Duration timeout;
+
+    public IoExecutor(ExecutorService executor, Duration timeout) {
+        this.executor = executor;
+        this.timeout = timeout;
+    }
+
+    public <T> CompletableFuture<T> supply(Call<T, ? extends Exception> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger state = new AtomicInteger(QUEUED);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                if (!state.compareAndSet(QUEUED, RUNNING)) {
+                    return;
+                }
+                try {
+                    result.complete(call.call());
+                } catch (Throwable e) {
+                    if (timedOut.get()) {
+                        TimeoutException timeoutException = timeout();
+                        timeoutException.initCause(e);
+                        result.completeExceptionally(timeoutException);
+                    } else {
+                        result.completeExceptionally(e);
+                    }
+                } finally {
+                    state.set(DONE);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        ScheduledFuture<?> deadline = DEADLINES.schedule(() -> {
+            if (state.compareAndSet(QUEUED, DONE)) {
+                task.cancel(false);
+                result.completeExceptionally(timeout());
+            } else if (state.get() == RUNNING) {
+                timedOut.set(true);
+                task.cancel(true);
+            }
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((value, failure) -> {
+            deadline.cancel(false);
+            if (result.isCancelled() && !state.compareAndSet(QUEUED, DONE)) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private TimeoutException timeout() {
+        return new TimeoutException("I/O call timed out after " + timeout.toMillis() + " ms");
+    }
+
+    private static ScheduledThreadPoolExecutor deadlines() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("io-deadline-");
+        threadFactory.setDaemon(true);
+        ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1, threadFactory);
+        deadlines.setRemoveOnCancelPolicy(true);
+        return deadlines;
+    }
+}
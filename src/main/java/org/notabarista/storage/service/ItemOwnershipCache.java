@@ -0,0 +1,179 @@
+package org.notabarista.storage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded LRU cache of catalog ownership checks keyed by (itemID, userID). Owned items are kept for the positive TTL,
+ * unknown or foreign items for the shorter negative TTL. Concurrent lookups of a key that is not cached share a
+ * single catalog call.
+ * <p>
+ * Every invalidation bumps a generation counter. A load only caches its result if no invalidation happened while it was
+ * talking to the catalog, so an invalidation cannot be overwritten by the stale answer of a load that raced it.
+ */
+@Component
+@Log4j2
+public class ItemOwnershipCache {
+
+    @FunctionalInterface
+    public interface Loader {
+        boolean load() throws AbstractNotabaristaException;
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Map<Key, Entry> entries;
+    private final ConcurrentMap<Key, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+    private long generation;
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer loadTimer;
+
+    public ItemOwnershipCache(@Value("${catalog.ownership-cache.max-size:10000}") int maxSize,
+                              @Value("${catalog.ownership-cache.ttl:60s}") Duration ttl,
+                              @Value("${catalog.ownership-cache.negative-ttl:5s}") Duration negativeTtl,
+                              MeterRegistry meterRegistry) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.negativeTtlNanos = negativeTtl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > ItemOwnershipCache.this.maxSize;
+            }
+        };
+        this.hits = Counter.builder("catalog.ownership.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("catalog.ownership.cache.requests").tag("result", "miss").register(meterRegistry);
+        this.loadTimer = Timer.builder("catalog.ownership.cache.load").register(meterRegistry);
+        Gauge.builder("catalog.ownership.cache.size", this, ItemOwnershipCache::size).register(meterRegistry);
+    }
+
+    public boolean get(String itemID, String userID, Loader loader) throws AbstractNotabaristaException {
+        Key key = new Key(itemID, userID);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.getExpiresAt() - System.nanoTime() > 0) {
+                hits.increment();
+                return entry.isOwned();
+            }
+        }
+        misses.increment();
+
+        CompletableFuture<Boolean> load = new CompletableFuture<>();
+        CompletableFuture<Boolean> pending = inFlight.putIfAbsent(key, load);
+        if (pending != null) {
+            return await(pending);
+        }
+
+        try {
+            long loadGeneration = generation();
+            long start = System.nanoTime();
+            boolean owned = loader.load();
+            long end = System.nanoTime();
+            loadTimer.record(Duration.ofNanos(end - start));
+            put(key, owned, end, loadGeneration);
+            load.complete(owned);
+            return owned;
+        } catch (AbstractNotabaristaException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    /**
+     * The cached ownership of an item, or {@code null} if it is not cached; counted as a hit or miss like {@link #get}.
+     */
+    public Boolean getIfPresent(String itemID, String userID) {
+        synchronized (entries) {
+            Entry entry = entries.get(new Key(itemID, userID));
+            if (entry != null && entry.getExpiresAt() - System.nanoTime() > 0) {
+                hits.increment();
+                return entry.isOwned();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * The current invalidation generation; read it before loading an ownership outside of {@link #get} and pass it to
+     * {@link #put}.
+     */
+    public long generation() {
+        synchronized (entries) {
+            return generation;
+        }
+    }
+
+    /**
+     * Caches an ownership loaded outside of {@link #get}, e.g. by a batched catalog call, unless the cache was
+     * invalidated since {@code loadGeneration}.
+     */
+    public void put(String itemID, String userID, boolean owned, long loadGeneration) {
+        put(new Key(itemID, userID), owned, System.nanoTime(), loadGeneration);
+    }
+
+    public void invalidate(String itemID) {
+        synchronized (entries) {
+            generation++;
+            entries.keySet().removeIf(key -> key.getItemID().equals(itemID));
+        }
+        // later lookups must not join a load that started before the invalidation
+        inFlight.keySet().removeIf(key -> key.getItemID().equals(itemID));
+        log.info("Invalidated cached ownership of item '{}'", itemID);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void put(Key key, boolean owned, long now, long loadGeneration) {
+        synchronized (entries) {
+            if (generation == loadGeneration) {
+                entries.put(key, new Entry(owned, now + (owned ? ttlNanos : negativeTtlNanos)));
+            }
+        }
+    }
+
+    private static boolean await(CompletableFuture<Boolean> pending) throws AbstractNotabaristaException {
+        try {
+            return pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof AbstractNotabaristaException) {
+                throw (AbstractNotabaristaException) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    @lombok.Value
+    private static class Key {
+        String itemID;
+        String userID;
+    }
+
+    @lombok.Value
+    private static class Entry {
+        boolean owned;
+        long expiresAt;
+    }
+}
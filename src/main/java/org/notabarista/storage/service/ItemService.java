@@ -2,6 +2,17 @@ package org.notabarista.storage.service;
 
 import org.notabarista.exception.AbstractNotabaristaException;
 
+import java.util.Collection;
+import java.util.Map;
+
 public interface ItemService {
     boolean itemExists(String itemID, String userID) throws AbstractNotabaristaException;
+
+    /**
+     * Checks the ownership of several items at once, with a single catalog call for the items not cached. The result
+     * holds every requested item ID, in the order given.
+     */
+    Map<String, Boolean> itemsExist(Collection<String> itemIDs, String userID) throws AbstractNotabaristaException;
+
+    void invalidate(String itemID);
 }
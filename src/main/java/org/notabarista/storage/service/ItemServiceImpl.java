@@ -6,27 +6,129 @@ import org.notabarista.entity.response.ResponseStatus;
 import org.notabarista.exception.AbstractNotabaristaException;
 import org.notabarista.service.util.IBackendRequestService;
 import org.notabarista.service.util.enums.MicroService;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
 import org.notabarista.util.NABConstants;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
 
 @Service
 @Log4j2
 public class ItemServiceImpl implements ItemService {
 
     private final IBackendRequestService backendRequestService;
+    private final ItemOwnershipCache ownershipCache;
+    private final StorageMetrics storageMetrics;
+    private final Semaphore catalogRequests;
+    private final String ownedItemsPath;
 
-    public ItemServiceImpl(IBackendRequestService backendRequestService) {
+    public ItemServiceImpl(IBackendRequestService backendRequestService, ItemOwnershipCache ownershipCache, StorageMetrics storageMetrics,
+                           @Value("${catalog.max-concurrent-requests:64}") int maxConcurrentRequests,
+                           @Value("${catalog.owned-items-path:/item/owned}") String ownedItemsPath) {
         this.backendRequestService = backendRequestService;
+        this.ownershipCache = ownershipCache;
+        this.storageMetrics = storageMetrics;
+        this.catalogRequests = new Semaphore(Math.max(1, maxConcurrentRequests));
+        this.ownedItemsPath = ownedItemsPath;
     }
 
     @Override
     public boolean itemExists(String itemID, String userID) throws AbstractNotabaristaException {
-        Response<Map<String, Object>> response = backendRequestService.executeGet(MicroService.BE_EC_CATALOG_SERVICE, "/item/" + itemID,
-                null, new ParameterizedTypeReference<>() {
-                }, Map.of(NABConstants.UID_HEADER_NAME, userID));
-        return response != null && response.getStatus() == ResponseStatus.SUCCESS;
+        return ownershipCache.get(itemID, userID, () -> storageMetrics.timeOwnershipCheck(() -> fetchItemExists(itemID, userID)));
+    }
+
+    /**
+     * Cached items are answered from the ownership cache; a single item not cached goes through
+     * {@link #itemExists}, several are sent to the catalog in one request and cached afterwards.
+     */
+    @Override
+    public Map<String, Boolean> itemsExist(Collection<String> itemIDs, String userID) throws AbstractNotabaristaException {
+        Map<String, Boolean> owned = new LinkedHashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String itemID : itemIDs) {
+            if (owned.containsKey(itemID)) {
+                continue;
+            }
+            Boolean cached = ownershipCache.getIfPresent(itemID, userID);
+            owned.put(itemID, cached);
+            if (cached == null) {
+                uncached.add(itemID);
+            }
+        }
+
+        if (uncached.size() == 1) {
+            owned.put(uncached.get(0), itemExists(uncached.get(0), userID));
+        } else if (!uncached.isEmpty()) {
+            long generation = ownershipCache.generation();
+            Set<String> ownedItems = storageMetrics.timeBatchOwnershipCheck(() -> fetchOwnedItems(uncached, userID));
+            for (String itemID : uncached) {
+                boolean itemOwned = ownedItems.contains(itemID);
+                ownershipCache.put(itemID, userID, itemOwned, generation);
+                owned.put(itemID, itemOwned);
+            }
+        }
+        return owned;
+    }
+
+    @Override
+    public void invalidate(String itemID) {
+        ownershipCache.invalidate(itemID);
+    }
+
+    /**
+     * Calls the catalog, at most {@code catalog.max-concurrent-requests} at a time so that the backend client's
+     * connection pool and not the number of request threads bounds the load on the catalog.
+     */
+    private boolean fetchItemExists(String itemID, String userID) throws AbstractNotabaristaException {
+        try {
+            catalogRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Item check interrupted");
+        }
+        try {
+            Response<Map<String, Object>> response = backendRequestService.executeGet(MicroService.BE_EC_CATALOG_SERVICE, "/item/" + itemID,
+                    null, new ParameterizedTypeReference<>() {
+                    }, Map.of(NABConstants.UID_HEADER_NAME, userID));
+            return response != null && response.getStatus() == ResponseStatus.SUCCESS;
+        } finally {
+            catalogRequests.release();
+        }
+    }
+
+    /**
+     * Sends the item IDs to the catalog, which answers with those among them that exist and belong to the user. A
+     * failed answer throws {@link StorageUnavailableException} instead of reporting every item as not owned.
+     */
+    private Set<String> fetchOwnedItems(List<String> itemIDs, String userID) throws AbstractNotabaristaException {
+        try {
+            catalogRequests.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Item check interrupted");
+        }
+        try {
+            Response<List<String>> response = backendRequestService.executePost(MicroService.BE_EC_CATALOG_SERVICE, ownedItemsPath,
+                    itemIDs, new ParameterizedTypeReference<>() {
+                    }, Map.of(NABConstants.UID_HEADER_NAME, userID));
+            if (response == null || response.getStatus() != ResponseStatus.SUCCESS || response.getData() == null) {
+                // not an answer about ownership; must not be cached as "not owned"
+                throw new StorageUnavailableException("Item catalog is unavailable, try again later");
+            }
+            return new HashSet<>(response.getData());
+        } finally {
+            catalogRequests.release();
+        }
     }
 }
@@ -0,0 +1,29 @@
+package org.notabarista.storage.service;
+
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.local.LocalFileStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * {@link StorageService} on local disk, selected with {@code storage.engine=local}, for development, tests and edge
+ * sites without an S3 endpoint. Object keys, content-addressed deduplication, rollbacks, links and errors are those of
+ * {@link FilebaseStorageService}; the files go to the {@link LocalFileStore} and are served from it by
+ * {@code GET /media/{key}}.
+ * <p>
+ * No derivatives are created, and scaled variants are not available, both read their originals from the bucket.
+ */
+@Service
+@ConditionalOnProperty(name = "storage.engine", havingValue = "local")
+public class LocalFileStorageService extends ObjectStoreStorageService {
+
+    public LocalFileStorageService(ItemService itemService, MediaService mediaService, LocalFileStore store, StorageMetrics storageMetrics,
+                                   @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                                   @Value("${filebase.upload.parallelism:4}") int uploadParallelism,
+                                   @Value("${filebase.object-keys.content-addressed:false}") boolean contentAddressedKeys,
+                                   @Value("${filebase.object-keys.delete-untracked:true}") boolean deleteUntracked) {
+        super(itemService, mediaService, store, storageMetrics, ioExecutor, uploadParallelism, contentAddressedKeys, deleteUntracked);
+    }
+}
@@ -4,8 +4,20 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import org.notabarista.exception.AbstractNotabaristaException;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface MediaService {
     void addMedia(String itemID, String userID, List<String> mediaURLs) throws JsonProcessingException, AbstractNotabaristaException;
     void deleteMedia(String itemID, String userID, List<String> mediaURLs) throws JsonProcessingException, AbstractNotabaristaException;
+
+    /**
+     * Links media to several items, checking their ownership in one batch and sending their ADD events together.
+     * Items that are not found fail on their own.
+     */
+    List<BulkItemResult> addMediaAll(Map<String, List<String>> mediaURLsByItem, String userID);
+
+    CompletableFuture<Void> addMediaAsync(String itemID, String userID, List<String> mediaURLs);
+    CompletableFuture<Void> deleteMediaAsync(String itemID, String userID, List<String> mediaURLs);
+    CompletableFuture<List<BulkItemResult>> addMediaAllAsync(Map<String, List<String>> mediaURLsByItem, String userID);
 }
@@ -7,11 +7,18 @@ import org.notabarista.exception.AbstractNotabaristaException;
 import org.notabarista.kafka.MediaEvent;
 import org.notabarista.kafka.MediaEventType;
 import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.kafka.outbox.MediaEventOutbox;
 import org.notabarista.storage.kafka.producer.MediaEventProducer;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 @Log4j2
@@ -19,10 +26,15 @@ public class MediaServiceImpl implements MediaService {
 
     private final ItemService itemService;
     private final MediaEventProducer mediaEventProducer;
+    private final MediaEventOutbox mediaEventOutbox;
+    private final IoExecutor ioExecutor;
 
-    public MediaServiceImpl(ItemService itemService, MediaEventProducer mediaEventProducer) {
+    public MediaServiceImpl(ItemService itemService, MediaEventProducer mediaEventProducer, MediaEventOutbox mediaEventOutbox,
+                            @Qualifier("mediaLinkIoExecutor") IoExecutor ioExecutor) {
         this.itemService = itemService;
         this.mediaEventProducer = mediaEventProducer;
+        this.mediaEventOutbox = mediaEventOutbox;
+        this.ioExecutor = ioExecutor;
     }
 
     @Override
@@ -41,16 +53,102 @@ public class MediaServiceImpl implements MediaService {
         sendMediaEvent(MediaEventType.DELETE, itemID, userID, mediaURLs);
     }
 
+    @Override
+    public List<BulkItemResult> addMediaAll(Map<String, List<String>> mediaURLsByItem, String userID) {
+        Map<String, Boolean> owned;
+        try {
+            owned = itemService.itemsExist(mediaURLsByItem.keySet(), userID);
+        } catch (AbstractNotabaristaException | RuntimeException e) {
+            log.error("Could not check {} items of user {}: {}", mediaURLsByItem.size(), userID, e.getMessage());
+            return failAll(mediaURLsByItem.keySet(), "Item check failed");
+        }
+
+        // error per item in request order, null for the items linked
+        Map<String, String> errors = new LinkedHashMap<>();
+        List<MediaEvent> mediaEvents = new ArrayList<>();
+        for (Map.Entry<String, List<String>> item : mediaURLsByItem.entrySet()) {
+            String error = null;
+            if (StringUtils.isBlank(item.getKey()) || CollectionUtils.isEmpty(item.getValue())) {
+                error = "Invalid media event parameters.";
+            } else if (!Boolean.TRUE.equals(owned.get(item.getKey()))) {
+                error = "Item not found";
+            } else {
+                mediaEvents.add(mediaEvent(MediaEventType.ADD, item.getKey(), userID, item.getValue()));
+            }
+            errors.put(item.getKey(), error);
+        }
+
+        try {
+            sendMediaEvents(mediaEvents);
+        } catch (JsonProcessingException | RuntimeException e) {
+            log.error("Could not send {} media events: {}", mediaEvents.size(), e.getMessage());
+            errors.replaceAll((itemID, error) -> error != null ? error : "Could not record media event");
+        }
+
+        List<BulkItemResult> results = new ArrayList<>(errors.size());
+        errors.forEach((itemID, error) -> results.add(error == null
+                ? BulkItemResult.succeeded(itemID, mediaURLsByItem.get(itemID))
+                : BulkItemResult.failed(itemID, error)));
+        return results;
+    }
+
+    @Override
+    public CompletableFuture<Void> addMediaAsync(String itemID, String userID, List<String> mediaURLs) {
+        return ioExecutor.supply(() -> {
+            addMedia(itemID, userID, mediaURLs);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteMediaAsync(String itemID, String userID, List<String> mediaURLs) {
+        return ioExecutor.supply(() -> {
+            deleteMedia(itemID, userID, mediaURLs);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<BulkItemResult>> addMediaAllAsync(Map<String, List<String>> mediaURLsByItem, String userID) {
+        return ioExecutor.supply(() -> addMediaAll(mediaURLsByItem, userID));
+    }
+
     private void sendMediaEvent(MediaEventType mediaEventType, String itemID, String userID, List<String> mediaURLs) throws JsonProcessingException {
         if (StringUtils.isBlank(itemID) || CollectionUtils.isEmpty(mediaURLs)) {
             throw new IllegalArgumentException("Invalid media event parameters.");
         }
 
-        mediaEventProducer.sendMediaEvent(MediaEvent.builder()
-                                                    .mediaEventType(mediaEventType)
-                                                    .itemID(itemID)
-                                                    .mediaURLs(mediaURLs)
-                                                    .userID(userID)
-                                                    .build());
+        MediaEvent mediaEvent = mediaEvent(mediaEventType, itemID, userID, mediaURLs);
+        if (mediaEventOutbox.isEnabled()) {
+            mediaEventOutbox.append(mediaEvent);
+        } else {
+            mediaEventProducer.sendMediaEvent(mediaEvent);
+        }
+    }
+
+    private void sendMediaEvents(List<MediaEvent> mediaEvents) throws JsonProcessingException {
+        if (mediaEvents.isEmpty()) {
+            return;
+        }
+        if (mediaEventOutbox.isEnabled()) {
+            mediaEventOutbox.appendAll(mediaEvents);
+        } else {
+            mediaEventProducer.sendMediaEvents(mediaEvents);
+        }
+    }
+
+    private static List<BulkItemResult> failAll(Collection<String> itemIDs, String error) {
+        List<BulkItemResult> results = new ArrayList<>(itemIDs.size());
+        itemIDs.forEach(itemID -> results.add(BulkItemResult.failed(itemID, error)));
+        return results;
+    }
+
+    private static MediaEvent mediaEvent(MediaEventType mediaEventType, String itemID, String userID, List<String> mediaURLs) {
+        return MediaEvent.builder()
+                         .mediaEventType(mediaEventType)
+                         .itemID(itemID)
+                         .mediaURLs(mediaURLs)
+                         .userID(userID)
+                         .build();
     }
 }
@@ -0,0 +1,60 @@
+package org.notabarista.storage.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.nio.NioBucketStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link StorageService} on the non-blocking {@link NioBucketStore}, selected with {@code storage.engine=nio}. Object
+ * keys, media URLs, rollbacks, links and errors are those of {@link FilebaseStorageService}; what differs is that no
+ * thread waits for a transfer. Media are linked with their derivatives like {@link FilebaseStorageService} links them.
+ */
+@Service
+@ConditionalOnProperty(name = "storage.engine", havingValue = "nio")
+public class NioStorageService extends ObjectStoreStorageService {
+
+    private final DerivativeService derivativeService;
+    private final NioBucketStore store;
+
+    public NioStorageService(ItemService itemService, MediaService mediaService, DerivativeService derivativeService, NioBucketStore store,
+                             StorageMetrics storageMetrics, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                             @Value("${filebase.upload.parallelism:4}") int uploadParallelism,
+                             @Value("${filebase.object-keys.content-addressed:false}") boolean contentAddressedKeys,
+                             @Value("${filebase.object-keys.delete-untracked:true}") boolean deleteUntracked) {
+        super(itemService, mediaService, store, storageMetrics, ioExecutor, uploadParallelism, contentAddressedKeys, deleteUntracked);
+        this.derivativeService = derivativeService;
+        this.store = store;
+    }
+
+    @Override
+    protected void link(String itemID, String userID, List<String> mediaURLs, List<String> objectKeys) throws JsonProcessingException, AbstractNotabaristaException {
+        derivativeService.addMedia(itemID, userID, mediaURLs, objectKeys);
+    }
+
+    @Override
+    protected List<BulkItemResult> linkAll(String userID, Map<String, List<String>> mediaURLsByItem, Map<String, List<String>> objectKeysByItem) {
+        return derivativeService.addMediaAll(userID, mediaURLsByItem, objectKeysByItem);
+    }
+
+    /**
+     * The derivatives listed from the bucket, also those created before their sizes changed; none while derivatives
+     * are disabled.
+     */
+    @Override
+    protected CompletableFuture<List<String>> derivativeKeys(String objectKey) {
+        if (!derivativeService.isEnabled()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        return store.listAsync(ObjectKeys.derivatives(objectKey));
+    }
+}
@@ -0,0 +1,139 @@
+package org.notabarista.storage.service;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+public final class ObjectKeys {
+
+    /**
+     * Prefix of the temporary objects streamed uploads are written to until their content address is known.
+     */
+    public static final String STAGING_PREFIX = "staging/";
+
+    /**
+     * Prefix of the objects clients upload over presigned URLs until the upload is confirmed.
+     */
+    public static final String DIRECT_UPLOAD_PREFIX = "direct-uploads/";
+
+    /**
+     * Prefix of the empty objects that record which items refer to a stored object, one per item:
+     * {@code refs/<object key>/<item ID>}.
+     */
+    public static final String REFERENCE_PREFIX = "refs/";
+
+    /**
+     * Prefix of the scaled-down derivatives of originals: {@code derivatives/<original key>/<size>.<extension>}.
+     */
+    public static final String DERIVATIVE_PREFIX = "derivatives/";
+
+    private static final Pattern EXTENSION = Pattern.compile("[a-z0-9]{1,8}");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private ObjectKeys() {
+    }
+
+    /**
+     * Maps a media URL as returned by {@code store} to the key of its object in the bucket. The path of the URL
+     * carries the key percent-encoded, so keys with spaces or non-ASCII characters map back to themselves.
+     */
+    public static String fromMediaURL(String mediaURL) throws MalformedURLException {
+        // https://{BUCKET}.s3.filebase.com/{OBJECT_KEY}
+        URL aURL = new URL(mediaURL);
+        try {
+            // a "+" in a path is not an encoded space
+            return URLDecoder.decode(aURL.getPath().substring(1).replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new MalformedURLException("Invalid escape in media URL: " + mediaURL);
+        }
+    }
+
+    public static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * The key of a file in content-addressed mode: the hex SHA-256 digest of its content, followed by the extension
+     * of its original file name so the object still looks like an image to browsers and CDNs.
+     */
+    public static String contentAddressed(byte[] digest, String originalFilename) {
+        StringBuilder key = new StringBuilder(digest.length * 2 + 9);
+        for (byte b : digest) {
+            key.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+        }
+        if (originalFilename != null) {
+            int dot = originalFilename.lastIndexOf('.');
+            if (dot >= 0) {
+                String extension = originalFilename.substring(dot + 1).toLowerCase(Locale.ROOT);
+                if (EXTENSION.matcher(extension).matches()) {
+                    key.append('.').append(extension);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * The key of the derivative of an original scaled to {@code size} pixels on its longest side, under the
+     * {@link #derivatives} of the original: {@code photo.jpg} becomes {@code derivatives/photo.jpg/480.jpg}, which no
+     * other original's derivative or upload can collide with. Derivatives of PNG and GIF originals are PNGs, all
+     * others JPEGs.
+     */
+    public static String derivative(String originalKey, int size) {
+        return derivatives(originalKey) + size + (isLossless(originalKey) ? ".png" : ".jpg");
+    }
+
+    /**
+     * The prefix of the derivatives of the original stored under {@code originalKey}.
+     */
+    public static String derivatives(String originalKey) {
+        return DERIVATIVE_PREFIX + originalKey + "/";
+    }
+
+    /**
+     * Whether the key names a PNG or GIF, whose scaled copies are PNGs to keep sharp edges and transparency.
+     */
+    public static boolean isLossless(String objectKey) {
+        String key = objectKey.toLowerCase(Locale.ROOT);
+        return key.endsWith(".png") || key.endsWith(".gif");
+    }
+
+    /**
+     * The marker recording that {@code itemID} refers to the object stored under {@code objectKey}.
+     */
+    public static String reference(String objectKey, String itemID) {
+        return references(objectKey) + itemID;
+    }
+
+    /**
+     * The prefix of the markers of all items referring to the object stored under {@code objectKey}.
+     */
+    public static String references(String objectKey) {
+        return REFERENCE_PREFIX + objectKey + "/";
+    }
+
+    /**
+     * Whether the object stored under {@code objectKey} may be deleted once {@code itemID} no longer refers to it,
+     * given the markers listed under its {@link #references} prefix: no other item may refer to it. An object without
+     * any marker was stored before references were recorded, it is deleted only if {@code deleteUntracked}.
+     */
+    public static boolean isReleased(String objectKey, String itemID, Collection<String> references, boolean deleteUntracked) {
+        String own = reference(objectKey, itemID);
+        for (String reference : references) {
+            if (!reference.equals(own)) {
+                return false;
+            }
+        }
+        return deleteUntracked || references.contains(own);
+    }
+}
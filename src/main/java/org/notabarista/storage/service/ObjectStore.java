@@ -0,0 +1,91 @@
+package org.notabarista.storage.service;
+
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.service.download.DownloadService;
+import org.notabarista.storage.service.download.ObjectAttributes;
+import org.notabarista.storage.service.download.ObjectDownload;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where a storage engine keeps its objects: the bucket, local disk or local disk in front of the bucket. The
+ * {@link ObjectStoreStorageService} runs uploads, rollbacks and deletes on top of it and {@link DownloadService} reads
+ * through it, so an engine is only its store.
+ * <p>
+ * Writes return futures: a store on a non-blocking client holds no thread while a transfer is in flight, a blocking
+ * store runs them on the {@code mediaIoExecutor}. Reads block, their callers already run on an I/O thread.
+ */
+public interface ObjectStore {
+
+    /**
+     * The media URL of an object, which {@link #objectKey} maps back to its key.
+     */
+    String resourceUrl(String objectKey);
+
+    /**
+     * The key of the object a media URL of this store points to.
+     *
+     * @throws MalformedURLException if the URL is not one of this store's media URLs
+     */
+    String objectKey(String mediaURL) throws MalformedURLException;
+
+    CompletableFuture<Boolean> existsAsync(String objectKey);
+
+    /**
+     * Stores an uploaded file under {@code objectKey}, replacing what was stored under it before.
+     */
+    CompletableFuture<Void> putAsync(String objectKey, MultipartFile file, String itemID);
+
+    /**
+     * Stores an empty object under {@code objectKey}, like a reference marker. It is not counted as an upload.
+     */
+    CompletableFuture<Void> touchAsync(String objectKey);
+
+    /**
+     * Writes {@code content} to a temporary file of the store, to be {@link #commitAsync committed} once its key is
+     * known, e.g. after its digest was computed while it was written.
+     */
+    Path stage(InputStream content) throws IOException;
+
+    /**
+     * Stores a staged file under {@code objectKey}. The staged file is consumed whatever the outcome.
+     *
+     * @param replace whether an object already stored under the key is replaced; content-addressed keys are not, a
+     *                racing writer would only store the same bytes again
+     * @return whether the staged file was stored
+     */
+    CompletableFuture<Boolean> commitAsync(Path staged, String objectKey, String contentType, String itemID, boolean replace);
+
+    /**
+     * The keys of the objects stored under {@code prefix}, in no particular order. Stores need to list the
+     * {@link ObjectKeys#references} of an object, and the {@link ObjectKeys#derivatives} of an original if derivatives
+     * are stored in them.
+     */
+    CompletableFuture<List<String>> listAsync(String prefix);
+
+    /**
+     * Deletes the objects, failing with a {@link MediaStorageException} naming the first one that could not be deleted.
+     */
+    CompletableFuture<Void> deleteAsync(List<String> objectKeys);
+
+    /**
+     * @throws MediaNotFoundException if no object is stored under the key
+     */
+    ObjectAttributes head(String objectKey) throws IOException;
+
+    /**
+     * Writes the bytes of a prepared download, unless the object no longer has the ETag the download was prepared
+     * with.
+     *
+     * @return whether the bytes were written
+     */
+    boolean transfer(ObjectDownload download, OutputStream outputStream) throws IOException;
+}
@@ -0,0 +1,742 @@
+package org.notabarista.storage.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadException;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.api.validator.ImageFormatSniffer;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.FilebaseStorageService.StoredObject;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * {@link StorageService} on an {@link ObjectStore}: the engines that differ only in where their objects go share this
+ * pipeline, an engine is a subclass that picks its store. Object keys, media URLs, rollbacks, links and errors are
+ * those of {@link FilebaseStorageService}. Catalog checks, reading streamed bodies and linking media block and run on
+ * the {@code mediaIoExecutor}, the uploads and deletes in between are the store's futures.
+ * <p>
+ * Items refer to stored objects through the markers of {@link ObjectKeys#reference}: a marker is stored before the
+ * object, so a request deleting the object concurrently sees it, and an object is only deleted once no other item
+ * refers to it. That is what lets several items share a content-addressed object.
+ * <p>
+ * Subclasses decide how stored media are linked to their items and which derivatives a deleted original leaves
+ * behind; by default media are linked by the {@link MediaService} and have no derivatives.
+ */
+@Log4j2
+public abstract class ObjectStoreStorageService implements StorageService {
+
+    private final ItemService itemService;
+    private final MediaService mediaService;
+    private final ObjectStore store;
+    private final StorageMetrics storageMetrics;
+    private final IoExecutor ioExecutor;
+    private final int uploadParallelism;
+    private final boolean contentAddressedKeys;
+    private final boolean deleteUntracked;
+
+    /**
+     * @param deleteUntracked whether objects stored before references were recorded, which no item has a marker for,
+     *                        are deleted by the first item unlinking them
+     */
+    protected ObjectStoreStorageService(ItemService itemService, MediaService mediaService, ObjectStore store, StorageMetrics storageMetrics,
+                                        IoExecutor ioExecutor, int uploadParallelism, boolean contentAddressedKeys, boolean deleteUntracked) {
+        this.itemService = itemService;
+        this.mediaService = mediaService;
+        this.store = store;
+        this.storageMetrics = storageMetrics;
+        this.ioExecutor = ioExecutor;
+        this.uploadParallelism = Math.max(1, uploadParallelism);
+        this.contentAddressedKeys = contentAddressedKeys;
+        this.deleteUntracked = deleteUntracked;
+    }
+
+    /**
+     * Links stored media to their item. Runs on the {@code mediaIoExecutor}.
+     */
+    protected void link(String itemID, String userID, List<String> mediaURLs, List<String> objectKeys) throws JsonProcessingException, AbstractNotabaristaException {
+        mediaService.addMedia(itemID, userID, mediaURLs);
+    }
+
+    /**
+     * Links the stored media of a bulk upload to their items. Runs on the {@code mediaIoExecutor}.
+     */
+    protected List<BulkItemResult> linkAll(String userID, Map<String, List<String>> mediaURLsByItem, Map<String, List<String>> objectKeysByItem) {
+        return mediaService.addMediaAll(mediaURLsByItem, userID);
+    }
+
+    /**
+     * The keys of the derivatives stored for an original, unlinked together with it and deleted with it.
+     */
+    protected CompletableFuture<List<String>> derivativeKeys(String objectKey) {
+        return CompletableFuture.completedFuture(List.of());
+    }
+
+    @Override
+    public List<String> store(String itemID, MultipartFile[] files, String userID) throws IOException, AbstractNotabaristaException {
+        return await(storeAsync(itemID, files, userID));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> storeAsync(String itemID, MultipartFile[] files, String userID) {
+        List<MultipartFile> fileList = Arrays.asList(files);
+        return ioExecutor.supply(() -> {
+                             checkItem(itemID, userID);
+                             List<String> objectKeys = new ArrayList<>(fileList.size());
+                             for (MultipartFile file : fileList) {
+                                 objectKeys.add(objectKey(file));
+                             }
+                             return objectKeys;
+                         })
+                         .thenCompose(objectKeys -> uploadAll(itemID, fileList, objectKeys))
+                         .thenCompose(storedObjects -> ioExecutor.supply(() -> link(itemID, userID, storedObjects)));
+    }
+
+    @Override
+    public List<String> storeStream(String itemID, FileItemIterator files, String userID) throws IOException, AbstractNotabaristaException {
+        return await(storeStreamAsync(itemID, files, userID));
+    }
+
+    /**
+     * Each file part is checked and staged in the store while the body is read, and committed as soon as it is
+     * staged, so writes overlap with reading the rest of the body.
+     */
+    @Override
+    public CompletableFuture<List<String>> storeStreamAsync(String itemID, FileItemIterator files, String userID) {
+        return ioExecutor.supply(() -> {
+                             checkItem(itemID, userID);
+                             return stageAndCommit(itemID, files);
+                         })
+                         .thenCompose(uploads -> {
+                             StoredObject[] storedObjects = new StoredObject[uploads.size()];
+                             return collect(itemID, whenAll(uploads, storedObjects), storedObjects);
+                         })
+                         .thenCompose(storedObjects -> ioExecutor.supply(() -> link(itemID, userID, storedObjects)));
+    }
+
+    @Override
+    public List<BulkItemResult> storeAll(Map<String, List<MultipartFile>> filesByItem, String userID) throws AbstractNotabaristaException {
+        try {
+            return await(storeAllAsync(filesByItem, userID));
+        } catch (IOException e) {
+            throw new MediaStorageException("Media upload failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<BulkItemResult>> storeAllAsync(Map<String, List<MultipartFile>> filesByItem, String userID) {
+        return ioExecutor.supply(() -> new BulkUpload(filesByItem, itemService.itemsExist(filesByItem.keySet(), userID)))
+                         .thenCompose(bulk -> uploadEach(bulk).thenApply(ignored -> bulk))
+                         .thenCompose(bulk -> rollbackAll(bulk.settle()).thenApply(ignored -> bulk))
+                         .thenCompose(bulk -> linkAll(bulk, userID));
+    }
+
+    /**
+     * Links the settled items of a bulk upload and rolls back the items that could not be linked, or all of them if
+     * linking failed as a whole.
+     */
+    private CompletableFuture<List<BulkItemResult>> linkAll(BulkUpload bulk, String userID) {
+        CompletableFuture<List<BulkItemResult>> linked = ioExecutor.supply(() -> bulk.link(userID));
+        return linked.handle((results, failure) -> bulk.unlinked(failure == null ? results : null))
+                     .thenCompose(this::rollbackUnlinked)
+                     .thenCompose(ignored -> linked);
+    }
+
+    @Override
+    public void delete(String itemID, List<String> mediaURLs, String userID) throws MalformedURLException, JsonProcessingException, AbstractNotabaristaException {
+        try {
+            await(deleteAsync(itemID, mediaURLs, userID));
+        } catch (MalformedURLException | JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new MediaStorageException("Media deletion failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops the references of the item to the objects and deletes the objects no other item refers to, with their
+     * derivatives.
+     */
+    @Override
+    public CompletableFuture<Void> deleteAsync(String itemID, List<String> mediaURLs, String userID) {
+        List<String> objectKeys = new ArrayList<>(mediaURLs.size());
+        return ioExecutor.supply(() -> {
+                             checkItem(itemID, userID);
+                             for (String mediaURL : mediaURLs) {
+                                 objectKeys.add(store.objectKey(mediaURL));
+                             }
+                             return null;
+                         })
+                         .thenCompose(ignored -> derivativeKeysByOriginal(objectKeys))
+                         .thenCompose(derivativeKeys -> release(itemID, objectKeys, new HashSet<>(objectKeys), deleteUntracked)
+                                 .thenCompose(deletedKeys -> {
+                                     log.info("Unlinking media files with URLs {}, deleted objects {}", mediaURLs, deletedKeys);
+                                     return withDerivatives(mediaURLs, derivativeKeys, deletedKeys);
+                                 }))
+                         .thenCompose(unlinkedURLs -> ioExecutor.supply(() -> {
+                             mediaService.deleteMedia(itemID, userID, unlinkedURLs);
+                             return null;
+                         }));
+    }
+
+    private void checkItem(String itemID, String userID) throws AbstractNotabaristaException {
+        if (!itemService.itemExists(itemID, userID)) {
+            throw new MediaStorageException("Item not found");
+        }
+    }
+
+    private String objectKey(MultipartFile file) throws IOException {
+        return contentAddressedKeys
+                ? ObjectKeys.contentAddressed(FilebaseStorageService.digest(file), file.getOriginalFilename())
+                : file.getOriginalFilename();
+    }
+
+    private List<String> link(String itemID, String userID, List<StoredObject> storedObjects) throws JsonProcessingException, AbstractNotabaristaException {
+        List<String> mediaURLs = new ArrayList<>(storedObjects.size());
+        List<String> objectKeys = new ArrayList<>(storedObjects.size());
+        for (StoredObject storedObject : storedObjects) {
+            mediaURLs.add(storedObject.url);
+            objectKeys.add(storedObject.key);
+        }
+        link(itemID, userID, mediaURLs, objectKeys);
+        return mediaURLs;
+    }
+
+    /**
+     * Uploads the files keeping at most {@code uploadParallelism} of them in flight for this request. On the first
+     * failure the files not yet started are skipped and the objects this request created are deleted again.
+     */
+    private CompletableFuture<List<StoredObject>> uploadAll(String itemID, List<MultipartFile> files, List<String> objectKeys) {
+        StoredObject[] storedObjects = new StoredObject[files.size()];
+        AtomicBoolean aborted = new AtomicBoolean();
+        CompletableFuture<Void> uploads = inLanes(files.size(), aborted, index ->
+                upload(itemID, files.get(index), objectKeys.get(index)).thenAccept(storedObject -> storedObjects[index] = storedObject));
+        return collect(itemID, uploads, storedObjects);
+    }
+
+    /**
+     * Uploads files of different items like {@link #uploadAll}, but keeps going when one of them fails: each file
+     * ends up with either its stored object or its failure.
+     */
+    private CompletableFuture<Void> uploadEach(BulkUpload bulk) {
+        return inLanes(bulk.files.size(), new AtomicBoolean(), index ->
+                upload(bulk.fileItemIDs.get(index), bulk.files.get(index), bulk.objectKeys.get(index))
+                        .handle((storedObject, failure) -> {
+                            if (failure != null) {
+                                Throwable cause = unwrap(failure);
+                                log.error("Could not upload media file '{}' of item {}: {}", bulk.files.get(index).getOriginalFilename(),
+                                        bulk.fileItemIDs.get(index), cause.getMessage());
+                                bulk.failures[index] = cause;
+                            } else {
+                                bulk.storedObjects[index] = storedObject;
+                            }
+                            return null;
+                        }));
+    }
+
+    /**
+     * Runs {@code task} for the indexes {@code 0..count-1} with at most {@code uploadParallelism} of them in flight.
+     * Once a task fails, {@code aborted} is set and no further task is started.
+     */
+    private CompletableFuture<Void> inLanes(int count, AtomicBoolean aborted, IntFunction<CompletableFuture<Void>> task) {
+        AtomicInteger next = new AtomicInteger();
+        CompletableFuture<?>[] lanes = new CompletableFuture<?>[Math.min(uploadParallelism, count)];
+        for (int lane = 0; lane < lanes.length; lane++) {
+            lanes[lane] = runNext(count, next, aborted, task);
+        }
+        return CompletableFuture.allOf(lanes);
+    }
+
+    private static CompletableFuture<Void> runNext(int count, AtomicInteger next, AtomicBoolean aborted, IntFunction<CompletableFuture<Void>> task) {
+        int index = next.getAndIncrement();
+        if (index >= count || aborted.get()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> current;
+        try {
+            current = task.apply(index);
+        } catch (RuntimeException e) {
+            current = CompletableFuture.failedFuture(e);
+        }
+        return current.whenComplete((ignored, failure) -> {
+                          if (failure != null) {
+                              aborted.set(true);
+                          }
+                      })
+                      .thenCompose(ignored -> runNext(count, next, aborted, task));
+    }
+
+    /**
+     * The stored objects once all {@code uploads} succeeded. Otherwise they are rolled back and the first failure is
+     * passed on.
+     */
+    private CompletableFuture<List<StoredObject>> collect(String itemID, CompletableFuture<?> uploads, StoredObject[] storedObjects) {
+        return uploads.handle((ignored, failure) -> failure)
+                      .thenCompose(failure -> {
+                          if (failure == null) {
+                              return CompletableFuture.completedFuture(Arrays.asList(storedObjects));
+                          }
+                          return rollback(itemID, Arrays.asList(storedObjects))
+                                  .thenCompose(done -> CompletableFuture.failedFuture(unwrap(failure)));
+                      });
+    }
+
+    private static CompletableFuture<Void> whenAll(List<CompletableFuture<StoredObject>> uploads, StoredObject[] storedObjects) {
+        CompletableFuture<?>[] stored = new CompletableFuture<?>[uploads.size()];
+        for (int index = 0; index < stored.length; index++) {
+            int slot = index;
+            stored[index] = uploads.get(index).thenAccept(storedObject -> storedObjects[slot] = storedObject);
+        }
+        return CompletableFuture.allOf(stored);
+    }
+
+    private CompletableFuture<StoredObject> upload(String itemID, MultipartFile file, String objectKey) {
+        CompletableFuture<StoredObject> upload = store.touchAsync(ObjectKeys.reference(objectKey, itemID)).thenCompose(ignored -> {
+            if (!contentAddressedKeys) {
+                return put(itemID, file, objectKey);
+            }
+            return store.existsAsync(objectKey).thenCompose(exists -> {
+                storageMetrics.recordDeduplication(exists, file.getSize());
+                if (exists) {
+                    String resourceUrl = store.resourceUrl(objectKey);
+                    log.info("Media file '{}' is already stored as '{}', URL '{}'", file.getOriginalFilename(), objectKey, resourceUrl);
+                    return CompletableFuture.completedFuture(new StoredObject(objectKey, resourceUrl, false));
+                }
+                return put(itemID, file, objectKey);
+            });
+        });
+        return dropReferenceOnFailure(upload, itemID, objectKey);
+    }
+
+    private CompletableFuture<StoredObject> put(String itemID, MultipartFile file, String objectKey) {
+        log.info("Uploading media file '{}', content type '{}'", file.getOriginalFilename(), file.getContentType());
+        return store.putAsync(objectKey, file, itemID)
+                    .thenApply(ignored -> {
+                        storageMetrics.recordStored(file.getSize());
+                        String resourceUrl = store.resourceUrl(objectKey);
+                        log.info("Uploaded media file '{}', content type '{}', URL '{}'", file.getOriginalFilename(), file.getContentType(),
+                                resourceUrl);
+                        return new StoredObject(objectKey, resourceUrl, true);
+                    });
+    }
+
+    /**
+     * Reads the file parts of a streamed body. Each part is checked the way {@code @ContentType(contentTypes = "image/*",
+     * sniff = true)} checks a spooled file and staged in the store, which commits it under its key once staged. With
+     * content-addressed keys the digest is computed while the part is staged.
+     *
+     * @return the commits started, in the order of the parts
+     */
+    private List<CompletableFuture<StoredObject>> stageAndCommit(String itemID, FileItemIterator files) throws IOException {
+        List<CompletableFuture<StoredObject>> uploads = new ArrayList<>();
+        try {
+            while (files.hasNext()) {
+                FileItemStream file = files.next();
+                if (file.isFormField()) {
+                    continue;
+                }
+                try (InputStream inputStream = file.openStream()) {
+                    uploads.add(stageAndCommit(itemID, file, inputStream));
+                }
+            }
+        } catch (FileUploadException | FileUploadIOException e) {
+            rollbackUploads(itemID, uploads);
+            Throwable cause = e instanceof FileUploadIOException ? e.getCause() : e;
+            throw new MediaStorageException("Invalid multipart request: " + cause.getMessage());
+        } catch (IOException | RuntimeException e) {
+            rollbackUploads(itemID, uploads);
+            throw e;
+        }
+        if (uploads.isEmpty()) {
+            throw new MediaStorageException("At least one file is required");
+        }
+        return uploads;
+    }
+
+    private CompletableFuture<StoredObject> stageAndCommit(String itemID, FileItemStream file, InputStream inputStream) throws IOException {
+        String contentType = file.getContentType();
+        if (contentType == null || !contentType.startsWith("image/")) {
+            throw new MediaStorageException("Invalid content type: " + contentType);
+        }
+        PushbackInputStream content = new PushbackInputStream(inputStream, ImageFormatSniffer.HEADER_LENGTH);
+        if (ImageFormatSniffer.isDetectable(contentType) && ImageFormatSniffer.detect(content) == null) {
+            throw new MediaStorageException("Invalid file content: " + file.getName());
+        }
+
+        log.info("Streaming media file '{}', content type '{}'", file.getName(), contentType);
+        MessageDigest digest = contentAddressedKeys ? ObjectKeys.newContentDigest() : null;
+        Path staged = store.stage(digest != null ? new DigestInputStream(content, digest) : content);
+        long size;
+        try {
+            size = Files.size(staged);
+        } catch (IOException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+
+        String objectKey = digest != null ? ObjectKeys.contentAddressed(digest.digest(), file.getName()) : file.getName();
+        CompletableFuture<StoredObject> commit = store.touchAsync(ObjectKeys.reference(objectKey, itemID))
+                    .whenComplete((ignored, failure) -> {
+                        if (failure != null) {
+                            discard(staged);
+                        }
+                    })
+                    .thenCompose(ignored -> store.commitAsync(staged, objectKey, contentType, itemID, digest == null))
+                    .thenApply(created -> {
+                        if (digest != null) {
+                            storageMetrics.recordDeduplication(!created, size);
+                        }
+                        if (created) {
+                            storageMetrics.recordStored(size);
+                        }
+                        String resourceUrl = store.resourceUrl(objectKey);
+                        log.info("Streamed media file '{}', content type '{}', URL '{}'", file.getName(), contentType, resourceUrl);
+                        return new StoredObject(objectKey, resourceUrl, created);
+                    });
+        return dropReferenceOnFailure(commit, itemID, objectKey);
+    }
+
+    /**
+     * Drops the reference of an item to an object it failed to store, so the reference does not keep the object of
+     * another item alive.
+     */
+    private CompletableFuture<StoredObject> dropReferenceOnFailure(CompletableFuture<StoredObject> upload, String itemID, String objectKey) {
+        return upload.handle((storedObject, failure) -> failure)
+                     .thenCompose(failure -> {
+                         if (failure == null) {
+                             return upload;
+                         }
+                         return release(itemID, List.of(objectKey), Set.of(), false)
+                                 .handle((ignored, releaseFailure) -> null)
+                                 .thenCompose(ignored -> upload);
+                     });
+    }
+
+    private static void discard(Path staged) {
+        try {
+            Files.deleteIfExists(staged);
+        } catch (IOException e) {
+            log.warn("Could not remove staged media file '{}': {}", staged, e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for commits already started and deletes the objects they created. Only used when reading a streamed body
+     * failed, on the thread that read it.
+     */
+    private void rollbackUploads(String itemID, List<CompletableFuture<StoredObject>> uploads) {
+        StoredObject[] storedObjects = new StoredObject[uploads.size()];
+        whenAll(uploads, storedObjects).handle((ignored, failure) -> null).join();
+        rollback(itemID, Arrays.asList(storedObjects)).join();
+    }
+
+    private CompletableFuture<Void> rollbackAll(Map<String, List<StoredObject>> storedObjectsByItem) {
+        CompletableFuture<?>[] rollbacks = storedObjectsByItem.entrySet().stream()
+                                                              .map(item -> rollback(item.getKey(), item.getValue()))
+                                                              .toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(rollbacks);
+    }
+
+    /**
+     * Rolls back items that were stored but not linked. Derivatives may have been created for them while they were
+     * linked, those of the deleted objects are deleted with them.
+     */
+    private CompletableFuture<Void> rollbackUnlinked(Map<String, List<StoredObject>> storedObjectsByItem) {
+        CompletableFuture<?>[] rollbacks = storedObjectsByItem.entrySet().stream()
+                                                              .map(item -> rollback(item.getKey(), item.getValue()).thenCompose(this::deleteDerivatives))
+                                                              .toArray(CompletableFuture<?>[]::new);
+        return CompletableFuture.allOf(rollbacks);
+    }
+
+    private CompletableFuture<Void> deleteDerivatives(List<String> objectKeys) {
+        return derivativeKeysByOriginal(objectKeys)
+                .thenCompose(derivativeKeysByOriginal -> {
+                    List<String> derivativeKeys = new ArrayList<>();
+                    derivativeKeysByOriginal.values().forEach(derivativeKeys::addAll);
+                    return derivativeKeys.isEmpty() ? CompletableFuture.<Void>completedFuture(null) : store.deleteAsync(derivativeKeys);
+                })
+                .exceptionally(failure -> {
+                    log.warn("Could not delete derivatives of {}: {}", objectKeys, unwrap(failure).getMessage());
+                    return null;
+                });
+    }
+
+    /**
+     * Drops the references of the item to the objects it stored and deletes the objects it created, unless another
+     * item refers to them by now. Failures are logged, not passed on.
+     *
+     * @return the keys of the deleted objects
+     */
+    private CompletableFuture<List<String>> rollback(String itemID, List<StoredObject> storedObjects) {
+        List<String> objectKeys = new ArrayList<>();
+        Set<String> createdKeys = new HashSet<>();
+        for (StoredObject storedObject : storedObjects) {
+            if (storedObject != null) {
+                objectKeys.add(storedObject.key);
+                if (storedObject.created) {
+                    createdKeys.add(storedObject.key);
+                }
+            }
+        }
+        if (objectKeys.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+        log.info("Rolling back uploaded objects {} of item {}", objectKeys, itemID);
+        return release(itemID, objectKeys, createdKeys, true)
+                .handle((deletedKeys, failure) -> {
+                    if (failure != null) {
+                        log.error("Could not roll back objects {}: {}", objectKeys, unwrap(failure).getMessage());
+                        return List.of();
+                    }
+                    return deletedKeys;
+                });
+    }
+
+    /**
+     * Drops the references of {@code itemID} to the objects and deletes those of {@code deletable} that no other item
+     * refers to, see {@link ObjectKeys#isReleased}.
+     *
+     * @return the keys of the deleted objects
+     */
+    private CompletableFuture<List<String>> release(String itemID, List<String> objectKeys, Set<String> deletable, boolean deleteUntracked) {
+        List<CompletableFuture<List<String>>> listings = new ArrayList<>(objectKeys.size());
+        for (String objectKey : objectKeys) {
+            listings.add(store.listAsync(ObjectKeys.references(objectKey)));
+        }
+        return CompletableFuture.allOf(listings.toArray(new CompletableFuture<?>[0]))
+                                .thenCompose(ignored -> {
+                                    Set<String> deletedKeys = new LinkedHashSet<>();
+                                    Set<String> releasedKeys = new LinkedHashSet<>();
+                                    for (int index = 0; index < objectKeys.size(); index++) {
+                                        String objectKey = objectKeys.get(index);
+                                        List<String> references = listings.get(index).join();
+                                        String reference = ObjectKeys.reference(objectKey, itemID);
+                                        if (references.contains(reference)) {
+                                            deletedKeys.add(reference);
+                                        }
+                                        if (!deletable.contains(objectKey)) {
+                                            continue;
+                                        }
+                                        if (ObjectKeys.isReleased(objectKey, itemID, references, deleteUntracked)) {
+                                            releasedKeys.add(objectKey);
+                                            deletedKeys.add(objectKey);
+                                        } else {
+                                            log.info("Keeping object '{}', other items refer to it", objectKey);
+                                        }
+                                    }
+                                    if (deletedKeys.isEmpty()) {
+                                        return CompletableFuture.completedFuture(List.<String>of());
+                                    }
+                                    return store.deleteAsync(new ArrayList<>(deletedKeys))
+                                                .thenApply(done -> List.copyOf(releasedKeys));
+                                });
+    }
+
+    /**
+     * The stored derivatives of each original, listed before anything is deleted so a failed listing fails the
+     * request as a whole.
+     */
+    private CompletableFuture<Map<String, List<String>>> derivativeKeysByOriginal(List<String> objectKeys) {
+        Map<String, CompletableFuture<List<String>>> listings = new LinkedHashMap<>();
+        for (String objectKey : objectKeys) {
+            listings.computeIfAbsent(objectKey, this::derivativeKeys);
+        }
+        return CompletableFuture.allOf(listings.values().toArray(new CompletableFuture<?>[0]))
+                                .thenApply(ignored -> {
+                                    Map<String, List<String>> derivativeKeys = new LinkedHashMap<>();
+                                    listings.forEach((objectKey, listing) -> derivativeKeys.put(objectKey, listing.join()));
+                                    return derivativeKeys;
+                                });
+    }
+
+    /**
+     * Deletes the stored derivatives of deleted originals and returns the media URLs to unlink, including those of
+     * the derivatives of all unlinked originals. Derivatives of originals other items still refer to are kept like
+     * their originals.
+     */
+    private CompletableFuture<List<String>> withDerivatives(List<String> mediaURLs, Map<String, List<String>> derivativeKeysByOriginal,
+                                                            List<String> deletedOriginals) {
+        Set<String> unlinkedURLs = new LinkedHashSet<>(mediaURLs);
+        List<String> deletedKeys = new ArrayList<>();
+        derivativeKeysByOriginal.forEach((objectKey, derivativeKeys) -> {
+            for (String derivativeKey : derivativeKeys) {
+                unlinkedURLs.add(store.resourceUrl(derivativeKey));
+                if (deletedOriginals.contains(objectKey)) {
+                    deletedKeys.add(derivativeKey);
+                }
+            }
+        });
+        if (deletedKeys.isEmpty()) {
+            return CompletableFuture.completedFuture(new ArrayList<>(unlinkedURLs));
+        }
+        return store.deleteAsync(deletedKeys)
+                    .handle((ignored, failure) -> {
+                        if (failure != null) {
+                            log.warn("Could not delete derivatives: {}", unwrap(failure).getMessage());
+                        }
+                        return new ArrayList<>(unlinkedURLs);
+                    });
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException, AbstractNotabaristaException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof AbstractNotabaristaException) {
+                throw (AbstractNotabaristaException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new MediaStorageException(cause.getMessage());
+        }
+    }
+
+    /**
+     * The files of a bulk upload: which items were rejected, the files of the others and what became of each of them.
+     */
+    private final class BulkUpload {
+
+        /** error per item in request order, null for the items whose files are uploaded */
+        private final Map<String, String> errors = new LinkedHashMap<>();
+        private final List<String> fileItemIDs = new ArrayList<>();
+        private final List<MultipartFile> files = new ArrayList<>();
+        private final List<String> objectKeys = new ArrayList<>();
+        private final StoredObject[] storedObjects;
+        private final Throwable[] failures;
+        private final Map<String, List<String>> mediaURLsByItem = new LinkedHashMap<>();
+        private final Map<String, List<String>> objectKeysByItem = new LinkedHashMap<>();
+        private final Map<String, List<StoredObject>> storedObjectsByItem = new LinkedHashMap<>();
+
+        private BulkUpload(Map<String, List<MultipartFile>> filesByItem, Map<String, Boolean> owned) {
+            for (Map.Entry<String, List<MultipartFile>> item : filesByItem.entrySet()) {
+                String error;
+                if (!Boolean.TRUE.equals(owned.get(item.getKey()))) {
+                    error = "Item not found";
+                } else if (item.getValue().isEmpty()) {
+                    error = "At least one file is required";
+                } else {
+                    error = item.getValue().stream().map(FilebaseStorageService::checkImage).filter(Objects::nonNull).findFirst().orElse(null);
+                }
+                List<String> itemKeys = new ArrayList<>(item.getValue().size());
+                if (error == null) {
+                    try {
+                        for (MultipartFile file : item.getValue()) {
+                            itemKeys.add(objectKey(file));
+                        }
+                    } catch (IOException e) {
+                        error = "Media upload failed: " + e.getMessage();
+                    }
+                }
+                errors.put(item.getKey(), error);
+                if (error == null) {
+                    for (MultipartFile file : item.getValue()) {
+                        fileItemIDs.add(item.getKey());
+                        files.add(file);
+                    }
+                    objectKeys.addAll(itemKeys);
+                }
+            }
+            this.storedObjects = new StoredObject[files.size()];
+            this.failures = new Throwable[files.size()];
+        }
+
+        /**
+         * Assigns the uploaded files to their items and fails the items with a failed file.
+         *
+         * @return the objects stored for the failed items, to be rolled back
+         */
+        private Map<String, List<StoredObject>> settle() {
+            for (int index = 0; index < files.size(); index++) {
+                String itemID = fileItemIDs.get(index);
+                if (failures[index] != null) {
+                    if (errors.get(itemID) == null) {
+                        errors.put(itemID, "Media upload failed: " + failures[index].getMessage());
+                    }
+                    continue;
+                }
+                StoredObject storedObject = storedObjects[index];
+                mediaURLsByItem.computeIfAbsent(itemID, ignored -> new ArrayList<>()).add(storedObject.url);
+                objectKeysByItem.computeIfAbsent(itemID, ignored -> new ArrayList<>()).add(storedObject.key);
+                storedObjectsByItem.computeIfAbsent(itemID, ignored -> new ArrayList<>()).add(storedObject);
+            }
+            Map<String, List<StoredObject>> rolledBack = new LinkedHashMap<>();
+            for (Map.Entry<String, String> item : errors.entrySet()) {
+                if (item.getValue() != null) {
+                    // an item is stored with all of its files or none of them
+                    List<StoredObject> itemObjects = storedObjectsByItem.remove(item.getKey());
+                    rolledBack.put(item.getKey(), itemObjects != null ? itemObjects : List.of());
+                    mediaURLsByItem.remove(item.getKey());
+                    objectKeysByItem.remove(item.getKey());
+                }
+            }
+            return rolledBack;
+        }
+
+        private List<BulkItemResult> link(String userID) {
+            Map<String, BulkItemResult> results = new LinkedHashMap<>();
+            errors.forEach((itemID, error) -> results.put(itemID, error != null ? BulkItemResult.failed(itemID, error) : null));
+            if (!mediaURLsByItem.isEmpty()) {
+                for (BulkItemResult result : linkAll(userID, mediaURLsByItem, objectKeysByItem)) {
+                    results.put(result.getItemID(), result);
+                }
+            }
+            return new ArrayList<>(results.values());
+        }
+
+        /**
+         * The objects stored for the settled items that {@link #link} did not link: the failed ones of {@code results},
+         * or all of them if {@code results} is {@code null} because linking failed as a whole.
+         */
+        private Map<String, List<StoredObject>> unlinked(List<BulkItemResult> results) {
+            if (results == null) {
+                return storedObjectsByItem;
+            }
+            Map<String, List<StoredObject>> unlinked = new LinkedHashMap<>();
+            for (BulkItemResult result : results) {
+                List<StoredObject> itemObjects = storedObjectsByItem.get(result.getItemID());
+                if (!result.isSucceeded() && itemObjects != null) {
+                    unlinked.put(result.getItemID(), itemObjects);
+                }
+            }
+            return unlinked;
+        }
+    }
+}
@@ -1,15 +1,39 @@
 package org.notabarista.storage.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import org.apache.commons.fileupload.FileItemIterator;
 import org.notabarista.exception.AbstractNotabaristaException;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface StorageService {
     List<String> store(String itemID, MultipartFile[] files, String userID) throws IOException, AbstractNotabaristaException;
 
+    /**
+     * Stores the files of a multipart request body while it is being read, each file going to the bucket as its
+     * bytes arrive. The item is checked before the first file is read.
+     */
+    List<String> storeStream(String itemID, FileItemIterator files, String userID) throws IOException, AbstractNotabaristaException;
+
+    /**
+     * Stores the files of several items in one go: ownership is checked for all items at once, the files of all items
+     * are uploaded concurrently and the items stored are linked together. An item whose check or upload fails is
+     * reported in its result and leaves the other items alone.
+     */
+    List<BulkItemResult> storeAll(Map<String, List<MultipartFile>> filesByItem, String userID) throws AbstractNotabaristaException;
+
     void delete(String itemID, List<String> mediaURLs, String userID) throws MalformedURLException, JsonProcessingException, AbstractNotabaristaException;
+
+    CompletableFuture<List<String>> storeAsync(String itemID, MultipartFile[] files, String userID);
+
+    CompletableFuture<List<String>> storeStreamAsync(String itemID, FileItemIterator files, String userID);
+
+    CompletableFuture<List<BulkItemResult>> storeAllAsync(Map<String, List<MultipartFile>> filesByItem, String userID);
+
+    CompletableFuture<Void> deleteAsync(String itemID, List<String> mediaURLs, String userID);
 }
@@ -0,0 +1,30 @@
+package org.notabarista.storage.service;
+
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.tiered.TieredStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * {@link StorageService} on local disk in front of the bucket, selected with {@code storage.engine=tiered}. Object keys,
+ * content-addressed deduplication, rollbacks, links, media URLs and errors are those of {@link FilebaseStorageService};
+ * the files are written to the hot tier of the {@link TieredStore}, which copies them to the bucket in the background,
+ * and {@code GET /media/{key}} serves them from whichever tier holds them.
+ * <p>
+ * No derivatives are created. Scaled variants read their originals from the bucket, so they are only available once
+ * the copy of the original is done.
+ */
+@Service
+@ConditionalOnProperty(name = "storage.engine", havingValue = "tiered")
+public class TieredStorageService extends ObjectStoreStorageService {
+
+    public TieredStorageService(ItemService itemService, MediaService mediaService, TieredStore store, StorageMetrics storageMetrics,
+                                @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                                @Value("${filebase.upload.parallelism:4}") int uploadParallelism,
+                                @Value("${filebase.object-keys.content-addressed:false}") boolean contentAddressedKeys,
+                                @Value("${filebase.object-keys.delete-untracked:true}") boolean deleteUntracked) {
+        super(itemService, mediaService, store, storageMetrics, ioExecutor, uploadParallelism, contentAddressedKeys, deleteUntracked);
+    }
+}
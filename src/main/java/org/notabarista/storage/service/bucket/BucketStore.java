@@ -0,0 +1,298 @@
+package org.notabarista.storage.service.bucket;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.ObjectStore;
+import org.notabarista.storage.service.download.ObjectAttributes;
+import org.notabarista.storage.service.download.ObjectDownload;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The bucket as an {@link ObjectStore}, on the blocking AWS SDK client. It is the store of
+ * {@code storage.engine=filebase}, the cold tier of {@code storage.engine=tiered} and what the non-blocking store of
+ * {@code storage.engine=nio} reads through.
+ * <p>
+ * Files are sent by the {@link S3UploadEngine}, in parts if they are large. Deletes are batched into multi-object
+ * delete requests. Reads pass a single range on to the bucket, bound to the ETag the read was prepared with, and
+ * stream the body through a pool of fixed-size buffers.
+ */
+@Component
+@Log4j2
+public class BucketStore implements ObjectStore {
+
+    private static final int MAX_DELETE_BATCH_SIZE = 1000;
+    private static final int NOT_FOUND = 404;
+
+    private final AmazonS3 bucket;
+    private final String mediaStorageBucketName;
+    private final AmazonS3Client s3Client;
+    private final S3UploadEngine uploadEngine;
+    private final StorageMetrics storageMetrics;
+    private final IoExecutor ioExecutor;
+    private final int deleteBatchSize;
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    public BucketStore(AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, AmazonS3Client s3Client,
+                       S3UploadEngine uploadEngine, StorageMetrics storageMetrics, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                       @Value("${filebase.delete.batch-size:1000}") int deleteBatchSize,
+                       @Value("${storage.download.buffer-size:64KB}") DataSize bufferSize,
+                       @Value("${storage.download.buffers:32}") int buffers) {
+        this.bucket = bucket;
+        this.mediaStorageBucketName = mediaStorageBucketName;
+        this.s3Client = s3Client;
+        this.uploadEngine = uploadEngine;
+        this.storageMetrics = storageMetrics;
+        this.ioExecutor = ioExecutor;
+        this.deleteBatchSize = Math.max(1, Math.min(MAX_DELETE_BATCH_SIZE, deleteBatchSize));
+        this.bufferSize = (int) bufferSize.toBytes();
+        this.buffers = new ArrayBlockingQueue<>(buffers);
+    }
+
+    @Override
+    public String resourceUrl(String objectKey) {
+        return storageMetrics.timeS3("getResourceUrl", () -> s3Client.getResourceUrl(mediaStorageBucketName, objectKey));
+    }
+
+    @Override
+    public String objectKey(String mediaURL) throws MalformedURLException {
+        return ObjectKeys.fromMediaURL(mediaURL);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(String objectKey) {
+        return ioExecutor.supply(() -> exists(objectKey));
+    }
+
+    public boolean exists(String objectKey) {
+        return storageMetrics.timeS3("getObjectMetadata", () -> bucket.doesObjectExist(mediaStorageBucketName, objectKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String objectKey, MultipartFile file, String itemID) {
+        return ioExecutor.supply(() -> {
+            uploadEngine.upload(mediaStorageBucketName, objectKey, file, objectMetadata(file.getContentType(), itemID));
+            storageMetrics.recordUpload(file.getSize());
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> touchAsync(String objectKey) {
+        return ioExecutor.supply(() -> {
+            storageMetrics.timeS3("putObject", () -> bucket.putObject(mediaStorageBucketName, objectKey, ""));
+            return null;
+        });
+    }
+
+    /**
+     * Spools {@code content} to a temporary file, the bucket takes no object before its key is known.
+     */
+    @Override
+    public Path stage(InputStream content) throws IOException {
+        Path staged = Files.createTempFile("media-", ".part");
+        try (OutputStream outputStream = Files.newOutputStream(staged)) {
+            content.transferTo(outputStream);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+        return staged;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> commitAsync(Path staged, String objectKey, String contentType, String itemID, boolean replace) {
+        return ioExecutor.supply(() -> {
+            try {
+                if (!replace && exists(objectKey)) {
+                    return false;
+                }
+                upload(objectKey, staged, contentType, itemID);
+                return true;
+            } finally {
+                discard(staged);
+            }
+        });
+    }
+
+    /**
+     * Sends a local file to the bucket under {@code objectKey}, replacing what was stored under it before.
+     */
+    public void upload(String objectKey, Path file, String contentType, String itemID) throws IOException {
+        long size = Files.size(file);
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            uploadEngine.upload(mediaStorageBucketName, objectKey, inputStream, size, objectMetadata(contentType, itemID));
+        }
+        storageMetrics.recordUpload(size);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String prefix) {
+        return ioExecutor.supply(() -> list(prefix));
+    }
+
+    public List<String> list(String prefix) {
+        ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(mediaStorageBucketName).withPrefix(prefix);
+        List<String> objectKeys = new ArrayList<>();
+        ListObjectsV2Result listing;
+        do {
+            listing = storageMetrics.timeS3("listObjectsV2", () -> bucket.listObjectsV2(listRequest));
+            for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                objectKeys.add(object.getKey());
+            }
+            listRequest.setContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+        return objectKeys;
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(List<String> objectKeys) {
+        List<CompletableFuture<List<DeleteError>>> batches = new ArrayList<>();
+        for (int from = 0; from < objectKeys.size(); from += deleteBatchSize) {
+            List<String> batch = objectKeys.subList(from, Math.min(from + deleteBatchSize, objectKeys.size()));
+            batches.add(ioExecutor.supply(() -> deleteBatch(batch)));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+                                .thenApply(ignored -> {
+                                    List<DeleteError> deleteErrors = new ArrayList<>();
+                                    batches.forEach(batch -> deleteErrors.addAll(batch.join()));
+                                    if (!deleteErrors.isEmpty()) {
+                                        DeleteError deleteError = deleteErrors.get(0);
+                                        log.error("Could not delete {} of {} objects in bucket '{}', first error: {} {}", deleteErrors.size(),
+                                                objectKeys.size(), mediaStorageBucketName, deleteError.getCode(), deleteError.getMessage());
+                                        throw new MediaStorageException("Could not delete media file: " + deleteError.getKey());
+                                    }
+                                    return null;
+                                });
+    }
+
+    /**
+     * Deletes up to {@code deleteBatchSize} objects with a single multi-object delete request and returns the keys
+     * that could not be deleted.
+     */
+    private List<DeleteError> deleteBatch(List<String> objectKeys) {
+        log.info("Deleting {} objects in bucket '{}'", objectKeys.size(), mediaStorageBucketName);
+        DeleteObjectsRequest deleteObjectsRequest = new DeleteObjectsRequest(mediaStorageBucketName)
+                .withKeys(objectKeys.toArray(new String[0]))
+                .withQuiet(true);
+        try {
+            storageMetrics.timeS3("deleteObjects", () -> bucket.deleteObjects(deleteObjectsRequest));
+            return List.of();
+        } catch (MultiObjectDeleteException e) {
+            return e.getErrors();
+        }
+    }
+
+    @Override
+    public ObjectAttributes head(String objectKey) {
+        ObjectMetadata objectMetadata;
+        try {
+            objectMetadata = storageMetrics.timeS3("getObjectMetadata", () -> bucket.getObjectMetadata(mediaStorageBucketName, objectKey));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                throw new MediaNotFoundException("Media file not found: " + objectKey);
+            }
+            throw e;
+        }
+        long lastModified = objectMetadata.getLastModified() != null ? objectMetadata.getLastModified().getTime() : -1;
+        String contentType = objectMetadata.getContentType() != null ? objectMetadata.getContentType() : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        return new ObjectAttributes(objectMetadata.getETag(), lastModified, contentType, objectMetadata.getContentLength());
+    }
+
+    @Override
+    public boolean transfer(ObjectDownload download, OutputStream outputStream) throws IOException {
+        GetObjectRequest getRequest = new GetObjectRequest(mediaStorageBucketName, download.getObjectKey());
+        if (download.getStatus() == HttpStatus.PARTIAL_CONTENT) {
+            getRequest.setRange(download.getRangeStart(), download.getRangeEnd());
+        }
+        if (download.getETag() != null) {
+            getRequest.setMatchingETagConstraints(List.of(download.getETag()));
+        }
+
+        S3Object object = storageMetrics.timeS3("getObject", () -> bucket.getObject(getRequest));
+        if (object == null) {
+            return false;
+        }
+
+        byte[] buffer = acquireBuffer();
+        long transferred = 0;
+        try (object) {
+            S3ObjectInputStream inputStream = object.getObjectContent();
+            try {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                    transferred += read;
+                }
+            } finally {
+                if (transferred < download.getContentLength()) {
+                    // the client is gone, drop the connection rather than draining the rest of the object
+                    inputStream.abort();
+                }
+            }
+        } finally {
+            buffers.offer(buffer);
+            storageMetrics.recordDownload(transferred);
+        }
+        return true;
+    }
+
+    private byte[] acquireBuffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferSize];
+    }
+
+    private static ObjectMetadata objectMetadata(String contentType, String itemID) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        if (itemID != null) {
+            objectMetadata.setUserMetadata(Map.of("itemID", itemID));
+        }
+        objectMetadata.setContentType(contentType);
+        return objectMetadata;
+    }
+
+    private static void discard(Path staged) {
+        try {
+            Files.deleteIfExists(staged);
+        } catch (IOException e) {
+            log.warn("Could not remove spooled media file '{}': {}", staged, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.notabarista.storage.service.derivative;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.BulkItemResult;
+import org.notabarista.storage.service.MediaService;
+import org.notabarista.storage.service.ObjectKeys;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Scaled-down derivatives of uploaded images, e.g. thumbnails, stored under the {@link ObjectKeys#derivatives} of
+ * their originals. Each original is read
+ * back from the bucket and decoded once on the bounded {@code mediaDerivativeExecutor}; every configured size is
+ * scaled from the next larger one.
+ * <p>
+ * Derivatives are best effort: an original that cannot be decoded or scaled is linked without them.
+ */
+@Service
+@Log4j2
+public class DerivativeService {
+
+    private final AmazonS3 bucket;
+    private final String mediaStorageBucketName;
+    private final AmazonS3Client s3Client;
+    private final MediaService mediaService;
+    private final StorageMetrics storageMetrics;
+    private final ExecutorService derivativeExecutor;
+    private final boolean enabled;
+    private final int[] sizes;
+    private final boolean await;
+    private final float jpegQuality;
+
+    public DerivativeService(AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, AmazonS3Client s3Client,
+                             MediaService mediaService, StorageMetrics storageMetrics,
+                             @Qualifier("mediaDerivativeExecutor") ExecutorService derivativeExecutor,
+                             @Value("${storage.derivatives.enabled:false}") boolean enabled,
+                             @Value("${storage.derivatives.sizes:160,480,1080}") int[] sizes,
+                             @Value("${storage.derivatives.await:false}") boolean await,
+                             @Value("${storage.derivatives.jpeg-quality:0.85}") float jpegQuality) {
+        this.bucket = bucket;
+        this.mediaStorageBucketName = mediaStorageBucketName;
+        this.s3Client = s3Client;
+        this.mediaService = mediaService;
+        this.storageMetrics = storageMetrics;
+        this.derivativeExecutor = derivativeExecutor;
+        this.enabled = enabled && sizes.length > 0;
+        // largest first, each size is scaled from the one before
+        this.sizes = Arrays.stream(sizes).filter(size -> size > 0).boxed()
+                           .sorted((a, b) -> b - a).mapToInt(Integer::intValue).distinct().toArray();
+        this.await = await;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * Links newly stored originals to the item and creates their derivatives. With {@code storage.derivatives.await}
+     * the derivatives are created first and linked in the same ADD event as the originals; otherwise the originals
+     * are linked right away and the derivatives follow in an ADD event of their own once created.
+     */
+    public void addMedia(String itemID, String userID, List<String> mediaURLs, List<String> objectKeys) throws JsonProcessingException, AbstractNotabaristaException {
+        if (!enabled) {
+            mediaService.addMedia(itemID, userID, mediaURLs);
+            return;
+        }
+
+        if (await) {
+            List<String> linkedURLs = new ArrayList<>(mediaURLs);
+            linkedURLs.addAll(deriveAll(objectKeys).join());
+            mediaService.addMedia(itemID, userID, linkedURLs);
+            return;
+        }
+
+        mediaService.addMedia(itemID, userID, mediaURLs);
+        linkDerivativesLater(itemID, userID, objectKeys);
+    }
+
+    /**
+     * Links newly stored originals of several items like {@link #addMedia}, with the ADD events of all items sent
+     * together. The results carry the URLs of the originals.
+     */
+    public List<BulkItemResult> addMediaAll(String userID, Map<String, List<String>> mediaURLsByItem, Map<String, List<String>> objectKeysByItem) {
+        if (!enabled) {
+            return mediaService.addMediaAll(mediaURLsByItem, userID);
+        }
+
+        if (await) {
+            Map<String, CompletableFuture<List<String>>> derivations = new LinkedHashMap<>();
+            objectKeysByItem.forEach((itemID, objectKeys) -> derivations.put(itemID, deriveAll(objectKeys)));
+            Map<String, List<String>> linkedURLsByItem = new LinkedHashMap<>();
+            mediaURLsByItem.forEach((itemID, mediaURLs) -> {
+                List<String> linkedURLs = new ArrayList<>(mediaURLs);
+                linkedURLs.addAll(derivations.get(itemID).join());
+                linkedURLsByItem.put(itemID, linkedURLs);
+            });
+            List<BulkItemResult> results = new ArrayList<>(mediaURLsByItem.size());
+            for (BulkItemResult result : mediaService.addMediaAll(linkedURLsByItem, userID)) {
+                results.add(result.isSucceeded() ? BulkItemResult.succeeded(result.getItemID(), mediaURLsByItem.get(result.getItemID())) : result);
+            }
+            return results;
+        }
+
+        List<BulkItemResult> results = mediaService.addMediaAll(mediaURLsByItem, userID);
+        for (BulkItemResult result : results) {
+            if (result.isSucceeded()) {
+                linkDerivativesLater(result.getItemID(), userID, objectKeysByItem.get(result.getItemID()));
+            }
+        }
+        return results;
+    }
+
+    private void linkDerivativesLater(String itemID, String userID, List<String> objectKeys) {
+        deriveAll(objectKeys).thenCompose(derivativeURLs -> derivativeURLs.isEmpty()
+                                     ? CompletableFuture.completedFuture(null)
+                                     : mediaService.addMediaAsync(itemID, userID, derivativeURLs))
+                             .whenComplete((ignored, e) -> {
+                                 if (e != null) {
+                                     log.error("Could not link derivatives of item {}: {}", itemID, e.getMessage());
+                                 }
+                             });
+    }
+
+    /**
+     * Whether derivatives are created. Callers skip {@link #derivativeKeys} while they are not.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The keys of the derivatives stored for an original, listed from the bucket: only those that were created, and
+     * also those created before their sizes changed.
+     */
+    public List<String> derivativeKeys(String objectKey) {
+        ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(mediaStorageBucketName)
+                                                                     .withPrefix(ObjectKeys.derivatives(objectKey));
+        List<String> derivativeKeys = new ArrayList<>();
+        ListObjectsV2Result listing;
+        do {
+            listing = storageMetrics.timeS3("listObjectsV2", () -> bucket.listObjectsV2(listRequest));
+            for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                derivativeKeys.add(object.getKey());
+            }
+            listRequest.setContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+        return derivativeKeys;
+    }
+
+    /**
+     * Creates the derivatives of every original concurrently and returns their URLs.
+     */
+    private CompletableFuture<List<String>> deriveAll(List<String> objectKeys) {
+        List<CompletableFuture<List<String>>> derivations = new ArrayList<>(objectKeys.size());
+        for (String objectKey : objectKeys) {
+            CompletableFuture<List<String>> derivation;
+            try {
+                derivation = CompletableFuture.supplyAsync(() -> derive(objectKey), derivativeExecutor);
+            } catch (RejectedExecutionException e) {
+                log.warn("Skipping derivatives of '{}', too many images pending", objectKey);
+                derivation = CompletableFuture.completedFuture(List.of());
+            }
+            derivations.add(derivation.exceptionally(e -> {
+                log.error("Could not create derivatives of '{}': {}", objectKey, e.getMessage());
+                return List.of();
+            }));
+        }
+        return CompletableFuture.allOf(derivations.toArray(new CompletableFuture[0]))
+                                .thenApply(ignored -> {
+                                    List<String> derivativeURLs = new ArrayList<>();
+                                    for (CompletableFuture<List<String>> derivation : derivations) {
+                                        derivativeURLs.addAll(derivation.join());
+                                    }
+                                    return derivativeURLs;
+                                });
+    }
+
+    List<String> derive(String objectKey) {
+        try {
+            return storageMetrics.timeDerivatives(() -> {
+                BufferedImage image;
+                try (S3Object original = storageMetrics.timeS3("getObject", () -> bucket.getObject(mediaStorageBucketName, objectKey));
+                     InputStream inputStream = original.getObjectContent()) {
+                    image = ImageResizer.decode(inputStream, sizes[0]);
+                }
+                if (image == null) {
+                    log.info("No derivatives of '{}', its format is not supported", objectKey);
+                    return List.of();
+                }
+
+                List<String> derivativeURLs = new ArrayList<>(sizes.length);
+                int longestSide = Math.max(image.getWidth(), image.getHeight());
+                for (int size : sizes) {
+                    if (size >= longestSide) {
+                        // never scale up
+                        continue;
+                    }
+                    image = ImageResizer.scale(image, size);
+                    derivativeURLs.add(store(objectKey, size, image));
+                }
+                log.info("Created {} derivatives of '{}'", derivativeURLs.size(), objectKey);
+                return derivativeURLs;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String store(String objectKey, int size, BufferedImage image) throws IOException {
+        String derivativeKey = ObjectKeys.derivative(objectKey, size);
+        boolean png = derivativeKey.endsWith(".png");
+        byte[] content = ImageResizer.encode(image, png ? ImageResizer.PNG : ImageResizer.JPEG, jpegQuality);
+
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType(png ? "image/png" : "image/jpeg");
+        objectMetadata.setContentLength(content.length);
+        objectMetadata.setUserMetadata(Map.of("original", objectKey));
+        storageMetrics.timeS3("putObject", () -> bucket.putObject(mediaStorageBucketName, derivativeKey, new ByteArrayInputStream(content), objectMetadata));
+        storageMetrics.recordUpload(content.length);
+        storageMetrics.recordStored(content.length);
+        return storageMetrics.timeS3("getResourceUrl", () -> s3Client.getResourceUrl(mediaStorageBucketName, derivativeKey));
+    }
+}
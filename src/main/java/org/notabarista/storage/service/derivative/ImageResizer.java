@@ -0,0 +1,146 @@
+package org.notabarista.storage.service.derivative;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Decoding, downscaling and encoding of images with the JDK's image I/O, which reads JPEG, PNG, GIF and BMP.
+ */
+final class ImageResizer {
+
+    static final String JPEG = "jpeg";
+    static final String PNG = "png";
+
+    private ImageResizer() {
+    }
+
+    /**
+     * Decodes the first image of the stream, or returns {@code null} if its format is not supported. Images much
+     * larger than {@code longestSide} are subsampled while decoding so that they are never held in memory at full
+     * resolution; the result is still at least twice {@code longestSide} for a clean downscale.
+     */
+    static BufferedImage decode(InputStream inputStream, int longestSide) throws IOException {
+        return decode(inputStream, longestSide, longestSide);
+    }
+
+    /**
+     * Like {@link #decode(InputStream, int)}, for an image that is to fit a box of {@code maxWidth} by
+     * {@code maxHeight}; a bound of {@code 0} leaves that side unbounded.
+     */
+    static BufferedImage decode(InputStream inputStream, int maxWidth, int maxHeight) throws IOException {
+        // the memory cache avoids image I/O spooling the stream to a temporary file
+        try (ImageInputStream imageInputStream = new MemoryCacheImageInputStream(inputStream)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                double widthRatio = maxWidth > 0 ? reader.getWidth(0) / (2.0 * maxWidth) : 0;
+                double heightRatio = maxHeight > 0 ? reader.getHeight(0) / (2.0 * maxHeight) : 0;
+                int subsampling = Math.max(1, (int) Math.max(widthRatio, heightRatio));
+                ImageReadParam readParam = reader.getDefaultReadParam();
+                readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, readParam);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales the image down to fit a box of {@code maxWidth} by {@code maxHeight}, keeping its aspect ratio; a bound
+     * of {@code 0} leaves that side unbounded. An image that already fits is returned as is.
+     */
+    static BufferedImage fit(BufferedImage source, int maxWidth, int maxHeight) {
+        double widthRatio = maxWidth > 0 ? (double) maxWidth / source.getWidth() : Double.MAX_VALUE;
+        double heightRatio = maxHeight > 0 ? (double) maxHeight / source.getHeight() : Double.MAX_VALUE;
+        double ratio = Math.min(widthRatio, heightRatio);
+        if (ratio >= 1) {
+            return source;
+        }
+        return scale(source, Math.max(1, (int) Math.round(Math.max(source.getWidth(), source.getHeight()) * ratio)));
+    }
+
+    /**
+     * Scales the image down so that its longest side is {@code longestSide}, halving it step by step before the last
+     * bilinear step so that no source pixel is skipped.
+     */
+    static BufferedImage scale(BufferedImage source, int longestSide) {
+        double ratio = (double) longestSide / Math.max(source.getWidth(), source.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+        boolean alpha = source.getColorModel().hasAlpha();
+
+        BufferedImage current = source;
+        do {
+            int width = Math.max(targetWidth, current.getWidth() / 2);
+            int height = Math.max(targetHeight, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (current.getWidth() != targetWidth || current.getHeight() != targetHeight);
+        return current;
+    }
+
+    /**
+     * Encodes the image as {@link #JPEG}, flattening transparency onto white, or as {@link #PNG}.
+     */
+    static byte[] encode(BufferedImage image, String format, float jpegQuality) throws IOException {
+        BufferedImage encoded = image;
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ImageWriteParam writeParam = writer.getDefaultWriteParam();
+        if (JPEG.equals(format)) {
+            if (image.getColorModel().hasAlpha()) {
+                encoded = flatten(image);
+            }
+            writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParam.setCompressionQuality(jpegQuality);
+        }
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(content)) {
+            writer.setOutput(imageOutputStream);
+            writer.write(null, new IIOImage(encoded, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
+        return content.toByteArray();
+    }
+
+    private static BufferedImage flatten(BufferedImage image) {
+        BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = opaque.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return opaque;
+    }
+}
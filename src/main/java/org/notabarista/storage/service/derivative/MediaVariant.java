@@ -0,0 +1,70 @@
+package org.notabarista.storage.service.derivative;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An image scaled on demand, either open in the local cache or just rendered. Cached variants hold their file open, so
+ * they are served in full even if the cache evicts them meanwhile; close the variant once it has been written.
+ */
+public final class MediaVariant implements Closeable {
+
+    private final String contentType;
+    private final long size;
+    private final FileChannel file;
+    private final byte[] content;
+
+    private MediaVariant(String contentType, long size, FileChannel file, byte[] content) {
+        this.contentType = contentType;
+        this.size = size;
+        this.file = file;
+        this.content = content;
+    }
+
+    static MediaVariant cached(String contentType, FileChannel file) throws IOException {
+        return new MediaVariant(contentType, file.size(), file, null);
+    }
+
+    public static MediaVariant rendered(String contentType, byte[] content) {
+        return new MediaVariant(contentType, content.length, null, content);
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isCached() {
+        return file != null;
+    }
+
+    /**
+     * Writes the image. A cached one is read from its file with {@link FileChannel#transferTo}; the target is a stream,
+     * so the bytes are copied through a buffer.
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (file == null) {
+            outputStream.write(content);
+            return;
+        }
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        long position = 0;
+        while (position < size) {
+            position += file.transferTo(position, size - position, target);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
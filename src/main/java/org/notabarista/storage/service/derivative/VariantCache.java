@@ -0,0 +1,246 @@
+package org.notabarista.storage.service.derivative;
+
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.ObjectKeys;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Rendered image variants on local disk, one file each, bounded in total size. The least recently served variants are
+ * evicted first; variants older than their time to live are rendered again so a replaced original shows up eventually.
+ * The index is rebuilt from the directory on start, oldest files first.
+ */
+@Log4j2
+class VariantCache {
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxSize;
+    private final long ttlMillis;
+    private final StorageMetrics storageMetrics;
+    // access ordered, the eldest entry is the least recently served
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    VariantCache(Path directory, long maxSize, Duration ttl, StorageMetrics storageMetrics) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.storageMetrics = storageMetrics;
+        load();
+        storageMetrics.gaugeVariantCacheSize(this, VariantCache::size);
+    }
+
+    /**
+     * The file name of a variant: the SHA-256 of the object key, so any key maps to a flat and safe name, followed by
+     * the bounds and the format of the variant.
+     */
+    static String name(String objectKey, int width, int height, String format) {
+        return prefix(objectKey) + width + "x" + height + "." + format;
+    }
+
+    /**
+     * The start of the file names of all variants of an object.
+     */
+    static String prefix(String objectKey) {
+        byte[] digest = ObjectKeys.newContentDigest().digest(objectKey.getBytes(StandardCharsets.UTF_8));
+        return ObjectKeys.contentAddressed(digest, null) + "_";
+    }
+
+    /**
+     * Opens a cached variant, or returns {@code null} if it is not cached or has expired.
+     */
+    MediaVariant open(String name, String contentType) throws IOException {
+        Entry entry;
+        boolean expired = false;
+        synchronized (this) {
+            entry = entries.get(name);
+            if (entry != null && System.currentTimeMillis() - entry.createdAt > ttlMillis) {
+                remove(name, entry);
+                expired = true;
+            }
+        }
+        if (expired) {
+            delete(name);
+        }
+        if (entry == null || expired) {
+            storageMetrics.recordVariantCacheLookup(false);
+            return null;
+        }
+
+        try {
+            MediaVariant variant = MediaVariant.cached(contentType, FileChannel.open(directory.resolve(name), StandardOpenOption.READ));
+            storageMetrics.recordVariantCacheLookup(true);
+            return variant;
+        } catch (NoSuchFileException e) {
+            // deleted behind the index, e.g. by an eviction racing a newer copy
+            synchronized (this) {
+                remove(name, entry);
+            }
+            storageMetrics.recordVariantCacheLookup(false);
+            return null;
+        }
+    }
+
+    /**
+     * Caches a rendered variant, evicting the least recently served ones beyond the size bound. Variants larger than
+     * the whole cache are not cached.
+     */
+    void put(String name, byte[] content) throws IOException {
+        if (content.length > maxSize) {
+            return;
+        }
+        Path temporary = directory.resolve(name + "." + UUID.randomUUID() + TEMPORARY_SUFFIX);
+        Files.write(temporary, content);
+        Files.move(temporary, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Entry previous = entries.put(name, new Entry(content.length, System.currentTimeMillis()));
+            size += content.length - (previous != null ? previous.size : 0);
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                Map.Entry<String, Entry> entry = eldest.next();
+                if (entry.getKey().equals(name)) {
+                    continue;
+                }
+                size -= entry.getValue().size;
+                eldest.remove();
+                evicted.add(entry.getKey());
+            }
+        }
+        for (String evictedName : evicted) {
+            storageMetrics.recordVariantCacheEviction();
+            delete(evictedName);
+        }
+    }
+
+    /**
+     * Removes every cached variant of an object.
+     */
+    void invalidate(String objectKey) {
+        String prefix = prefix(objectKey);
+        List<String> invalidated = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    size -= entry.getValue().size;
+                    iterator.remove();
+                    invalidated.add(entry.getKey());
+                }
+            }
+        }
+        for (String name : invalidated) {
+            delete(name);
+        }
+    }
+
+    /**
+     * Removes a cached variant, if it is cached.
+     */
+    void remove(String name) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(name);
+            if (entry == null) {
+                return;
+            }
+            remove(name, entry);
+        }
+        delete(name);
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private void load() throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.list(directory)) {
+            files = paths.collect(Collectors.toList());
+        }
+        List<Path> variants = new ArrayList<>(files.size());
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                Files.deleteIfExists(file);
+            } else {
+                variants.add(file);
+            }
+        }
+        variants.sort(Comparator.comparingLong(VariantCache::lastModified));
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            for (Path file : variants) {
+                long fileSize = Files.size(file);
+                entries.put(file.getFileName().toString(), new Entry(fileSize, lastModified(file)));
+                size += fileSize;
+            }
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                Map.Entry<String, Entry> entry = eldest.next();
+                size -= entry.getValue().size;
+                eldest.remove();
+                evicted.add(entry.getKey());
+            }
+        }
+        for (String evictedName : evicted) {
+            delete(evictedName);
+        }
+        log.info("Loaded {} cached image variants of {} bytes from '{}'", entries.size(), size, directory);
+    }
+
+    private void remove(String name, Entry entry) {
+        if (entries.remove(name, entry)) {
+            size -= entry.size;
+        }
+    }
+
+    private void delete(String name) {
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException e) {
+            log.error("Could not delete cached image variant '{}': {}", name, e.getMessage());
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static final class Entry {
+
+        private final long size;
+        private final long createdAt;
+
+        private Entry(long size, long createdAt) {
+            this.size = size;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.notabarista.storage.service.derivative;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.ObjectStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Images scaled on request to fit a box and encoded in a chosen format, for sizes not worth precomputing as
+ * derivatives. Requested bounds are rounded up to the configured dimensions, so an object has a small, fixed number of
+ * variants however many sizes clients ask for. Rendered variants are kept in a size-bounded {@link VariantCache} on
+ * local disk; concurrent requests for a variant that is not cached share a single render on the bounded
+ * {@code mediaDerivativeExecutor}.
+ */
+@Service
+@Log4j2
+public class VariantService {
+
+    private static final int NOT_FOUND = 404;
+
+    private final AmazonS3 bucket;
+    private final String mediaStorageBucketName;
+    private final ObjectStore store;
+    private final StorageMetrics storageMetrics;
+    private final ExecutorService renderExecutor;
+    private final Path directory;
+    private final long maxCacheSize;
+    private final Duration ttl;
+    private final int[] dimensions;
+    private final float jpegQuality;
+    private final Map<String, CompletableFuture<byte[]>> renders = new ConcurrentHashMap<>();
+
+    private VariantCache cache;
+
+    public VariantService(AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, ObjectStore store, StorageMetrics storageMetrics,
+                          @Qualifier("mediaDerivativeExecutor") ExecutorService renderExecutor,
+                          @Value("${storage.variants.cache.directory:${java.io.tmpdir}/be-storage-service/variants}") Path directory,
+                          @Value("${storage.variants.cache.max-size:1GB}") DataSize maxCacheSize,
+                          @Value("${storage.variants.cache.ttl:1d}") Duration ttl,
+                          @Value("${storage.variants.dimensions:64,160,320,480,640,800,1080,1440,2048}") int[] dimensions,
+                          @Value("${storage.derivatives.jpeg-quality:0.85}") float jpegQuality) {
+        this.bucket = bucket;
+        this.mediaStorageBucketName = mediaStorageBucketName;
+        this.store = store;
+        this.storageMetrics = storageMetrics;
+        this.renderExecutor = renderExecutor;
+        this.directory = directory;
+        this.maxCacheSize = maxCacheSize.toBytes();
+        this.ttl = ttl;
+        this.dimensions = Arrays.stream(dimensions).filter(dimension -> dimension > 0).sorted().distinct().toArray();
+        this.jpegQuality = jpegQuality;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        cache = new VariantCache(directory, maxCacheSize, ttl, storageMetrics);
+    }
+
+    /**
+     * The image stored under {@code objectKey} scaled down to fit {@code width} by {@code height} pixels, each rounded
+     * up to the next configured dimension and either of which may be {@code null} to leave that side unbounded, and
+     * encoded as {@code format}: {@code jpeg} or {@code png}, by default the format derivatives of the original get.
+     * Images are never scaled up.
+     */
+    public CompletableFuture<MediaVariant> getAsync(String objectKey, Integer width, Integer height, String format) throws IOException {
+        int maxWidth = checkDimension("w", width);
+        int maxHeight = checkDimension("h", height);
+        if (maxWidth == 0 && maxHeight == 0) {
+            throw new MediaStorageException("At least one of w and h is required");
+        }
+        String imageFormat = imageFormat(objectKey, format);
+        String contentType = ImageResizer.PNG.equals(imageFormat) ? "image/png" : "image/jpeg";
+
+        String name = VariantCache.name(objectKey, maxWidth, maxHeight, imageFormat);
+        MediaVariant cached = cache.open(name, contentType);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<byte[]> render = new CompletableFuture<>();
+        CompletableFuture<byte[]> shared = renders.putIfAbsent(name, render);
+        if (shared == null) {
+            shared = render;
+            try {
+                renderExecutor.execute(() -> {
+                    try {
+                        byte[] content = render(objectKey, maxWidth, maxHeight, imageFormat);
+                        cache(name, content);
+                        if (!renders.remove(name, render)) {
+                            // the original was deleted while it was rendered
+                            cache.remove(name);
+                        }
+                        render.complete(content);
+                    } catch (Throwable e) {
+                        renders.remove(name, render);
+                        render.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                renders.remove(name, render);
+                throw e;
+            }
+        }
+        return shared.thenApply(content -> MediaVariant.rendered(contentType, content));
+    }
+
+    /**
+     * Drops the cached variants of deleted originals, so an object stored again under the same key is rendered anew.
+     * Variants cached by other instances expire with their time to live.
+     */
+    public void invalidate(List<String> mediaURLs) {
+        for (String mediaURL : mediaURLs) {
+            String objectKey;
+            try {
+                objectKey = store.objectKey(mediaURL);
+            } catch (MalformedURLException e) {
+                continue;
+            }
+            String prefix = VariantCache.prefix(objectKey);
+            // renders in flight remove what they cache once they are no longer registered
+            renders.keySet().removeIf(name -> name.startsWith(prefix));
+            cache.invalidate(objectKey);
+        }
+    }
+
+    private byte[] render(String objectKey, int maxWidth, int maxHeight, String imageFormat) {
+        try {
+            return storageMetrics.timeVariantRender(() -> {
+                BufferedImage image;
+                try (S3Object original = storageMetrics.timeS3("getObject", () -> bucket.getObject(mediaStorageBucketName, objectKey));
+                     InputStream inputStream = original.getObjectContent()) {
+                    image = ImageResizer.decode(inputStream, maxWidth, maxHeight);
+                } catch (AmazonS3Exception e) {
+                    if (e.getStatusCode() == NOT_FOUND) {
+                        throw new MediaNotFoundException("Media file not found: " + objectKey);
+                    }
+                    throw e;
+                }
+                if (image == null) {
+                    throw new MediaStorageException("Unsupported image format: " + objectKey);
+                }
+                return ImageResizer.encode(ImageResizer.fit(image, maxWidth, maxHeight), imageFormat, jpegQuality);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void cache(String name, byte[] content) {
+        try {
+            cache.put(name, content);
+        } catch (IOException e) {
+            log.error("Could not cache image variant '{}': {}", name, e.getMessage());
+        }
+    }
+
+    private int checkDimension(String name, Integer dimension) {
+        if (dimension == null) {
+            return 0;
+        }
+        int maxDimension = dimensions[dimensions.length - 1];
+        if (dimension <= 0 || dimension > maxDimension) {
+            throw new MediaStorageException(name + " must be between 1 and " + maxDimension);
+        }
+        for (int configured : dimensions) {
+            if (configured >= dimension) {
+                return configured;
+            }
+        }
+        return maxDimension;
+    }
+
+    private static String imageFormat(String objectKey, String format) {
+        if (format == null) {
+            return ObjectKeys.isLossless(objectKey) ? ImageResizer.PNG : ImageResizer.JPEG;
+        }
+        switch (format.toLowerCase(Locale.ROOT)) {
+            case "jpg":
+            case "jpeg":
+                return ImageResizer.JPEG;
+            case "png":
+                return ImageResizer.PNG;
+            default:
+                throw new MediaStorageException("Unsupported image format: " + format);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.notabarista.storage.service.download;
+
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ObjectStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads of stored objects with conditional and partial {@code GET}: {@code If-None-Match} and
+ * {@code If-Modified-Since} are answered from the object's attributes alone, and a single {@code Range}, guarded by
+ * {@code If-Range}, is passed on to the engine's {@link ObjectStore} so only the requested bytes are read. How the
+ * bytes are read, and what the ETag is made of, is up to the store.
+ */
+@Service
+@Log4j2
+public class DownloadService {
+
+    private final ObjectStore store;
+    private final IoExecutor ioExecutor;
+
+    public DownloadService(ObjectStore store, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor) {
+        this.store = store;
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * Looks up the object and decides how to answer a {@code GET} with the given request headers. Only the attributes
+     * are read; the body, if any, follows with {@link #transfer}.
+     */
+    public ObjectDownload prepare(String objectKey, HttpHeaders requestHeaders) {
+        ObjectAttributes attributes;
+        try {
+            attributes = store.head(objectKey);
+        } catch (IOException e) {
+            log.error("Could not read media file '{}': {}", objectKey, e.getMessage());
+            throw new MediaStorageException("Could not read media file: " + objectKey);
+        }
+        return prepare(objectKey, requestHeaders, attributes.getETag(), attributes.getLastModified(), attributes.getContentType(),
+                attributes.getLength());
+    }
+
+    private static ObjectDownload prepare(String objectKey, HttpHeaders requestHeaders, String eTag, long lastModified, String contentType,
+                                          long length) {
+        if (isNotModified(requestHeaders, eTag, lastModified)) {
+            return new ObjectDownload(HttpStatus.NOT_MODIFIED, objectKey, eTag, lastModified, contentType, length, 0, length - 1);
+        }
+
+        HttpRange range = range(requestHeaders, eTag, lastModified);
+        if (range == null) {
+            return new ObjectDownload(HttpStatus.OK, objectKey, eTag, lastModified, contentType, length, 0, length - 1);
+        }
+        long start = range.getRangeStart(length);
+        long end = range.getRangeEnd(length);
+        if (start >= length) {
+            return new ObjectDownload(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, objectKey, eTag, lastModified, contentType, length, 0, length - 1);
+        }
+        return new ObjectDownload(HttpStatus.PARTIAL_CONTENT, objectKey, eTag, lastModified, contentType, length, start, end);
+    }
+
+    public CompletableFuture<ObjectDownload> prepareAsync(String objectKey, HttpHeaders requestHeaders) {
+        return ioExecutor.supply(() -> prepare(objectKey, requestHeaders));
+    }
+
+    /**
+     * Streams the bytes of a prepared download. The read is bound to the ETag the download was prepared with, so an
+     * object replaced in between fails the transfer instead of mixing two versions under one ETag.
+     */
+    public void transfer(ObjectDownload download, OutputStream outputStream) throws IOException {
+        if (!store.transfer(download, outputStream)) {
+            throw new MediaStorageException("Media file changed while reading: " + download.getObjectKey());
+        }
+    }
+
+    /**
+     * {@code If-None-Match} takes precedence over {@code If-Modified-Since}, which has a resolution of seconds.
+     */
+    private static boolean isNotModified(HttpHeaders requestHeaders, String eTag, long lastModified) {
+        List<String> ifNoneMatch = requestHeaders.getIfNoneMatch();
+        if (!ifNoneMatch.isEmpty()) {
+            for (String candidate : ifNoneMatch) {
+                if ("*".equals(candidate.trim()) || (eTag != null && eTag.equals(unquote(candidate)))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = requestHeaders.getIfModifiedSince();
+        return ifModifiedSince >= 0 && lastModified >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * The requested byte range, or {@code null} for the whole object: without a {@code Range}, with an invalid one,
+     * with several ranges or when {@code If-Range} no longer matches the object.
+     */
+    private static HttpRange range(HttpHeaders requestHeaders, String eTag, long lastModified) {
+        List<HttpRange> ranges;
+        try {
+            ranges = requestHeaders.getRange();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (ranges.size() != 1) {
+            return null;
+        }
+
+        String ifRange = requestHeaders.getFirst(HttpHeaders.IF_RANGE);
+        if (ifRange != null) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                // If-Range needs a strong match, a weak ETag never matches
+                if (ifRange.startsWith("W/") || eTag == null || !eTag.equals(unquote(ifRange))) {
+                    return null;
+                }
+            } else {
+                long date;
+                try {
+                    date = requestHeaders.getFirstDate(HttpHeaders.IF_RANGE);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                if (lastModified < 0 || lastModified / 1000 != date / 1000) {
+                    return null;
+                }
+            }
+        }
+        return ranges.get(0);
+    }
+
+    private static String unquote(String eTag) {
+        String value = eTag.trim();
+        if (value.startsWith("W/")) {
+            value = value.substring(2);
+        }
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
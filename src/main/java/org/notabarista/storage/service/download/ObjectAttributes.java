@@ -0,0 +1,15 @@
+package org.notabarista.storage.service.download;
+
+import lombok.Value;
+
+/**
+ * What a read of a stored object is decided on before any of its bytes are read. {@code lastModified} is {@code -1}
+ * if the store does not know it.
+ */
+@Value
+public class ObjectAttributes {
+    String eTag;
+    long lastModified;
+    String contentType;
+    long length;
+}
@@ -0,0 +1,42 @@
+package org.notabarista.storage.service.download;
+
+import lombok.Value;
+import org.springframework.http.HttpStatus;
+
+/**
+ * How a read of a stored object is answered: in full, as one byte range, as not modified or as an unsatisfiable
+ * range. {@code rangeStart} and {@code rangeEnd} are inclusive and span the whole object unless the status is
+ * {@link HttpStatus#PARTIAL_CONTENT}.
+ */
+@Value
+public class ObjectDownload {
+    HttpStatus status;
+    String objectKey;
+    String eTag;
+    long lastModified;
+    String contentType;
+    long totalLength;
+    long rangeStart;
+    long rangeEnd;
+
+    public boolean hasBody() {
+        return status == HttpStatus.OK || status == HttpStatus.PARTIAL_CONTENT;
+    }
+
+    public long getContentLength() {
+        return rangeEnd - rangeStart + 1;
+    }
+
+    /**
+     * The {@code Content-Range} header of a partial or unsatisfiable response, {@code null} otherwise.
+     */
+    public String getContentRange() {
+        if (status == HttpStatus.PARTIAL_CONTENT) {
+            return "bytes " + rangeStart + "-" + rangeEnd + "/" + totalLength;
+        }
+        if (status == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE) {
+            return "bytes */" + totalLength;
+        }
+        return null;
+    }
+}
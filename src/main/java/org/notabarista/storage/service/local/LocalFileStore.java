@@ -0,0 +1,418 @@
+package org.notabarista.storage.service.local;
+
+import com.amazonaws.util.SdkHttpUtils;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.ObjectStore;
+import org.notabarista.storage.service.download.ObjectAttributes;
+import org.notabarista.storage.service.download.ObjectDownload;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stored objects as files on local disk, for {@code storage.engine=local}. A key is stored under the hex SHA-256 of
+ * the key, two directory levels deep by its first four digits, so no directory holds more than a small share of the
+ * files whatever the keys look like. The reference markers of {@link ObjectKeys#REFERENCE_PREFIX} are grouped by the
+ * object they refer to instead: they are stored by their encoded item ID in a directory named after the SHA-256 of
+ * the rest of the key, so the markers of an object can be listed. Files are written to a temporary file in the same
+ * file system, forced to disk and renamed into place atomically, and the directories the rename and any new
+ * directory went into are forced to disk as well: a reader or a crash never sees half a file, and a stored file does
+ * not vanish with a crash. Temporary files left by a crash are removed on start.
+ * <p>
+ * Media URLs point to {@code GET /media/{key}} of this service under its base URL, with the key encoded like the
+ * bucket's. Reads are answered with an ETag made of the file's modification time and size and a content type that
+ * follows the key's extension.
+ */
+@Component
+@Primary
+@ConditionalOnProperty(name = "storage.engine", havingValue = "local")
+@Log4j2
+public class LocalFileStore implements ObjectStore {
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String MEDIA_PATH = "/media/";
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    private final StorageMetrics storageMetrics;
+    private final IoExecutor ioExecutor;
+    private final Path directory;
+    private final String baseUrl;
+    private final String mediaPath;
+
+    public LocalFileStore(StorageMetrics storageMetrics, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                          @Value("${storage.local.directory:${java.io.tmpdir}/be-storage-service/media}") Path directory,
+                          @Value("${storage.local.base-url:http://localhost:8080}") String baseUrl) {
+        this.storageMetrics = storageMetrics;
+        this.ioExecutor = ioExecutor;
+        this.directory = directory;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.mediaPath = mediaPath(this.baseUrl);
+    }
+
+    /**
+     * A store in {@code directory} that is part of another engine, e.g. the hot tier of {@code storage.engine=tiered}.
+     * Its owner starts it.
+     */
+    public static LocalFileStore tier(Path directory, String baseUrl, StorageMetrics storageMetrics, IoExecutor ioExecutor) {
+        return new LocalFileStore(storageMetrics, ioExecutor, directory, baseUrl);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> temporaries;
+        try (Stream<Path> paths = Files.walk(directory, 3)) {
+            temporaries = paths.filter(path -> path.getFileName().toString().endsWith(TEMPORARY_SUFFIX)).collect(Collectors.toList());
+        }
+        for (Path temporary : temporaries) {
+            Files.deleteIfExists(temporary);
+        }
+        log.info("Storing media files in '{}', removed {} unfinished files", directory, temporaries.size());
+    }
+
+    @Override
+    public String resourceUrl(String objectKey) {
+        return baseUrl + MEDIA_PATH + SdkHttpUtils.urlEncode(objectKey, true);
+    }
+
+    @Override
+    public String objectKey(String mediaURL) throws MalformedURLException {
+        String path = ObjectKeys.fromMediaURL(mediaURL);
+        if (!path.startsWith(mediaPath)) {
+            throw new MalformedURLException("Not a media URL of this service: " + mediaURL);
+        }
+        return path.substring(mediaPath.length());
+    }
+
+    /**
+     * The decoded path of the media URLs under {@code baseUrl} in front of the key, without a leading slash like the
+     * paths {@link ObjectKeys#fromMediaURL} returns.
+     */
+    private static String mediaPath(String baseUrl) {
+        try {
+            return ObjectKeys.fromMediaURL(baseUrl + MEDIA_PATH);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid base URL: " + baseUrl, e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(String objectKey) {
+        return ioExecutor.supply(() -> exists(objectKey));
+    }
+
+    public boolean exists(String objectKey) {
+        return Files.isRegularFile(path(objectKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String objectKey, MultipartFile file, String itemID) {
+        return ioExecutor.supply(() -> {
+            try (InputStream inputStream = file.getInputStream()) {
+                storageMetrics.recordUpload(write(objectKey, inputStream));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> touchAsync(String objectKey) {
+        return ioExecutor.supply(() -> {
+            write(objectKey, InputStream.nullInputStream());
+            return null;
+        });
+    }
+
+    /**
+     * Writes {@code content} to a temporary file and forces it to disk. The content is a stream, so its bytes pass
+     * through a buffer on the heap on their way to the file.
+     *
+     * @return the temporary file, to be {@link #commit committed} or {@link #discard discarded}
+     */
+    @Override
+    public Path stage(InputStream content) throws IOException {
+        Path staged = directory.resolve(UUID.randomUUID() + TEMPORARY_SUFFIX);
+        try (ReadableByteChannel source = Channels.newChannel(content);
+             FileChannel target = FileChannel.open(staged, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long transferred;
+            while ((transferred = target.transferFrom(source, position, TRANSFER_CHUNK)) > 0) {
+                position += transferred;
+            }
+            target.force(true);
+        } catch (IOException | RuntimeException e) {
+            discard(staged);
+            throw e;
+        }
+        return staged;
+    }
+
+    /**
+     * Moves a staged file to the place of {@code objectKey} in one atomic rename and forces the directory entry to
+     * disk.
+     *
+     * @param replace whether a file already stored under the key is replaced; if not, the staged file is discarded.
+     *                Content-addressed keys are not replaced, a racing writer would only store the same bytes again
+     * @return whether the staged file was stored
+     */
+    public boolean commit(Path staged, String objectKey, boolean replace) throws IOException {
+        Path target = path(objectKey);
+        try {
+            createDirectories(target.getParent());
+            if (!replace && Files.exists(target)) {
+                discard(staged);
+                return false;
+            }
+            Files.move(staged, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            force(target.getParent());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            discard(staged);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> commitAsync(Path staged, String objectKey, String contentType, String itemID, boolean replace) {
+        return ioExecutor.supply(() -> {
+            long size = Files.size(staged);
+            boolean created = commit(staged, objectKey, replace);
+            if (created) {
+                storageMetrics.recordUpload(size);
+            }
+            return created;
+        });
+    }
+
+    /**
+     * Stores {@code content} under {@code objectKey}, replacing what was stored under it before.
+     *
+     * @return the number of bytes stored
+     */
+    public long write(String objectKey, InputStream content) throws IOException {
+        Path staged = stage(content);
+        long size = Files.size(staged);
+        commit(staged, objectKey, true);
+        return size;
+    }
+
+    /**
+     * Creates the missing directories of {@code directory} one by one, forcing the entry of each new one in its parent
+     * to disk.
+     */
+    private void createDirectories(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        createDirectories(directory.getParent());
+        try {
+            Files.createDirectory(directory);
+        } catch (FileAlreadyExistsException e) {
+            // created by a concurrent commit, which may not have forced it yet
+        }
+        force(directory.getParent());
+    }
+
+    /**
+     * Forces the entries of a directory to disk, where the platform can open a directory for that.
+     */
+    private static void force(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // directories cannot be opened on Windows, there is nothing to force
+        }
+    }
+
+    public void discard(Path staged) {
+        try {
+            Files.deleteIfExists(staged);
+        } catch (IOException e) {
+            log.warn("Could not remove unfinished media file '{}': {}", staged, e.getMessage());
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String prefix) {
+        return ioExecutor.supply(() -> list(prefix));
+    }
+
+    /**
+     * The reference markers stored under {@code prefix}, the {@link ObjectKeys#references} of an object: only markers
+     * are grouped so they can be listed.
+     */
+    public List<String> list(String prefix) throws IOException {
+        if (!prefix.startsWith(ObjectKeys.REFERENCE_PREFIX) || !prefix.endsWith("/")) {
+            throw new IllegalArgumentException("Not the prefix of reference markers: " + prefix);
+        }
+        Path group = group(prefix.substring(0, prefix.length() - 1));
+        if (!Files.isDirectory(group)) {
+            return List.of();
+        }
+        List<String> objectKeys = new ArrayList<>();
+        try (Stream<Path> files = Files.list(group)) {
+            files.map(file -> file.getFileName().toString())
+                 .filter(name -> !name.endsWith(TEMPORARY_SUFFIX))
+                 .forEach(name -> objectKeys.add(prefix + SdkHttpUtils.urlDecode(name)));
+        }
+        return objectKeys;
+    }
+
+    /**
+     * Deletes the files stored under the keys. All keys are checked first, so an unknown one fails the request before
+     * anything is deleted.
+     */
+    @Override
+    public CompletableFuture<Void> deleteAsync(List<String> objectKeys) {
+        return ioExecutor.supply(() -> {
+            for (String objectKey : objectKeys) {
+                if (!exists(objectKey)) {
+                    throw new MediaStorageException("Unknown media file: " + objectKey);
+                }
+            }
+            for (String objectKey : objectKeys) {
+                try {
+                    delete(objectKey);
+                } catch (IOException e) {
+                    log.error("Could not delete media file '{}': {}", objectKey, e.getMessage());
+                    throw new MediaStorageException("Could not delete media file: " + objectKey);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return whether a file was stored under the key
+     */
+    public boolean delete(String objectKey) throws IOException {
+        return Files.deleteIfExists(path(objectKey));
+    }
+
+    @Override
+    public ObjectAttributes head(String objectKey) throws IOException {
+        BasicFileAttributes attributes = attributes(objectKey);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String contentType = MediaTypeFactory.getMediaType(objectKey).orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+        return new ObjectAttributes(eTag(lastModified, attributes.size()), lastModified, contentType, attributes.size());
+    }
+
+    /**
+     * Sends the bytes of a prepared download with {@link #transfer(FileChannel, long, long, OutputStream)}.
+     */
+    @Override
+    public boolean transfer(ObjectDownload download, OutputStream outputStream) throws IOException {
+        long transferred = 0;
+        try (FileChannel file = open(download.getObjectKey())) {
+            BasicFileAttributes attributes = attributes(download.getObjectKey());
+            if (!eTag(attributes.lastModifiedTime().toMillis(), file.size()).equals(download.getETag())) {
+                return false;
+            }
+            transferred = transfer(file, download.getRangeStart(), download.getContentLength(), outputStream);
+            return true;
+        } finally {
+            storageMetrics.recordDownload(transferred);
+        }
+    }
+
+    private static String eTag(long lastModified, long size) {
+        return Long.toHexString(lastModified) + "-" + Long.toHexString(size);
+    }
+
+    public BasicFileAttributes attributes(String objectKey) throws IOException {
+        try {
+            return Files.readAttributes(path(objectKey), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new MediaNotFoundException("Media file not found: " + objectKey);
+        }
+    }
+
+    /**
+     * Opens the file stored under a key. An open file keeps the version it was opened with even if the key is
+     * replaced or deleted meanwhile.
+     */
+    public FileChannel open(String objectKey) throws IOException {
+        try {
+            return FileChannel.open(path(objectKey), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new MediaNotFoundException("Media file not found: " + objectKey);
+        }
+    }
+
+    /**
+     * Writes {@code length} bytes of an open file from {@code position} on with {@link FileChannel#transferTo}. The
+     * target is a stream, so the bytes are copied through a buffer rather than in the kernel.
+     *
+     * @return the number of bytes written, less than {@code length} if the file is shorter
+     */
+    public static long transfer(FileChannel file, long position, long length, OutputStream outputStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        long transferred = 0;
+        while (transferred < length) {
+            long written = file.transferTo(position + transferred, length - transferred, target);
+            if (written <= 0) {
+                break;
+            }
+            transferred += written;
+        }
+        return transferred;
+    }
+
+    /**
+     * The file a key is stored in, whether or not it exists.
+     */
+    public Path path(String objectKey) {
+        int slash = objectKey.lastIndexOf('/');
+        if (objectKey.startsWith(ObjectKeys.REFERENCE_PREFIX)) {
+            String segment = SdkHttpUtils.urlEncode(objectKey.substring(slash + 1), false);
+            // "." and ".." name no file of their own
+            return group(objectKey.substring(0, slash)).resolve(segment.startsWith(".") ? "%2E" + segment.substring(1) : segment);
+        }
+        return hashed(objectKey);
+    }
+
+    private Path group(String prefix) {
+        return hashed(prefix + "/");
+    }
+
+    private Path hashed(String name) {
+        byte[] digest = ObjectKeys.newContentDigest().digest(name.getBytes(StandardCharsets.UTF_8));
+        String hex = ObjectKeys.contentAddressed(digest, null);
+        return directory.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve(hex);
+    }
+}
@@ -0,0 +1,176 @@
+package org.notabarista.storage.service.nio;
+
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.ObjectStore;
+import org.notabarista.storage.service.bucket.BucketStore;
+import org.notabarista.storage.service.download.ObjectAttributes;
+import org.notabarista.storage.service.download.ObjectDownload;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The bucket as an {@link ObjectStore} on the non-blocking {@link NioS3Client}, for {@code storage.engine=nio}: no
+ * thread waits for an upload or a delete. Every file is sent with a single {@code PUT}, there are no multipart
+ * uploads. Reads go through the {@link BucketStore}, they are streamed to the client by a thread anyway.
+ */
+@Component
+@Primary
+@ConditionalOnProperty(name = "storage.engine", havingValue = "nio")
+@Log4j2
+public class NioBucketStore implements ObjectStore {
+
+    private static final int MAX_DELETE_BATCH_SIZE = 1000;
+
+    private final NioS3Client s3;
+    private final BucketStore reads;
+    private final StorageMetrics storageMetrics;
+    private final int deleteBatchSize;
+
+    public NioBucketStore(NioS3Client s3, BucketStore reads, StorageMetrics storageMetrics,
+                          @Value("${filebase.delete.batch-size:1000}") int deleteBatchSize) {
+        this.s3 = s3;
+        this.reads = reads;
+        this.storageMetrics = storageMetrics;
+        this.deleteBatchSize = Math.max(1, Math.min(MAX_DELETE_BATCH_SIZE, deleteBatchSize));
+    }
+
+    @Override
+    public String resourceUrl(String objectKey) {
+        return storageMetrics.timeS3("getResourceUrl", () -> s3.getResourceUrl(objectKey));
+    }
+
+    @Override
+    public String objectKey(String mediaURL) throws MalformedURLException {
+        return ObjectKeys.fromMediaURL(mediaURL);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(String objectKey) {
+        return storageMetrics.timeS3Async("getObjectMetadata", () -> s3.doesObjectExist(objectKey));
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String objectKey, MultipartFile file, String itemID) {
+        return put(objectKey, file.getContentType(), itemID, file.getSize(), body(file));
+    }
+
+    @Override
+    public CompletableFuture<Void> touchAsync(String objectKey) {
+        return storageMetrics.timeS3Async("putObject", () -> s3.putObject(objectKey, new ObjectMetadata(), BodyPublishers.noBody()));
+    }
+
+    @Override
+    public Path stage(InputStream content) throws IOException {
+        Path staged = Files.createTempFile("media-", ".part");
+        try (OutputStream outputStream = Files.newOutputStream(staged)) {
+            content.transferTo(outputStream);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+        return staged;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> commitAsync(Path staged, String objectKey, String contentType, String itemID, boolean replace) {
+        CompletableFuture<Boolean> exists = replace ? CompletableFuture.completedFuture(false) : existsAsync(objectKey);
+        return exists.thenCompose(found -> {
+                         if (found) {
+                             return CompletableFuture.completedFuture(false);
+                         }
+                         try {
+                             return put(objectKey, contentType, itemID, Files.size(staged), BodyPublishers.ofFile(staged))
+                                     .thenApply(ignored -> true);
+                         } catch (IOException e) {
+                             throw new UncheckedIOException(e);
+                         }
+                     })
+                     .whenComplete((created, failure) -> {
+                         try {
+                             Files.deleteIfExists(staged);
+                         } catch (IOException e) {
+                             log.warn("Could not remove spooled media file '{}': {}", staged, e.getMessage());
+                         }
+                     });
+    }
+
+    private CompletableFuture<Void> put(String objectKey, String contentType, String itemID, long size, BodyPublisher body) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setUserMetadata(Map.of("itemID", itemID));
+        objectMetadata.setContentType(contentType);
+        return storageMetrics.timeS3Async("putObject", () -> s3.putObject(objectKey, objectMetadata, body))
+                             .thenRun(() -> storageMetrics.recordUpload(size));
+    }
+
+    private static BodyPublisher body(MultipartFile file) {
+        if (file.getSize() == 0) {
+            return BodyPublishers.noBody();
+        }
+        return BodyPublishers.fromPublisher(BodyPublishers.ofInputStream(() -> {
+            try {
+                return file.getInputStream();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }), file.getSize());
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String prefix) {
+        return storageMetrics.timeS3Async("listObjectsV2", () -> s3.listObjects(prefix));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(List<String> objectKeys) {
+        List<CompletableFuture<List<DeleteError>>> batches = new ArrayList<>();
+        for (int from = 0; from < objectKeys.size(); from += deleteBatchSize) {
+            List<String> batch = objectKeys.subList(from, Math.min(from + deleteBatchSize, objectKeys.size()));
+            log.info("Deleting {} objects", batch.size());
+            batches.add(storageMetrics.timeS3Async("deleteObjects", () -> s3.deleteObjects(batch)));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0]))
+                                .thenApply(ignored -> {
+                                    List<DeleteError> deleteErrors = new ArrayList<>();
+                                    batches.forEach(batch -> deleteErrors.addAll(batch.join()));
+                                    if (!deleteErrors.isEmpty()) {
+                                        DeleteError deleteError = deleteErrors.get(0);
+                                        log.error("Could not delete {} of {} objects, first error: {} {}", deleteErrors.size(), objectKeys.size(),
+                                                deleteError.getCode(), deleteError.getMessage());
+                                        throw new MediaStorageException("Could not delete media file: " + deleteError.getKey());
+                                    }
+                                    return null;
+                                });
+    }
+
+    @Override
+    public ObjectAttributes head(String objectKey) throws IOException {
+        return reads.head(objectKey);
+    }
+
+    @Override
+    public boolean transfer(ObjectDownload download, OutputStream outputStream) throws IOException {
+        return reads.transfer(download, outputStream);
+    }
+}
@@ -0,0 +1,462 @@
+package org.notabarista.storage.service.nio;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.SignableRequest;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.SdkHttpUtils;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.resilience.CircuitBreaker;
+import org.notabarista.storage.service.resilience.ResilientS3;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking client of the S3 API of one bucket, built on the JDK's HTTP client: requests are written and responses
+ * read by its selector thread, so a transfer in flight does not hold a thread. Requests are signed by the SigV4
+ * signer of the AWS SDK, with unsigned payloads, and object URLs are built by the SDK client, so they are the same
+ * URLs the blocking client uses. Error responses fail the returned future with the {@link AmazonS3Exception} the SDK
+ * client would throw.
+ * <p>
+ * Calls are guarded like those of {@link ResilientS3}: a circuit breaker, shared with the blocking client, refuses
+ * calls while too many recent ones failed, and a bulkhead caps the calls in flight. Neither waits, a refused call fails
+ * right away with a {@link StorageUnavailableException}. Server errors, throttling and network errors are retried
+ * {@code maxRetries} times with exponential backoff and jitter, like the SDK client retries them; the circuit breaker
+ * counts the outcome of a call after its retries. Without {@code filebase.resilience.enabled} there is no circuit
+ * breaker and no bulkhead, calls are only retried.
+ * <p>
+ * Completion stages run on the few threads of the client: they must not block.
+ */
+@Log4j2
+public class NioS3Client {
+
+    private static final String SERVICE_NAME = "Amazon S3";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String CONTENT_SHA256_HEADER = "x-amz-content-sha256";
+    private static final String USER_METADATA_PREFIX = "x-amz-meta-";
+    /** set by the HTTP client itself */
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("host", "content-length", "connection", "expect");
+
+    private final AmazonS3Client s3Client;
+    private final String bucketName;
+    private final AWSCredentialsProvider credentialsProvider;
+    private final AWS4Signer signer;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+    private final Duration readTimeout;
+    private final Duration deleteTimeout;
+    private final Duration writeTimeout;
+    private final int maxRetries;
+    private final long retryDelayMillis;
+    private final Semaphore bulkhead;
+    private final CircuitBreaker circuitBreaker;
+    private final StorageMetrics storageMetrics;
+
+    public NioS3Client(AmazonS3Client s3Client, String bucketName, String region, AWSCredentialsProvider credentialsProvider,
+                       int threads, Duration connectTimeout, Duration readTimeout, Duration deleteTimeout, Duration writeTimeout,
+                       int maxRetries, Duration retryDelay, int maxConcurrentCalls, CircuitBreaker circuitBreaker,
+                       StorageMetrics storageMetrics) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.credentialsProvider = credentialsProvider;
+        this.signer = new AWS4Signer(false) {
+            @Override
+            protected String calculateContentHash(SignableRequest<?> request) {
+                // bodies are streamed, hashing them first would mean reading them twice
+                return request.getContent() == null ? UNSIGNED_PAYLOAD : super.calculateContentHash(request);
+            }
+        };
+        signer.setServiceName("s3");
+        signer.setRegionName(region);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new CustomizableThreadFactory("filebase-nio-"));
+        this.httpClient = HttpClient.newBuilder()
+                                    .version(HttpClient.Version.HTTP_1_1)
+                                    .connectTimeout(connectTimeout)
+                                    .executor(executor)
+                                    .build();
+        this.readTimeout = readTimeout;
+        this.deleteTimeout = deleteTimeout;
+        this.writeTimeout = writeTimeout;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelayMillis = Math.max(1, retryDelay.toMillis());
+        this.bulkhead = new Semaphore(Math.max(1, maxConcurrentCalls));
+        this.circuitBreaker = circuitBreaker;
+        this.storageMetrics = storageMetrics;
+    }
+
+    /**
+     * The URL of an object, the same {@link AmazonS3Client#getResourceUrl} returns.
+     */
+    public String getResourceUrl(String key) {
+        return s3Client.getResourceUrl(bucketName, key);
+    }
+
+    /**
+     * Uploads an object with a single {@code PUT}. The body must know its length.
+     */
+    public CompletableFuture<Void> putObject(String key, ObjectMetadata metadata, BodyPublisher body) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (metadata.getContentType() != null) {
+            headers.put("Content-Type", metadata.getContentType());
+        }
+        metadata.getUserMetadata().forEach((name, value) -> headers.put(USER_METADATA_PREFIX + name, value));
+        return call("putObject", () -> send(HttpMethodName.PUT, objectUri(key), Map.of(), headers, body, null, writeTimeout)
+                .thenApply(response -> {
+                    checkStatus(response);
+                    return null;
+                }));
+    }
+
+    public CompletableFuture<Boolean> doesObjectExist(String key) {
+        return call("doesObjectExist", () -> send(HttpMethodName.HEAD, objectUri(key), Map.of(), Map.of(), BodyPublishers.noBody(), null, readTimeout)
+                .thenApply(response -> {
+                    if (response.statusCode() == 404) {
+                        return false;
+                    }
+                    checkStatus(response);
+                    return true;
+                }));
+    }
+
+    public CompletableFuture<Void> deleteObject(String key) {
+        return call("deleteObject", () -> send(HttpMethodName.DELETE, objectUri(key), Map.of(), Map.of(), BodyPublishers.noBody(), null, deleteTimeout)
+                .thenApply(response -> {
+                    checkStatus(response);
+                    return null;
+                }));
+    }
+
+    /**
+     * Deletes up to 1000 objects with a single quiet multi-object delete request.
+     *
+     * @return the keys that could not be deleted
+     */
+    public CompletableFuture<List<DeleteError>> deleteObjects(List<String> keys) {
+        StringBuilder xml = new StringBuilder("<Delete><Quiet>true</Quiet>");
+        for (String key : keys) {
+            xml.append("<Object><Key>").append(escapeXml(key)).append("</Key></Object>");
+        }
+        byte[] content = xml.append("</Delete>").toString().getBytes(StandardCharsets.UTF_8);
+        Map<String, String> headers = Map.of("Content-Type", "application/xml", "Content-MD5", md5(content));
+        return call("deleteObjects", () -> send(HttpMethodName.POST, objectUri(""), Collections.singletonMap("delete", null), headers, BodyPublishers.ofByteArray(content), content,
+                deleteTimeout)
+                .thenApply(response -> {
+                    checkStatus(response);
+                    return deleteErrors(response.body());
+                }));
+    }
+
+    /**
+     * Lists the keys under {@code prefix} with {@code ListObjectsV2}, following continuation tokens until the listing
+     * is complete.
+     */
+    public CompletableFuture<List<String>> listObjects(String prefix) {
+        return listObjects(prefix, null, new ArrayList<>());
+    }
+
+    private CompletableFuture<List<String>> listObjects(String prefix, String continuationToken, List<String> keys) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        parameters.put("list-type", "2");
+        parameters.put("prefix", prefix);
+        if (continuationToken != null) {
+            parameters.put("continuation-token", continuationToken);
+        }
+        return call("listObjectsV2", () -> send(HttpMethodName.GET, objectUri(""), parameters, Map.of(), BodyPublishers.noBody(), null, readTimeout)
+                .thenApply(response -> {
+                    checkStatus(response);
+                    return listing(response.body());
+                }))
+                .thenCompose(listing -> {
+                    NodeList contents = listing.getElementsByTagName("Contents");
+                    for (int i = 0; i < contents.getLength(); i++) {
+                        keys.add(childText((Element) contents.item(i), "Key"));
+                    }
+                    String nextToken = childText(listing, "NextContinuationToken");
+                    if ("true".equals(childText(listing, "IsTruncated")) && nextToken != null) {
+                        return listObjects(prefix, nextToken, keys);
+                    }
+                    return CompletableFuture.completedFuture(keys);
+                });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Runs a call through the circuit breaker and the bulkhead and retries its attempts. Each attempt sends a new
+     * request, bodies are subscribed to again.
+     */
+    private <T> CompletableFuture<T> call(String operation, Supplier<CompletableFuture<T>> attempt) {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            storageMetrics.recordS3CircuitRejection(operation);
+            return CompletableFuture.failedFuture(new StorageUnavailableException("Media storage is unavailable, try again later"));
+        }
+        if (!bulkhead.tryAcquire()) {
+            if (circuitBreaker != null) {
+                circuitBreaker.onIgnored();
+            }
+            storageMetrics.recordS3BulkheadRejection(operation);
+            return CompletableFuture.failedFuture(new StorageUnavailableException("Too many concurrent media storage requests, try again later"));
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(operation, attempt, 0, result);
+        return result.whenComplete((value, failure) -> {
+            bulkhead.release();
+            if (circuitBreaker == null) {
+                return;
+            }
+            if (failure == null) {
+                circuitBreaker.onSuccess();
+            } else if (isBackendFailure(failure)) {
+                circuitBreaker.onFailure();
+            } else if (failure instanceof AmazonServiceException) {
+                // the backend answered, the request was wrong
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onIgnored();
+            }
+        });
+    }
+
+    private <T> void attempt(String operation, Supplier<CompletableFuture<T>> attempt, int retry, CompletableFuture<T> result) {
+        CompletableFuture<T> current;
+        try {
+            current = attempt.get();
+        } catch (RuntimeException e) {
+            current = CompletableFuture.failedFuture(e);
+        }
+        current.whenComplete((value, failure) -> {
+            if (failure == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (retry >= maxRetries || !isBackendFailure(cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            // full jitter: a random delay up to the exponential backoff
+            long delay = ThreadLocalRandom.current().nextLong(retryDelayMillis << Math.min(retry, 10)) + 1;
+            log.debug("Retrying S3 {} in {} ms: {}", operation, delay, cause.getMessage());
+            try {
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor)
+                                 .execute(() -> attempt(operation, attempt, retry + 1, result));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * Server errors, throttling and network errors, including request timeouts, count against the health of the
+     * backend and are retried; client errors are not.
+     */
+    private static boolean isBackendFailure(Throwable e) {
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * Signs and sends a request. Parameters without a value, like {@code delete}, are sent as bare names.
+     */
+    private CompletableFuture<HttpResponse<byte[]>> send(HttpMethodName method, URI uri, Map<String, String> parameters, Map<String, String> headers,
+                                                         BodyPublisher body, byte[] signedContent, Duration timeout) {
+        DefaultRequest<Void> request = new DefaultRequest<>(SERVICE_NAME);
+        request.setHttpMethod(method);
+        request.setEndpoint(URI.create(uri.getScheme() + "://" + uri.getRawAuthority()));
+        request.setResourcePath(uri.getPath());
+        StringBuilder query = new StringBuilder();
+        parameters.forEach((name, value) -> {
+            request.addParameter(name, value);
+            query.append(query.length() == 0 ? '?' : '&').append(SdkHttpUtils.urlEncode(name, false));
+            if (value != null) {
+                query.append('=').append(SdkHttpUtils.urlEncode(value, false));
+            }
+        });
+        headers.forEach(request::addHeader);
+        request.addHeader(CONTENT_SHA256_HEADER, "required");
+        if (signedContent != null) {
+            request.setContent(new ByteArrayInputStream(signedContent));
+        }
+        signer.sign(request, credentialsProvider.getCredentials());
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri + query.toString()))
+                                                 .timeout(timeout)
+                                                 .method(method.name(), body);
+        request.getHeaders().forEach((name, value) -> {
+            if (!RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                builder.header(name, value);
+            }
+        });
+        return httpClient.sendAsync(builder.build(), BodyHandlers.ofByteArray());
+    }
+
+    private URI objectUri(String key) {
+        try {
+            return s3Client.getUrl(bucketName, key).toURI();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid object key: " + key, e);
+        }
+    }
+
+    private static void checkStatus(HttpResponse<byte[]> response) {
+        if (response.statusCode() / 100 == 2) {
+            return;
+        }
+        String errorCode = null;
+        String message = "Status Code: " + response.statusCode();
+        byte[] body = response.body();
+        if (body != null && body.length > 0) {
+            try {
+                Element error = parse(body).getDocumentElement();
+                errorCode = childText(error, "Code");
+                String errorMessage = childText(error, "Message");
+                if (errorMessage != null) {
+                    message = errorMessage;
+                }
+            } catch (IOException e) {
+                log.debug("Unreadable S3 error response: {}", e.getMessage());
+            }
+        }
+        AmazonS3Exception exception = new AmazonS3Exception(message);
+        exception.setStatusCode(response.statusCode());
+        exception.setErrorCode(errorCode);
+        exception.setServiceName(SERVICE_NAME);
+        exception.setErrorType(response.statusCode() >= 500 ? AmazonServiceException.ErrorType.Service : AmazonServiceException.ErrorType.Client);
+        response.headers().firstValue("x-amz-request-id").ifPresent(exception::setRequestId);
+        throw exception;
+    }
+
+    private static List<DeleteError> deleteErrors(byte[] body) {
+        if (body == null || body.length == 0) {
+            return List.of();
+        }
+        List<DeleteError> deleteErrors = new ArrayList<>();
+        try {
+            NodeList errors = parse(body).getDocumentElement().getElementsByTagName("Error");
+            for (int i = 0; i < errors.getLength(); i++) {
+                Element error = (Element) errors.item(i);
+                DeleteError deleteError = new DeleteError();
+                deleteError.setKey(childText(error, "Key"));
+                deleteError.setCode(childText(error, "Code"));
+                deleteError.setMessage(childText(error, "Message"));
+                deleteErrors.add(deleteError);
+            }
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Unreadable multi-object delete response: " + e.getMessage());
+        }
+        return deleteErrors;
+    }
+
+    private static Element listing(byte[] body) {
+        try {
+            return parse(body).getDocumentElement();
+        } catch (IOException e) {
+            throw new AmazonS3Exception("Unreadable list objects response: " + e.getMessage());
+        }
+    }
+
+    private static Document parse(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static String childText(Element element, String name) {
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child instanceof Element && name.equals(child.getNodeName())) {
+                return child.getTextContent();
+            }
+        }
+        return null;
+    }
+
+    private static String escapeXml(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (char c : text.toCharArray()) {
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                case '\'':
+                    escaped.append("&apos;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.notabarista.storage.service.resilience;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Concurrency limit that follows the latency of the calls it admits, after the gradient algorithm of Netflix'
+ * concurrency-limits. Two averages of the round-trip time are kept: a long one, the latency without queueing, and a
+ * short one, the latency right now. Their ratio, the gradient, scales the limit down as soon as calls queue up
+ * somewhere behind it and lets it grow by a small queue allowance while they do not:
+ * <pre>
+ *     limit = limit * min(1, tolerance * longRtt / shortRtt) + sqrt(limit)
+ * </pre>
+ * smoothed and bounded by {@code minLimit} and {@code maxLimit}. A call that failed because the backend is overloaded
+ * cuts the limit by {@value #BACKOFF_RATIO} right away. The limit only grows while at least half of it is in use, so an
+ * idle period does not inflate it.
+ * <p>
+ * Calls over the limit are refused rather than queued, see {@link #tryAcquire()}.
+ */
+@Log4j2
+public class AdaptiveLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    // latency slower than the long average by up to this factor is not taken as queueing
+    private static final double TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final int LONG_WINDOW = 600;
+    private static final int SHORT_WINDOW = 10;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double smoothing;
+
+    private double limit;
+    private int inFlight;
+    private long samples;
+    private double longRtt;
+    private double shortRtt;
+
+    public AdaptiveLimiter(String name, int initialLimit, int minLimit, int maxLimit, double smoothing) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.smoothing = Math.max(0.01, Math.min(1, smoothing));
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+    }
+
+    /**
+     * A limiter that admits every call, for when adaptive limiting is disabled.
+     */
+    public static AdaptiveLimiter unlimited(String name) {
+        return new AdaptiveLimiter(name, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+    }
+
+    /**
+     * Whether a call may go ahead. Every admitted call must be followed by {@link #onSuccess(long)},
+     * {@link #onSuccess()}, {@link #onDropped()} or {@link #onIgnored()}, once nothing it started is running anymore.
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * An admitted call completed normally after {@code rttNanos}.
+     */
+    public synchronized void onSuccess(long rttNanos) {
+        sample(rttNanos);
+        release();
+    }
+
+    /**
+     * An admitted call completed normally, its latency was given to {@link #sample(long)} while it ran.
+     */
+    public synchronized void onSuccess() {
+        release();
+    }
+
+    /**
+     * A latency measured on behalf of the admitted calls, e.g. of one of the backend calls they are made of, to adjust
+     * the limit with.
+     */
+    public synchronized void sample(long rttNanos) {
+        if (minLimit == maxLimit || rttNanos <= 0) {
+            return;
+        }
+
+        samples++;
+        longRtt = average(longRtt, rttNanos, LONG_WINDOW);
+        shortRtt = average(shortRtt, rttNanos, SHORT_WINDOW);
+        if (longRtt / shortRtt > 2) {
+            // latency dropped for good, e.g. after a slow period, let the baseline catch up
+            longRtt *= 0.95;
+        }
+        if (inFlight < limit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1, TOLERANCE * longRtt / shortRtt));
+        double target = limit * gradient + Math.sqrt(limit);
+        update(limit * (1 - smoothing) + target * smoothing);
+    }
+
+    /**
+     * An admitted call failed because the backend is overloaded, unavailable or did not answer in time.
+     */
+    public synchronized void onDropped() {
+        release();
+        if (minLimit != maxLimit) {
+            update(limit * BACKOFF_RATIO);
+        }
+    }
+
+    /**
+     * An admitted call ended without telling anything about the backend, e.g. it was refused as a bad request.
+     */
+    public synchronized void onIgnored() {
+        release();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private void release() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+    }
+
+    private void update(double newLimit) {
+        int previous = (int) limit;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if ((int) limit != previous) {
+            log.debug("Concurrency limit of {} changed from {} to {}, short RTT {} ms, long RTT {} ms", name, previous, (int) limit,
+                    shortRtt / 1e6, longRtt / 1e6);
+        }
+    }
+
+    /**
+     * Exponential moving average over about {@code window} samples; a plain average of the first ones so the start
+     * value does not weigh in.
+     */
+    private double average(double average, long sample, int window) {
+        long count = Math.min(samples, window);
+        return average + (sample - average) / count;
+    }
+}
@@ -0,0 +1,138 @@
+package org.notabarista.storage.service.resilience;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * Count-based circuit breaker. The outcomes of the last {@code windowSize} calls are kept; once at least
+ * {@code minimumCalls} of them are known and the share of failures reaches {@code failureRateThreshold} the circuit
+ * opens and calls are refused for {@code openDuration}. After that up to {@code halfOpenCalls} trial calls are let
+ * through: a failure opens the circuit again, as many successes close it.
+ */
+@Log4j2
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String name;
+    private final boolean[] window;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openDurationNanos;
+    private final int halfOpenCalls;
+    private final Consumer<State> onTransition;
+
+    private State state = State.CLOSED;
+    private int recorded;
+    private int next;
+    private int failures;
+    private long openedAt;
+    private int trialsStarted;
+    private int trialsSucceeded;
+
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold, Duration openDuration,
+                          int halfOpenCalls, Consumer<State> onTransition) {
+        this.name = name;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDurationNanos = openDuration.toNanos();
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.onTransition = onTransition;
+    }
+
+    /**
+     * Whether a call may go ahead. Every permitted call must be followed by {@link #onSuccess()},
+     * {@link #onFailure()} or {@link #onIgnored()}.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDurationNanos) {
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsStarted >= halfOpenCalls) {
+                return false;
+            }
+            trialsStarted++;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (++trialsSucceeded >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= minimumCalls && (double) failures / recorded >= failureRateThreshold) {
+                transition(State.OPEN);
+            }
+        }
+    }
+
+    /**
+     * A permitted call whose outcome says nothing about the health of the backend, e.g. a rejected request.
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN && trialsStarted > trialsSucceeded) {
+            trialsStarted--;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (recorded == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        window[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+    }
+
+    private void transition(State newState) {
+        if (newState == State.CLOSED) {
+            log.info("Circuit breaker '{}' closed", name);
+        } else {
+            log.warn("Circuit breaker '{}' changed from {} to {}", name, state, newState);
+        }
+        state = newState;
+        recorded = 0;
+        next = 0;
+        failures = 0;
+        trialsStarted = 0;
+        trialsSucceeded = 0;
+        if (newState == State.OPEN) {
+            openedAt = System.nanoTime();
+        }
+        onTransition.accept(newState);
+    }
+}
@@ -0,0 +1,55 @@
+package org.notabarista.storage.service.resilience;
+
+import java.util.Arrays;
+
+/**
+ * Latency percentile over the last {@code capacity} samples of one operation. The percentile is recomputed every
+ * {@link #RECOMPUTE_INTERVAL} samples rather than on every read.
+ */
+class LatencyTracker {
+
+    private static final int RECOMPUTE_INTERVAL = 32;
+
+    private final long[] samples;
+    private final double percentile;
+    private final int minSamples;
+    private int count;
+    private int next;
+    private int sinceRecompute;
+    private long cached = -1;
+
+    LatencyTracker(int capacity, double percentile, int minSamples) {
+        this.samples = new long[Math.max(1, capacity)];
+        this.percentile = percentile;
+        this.minSamples = Math.max(1, Math.min(minSamples, samples.length));
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        if (++sinceRecompute >= RECOMPUTE_INTERVAL || (cached < 0 && count >= minSamples)) {
+            recompute();
+        }
+    }
+
+    /**
+     * The latency percentile in nanoseconds, or {@code -1} while fewer than {@code minSamples} were recorded.
+     */
+    synchronized long percentileNanos() {
+        return count < minSamples ? -1 : cached;
+    }
+
+    private void recompute() {
+        sinceRecompute = 0;
+        if (count < minSamples) {
+            return;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * count) - 1;
+        cached = sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,452 @@
+package org.notabarista.storage.service.resilience;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.http.timers.client.ClientExecutionTimeoutException;
+import com.amazonaws.services.s3.AmazonS3;
+import lombok.Value;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Resilience layer around an {@link AmazonS3} client. Every call that goes to the network runs on its own thread of
+ * {@code executor} while the caller waits for it with the timeout of its operation: reads and deletes have separate
+ * timeouts. Writes are not given up on here: a PUT abandoned at a timeout would go on and could store its object after
+ * the caller rolled it back, so the caller waits until the attempt has returned and the write timeout is left to the
+ * client's own request timeouts, which abort the request on the calling thread. Idempotent calls, i.e. HEAD, GET, LIST and DELETE, are hedged: when the first attempt has not
+ * answered within the latency percentile of its operation a second attempt is sent and the first answer wins; the
+ * losing attempt is cancelled and an object it returns anyway is closed. A bulkhead caps the calls in flight, including
+ * hedges, and a circuit breaker refuses calls while too many of the recent ones failed with a server error, a network
+ * error or a timeout. Refused and timed out calls fail with a {@link StorageUnavailableException}.
+ * <p>
+ * Methods that do not go to the network, like {@code generatePresignedUrl}, are passed through.
+ */
+@Log4j2
+public class ResilientS3 implements InvocationHandler {
+
+    private static final Set<String> LOCAL_METHODS = Set.of("generatePresignedUrl", "getUrl", "getRegion", "getRegionName",
+            "setEndpoint", "setRegion", "setS3ClientOptions", "getCachedResponseMetadata", "waiters");
+    private static final Set<String> IDEMPOTENT_OPERATIONS = Set.of("getObjectMetadata", "doesObjectExist", "getObject",
+            "getObjectAsString", "listObjects", "listObjectsV2", "listParts", "deleteObject", "deleteObjects");
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final Object ABANDONED = new Object();
+
+    @Value
+    public static class Timeouts {
+        Duration read;
+        Duration delete;
+    }
+
+    @Value
+    public static class Hedging {
+        boolean enabled;
+        double percentile;
+        Duration minDelay;
+        int minSamples;
+    }
+
+    private final AmazonS3 target;
+    private final ExecutorService executor;
+    private final Timeouts timeouts;
+    private final Hedging hedging;
+    private final int maxConcurrentCalls;
+    private final Semaphore bulkhead;
+    private final long bulkheadMaxWaitNanos;
+    private final CircuitBreaker circuitBreaker;
+    private final StorageMetrics storageMetrics;
+    private final ConcurrentMap<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+
+    public ResilientS3(AmazonS3 target, ExecutorService executor, Timeouts timeouts, Hedging hedging, int maxConcurrentCalls,
+                       Duration bulkheadMaxWait, CircuitBreaker circuitBreaker, StorageMetrics storageMetrics) {
+        this.target = target;
+        this.executor = executor;
+        this.timeouts = timeouts;
+        this.hedging = hedging;
+        this.maxConcurrentCalls = Math.max(1, maxConcurrentCalls);
+        this.bulkhead = new Semaphore(this.maxConcurrentCalls);
+        this.bulkheadMaxWaitNanos = bulkheadMaxWait.toNanos();
+        this.circuitBreaker = circuitBreaker;
+        this.storageMetrics = storageMetrics;
+        storageMetrics.gaugeS3CallsInFlight(this, ResilientS3::callsInFlight);
+        storageMetrics.gaugeS3CircuitState(circuitBreaker, breaker -> breaker.getState().ordinal());
+    }
+
+    /**
+     * The client to hand out. Shutting it down stops the call threads; the wrapped client is left to its owner.
+     */
+    public AmazonS3 proxy() {
+        return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class<?>[]{AmazonS3.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String operation = method.getName();
+        if (method.getDeclaringClass() == Object.class) {
+            switch (operation) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "ResilientS3(" + target + ")";
+            }
+        }
+        if ("shutdown".equals(operation)) {
+            executor.shutdown();
+            return null;
+        }
+        if (LOCAL_METHODS.contains(operation)) {
+            return invokeTarget(method, args);
+        }
+
+        if (!circuitBreaker.tryAcquire()) {
+            storageMetrics.recordS3CircuitRejection(operation);
+            throw new StorageUnavailableException("Media storage is unavailable, try again later");
+        }
+        try {
+            Object result = call(operation, method, args);
+            circuitBreaker.onSuccess();
+            return result;
+        } catch (Throwable e) {
+            if (isBackendFailure(e)) {
+                circuitBreaker.onFailure();
+            } else if (e instanceof AmazonServiceException) {
+                // the backend answered, the request was wrong
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onIgnored();
+            }
+            throw e;
+        }
+    }
+
+    int callsInFlight() {
+        return maxConcurrentCalls - bulkhead.availablePermits();
+    }
+
+    private Object call(String operation, Method method, Object[] args) throws Throwable {
+        Duration timeout = timeout(operation);
+        if (timeout == null) {
+            return write(operation, method, args);
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        long hedgeDelay = hedgeDelayNanos(operation, method);
+        if (hedgeDelay >= timeout.toNanos()) {
+            hedgeDelay = -1;
+        }
+
+        BlockingQueue<Attempt> completed = new LinkedBlockingQueue<>();
+        List<Attempt> running = new ArrayList<>(2);
+        Attempt hedge = null;
+        boolean hedgeWon = false;
+        try {
+            Attempt primary = start(operation, method, args, completed, bulkheadMaxWaitNanos);
+            if (primary == null) {
+                storageMetrics.recordS3BulkheadRejection(operation);
+                throw new BulkheadFullException();
+            }
+            running.add(primary);
+            while (true) {
+                boolean hedgeDue = hedgeDelay >= 0 && hedge == null;
+                long now = System.nanoTime();
+                long wait = hedgeDue ? Math.min(deadline, primary.startedAt + hedgeDelay) - now : deadline - now;
+                Attempt done = wait > 0 ? completed.poll(wait, TimeUnit.NANOSECONDS) : completed.poll();
+                if (done == null) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        storageMetrics.recordS3Timeout(operation);
+                        throw new CallTimeoutException(operation, timeout);
+                    }
+                    if (hedgeDue) {
+                        hedge = start(operation, method, hedgeArguments(args), completed, 0);
+                        if (hedge == null) {
+                            hedgeDelay = -1;
+                        } else {
+                            log.debug("Hedging S3 {} after {} ms", operation, TimeUnit.NANOSECONDS.toMillis(hedgeDelay));
+                            running.add(hedge);
+                        }
+                    }
+                    continue;
+                }
+                running.remove(done);
+                try {
+                    Object result = done.future.get();
+                    hedgeWon = done == hedge;
+                    return result;
+                } catch (ExecutionException e) {
+                    // a failed attempt only gives up the call when no other attempt is left to answer
+                    if (running.isEmpty() || !isBackendFailure(e.getCause())) {
+                        throw e.getCause();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted while waiting for S3 " + operation);
+        } finally {
+            running.forEach(Attempt::abandon);
+            if (hedge != null) {
+                storageMetrics.recordS3Hedge(operation, hedgeWon);
+            }
+        }
+    }
+
+    /**
+     * Runs a write and waits for it to return, however long that takes. An interrupted caller aborts the attempt, but
+     * still waits for it, so a write it gave up on can never land after it.
+     */
+    private Object write(String operation, Method method, Object[] args) throws Throwable {
+        Attempt attempt = null;
+        try {
+            attempt = start(operation, method, args, new LinkedBlockingQueue<>(), bulkheadMaxWaitNanos);
+            if (attempt == null) {
+                storageMetrics.recordS3BulkheadRejection(operation);
+                throw new BulkheadFullException();
+            }
+            return attempt.future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ClientExecutionTimeoutException) {
+                storageMetrics.recordS3Timeout(operation);
+            }
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            if (attempt != null) {
+                attempt.future.cancel(true);
+                attempt.awaitFinished();
+            }
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted while waiting for S3 " + operation);
+        }
+    }
+
+    /**
+     * Starts an attempt once a bulkhead slot is free, waiting at most {@code maxWaitNanos} for it.
+     *
+     * @return the attempt, or {@code null} when no slot was free
+     */
+    private Attempt start(String operation, Method method, Object[] args, BlockingQueue<Attempt> completed,
+                          long maxWaitNanos) throws InterruptedException {
+        if (!bulkhead.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+            return null;
+        }
+        Attempt attempt = new Attempt(operation, method, args, completed);
+        try {
+            executor.execute(attempt.future);
+        } catch (RejectedExecutionException e) {
+            attempt.release();
+            throw e;
+        }
+        return attempt;
+    }
+
+    /**
+     * @return the timeout of the operation, or {@code null} for a write
+     */
+    private Duration timeout(String operation) {
+        if (operation.startsWith("delete") || operation.startsWith("abort")) {
+            return timeouts.getDelete();
+        }
+        if (operation.startsWith("get") || operation.startsWith("list") || operation.startsWith("does")) {
+            return timeouts.getRead();
+        }
+        return null;
+    }
+
+    /**
+     * @return the delay after which a call is hedged, or {@code -1} when it is not
+     */
+    private long hedgeDelayNanos(String operation, Method method) {
+        if (!hedging.isEnabled() || !IDEMPOTENT_OPERATIONS.contains(operation)
+                || Arrays.asList(method.getParameterTypes()).contains(File.class)) {
+            return -1;
+        }
+        long percentile = latencies(operation).percentileNanos();
+        return percentile < 0 ? -1 : Math.max(percentile, hedging.getMinDelay().toNanos());
+    }
+
+    private LatencyTracker latencies(String operation) {
+        return latencies.computeIfAbsent(operation,
+                key -> new LatencyTracker(LATENCY_SAMPLES, hedging.getPercentile(), hedging.getMinSamples()));
+    }
+
+    /**
+     * Request objects are mutable, each attempt gets its own copy.
+     */
+    private static Object[] hedgeArguments(Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        Object[] copy = args.clone();
+        for (int i = 0; i < copy.length; i++) {
+            if (copy[i] instanceof AmazonWebServiceRequest) {
+                copy[i] = ((AmazonWebServiceRequest) copy[i]).clone();
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Server errors, throttling, network errors and timeouts count against the health of the backend; client errors,
+     * bulkhead rejections and aborted calls do not.
+     */
+    private static boolean isBackendFailure(Throwable e) {
+        if (e instanceof CallTimeoutException) {
+            return true;
+        }
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return e instanceof AmazonClientException && !(e instanceof AbortedException);
+    }
+
+    private Object invokeTarget(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void closeQuietly(Object result) {
+        if (result instanceof Closeable) {
+            try {
+                ((Closeable) result).close();
+            } catch (IOException e) {
+                log.debug("Could not close abandoned S3 result: {}", e.getMessage());
+            }
+        }
+    }
+
+    private final class Attempt implements Callable<Object> {
+
+        private final String operation;
+        private final Method method;
+        private final Object[] args;
+        private final long startedAt = System.nanoTime();
+        private final AtomicReference<Object> handedOver = new AtomicReference<>();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean started;
+        private final FutureTask<Object> future;
+
+        Attempt(String operation, Method method, Object[] args, BlockingQueue<Attempt> completed) {
+            this.operation = operation;
+            this.method = method;
+            this.args = args;
+            this.future = new FutureTask<>(this) {
+                @Override
+                protected void done() {
+                    if (!started) {
+                        release();
+                    }
+                    completed.add(Attempt.this);
+                }
+            };
+        }
+
+        @Override
+        public Object call() throws Exception {
+            started = true;
+            try {
+                if (future.isCancelled()) {
+                    // cancelled before the request was sent
+                    return null;
+                }
+                Object result;
+                try {
+                    result = invokeTarget(method, args);
+                } catch (Exception | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new UndeclaredThrowableException(e);
+                }
+                latencies(operation).record(System.nanoTime() - startedAt);
+                if (!handedOver.compareAndSet(null, result)) {
+                    closeQuietly(result);
+                }
+                return result;
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Gives up on the attempt. Whichever of the attempt and the caller comes last closes an object it returned.
+         */
+        void abandon() {
+            future.cancel(true);
+            Object late = handedOver.getAndSet(ABANDONED);
+            if (late != null && late != ABANDONED) {
+                closeQuietly(late);
+            }
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                bulkhead.release();
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Waits until the attempt has returned or will never begin, even if interrupted.
+         */
+        void awaitFinished() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class BulkheadFullException extends StorageUnavailableException {
+        BulkheadFullException() {
+            super("Too many concurrent media storage requests, try again later");
+        }
+    }
+
+    private static final class CallTimeoutException extends StorageUnavailableException {
+        CallTimeoutException(String operation, Duration timeout) {
+            super("Media storage did not answer " + operation + " within " + timeout.toMillis() + " ms");
+        }
+    }
+}
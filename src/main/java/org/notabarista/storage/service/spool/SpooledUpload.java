@@ -0,0 +1,60 @@
+package org.notabarista.storage.service.spool;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Manifest of a write-behind upload: the files spooled for an item, the object keys and URLs they were promised and
+ * how far draining them to the bucket got. File {@code n} is spooled as {@code part-n} next to the manifest.
+ */
+@Data
+@NoArgsConstructor
+class SpooledUpload {
+
+    enum State {
+        PENDING, UPLOADED, FAILED
+    }
+
+    private String id;
+    private String itemID;
+    private String userID;
+    private State state = State.PENDING;
+    private long createdAt;
+    private long finishedAt;
+    private int attempts;
+    private String lastError;
+    private List<SpooledFile> files = new ArrayList<>();
+
+    boolean isFinished() {
+        return state != State.PENDING;
+    }
+
+    List<String> mediaURLs() {
+        return files.stream().map(SpooledFile::getMediaURL).collect(Collectors.toList());
+    }
+
+    List<String> objectKeys() {
+        return files.stream().map(SpooledFile::getObjectKey).collect(Collectors.toList());
+    }
+
+    SpooledUploadStatus toStatus() {
+        return new SpooledUploadStatus(id, itemID, state.name(), attempts, lastError, mediaURLs());
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    static class SpooledFile {
+        private String fileName;
+        private String contentType;
+        private long size;
+        private String objectKey;
+        private String mediaURL;
+        private boolean uploaded;
+    }
+}
@@ -0,0 +1,19 @@
+package org.notabarista.storage.service.spool;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Progress of a write-behind upload: {@code PENDING} while its files are on their way to the bucket, {@code UPLOADED}
+ * once they are stored and linked to the item, {@code FAILED} when the retries are exhausted.
+ */
+@Value
+public class SpooledUploadStatus {
+    String uploadID;
+    String itemID;
+    String state;
+    int attempts;
+    String lastError;
+    List<String> mediaURLs;
+}
@@ -0,0 +1,140 @@
+package org.notabarista.storage.service.spool;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Durable local storage of write-behind uploads, one directory per upload holding its parts and its manifest. Every
+ * write is forced to the device before it returns, and the manifest is replaced atomically, so an upload that was
+ * acknowledged survives a crash with its parts complete.
+ */
+@Log4j2
+class UploadSpool {
+
+    private static final String MANIFEST = "manifest.json";
+    private static final String PART_PREFIX = "part-";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+
+    UploadSpool(Path directory, ObjectMapper objectMapper) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * The uploads found in the spool. Directories without a manifest belong to uploads that were never acknowledged
+     * and are removed.
+     */
+    List<SpooledUpload> load() throws IOException {
+        List<Path> uploadDirectories;
+        try (Stream<Path> paths = Files.list(directory)) {
+            uploadDirectories = paths.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        List<SpooledUpload> uploads = new ArrayList<>(uploadDirectories.size());
+        for (Path uploadDirectory : uploadDirectories) {
+            Path manifest = uploadDirectory.resolve(MANIFEST);
+            if (!Files.exists(manifest)) {
+                log.warn("Removing incomplete spooled upload '{}'", uploadDirectory);
+                FileSystemUtils.deleteRecursively(uploadDirectory);
+                continue;
+            }
+            try {
+                uploads.add(objectMapper.readValue(manifest.toFile(), SpooledUpload.class));
+            } catch (IOException e) {
+                log.error("Skipping unreadable spooled upload '{}': {}", uploadDirectory, e.getMessage());
+            }
+        }
+        return uploads;
+    }
+
+    /**
+     * Copies part {@code index} of an upload to the spool and forces it to the device.
+     *
+     * @return the number of bytes spooled
+     */
+    long writePart(String uploadID, int index, InputStream content) throws IOException {
+        Path uploadDirectory = Files.createDirectories(directory.resolve(uploadID));
+        long size = 0;
+        try (ReadableByteChannel source = Channels.newChannel(content);
+             FileChannel part = FileChannel.open(uploadDirectory.resolve(PART_PREFIX + index),
+                     StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long transferred;
+            while ((transferred = part.transferFrom(source, size, Long.MAX_VALUE)) > 0) {
+                size += transferred;
+            }
+            part.force(true);
+        }
+        return size;
+    }
+
+    InputStream readPart(String uploadID, int index) throws IOException {
+        return Files.newInputStream(directory.resolve(uploadID).resolve(PART_PREFIX + index));
+    }
+
+    /**
+     * Writes the manifest of an upload. The first save is what acknowledges an upload, so the directory entries are
+     * forced as well: the manifest's in the upload directory and the upload directory's in the spool.
+     */
+    void save(SpooledUpload upload) throws IOException {
+        Path uploadDirectory = Files.createDirectories(directory.resolve(upload.getId()));
+        boolean firstSave = !Files.exists(uploadDirectory.resolve(MANIFEST));
+        Path temporary = uploadDirectory.resolve(MANIFEST + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer manifest = ByteBuffer.wrap(objectMapper.writeValueAsBytes(upload));
+            while (manifest.hasRemaining()) {
+                channel.write(manifest);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, uploadDirectory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(uploadDirectory);
+        if (firstSave) {
+            forceDirectory(directory);
+        }
+    }
+
+    /**
+     * Removes the parts of an upload and keeps its manifest for status requests.
+     */
+    void deleteParts(SpooledUpload upload) throws IOException {
+        Path uploadDirectory = directory.resolve(upload.getId());
+        for (int index = 0; index < upload.getFiles().size(); index++) {
+            Files.deleteIfExists(uploadDirectory.resolve(PART_PREFIX + index));
+        }
+    }
+
+    void delete(String uploadID) throws IOException {
+        FileSystemUtils.deleteRecursively(directory.resolve(uploadID));
+    }
+
+    /**
+     * Makes a rename or a new file within {@code path} durable. Not every platform can open a directory for this,
+     * where it cannot the rename is left to the file system.
+     */
+    private static void forceDirectory(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Could not force directory '{}': {}", path, e.getMessage());
+        }
+    }
+}
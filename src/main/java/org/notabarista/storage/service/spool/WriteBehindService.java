@@ -0,0 +1,338 @@
+package org.notabarista.storage.service.spool;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ItemService;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.spool.SpooledUpload.SpooledFile;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind uploads: files are acknowledged as soon as they are durably spooled to local disk, with the URLs they
+ * will be stored under, and drained to the bucket in the background. The ADD event for an upload is only sent once all
+ * of its files are stored; failed drains are retried with exponential backoff, capped at {@code max-retry-backoff},
+ * for as long as {@code give-up-after} since the upload was spooled. An upload that still could not be drained then, or
+ * whose drain failed for a reason retrying cannot change, like a deleted item or a denied PUT, is marked FAILED and
+ * kept in the spool with its parts, counted in {@code storage.spool.failed}, until an operator
+ * recovers or removes it; it is never deleted automatically. Uploads still pending when the service stops are picked
+ * up again from the spool on the next start.
+ */
+@Service
+@Log4j2
+public class WriteBehindService {
+
+    private static final long INITIAL_RETRY_BACKOFF_MILLIS = 1000;
+
+    private final ItemService itemService;
+    private final DerivativeService derivativeService;
+    private final AmazonS3 bucket;
+    private final String mediaStorageBucketName;
+    private final AmazonS3Client s3Client;
+    private final S3UploadEngine uploadEngine;
+    private final StorageMetrics storageMetrics;
+    private final IoExecutor ioExecutor;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path directory;
+    private final int threads;
+    private final Duration giveUpAfter;
+    private final Duration maxRetryBackoff;
+    private final Duration retention;
+    private final boolean contentAddressedKeys;
+    private final Map<String, SpooledUpload> uploads = new ConcurrentHashMap<>();
+
+    private UploadSpool spool;
+    private ScheduledExecutorService uploader;
+
+    public WriteBehindService(ItemService itemService, DerivativeService derivativeService,
+                              AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, AmazonS3Client s3Client,
+                              S3UploadEngine uploadEngine, StorageMetrics storageMetrics, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                              ObjectMapper objectMapper,
+                              @Value("${filebase.upload.write-behind.enabled:false}") boolean enabled,
+                              @Value("${filebase.upload.write-behind.directory:${java.io.tmpdir}/be-storage-service/spool}") Path directory,
+                              @Value("${filebase.upload.write-behind.threads:4}") int threads,
+                              @Value("${filebase.upload.write-behind.give-up-after:7d}") Duration giveUpAfter,
+                              @Value("${filebase.upload.write-behind.max-retry-backoff:5m}") Duration maxRetryBackoff,
+                              @Value("${filebase.upload.write-behind.retention:24h}") Duration retention,
+                              @Value("${filebase.object-keys.content-addressed:false}") boolean contentAddressedKeys) {
+        this.itemService = itemService;
+        this.derivativeService = derivativeService;
+        this.bucket = bucket;
+        this.mediaStorageBucketName = mediaStorageBucketName;
+        this.s3Client = s3Client;
+        this.uploadEngine = uploadEngine;
+        this.storageMetrics = storageMetrics;
+        this.ioExecutor = ioExecutor;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.directory = directory;
+        this.threads = Math.max(1, threads);
+        this.giveUpAfter = giveUpAfter;
+        this.maxRetryBackoff = maxRetryBackoff;
+        this.retention = retention;
+        this.contentAddressedKeys = contentAddressedKeys;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        spool = new UploadSpool(directory, objectMapper);
+        uploader = Executors.newScheduledThreadPool(threads, new CustomizableThreadFactory("write-behind-uploader-"));
+        int pending = 0;
+        for (SpooledUpload upload : spool.load()) {
+            uploads.put(upload.getId(), upload);
+            if (!upload.isFinished()) {
+                uploader.execute(() -> drain(upload));
+                pending++;
+            }
+        }
+        log.info("Loaded {} spooled uploads from '{}', {} pending", uploads.size(), directory, pending);
+        storageMetrics.gaugeSpooledUploads(uploads, spooled -> spooled.values().stream().filter(upload -> !upload.isFinished()).count());
+        storageMetrics.gaugeFailedSpooledUploads(uploads, spooled -> spooled.values().stream()
+                                                                          .filter(upload -> upload.getState() == SpooledUpload.State.FAILED)
+                                                                          .count());
+
+        long sweepInterval = Math.max(1000, retention.toMillis() / 4);
+        uploader.scheduleWithFixedDelay(this::sweep, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (uploader != null) {
+            // uploads interrupted here are still pending in the spool and drained again after the restart
+            uploader.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Spools the files of an item and schedules them for upload. Returns once the files and the manifest are on disk,
+     * with the URLs the files will be stored under.
+     */
+    public SpooledUploadStatus spool(String itemID, MultipartFile[] files, String userID) throws AbstractNotabaristaException, IOException {
+        checkEnabled();
+        if (!itemService.itemExists(itemID, userID)) {
+            throw new MediaStorageException("Item not found");
+        }
+
+        SpooledUpload upload = new SpooledUpload();
+        upload.setId(UUID.randomUUID().toString());
+        upload.setItemID(itemID);
+        upload.setUserID(userID);
+        upload.setCreatedAt(System.currentTimeMillis());
+        try {
+            for (int index = 0; index < files.length; index++) {
+                upload.getFiles().add(spoolFile(upload.getId(), index, files[index]));
+            }
+            spool.save(upload);
+        } catch (IOException | RuntimeException e) {
+            discard(upload);
+            log.error("Could not spool upload for item {}: {}", itemID, e.getMessage());
+            throw new MediaStorageException("Could not spool media files");
+        }
+        uploads.put(upload.getId(), upload);
+        log.info("Spooled upload {} of {} files for item {}", upload.getId(), files.length, itemID);
+
+        uploader.execute(() -> drain(upload));
+        return upload.toStatus();
+    }
+
+    public CompletableFuture<SpooledUploadStatus> spoolAsync(String itemID, MultipartFile[] files, String userID) {
+        return ioExecutor.supply(() -> spool(itemID, files, userID));
+    }
+
+    public SpooledUploadStatus status(String uploadID, String userID) {
+        SpooledUpload upload = uploads.get(uploadID);
+        if (upload == null || !upload.getUserID().equals(userID)) {
+            throw new MediaStorageException("Upload not found");
+        }
+        synchronized (upload) {
+            return upload.toStatus();
+        }
+    }
+
+    /**
+     * Uploads the files of a spooled upload not stored yet and links them to the item. Progress is recorded after
+     * every file, so a drain that is retried or resumed after a restart does not upload a file twice.
+     */
+    void drain(SpooledUpload upload) {
+        try {
+            for (int index = 0; index < upload.getFiles().size(); index++) {
+                SpooledFile file = upload.getFiles().get(index);
+                if (file.isUploaded()) {
+                    continue;
+                }
+                uploadFile(upload, index, file);
+                synchronized (upload) {
+                    file.setUploaded(true);
+                    spool.save(upload);
+                }
+            }
+
+            derivativeService.addMedia(upload.getItemID(), upload.getUserID(), upload.mediaURLs(), upload.objectKeys());
+
+            synchronized (upload) {
+                upload.setState(SpooledUpload.State.UPLOADED);
+                upload.setFinishedAt(System.currentTimeMillis());
+                spool.save(upload);
+            }
+            deleteParts(upload);
+            log.info("Drained spooled upload {} of item {}", upload.getId(), upload.getItemID());
+        } catch (Exception e) {
+            retry(upload, e);
+        }
+    }
+
+    private SpooledFile spoolFile(String uploadID, int index, MultipartFile file) throws IOException {
+        MessageDigest digest = contentAddressedKeys ? ObjectKeys.newContentDigest() : null;
+        long size;
+        try (InputStream inputStream = file.getInputStream()) {
+            size = spool.writePart(uploadID, index, digest != null ? new DigestInputStream(inputStream, digest) : inputStream);
+        }
+        String objectKey = digest != null ? ObjectKeys.contentAddressed(digest.digest(), file.getOriginalFilename()) : file.getOriginalFilename();
+        String resourceUrl = storageMetrics.timeS3("getResourceUrl", () -> s3Client.getResourceUrl(mediaStorageBucketName, objectKey));
+        return new SpooledFile(file.getOriginalFilename(), file.getContentType(), size, objectKey, resourceUrl, false);
+    }
+
+    private void uploadFile(SpooledUpload upload, int index, SpooledFile file) throws IOException {
+        // the item refers to the object before it is stored, see ObjectKeys.reference
+        storageMetrics.timeS3("putObject", () -> bucket.putObject(mediaStorageBucketName,
+                ObjectKeys.reference(file.getObjectKey(), upload.getItemID()), ""));
+        if (contentAddressedKeys) {
+            boolean exists = storageMetrics.timeS3("getObjectMetadata", () -> bucket.doesObjectExist(mediaStorageBucketName, file.getObjectKey()));
+            storageMetrics.recordDeduplication(exists, file.getSize());
+            if (exists) {
+                return;
+            }
+        }
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setUserMetadata(Map.of("itemID", upload.getItemID()));
+        objectMetadata.setContentType(file.getContentType());
+        try (InputStream inputStream = spool.readPart(upload.getId(), index)) {
+            uploadEngine.upload(mediaStorageBucketName, file.getObjectKey(), inputStream, file.getSize(), objectMetadata);
+        }
+        storageMetrics.recordUpload(file.getSize());
+        storageMetrics.recordStored(file.getSize());
+    }
+
+    private void retry(SpooledUpload upload, Exception cause) {
+        long backoff;
+        synchronized (upload) {
+            upload.setAttempts(upload.getAttempts() + 1);
+            upload.setLastError(cause.getMessage());
+            if (isPermanent(cause) || System.currentTimeMillis() - upload.getCreatedAt() >= giveUpAfter.toMillis()) {
+                upload.setState(SpooledUpload.State.FAILED);
+                upload.setFinishedAt(System.currentTimeMillis());
+            }
+            try {
+                spool.save(upload);
+            } catch (IOException e) {
+                log.error("Could not record spooled upload {}: {}", upload.getId(), e.getMessage());
+            }
+            if (upload.isFinished()) {
+                log.error("Giving up on spooled upload {} of item {} after {} attempts, its files are kept in the spool for recovery: {}",
+                        upload.getId(), upload.getItemID(), upload.getAttempts(), cause.getMessage());
+                return;
+            }
+            backoff = Math.min(maxRetryBackoff.toMillis(), INITIAL_RETRY_BACKOFF_MILLIS << Math.min(upload.getAttempts() - 1, 30));
+        }
+        log.warn("Draining spooled upload {} failed, retrying in {}ms: {}", upload.getId(), backoff, cause.getMessage());
+        try {
+            uploader.schedule(() -> drain(upload), backoff, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.info("Spooled upload {} stays pending until the next start", upload.getId());
+        }
+    }
+
+    /**
+     * Rejected requests, like a link to a deleted item or a client error of the bucket, fail the same way every time;
+     * an open circuit, throttling and server or network errors do not.
+     */
+    private static boolean isPermanent(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            return status >= 400 && status < 500 && status != 408 && status != 429;
+        }
+        return e instanceof MediaStorageException && !(e instanceof StorageUnavailableException);
+    }
+
+    /**
+     * Forgets uploaded uploads once they have been kept for their retention period. Failed uploads hold acknowledged
+     * files that never reached the bucket, so they are left in the spool for an operator.
+     */
+    void sweep() {
+        long finishedBefore = System.currentTimeMillis() - retention.toMillis();
+        for (SpooledUpload upload : uploads.values()) {
+            synchronized (upload) {
+                if (upload.getState() != SpooledUpload.State.UPLOADED || upload.getFinishedAt() > finishedBefore) {
+                    continue;
+                }
+            }
+            uploads.remove(upload.getId(), upload);
+            try {
+                spool.delete(upload.getId());
+            } catch (IOException e) {
+                log.error("Could not delete spooled upload {}: {}", upload.getId(), e.getMessage());
+            }
+        }
+    }
+
+    private void deleteParts(SpooledUpload upload) {
+        try {
+            spool.deleteParts(upload);
+        } catch (IOException e) {
+            log.error("Could not delete the parts of spooled upload {}: {}", upload.getId(), e.getMessage());
+        }
+    }
+
+    private void discard(SpooledUpload upload) {
+        try {
+            spool.delete(upload.getId());
+        } catch (IOException e) {
+            log.error("Could not delete spooled upload {}: {}", upload.getId(), e.getMessage());
+        }
+    }
+
+    private void checkEnabled() {
+        if (!enabled) {
+            throw new MediaStorageException("Write-behind uploads are disabled");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.notabarista.storage.service.tiered;
+
+/**
+ * Approximate read counts of many objects in little memory: a count-min sketch of 4-bit counters, sixteen to a
+ * {@code long}. An object is counted in four counters of one {@code long} each, and its frequency is the smallest of
+ * them, so collisions can only overestimate it. Counters saturate at 15; once ten times as many increments as there
+ * are {@code long}s have been seen all counters are halved, so objects that were popular once fade out.
+ * <p>
+ * Sized with the number of objects expected, it takes about 8 bytes per object.
+ */
+final class FrequencySketch {
+
+    static final int MAX_FREQUENCY = 15;
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long HALVING_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int increments;
+
+    FrequencySketch(int expectedObjects) {
+        int width = Integer.highestOneBit(Math.max(2, expectedObjects) - 1) << 1;
+        this.table = new long[width];
+        this.sampleSize = 10 * width;
+    }
+
+    synchronized int frequency(long hash) {
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, (int) (table[index(row, hash)] >>> shift(row, hash)) & MAX_FREQUENCY);
+        }
+        return frequency;
+    }
+
+    synchronized void increment(long hash) {
+        boolean incremented = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = index(row, hash);
+            int shift = shift(row, hash);
+            if (((table[index] >>> shift) & MAX_FREQUENCY) < MAX_FREQUENCY) {
+                table[index] += 1L << shift;
+                incremented = true;
+            }
+        }
+        if (incremented && ++increments >= sampleSize) {
+            halve();
+        }
+    }
+
+    private void halve() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & HALVING_MASK;
+        }
+        increments /= 2;
+    }
+
+    private int index(int row, long hash) {
+        long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        mixed ^= mixed >>> 32;
+        return (int) mixed & (table.length - 1);
+    }
+
+    /**
+     * The bit offset of the counter of {@code row}: the top bits of the hash choose a group of four counters, each row
+     * takes its own of them.
+     */
+    private static int shift(int row, long hash) {
+        return ((((int) (hash >>> 62)) << 2) + row) << 2;
+    }
+}
@@ -0,0 +1,672 @@
+package org.notabarista.storage.service.tiered;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.ObjectStore;
+import org.notabarista.storage.service.bucket.BucketStore;
+import org.notabarista.storage.service.download.ObjectAttributes;
+import org.notabarista.storage.service.download.ObjectDownload;
+import org.notabarista.storage.service.local.LocalFileStore;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Two tiers for {@code storage.engine=tiered}: a hot tier of files on local disk, bounded in size, in front of the
+ * bucket. New objects are written to the hot tier and copied to the bucket in the background; a marker file per
+ * object records the copy until it is done, so copies interrupted by a stop are picked up again on the next start and
+ * an object is never evicted before it is in the bucket.
+ * <p>
+ * Reads are counted in a {@link FrequencySketch}. A cold object read {@code promotion-threshold} times is copied back
+ * to the hot tier; once the hot tier is over {@code max-size} the least frequently read of its least recently read
+ * objects are evicted, so one burst of reads of rarely used objects does not push out the popular ones.
+ * <p>
+ * Media URLs point to {@code GET /media/{key}} of this service like those of the local engine, whichever tier holds
+ * the object, so reads go through the hot tier. Reads are served from the hot tier if the object is there, from the
+ * {@link BucketStore} otherwise. The reference markers of {@link ObjectKeys#REFERENCE_PREFIX} are kept in the bucket
+ * only: they are listed by prefix and never read.
+ */
+@Component
+@Primary
+@ConditionalOnProperty(name = "storage.engine", havingValue = "tiered")
+@Log4j2
+public class TieredStore implements ObjectStore {
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    // eldest objects compared when choosing one to evict
+    private static final int EVICTION_SAMPLE = 8;
+
+    private final BucketStore coldTier;
+    private final AmazonS3 bucket;
+    private final String mediaStorageBucketName;
+    private final StorageMetrics storageMetrics;
+    private final IoExecutor ioExecutor;
+    private final Path hotDirectory;
+    private final Path pendingDirectory;
+    private final long maxSize;
+    private final int promotionThreshold;
+    private final int threads;
+    private final Duration retryDelay;
+    private final LocalFileStore hotTier;
+    private final FrequencySketch sketch;
+    // access ordered, the eldest entry is the least recently read
+    private final LinkedHashMap<Path, Long> index = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Path, PendingCopy> pending = new HashMap<>();
+    private final Set<Path> copying = new HashSet<>();
+    private final Set<Path> promoting = new HashSet<>();
+    private final LongAdder hotReads = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private long size;
+
+    private ScheduledExecutorService copier;
+
+    public TieredStore(BucketStore coldTier, AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName,
+                       StorageMetrics storageMetrics, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                       @Value("${storage.tiered.directory:${java.io.tmpdir}/be-storage-service/tiered}") Path directory,
+                       @Value("${storage.tiered.base-url:http://localhost:8080}") String baseUrl,
+                       @Value("${storage.tiered.max-size:10GB}") DataSize maxSize,
+                       @Value("${storage.tiered.promotion-threshold:3}") int promotionThreshold,
+                       @Value("${storage.tiered.expected-objects:100000}") int expectedObjects,
+                       @Value("${storage.tiered.threads:4}") int threads,
+                       @Value("${storage.tiered.retry-delay:30s}") Duration retryDelay) {
+        this.coldTier = coldTier;
+        this.bucket = bucket;
+        this.mediaStorageBucketName = mediaStorageBucketName;
+        this.storageMetrics = storageMetrics;
+        this.ioExecutor = ioExecutor;
+        this.hotDirectory = directory.resolve("objects");
+        this.pendingDirectory = directory.resolve("pending");
+        this.maxSize = maxSize.toBytes();
+        this.promotionThreshold = Math.max(1, promotionThreshold);
+        this.threads = Math.max(1, threads);
+        this.retryDelay = retryDelay;
+        this.hotTier = LocalFileStore.tier(hotDirectory, baseUrl, storageMetrics, ioExecutor);
+        this.sketch = new FrequencySketch(expectedObjects);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        hotTier.start();
+        Files.createDirectories(pendingDirectory);
+        copier = Executors.newScheduledThreadPool(threads, new CustomizableThreadFactory("tier-copier-"));
+
+        List<Path> markers;
+        try (Stream<Path> paths = Files.list(pendingDirectory)) {
+            markers = paths.collect(Collectors.toList());
+        }
+        for (Path marker : markers) {
+            if (marker.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                Files.deleteIfExists(marker);
+                continue;
+            }
+            PendingCopy copy = PendingCopy.load(marker);
+            Path path = hotTier.path(copy.objectKey);
+            synchronized (this) {
+                pending.put(path, copy);
+            }
+            copier.execute(() -> copy(path, copy));
+        }
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(hotDirectory, 3)) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        files.sort(Comparator.comparingLong(TieredStore::lastModified));
+        synchronized (this) {
+            for (Path file : files) {
+                long fileSize = Files.size(file);
+                index.put(file, fileSize);
+                size += fileSize;
+            }
+        }
+        evict();
+        log.info("Loaded {} hot objects of {} bytes, {} pending copies to the bucket", index.size(), size, pending.size());
+
+        storageMetrics.gaugeTierHitRatio(this, TieredStore::hitRatio);
+        storageMetrics.gaugeTierHotSize(this, TieredStore::size);
+        storageMetrics.gaugeTierPendingCopies(this, TieredStore::pendingCopies);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (copier != null) {
+            // copies interrupted here keep their marker and are done again after the restart
+            copier.shutdownNow();
+        }
+    }
+
+    /**
+     * The local files of the hot tier.
+     */
+    public LocalFileStore hotTier() {
+        return hotTier;
+    }
+
+    @Override
+    public String resourceUrl(String objectKey) {
+        return hotTier.resourceUrl(objectKey);
+    }
+
+    /**
+     * Maps the media URLs of this service back to their key, and the bucket URLs this engine handed out before as
+     * well.
+     */
+    @Override
+    public String objectKey(String mediaURL) throws MalformedURLException {
+        try {
+            return hotTier.objectKey(mediaURL);
+        } catch (MalformedURLException e) {
+            return coldTier.objectKey(mediaURL);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Boolean> existsAsync(String objectKey) {
+        if (isColdOnly(objectKey)) {
+            return coldTier.existsAsync(objectKey);
+        }
+        return ioExecutor.supply(() -> exists(objectKey));
+    }
+
+    /**
+     * Whether either tier holds the object; the bucket is only asked if the hot tier does not.
+     */
+    public boolean exists(String objectKey) {
+        return hotTier.exists(objectKey) || coldTier.exists(objectKey);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAsync(String objectKey, MultipartFile file, String itemID) {
+        if (isColdOnly(objectKey)) {
+            return coldTier.putAsync(objectKey, file, itemID);
+        }
+        return ioExecutor.supply(() -> {
+            try (InputStream inputStream = file.getInputStream()) {
+                write(objectKey, file.getContentType(), itemID, inputStream);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> touchAsync(String objectKey) {
+        if (isColdOnly(objectKey)) {
+            return coldTier.touchAsync(objectKey);
+        }
+        return ioExecutor.supply(() -> {
+            write(objectKey, null, null, InputStream.nullInputStream());
+            return null;
+        });
+    }
+
+    /**
+     * @see LocalFileStore#stage
+     */
+    @Override
+    public Path stage(InputStream content) throws IOException {
+        return hotTier.stage(content);
+    }
+
+    /**
+     * Moves a staged file into the hot tier and schedules its copy to the bucket. The copy is recorded on disk before
+     * the file is moved.
+     *
+     * @param replace see {@link LocalFileStore#commit}
+     * @return whether the staged file was stored
+     */
+    public boolean commit(Path staged, String objectKey, String contentType, String itemID, boolean replace) throws IOException {
+        Path path = hotTier.path(objectKey);
+        PendingCopy copy = new PendingCopy(objectKey, contentType, itemID);
+        long stagedSize;
+        try {
+            stagedSize = Files.size(staged);
+            copy.save(marker(path));
+        } catch (IOException | RuntimeException e) {
+            hotTier.discard(staged);
+            throw e;
+        }
+
+        boolean created;
+        synchronized (this) {
+            try {
+                created = hotTier.commit(staged, objectKey, replace);
+            } catch (IOException | RuntimeException e) {
+                if (!pending.containsKey(path)) {
+                    deleteMarker(path);
+                }
+                throw e;
+            }
+            if (created) {
+                Long previous = index.put(path, stagedSize);
+                size += stagedSize - (previous != null ? previous : 0);
+                pending.put(path, copy);
+            } else if (!pending.containsKey(path)) {
+                deleteMarker(path);
+            }
+        }
+        if (created) {
+            schedule(path, copy, 0);
+            evict();
+        }
+        return created;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> commitAsync(Path staged, String objectKey, String contentType, String itemID, boolean replace) {
+        if (isColdOnly(objectKey)) {
+            return coldTier.commitAsync(staged, objectKey, contentType, itemID, replace);
+        }
+        return ioExecutor.supply(() -> commit(staged, objectKey, contentType, itemID, replace));
+    }
+
+    /**
+     * Stores {@code content} under {@code objectKey}, replacing what was stored under it before.
+     *
+     * @return the number of bytes stored
+     */
+    public long write(String objectKey, String contentType, String itemID, InputStream content) throws IOException {
+        Path staged = stage(content);
+        long stagedSize = Files.size(staged);
+        commit(staged, objectKey, contentType, itemID, true);
+        return stagedSize;
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String prefix) {
+        return coldTier.listAsync(prefix);
+    }
+
+    /**
+     * Deletes the objects from both tiers. All objects are checked first, so an unknown one fails the request before
+     * anything is deleted.
+     */
+    @Override
+    public CompletableFuture<Void> deleteAsync(List<String> objectKeys) {
+        return ioExecutor.supply(() -> {
+            for (String objectKey : objectKeys) {
+                if (!exists(objectKey)) {
+                    throw new MediaStorageException("Unknown media file: " + objectKey);
+                }
+            }
+            for (String objectKey : objectKeys) {
+                try {
+                    delete(objectKey);
+                } catch (IOException | AmazonClientException e) {
+                    log.error("Could not delete media file '{}': {}", objectKey, e.getMessage());
+                    throw new MediaStorageException("Could not delete media file: " + objectKey);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Deletes the object from both tiers and drops a copy not done yet. A copy already on its way to the bucket
+     * deletes what it stored there once it finds its object gone.
+     */
+    public void delete(String objectKey) throws IOException {
+        Path path = hotTier.path(objectKey);
+        synchronized (this) {
+            pending.remove(path);
+            promoting.remove(path);
+            Long removed = index.remove(path);
+            if (removed != null) {
+                size -= removed;
+            }
+            deleteMarker(path);
+            hotTier.delete(objectKey);
+        }
+        storageMetrics.timeS3("deleteObject", () -> {
+            bucket.deleteObject(mediaStorageBucketName, objectKey);
+            return null;
+        });
+    }
+
+    /**
+     * Counts the read and answers it from the hot tier if the object is there, from the bucket otherwise.
+     */
+    @Override
+    public ObjectAttributes head(String objectKey) throws IOException {
+        if (!isColdOnly(objectKey) && recordRead(objectKey)) {
+            try {
+                return hotTier.head(objectKey);
+            } catch (MediaNotFoundException e) {
+                log.debug("'{}' was evicted from the hot tier while being read", objectKey);
+            }
+        }
+        return coldTier.head(objectKey);
+    }
+
+    @Override
+    public boolean transfer(ObjectDownload download, OutputStream outputStream) throws IOException {
+        if (isColdOnly(download.getObjectKey())) {
+            return coldTier.transfer(download, outputStream);
+        }
+        try {
+            if (hotTier.transfer(download, outputStream)) {
+                return true;
+            }
+        } catch (MediaNotFoundException e) {
+            // evicted from the hot tier, or never there; the bucket checks the ETag
+        }
+        return coldTier.transfer(download, outputStream);
+    }
+
+    /**
+     * Counts a read of an object and tells whether the hot tier holds it. A cold object read often enough is promoted
+     * to the hot tier in the background.
+     */
+    public boolean recordRead(String objectKey) {
+        Path path = hotTier.path(objectKey);
+        long hash = hash(path);
+        sketch.increment(hash);
+        boolean hot;
+        boolean promote = false;
+        synchronized (this) {
+            hot = index.get(path) != null;
+            if (!hot && sketch.frequency(hash) >= promotionThreshold) {
+                promote = promoting.add(path);
+            }
+        }
+        reads.increment();
+        if (hot) {
+            hotReads.increment();
+        }
+        storageMetrics.recordTierRead(hot);
+
+        if (promote) {
+            try {
+                copier.execute(() -> promote(objectKey, path));
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    promoting.remove(path);
+                }
+            }
+        }
+        return hot;
+    }
+
+    private static boolean isColdOnly(String objectKey) {
+        return objectKey.startsWith(ObjectKeys.REFERENCE_PREFIX);
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized int pendingCopies() {
+        return pending.size();
+    }
+
+    double hitRatio() {
+        long total = reads.sum();
+        return total > 0 ? (double) hotReads.sum() / total : 0;
+    }
+
+    /**
+     * Sends an object of the hot tier to the bucket. Copies of one object do not overlap: a copy started while an
+     * older one is running is left to it, and runs once the older one finishes.
+     */
+    void copy(Path path, PendingCopy copy) {
+        synchronized (this) {
+            if (pending.get(path) != copy || !copying.add(path)) {
+                return;
+            }
+        }
+
+        boolean copied = false;
+        boolean missing = false;
+        try {
+            coldTier.upload(copy.objectKey, path, copy.contentType, copy.itemID);
+            storageMetrics.recordTierCopy(StorageMetrics.OUTCOME_SUCCESS);
+            copied = true;
+        } catch (NoSuchFileException e) {
+            missing = true;
+        } catch (IOException | RuntimeException e) {
+            storageMetrics.recordTierCopy(StorageMetrics.OUTCOME_ERROR);
+            log.warn("Copying '{}' to the bucket failed, retrying in {}: {}", copy.objectKey, retryDelay, e.getMessage());
+        }
+
+        PendingCopy current;
+        synchronized (this) {
+            copying.remove(path);
+            current = pending.get(path);
+            if ((copied || missing) && current == copy) {
+                pending.remove(path);
+                deleteMarker(path);
+            }
+        }
+        if (missing && current == copy) {
+            // the marker outlived its file, e.g. after a crash before the file was moved into place
+            log.warn("Dropping the copy of '{}' to the bucket, the hot tier does not hold it", copy.objectKey);
+        } else if (copied && current == null) {
+            deleteDeleted(copy.objectKey);
+        } else if (current == copy && !copied) {
+            schedule(path, copy, retryDelay.toMillis());
+        } else if (current != null && current != copy) {
+            // replaced while this copy was running, or deleted and stored again, which a missing file tells nothing about
+            schedule(path, current, 0);
+        }
+    }
+
+    /**
+     * Copies a cold object from the bucket to the hot tier, unless it is deleted meanwhile or larger than the tier.
+     */
+    void promote(String objectKey, Path path) {
+        try {
+            S3Object object = storageMetrics.timeS3("getObject", () -> bucket.getObject(mediaStorageBucketName, objectKey));
+            Path staged;
+            try (object) {
+                if (object.getObjectMetadata().getContentLength() > maxSize) {
+                    object.getObjectContent().abort();
+                    return;
+                }
+                staged = hotTier.stage(object.getObjectContent());
+            }
+            long stagedSize = Files.size(staged);
+            boolean promoted;
+            synchronized (this) {
+                promoted = promoting.contains(path) && hotTier.commit(staged, objectKey, false);
+                if (promoted) {
+                    index.put(path, stagedSize);
+                    size += stagedSize;
+                }
+            }
+            if (!promoted) {
+                hotTier.discard(staged);
+                return;
+            }
+            storageMetrics.recordTierPromotion(stagedSize);
+            log.debug("Promoted '{}' to the hot tier", objectKey);
+            evict();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                log.warn("Could not promote '{}' to the hot tier: {}", objectKey, e.getMessage());
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not promote '{}' to the hot tier: {}", objectKey, e.getMessage());
+        } finally {
+            synchronized (this) {
+                promoting.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Evicts objects while the hot tier is over its size: of the {@value #EVICTION_SAMPLE} least recently read objects
+     * already in the bucket, the least frequently read one goes first.
+     */
+    void evict() {
+        Map<Path, Long> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            while (size > maxSize) {
+                Path victim = null;
+                int victimFrequency = Integer.MAX_VALUE;
+                int sampled = 0;
+                for (Map.Entry<Path, Long> entry : index.entrySet()) {
+                    if (pending.containsKey(entry.getKey())) {
+                        continue;
+                    }
+                    int frequency = sketch.frequency(hash(entry.getKey()));
+                    if (frequency < victimFrequency) {
+                        victim = entry.getKey();
+                        victimFrequency = frequency;
+                    }
+                    if (++sampled == EVICTION_SAMPLE) {
+                        break;
+                    }
+                }
+                if (victim == null) {
+                    // everything left waits for its copy to the bucket
+                    break;
+                }
+                long victimSize = index.remove(victim);
+                size -= victimSize;
+                // under the lock, a commit of the same key may otherwise move a new file into place first
+                try {
+                    Files.deleteIfExists(victim);
+                    evicted.put(victim, victimSize);
+                } catch (IOException e) {
+                    log.error("Could not evict '{}' from the hot tier: {}", victim, e.getMessage());
+                }
+            }
+        }
+        evicted.values().forEach(storageMetrics::recordTierDemotion);
+    }
+
+    private void schedule(Path path, PendingCopy copy, long delayMillis) {
+        try {
+            copier.schedule(() -> copy(path, copy), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.info("Copy of '{}' to the bucket stays pending until the next start", copy.objectKey);
+        }
+    }
+
+    private void deleteDeleted(String objectKey) {
+        try {
+            storageMetrics.timeS3("deleteObject", () -> {
+                bucket.deleteObject(mediaStorageBucketName, objectKey);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.error("Could not delete '{}' from the bucket, it was deleted while being copied: {}", objectKey, e.getMessage());
+        }
+    }
+
+    private Path marker(Path path) {
+        return pendingDirectory.resolve(path.getFileName());
+    }
+
+    private void deleteMarker(Path path) {
+        try {
+            Files.deleteIfExists(marker(path));
+        } catch (IOException e) {
+            log.error("Could not delete the copy marker of '{}': {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * The file names of the hot tier are hex SHA-256 digests, their first 64 bits are as good a hash as any.
+     */
+    private static long hash(Path path) {
+        return Long.parseUnsignedLong(path.getFileName().toString().substring(0, 16), 16);
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * An object of the hot tier still to be copied to the bucket, with the metadata it is stored with there.
+     */
+    static final class PendingCopy {
+
+        private final String objectKey;
+        private final String contentType;
+        private final String itemID;
+
+        private PendingCopy(String objectKey, String contentType, String itemID) {
+            this.objectKey = objectKey;
+            this.contentType = contentType;
+            this.itemID = itemID;
+        }
+
+        private static PendingCopy load(Path marker) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream inputStream = Files.newInputStream(marker)) {
+                properties.load(inputStream);
+            }
+            return new PendingCopy(properties.getProperty("objectKey"), properties.getProperty("contentType"), properties.getProperty("itemID"));
+        }
+
+        /**
+         * Writes the marker to a temporary file, forces it to disk and renames it into place.
+         */
+        private void save(Path marker) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("objectKey", objectKey);
+            if (contentType != null) {
+                properties.setProperty("contentType", contentType);
+            }
+            if (itemID != null) {
+                properties.setProperty("itemID", itemID);
+            }
+            Path temporary = marker.resolveSibling(marker.getFileName() + "." + Thread.currentThread().getId() + TEMPORARY_SUFFIX);
+            try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+                 OutputStream outputStream = Channels.newOutputStream(file)) {
+                properties.store(outputStream, null);
+                file.force(true);
+            }
+            Files.move(temporary, marker, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.notabarista.storage.service.upload;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * A presigned {@code PUT} of one file: the client sends the file to {@code uploadURL} with exactly {@code headers}
+ * before {@code expiresAt}, then passes the upload back to be confirmed.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DirectUpload {
+    private String objectKey;
+    private String uploadURL;
+    private Map<String, String> headers;
+    private String contentType;
+    private long size;
+    private Instant expiresAt;
+}
@@ -0,0 +1,17 @@
+package org.notabarista.storage.service.upload;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A file a client is about to upload straight to the bucket.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DirectUploadRequest {
+    private String fileName;
+    private String contentType;
+    private long size;
+}
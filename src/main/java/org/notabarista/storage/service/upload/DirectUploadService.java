@@ -0,0 +1,335 @@
+package org.notabarista.storage.service.upload;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.api.validator.ImageFormatSniffer;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ItemService;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Uploads that go straight from the client to the bucket over presigned {@code PUT} URLs, so their bytes never pass
+ * through this service. The content type, the length and the item of each file are part of the signature; once
+ * uploaded, the files are confirmed: their size, type, item and leading bytes are checked, then they are moved out of
+ * {@link ObjectKeys#DIRECT_UPLOAD_PREFIX} and linked to the item. Uploads left under that prefix unconfirmed for longer
+ * than the expiry are deleted by a background sweeper; a lifecycle rule on the prefix can do the same.
+ */
+@Service
+@Log4j2
+public class DirectUploadService {
+
+    private static final String ITEM_ID_METADATA = "itemID";
+    private static final String ITEM_ID_HEADER = "x-amz-meta-itemid";
+    private static final int NOT_FOUND = 404;
+    private static final int MAX_FILE_NAME_LENGTH = 255;
+
+    private final ItemService itemService;
+    private final DerivativeService derivativeService;
+    private final AmazonS3 bucket;
+    private final String mediaStorageBucketName;
+    private final AmazonS3Client s3Client;
+    private final StorageMetrics storageMetrics;
+    private final IoExecutor ioExecutor;
+    private final Duration expiry;
+    private final int maxFiles;
+    private final long maxFileSize;
+    private final Duration sweepInterval;
+    private final Set<String> confirming = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService sweeper;
+
+    public DirectUploadService(ItemService itemService, DerivativeService derivativeService,
+                               AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, AmazonS3Client s3Client,
+                               StorageMetrics storageMetrics, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor,
+                               @Value("${filebase.upload.presigned.expiry:15m}") Duration expiry,
+                               @Value("${filebase.upload.presigned.max-files:10}") int maxFiles,
+                               @Value("${spring.servlet.multipart.max-file-size:1MB}") DataSize maxFileSize,
+                               @Value("${filebase.upload.presigned.sweep-interval:15m}") Duration sweepInterval) {
+        this.itemService = itemService;
+        this.derivativeService = derivativeService;
+        this.bucket = bucket;
+        this.mediaStorageBucketName = mediaStorageBucketName;
+        this.s3Client = s3Client;
+        this.storageMetrics = storageMetrics;
+        this.ioExecutor = ioExecutor;
+        this.expiry = expiry;
+        this.maxFiles = maxFiles;
+        this.maxFileSize = maxFileSize.toBytes();
+        this.sweepInterval = sweepInterval;
+    }
+
+    @PostConstruct
+    public void start() {
+        sweeper = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("direct-upload-sweeper-"));
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval.toMillis(), sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns a presigned {@code PUT} for each file, in the order of {@code files}. Each file gets a key of its own
+     * under {@link ObjectKeys#DIRECT_UPLOAD_PREFIX}, so a client cannot overwrite an object it did not upload.
+     */
+    public List<DirectUpload> presign(String itemID, List<DirectUploadRequest> files, String userID) throws AbstractNotabaristaException {
+        if (files.size() > maxFiles) {
+            throw new MediaStorageException("At most " + maxFiles + " files can be uploaded at once");
+        }
+        List<String> fileNames = new ArrayList<>(files.size());
+        for (DirectUploadRequest file : files) {
+            checkFile(file.getContentType(), file.getSize());
+            fileNames.add(fileName(file.getFileName()));
+        }
+        if (!itemService.itemExists(itemID, userID)) {
+            throw new MediaStorageException("Item not found");
+        }
+
+        Instant expiresAt = Instant.now().plus(expiry);
+        List<DirectUpload> uploads = new ArrayList<>(files.size());
+        for (int index = 0; index < files.size(); index++) {
+            DirectUploadRequest file = files.get(index);
+            String objectKey = ObjectKeys.DIRECT_UPLOAD_PREFIX + UUID.randomUUID() + "/" + fileNames.get(index);
+            String contentLength = Long.toString(file.getSize());
+            GeneratePresignedUrlRequest presignRequest = new GeneratePresignedUrlRequest(mediaStorageBucketName, objectKey, HttpMethod.PUT)
+                    .withExpiration(Date.from(expiresAt))
+                    .withContentType(file.getContentType());
+            // signed headers, a PUT of any other length is refused by the bucket
+            presignRequest.putCustomRequestHeader(ITEM_ID_HEADER, itemID);
+            presignRequest.putCustomRequestHeader(Headers.CONTENT_LENGTH, contentLength);
+            String uploadURL = bucket.generatePresignedUrl(presignRequest).toString();
+            uploads.add(new DirectUpload(objectKey, uploadURL,
+                    Map.of(Headers.CONTENT_TYPE, file.getContentType(), Headers.CONTENT_LENGTH, contentLength, ITEM_ID_HEADER, itemID),
+                    file.getContentType(), file.getSize(), expiresAt));
+        }
+        log.info("Presigned {} direct uploads for item {}", uploads.size(), itemID);
+        return uploads;
+    }
+
+    /**
+     * Checks that every file was uploaded as presigned, moves them to their final keys and links them to the item. A
+     * file that was uploaded for the item but does not match what was presigned is deleted again. An upload can only
+     * be confirmed once; if linking fails the uploads stay unconfirmed and the confirmation can be retried.
+     */
+    public List<String> confirm(String itemID, List<DirectUpload> uploads, String userID) throws AbstractNotabaristaException, IOException {
+        if (!itemService.itemExists(itemID, userID)) {
+            throw new MediaStorageException("Item not found");
+        }
+
+        List<String> uploadKeys = new ArrayList<>(uploads.size());
+        try {
+            for (DirectUpload upload : uploads) {
+                if (!confirming.add(upload.getObjectKey())) {
+                    throw new MediaStorageException("Media file is already being confirmed: " + upload.getObjectKey());
+                }
+                uploadKeys.add(upload.getObjectKey());
+            }
+            return confirmUploads(itemID, uploads, userID);
+        } finally {
+            confirming.removeAll(uploadKeys);
+        }
+    }
+
+    /**
+     * Deletes the uploads that were not confirmed within the expiry after they were uploaded.
+     */
+    void sweep() {
+        Date uploadedBefore = Date.from(Instant.now().minus(expiry));
+        ListObjectsV2Request listRequest = new ListObjectsV2Request().withBucketName(mediaStorageBucketName)
+                                                                      .withPrefix(ObjectKeys.DIRECT_UPLOAD_PREFIX);
+        int deleted = 0;
+        try {
+            ListObjectsV2Result listing;
+            do {
+                listing = storageMetrics.timeS3("listObjectsV2", () -> bucket.listObjectsV2(listRequest));
+                for (S3ObjectSummary object : listing.getObjectSummaries()) {
+                    if (object.getLastModified().before(uploadedBefore) && !confirming.contains(object.getKey())) {
+                        storageMetrics.timeS3("deleteObject", () -> {
+                            bucket.deleteObject(mediaStorageBucketName, object.getKey());
+                            return null;
+                        });
+                        deleted++;
+                    }
+                }
+                listRequest.setContinuationToken(listing.getNextContinuationToken());
+            } while (listing.isTruncated());
+        } catch (RuntimeException e) {
+            log.error("Could not sweep unconfirmed direct uploads: {}", e.getMessage());
+        }
+        if (deleted > 0) {
+            log.info("Deleted {} unconfirmed direct uploads", deleted);
+        }
+    }
+
+    public CompletableFuture<List<DirectUpload>> presignAsync(String itemID, List<DirectUploadRequest> files, String userID) {
+        return ioExecutor.supply(() -> presign(itemID, files, userID));
+    }
+
+    public CompletableFuture<List<String>> confirmAsync(String itemID, List<DirectUpload> uploads, String userID) {
+        return ioExecutor.supply(() -> confirm(itemID, uploads, userID));
+    }
+
+    private List<String> confirmUploads(String itemID, List<DirectUpload> uploads, String userID) throws AbstractNotabaristaException, IOException {
+        List<String> mediaURLs = new ArrayList<>(uploads.size());
+        List<String> objectKeys = new ArrayList<>(uploads.size());
+        for (DirectUpload upload : uploads) {
+            String uploadKey = upload.getObjectKey();
+            if (uploadKey == null || !uploadKey.startsWith(ObjectKeys.DIRECT_UPLOAD_PREFIX)) {
+                throw new MediaStorageException("Media file not uploaded: " + uploadKey);
+            }
+            String objectKey = uploadKey.substring(ObjectKeys.DIRECT_UPLOAD_PREFIX.length());
+            if (storageMetrics.timeS3("getObjectMetadata", () -> bucket.doesObjectExist(mediaStorageBucketName, objectKey))) {
+                throw new MediaStorageException("Media file already confirmed: " + uploadKey);
+            }
+            verify(itemID, upload);
+            objectKeys.add(objectKey);
+        }
+
+        try {
+            for (int index = 0; index < uploads.size(); index++) {
+                String uploadKey = uploads.get(index).getObjectKey();
+                String objectKey = objectKeys.get(index);
+                storageMetrics.timeS3("putObject", () -> bucket.putObject(mediaStorageBucketName, ObjectKeys.reference(objectKey, itemID), ""));
+                storageMetrics.timeS3("copyObject", () -> bucket.copyObject(mediaStorageBucketName, uploadKey, mediaStorageBucketName, objectKey));
+                mediaURLs.add(storageMetrics.timeS3("getResourceUrl", () -> s3Client.getResourceUrl(mediaStorageBucketName, objectKey)));
+            }
+            derivativeService.addMedia(itemID, userID, mediaURLs, objectKeys);
+        } catch (AbstractNotabaristaException | RuntimeException e) {
+            log.error("Could not link direct uploads of item {}, leaving them unconfirmed: {}", itemID, e.getMessage());
+            // the keys are unique to the uploads, no other item refers to them
+            deleteObjects(objectKeys);
+            deleteObjects(objectKeys.stream().map(objectKey -> ObjectKeys.reference(objectKey, itemID)).collect(Collectors.toList()));
+            throw e;
+        }
+
+        for (DirectUpload upload : uploads) {
+            storageMetrics.recordStored(upload.getSize());
+        }
+        deleteObjects(uploads.stream().map(DirectUpload::getObjectKey).collect(Collectors.toList()));
+        log.info("Confirmed {} direct uploads for item {}", mediaURLs.size(), itemID);
+        return mediaURLs;
+    }
+
+    private void deleteObjects(List<String> objectKeys) {
+        for (String objectKey : objectKeys) {
+            try {
+                storageMetrics.timeS3("deleteObject", () -> {
+                    bucket.deleteObject(mediaStorageBucketName, objectKey);
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                log.error("Could not delete '{}': {}", objectKey, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The last path segment of a client's file name, which becomes the last segment of the object key.
+     */
+    private static String fileName(String fileName) {
+        if (fileName == null) {
+            throw new MediaStorageException("File name is required");
+        }
+        String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1).strip();
+        if (name.isEmpty() || name.equals(".") || name.equals("..") || name.length() > MAX_FILE_NAME_LENGTH
+                || name.chars().anyMatch(Character::isISOControl)) {
+            throw new MediaStorageException("Invalid file name: " + fileName);
+        }
+        return name;
+    }
+
+    private void checkFile(String contentType, long size) {
+        if (contentType == null || !contentType.startsWith("image/")) {
+            throw new MediaStorageException("Invalid content type: " + contentType);
+        }
+        if (size <= 0 || size > maxFileSize) {
+            throw new MediaStorageException("File size must be between 1 and " + maxFileSize + " bytes");
+        }
+    }
+
+    private void verify(String itemID, DirectUpload upload) throws IOException {
+        String objectKey = upload.getObjectKey();
+        ObjectMetadata objectMetadata;
+        try {
+            objectMetadata = storageMetrics.timeS3("getObjectMetadata", () -> bucket.getObjectMetadata(mediaStorageBucketName, objectKey));
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_FOUND) {
+                throw new MediaStorageException("Media file not uploaded: " + objectKey);
+            }
+            throw e;
+        }
+        // the item is signed into the upload URL, an object without it was not uploaded for this item
+        if (!itemID.equals(objectMetadata.getUserMetaDataOf(ITEM_ID_METADATA))) {
+            throw new MediaStorageException("Media file not uploaded: " + objectKey);
+        }
+
+        try {
+            checkFile(objectMetadata.getContentType(), objectMetadata.getContentLength());
+            if (!Objects.equals(upload.getContentType(), objectMetadata.getContentType()) || upload.getSize() != objectMetadata.getContentLength()) {
+                throw new MediaStorageException("Media file does not match its upload: " + objectKey);
+            }
+            if (ImageFormatSniffer.isDetectable(objectMetadata.getContentType()) && detectFormat(objectKey) == null) {
+                throw new MediaStorageException("Invalid file content: " + objectKey);
+            }
+        } catch (MediaStorageException e) {
+            log.warn("Deleting rejected direct upload '{}' of item {}: {}", objectKey, itemID, e.getMessage());
+            storageMetrics.timeS3("deleteObject", () -> {
+                bucket.deleteObject(mediaStorageBucketName, objectKey);
+                return null;
+            });
+            throw e;
+        }
+    }
+
+    private String detectFormat(String objectKey) throws IOException {
+        GetObjectRequest headerRequest = new GetObjectRequest(mediaStorageBucketName, objectKey).withRange(0, ImageFormatSniffer.HEADER_LENGTH - 1);
+        try (S3Object object = storageMetrics.timeS3("getObject", () -> bucket.getObject(headerRequest));
+             InputStream inputStream = object.getObjectContent()) {
+            byte[] header = new byte[ImageFormatSniffer.HEADER_LENGTH];
+            return ImageFormatSniffer.detect(header, inputStream.readNBytes(header, 0, header.length));
+        }
+    }
+}
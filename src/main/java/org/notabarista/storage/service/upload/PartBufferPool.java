@@ -0,0 +1,42 @@
+package org.notabarista.storage.service.upload;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed number of reusable part buffers, allocated lazily. When all buffers are in use {@link #acquire()} blocks,
+ * which throttles the readers of multipart uploads to the speed of the part uploads.
+ */
+class PartBufferPool {
+
+    private final BlockingQueue<byte[]> buffers;
+    private final int capacity;
+    private final int bufferSize;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    PartBufferPool(int capacity, int bufferSize) {
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+    }
+
+    byte[] acquire() throws InterruptedException {
+        byte[] buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated.getAndUpdate(count -> count < capacity ? count + 1 : count) < capacity) {
+            return new byte[bufferSize];
+        }
+        return buffers.take();
+    }
+
+    void release(byte[] buffer) {
+        buffers.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+}
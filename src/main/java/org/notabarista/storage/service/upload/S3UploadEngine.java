@@ -0,0 +1,262 @@
+package org.notabarista.storage.service.upload;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams media files into the bucket without buffering them in heap. Files below the multipart threshold are sent
+ * with a single PUT carrying the known content length; larger files are split into parts that are uploaded in
+ * parallel from a bounded pool of reusable buffers, so peak heap per upload is about part size x part parallelism.
+ */
+@Component
+@Log4j2
+public class S3UploadEngine {
+
+    private final AmazonS3 bucket;
+    private final StorageMetrics storageMetrics;
+    private final ExecutorService partUploadExecutor;
+    private final long multipartThreshold;
+    private final int partParallelism;
+    private final PartBufferPool bufferPool;
+
+    public S3UploadEngine(AmazonS3 bucket, StorageMetrics storageMetrics, @Qualifier("mediaPartUploadExecutor") ExecutorService partUploadExecutor,
+                          @Value("${filebase.upload.multipart.threshold:16777216}") long multipartThreshold,
+                          @Value("${filebase.upload.multipart.part-size:8388608}") int partSize,
+                          @Value("${filebase.upload.multipart.parallelism:3}") int partParallelism,
+                          @Value("${filebase.upload.multipart.buffers:8}") int partBuffers) {
+        this.bucket = bucket;
+        this.storageMetrics = storageMetrics;
+        this.partUploadExecutor = partUploadExecutor;
+        this.multipartThreshold = multipartThreshold;
+        this.partParallelism = Math.max(1, partParallelism);
+        this.bufferPool = new PartBufferPool(Math.max(this.partParallelism, partBuffers), partSize);
+    }
+
+    public void upload(String bucketName, String objectKey, MultipartFile file, ObjectMetadata objectMetadata) throws IOException {
+        try (InputStream inputStream = file.getInputStream()) {
+            upload(bucketName, objectKey, inputStream, file.getSize(), objectMetadata);
+        }
+    }
+
+    public void upload(String bucketName, String objectKey, InputStream inputStream, long size, ObjectMetadata objectMetadata) throws IOException {
+        objectMetadata.setContentLength(size);
+        if (size < multipartThreshold) {
+            storageMetrics.timeS3("putObject", () -> bucket.putObject(bucketName, objectKey, inputStream, objectMetadata));
+        } else {
+            uploadMultipart(bucketName, objectKey, inputStream, size, objectMetadata, null);
+        }
+    }
+
+    /**
+     * Uploads a stream of unknown length, e.g. a file part read straight off the request body. The stream is read
+     * one part buffer at a time and only while a buffer is free, so a slow bucket slows down the reader instead of
+     * growing the heap. Streams that end within the first buffer are sent with a single PUT.
+     */
+    public void upload(String bucketName, String objectKey, InputStream inputStream, ObjectMetadata objectMetadata) throws IOException {
+        byte[] firstPart;
+        int length;
+        try {
+            firstPart = bufferPool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Media upload interrupted");
+        }
+        try {
+            length = inputStream.readNBytes(firstPart, 0, firstPart.length);
+        } catch (IOException | RuntimeException e) {
+            bufferPool.release(firstPart);
+            throw e;
+        }
+
+        if (length < firstPart.length) {
+            try {
+                objectMetadata.setContentLength(length);
+                storageMetrics.timeS3("putObject",
+                        () -> bucket.putObject(bucketName, objectKey, new ByteArrayInputStream(firstPart, 0, length), objectMetadata));
+            } finally {
+                bufferPool.release(firstPart);
+            }
+        } else {
+            uploadMultipart(bucketName, objectKey, inputStream, -1, objectMetadata, firstPart);
+        }
+    }
+
+    /**
+     * @param size      the length of the stream, or -1 if it is read until its end
+     * @param firstPart a full part buffer already read from the stream, or {@code null}
+     */
+    private void uploadMultipart(String bucketName, String objectKey, InputStream inputStream, long size, ObjectMetadata objectMetadata,
+                                 byte[] firstPart) throws IOException {
+        String uploadId;
+        try {
+            uploadId = storageMetrics.timeS3("initiateMultipartUpload",
+                    () -> bucket.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, objectKey, objectMetadata)))
+                                     .getUploadId();
+        } catch (RuntimeException e) {
+            if (firstPart != null) {
+                bufferPool.release(firstPart);
+            }
+            throw e;
+        }
+        log.info("Started multipart upload '{}' of object '{}' ({} bytes)", uploadId, objectKey, size < 0 ? "unknown" : size);
+
+        Semaphore partsInFlight = new Semaphore(partParallelism);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<PartETag>> parts = new ArrayList<>();
+        byte[] pendingPart = firstPart;
+        try {
+            long remaining = size < 0 ? Long.MAX_VALUE : size;
+            int partNumber = 1;
+            while (remaining > 0 && failure.get() == null) {
+                partsInFlight.acquire();
+                byte[] buffer;
+                int partSize;
+                if (pendingPart != null) {
+                    buffer = pendingPart;
+                    pendingPart = null;
+                    partSize = buffer.length;
+                } else {
+                    buffer = acquireBuffer(partsInFlight);
+                    int expected = (int) Math.min(bufferPool.getBufferSize(), remaining);
+                    partSize = readPart(inputStream, buffer, expected, partsInFlight);
+                    if (size >= 0 && partSize < expected) {
+                        release(buffer, partsInFlight);
+                        throw new IOException("Unexpected end of stream for object '" + objectKey + "'");
+                    }
+                    if (partSize == 0) {
+                        release(buffer, partsInFlight);
+                        break;
+                    }
+                }
+
+                UploadPartRequest uploadPartRequest = new UploadPartRequest().withBucketName(bucketName)
+                                                                             .withKey(objectKey)
+                                                                             .withUploadId(uploadId)
+                                                                             .withPartNumber(partNumber++)
+                                                                             .withPartSize(partSize)
+                                                                             .withInputStream(new ByteArrayInputStream(buffer, 0, partSize));
+                parts.add(partUploadExecutor.submit(() -> {
+                    try {
+                        if (failure.get() != null) {
+                            throw new MediaStorageException("Multipart upload of '" + objectKey + "' aborted");
+                        }
+                        return storageMetrics.timeS3("uploadPart", () -> bucket.uploadPart(uploadPartRequest)).getPartETag();
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        release(buffer, partsInFlight);
+                    }
+                }));
+                remaining -= partSize;
+                if (size < 0 && partSize < bufferPool.getBufferSize()) {
+                    break;
+                }
+            }
+
+            List<PartETag> partETags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            storageMetrics.timeS3("completeMultipartUpload",
+                    () -> bucket.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, objectKey, uploadId, partETags)));
+            log.info("Completed multipart upload '{}' of object '{}' in {} parts", uploadId, objectKey, partETags.size());
+        } catch (ExecutionException e) {
+            abort(bucketName, objectKey, uploadId, parts, failure, e.getCause());
+            Throwable cause = failure.get();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new MediaStorageException("Multipart upload of '" + objectKey + "' failed: " + cause.getMessage());
+        } catch (InterruptedException e) {
+            releasePending(pendingPart);
+            abort(bucketName, objectKey, uploadId, parts, failure, e);
+            Thread.currentThread().interrupt();
+            throw new MediaStorageException("Media upload interrupted");
+        } catch (IOException | RuntimeException e) {
+            releasePending(pendingPart);
+            abort(bucketName, objectKey, uploadId, parts, failure, e);
+            throw e;
+        }
+    }
+
+    private byte[] acquireBuffer(Semaphore partsInFlight) throws InterruptedException {
+        try {
+            return bufferPool.acquire();
+        } catch (InterruptedException e) {
+            partsInFlight.release();
+            throw e;
+        }
+    }
+
+    private int readPart(InputStream inputStream, byte[] buffer, int length, Semaphore partsInFlight) throws IOException {
+        try {
+            return inputStream.readNBytes(buffer, 0, length);
+        } catch (IOException | RuntimeException e) {
+            release(buffer, partsInFlight);
+            throw e;
+        }
+    }
+
+    private void release(byte[] buffer, Semaphore partsInFlight) {
+        bufferPool.release(buffer);
+        partsInFlight.release();
+    }
+
+    private void releasePending(byte[] pendingPart) {
+        if (pendingPart != null) {
+            bufferPool.release(pendingPart);
+        }
+    }
+
+    /**
+     * Lets the queued parts skip their upload, waits for the ones in flight so that every buffer is back in the
+     * pool, and then discards the parts stored so far.
+     */
+    private void abort(String bucketName, String objectKey, String uploadId, List<Future<PartETag>> parts,
+                       AtomicReference<Throwable> failure, Throwable cause) {
+        failure.compareAndSet(null, cause);
+        for (Future<PartETag> part : parts) {
+            try {
+                part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // reported through the first failure
+            }
+        }
+        try {
+            storageMetrics.timeS3("abortMultipartUpload", () -> {
+                bucket.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, objectKey, uploadId));
+                return null;
+            });
+            log.info("Aborted multipart upload '{}' of object '{}'", uploadId, objectKey);
+        } catch (RuntimeException e) {
+            log.error("Could not abort multipart upload '{}' of object '{}': {}", uploadId, objectKey, e.getMessage());
+        }
+    }
+}
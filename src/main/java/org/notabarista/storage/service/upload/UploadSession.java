@@ -0,0 +1,54 @@
+package org.notabarista.storage.service.upload;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * State of a resumable upload: the S3 multipart upload it writes to and the ETags of the parts received so far,
+ * keyed by part number. The chunk at offset {@code o} is part {@code o / chunkSize + 1}.
+ */
+@Data
+@NoArgsConstructor
+class UploadSession {
+
+    private String id;
+    private String itemID;
+    private String userID;
+    private String fileName;
+    private String contentType;
+    private String objectKey;
+    private String uploadID;
+    private long size;
+    private long chunkSize;
+    private long createdAt;
+    private long lastModified;
+    private SortedMap<Integer, String> parts = new TreeMap<>();
+
+    /**
+     * Set once the multipart upload is completed: the file is then the object under {@code objectKey} until it is
+     * linked, and discarding the session deletes that object instead of aborting the upload.
+     */
+    private boolean assembled;
+
+    /**
+     * Set while the multipart upload is being completed or aborted; not persisted, an interrupted completion can be
+     * retried after a restart.
+     */
+    @JsonIgnore
+    private boolean closing;
+
+    @JsonIgnore
+    int getPartCount() {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    UploadSessionStatus toStatus() {
+        return new UploadSessionStatus(id, itemID, size, chunkSize,
+                parts.keySet().stream().map(partNumber -> (partNumber - 1) * chunkSize).collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,485 @@
+package org.notabarista.storage.service.upload;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j2;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.api.validator.ImageFormatSniffer;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ItemService;
+import org.notabarista.storage.service.ObjectKeys;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Resumable uploads of single files. A session wraps an S3 multipart upload: every chunk a client sends is one part,
+ * so a chunk that failed on a flaky connection is simply sent again and the chunks already received never are.
+ * Sessions live in a local {@link UploadSessionStore}; those idle for longer than their time to live are aborted by a
+ * background sweeper so their parts do not linger in the bucket.
+ */
+@Service
+@Log4j2
+public class UploadSessionService {
+
+    /**
+     * Smallest part size S3 accepts for every part but the last.
+     */
+    static final long MIN_CHUNK_SIZE = DataSize.ofMegabytes(5).toBytes();
+
+    private static final String NO_SUCH_UPLOAD = "NoSuchUpload";
+
+    private final ItemService itemService;
+    private final DerivativeService derivativeService;
+    private final AmazonS3 bucket;
+    private final String mediaStorageBucketName;
+    private final AmazonS3Client s3Client;
+    private final StorageMetrics storageMetrics;
+    private final IoExecutor ioExecutor;
+    private final ObjectMapper objectMapper;
+    private final Path directory;
+    private final long chunkSize;
+    private final long maxFileSize;
+    private final Duration ttl;
+    private final Duration sweepInterval;
+    private final boolean contentAddressedKeys;
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private UploadSessionStore store;
+    private ScheduledExecutorService sweeper;
+
+    public UploadSessionService(ItemService itemService, DerivativeService derivativeService,
+                                AmazonS3 bucket, @Value("${filebase.bucket}") String mediaStorageBucketName, AmazonS3Client s3Client,
+                                StorageMetrics storageMetrics, @Qualifier("mediaIoExecutor") IoExecutor ioExecutor, ObjectMapper objectMapper,
+                                @Value("${filebase.upload.sessions.directory:${java.io.tmpdir}/be-storage-service/upload-sessions}") Path directory,
+                                @Value("${filebase.upload.sessions.chunk-size:8MB}") DataSize chunkSize,
+                                @Value("${spring.servlet.multipart.max-file-size:1MB}") DataSize maxFileSize,
+                                @Value("${filebase.upload.sessions.ttl:24h}") Duration ttl,
+                                @Value("${filebase.upload.sessions.sweep-interval:15m}") Duration sweepInterval,
+                                @Value("${filebase.object-keys.content-addressed:false}") boolean contentAddressedKeys) {
+        this.itemService = itemService;
+        this.derivativeService = derivativeService;
+        this.bucket = bucket;
+        this.mediaStorageBucketName = mediaStorageBucketName;
+        this.s3Client = s3Client;
+        this.storageMetrics = storageMetrics;
+        this.ioExecutor = ioExecutor;
+        this.objectMapper = objectMapper;
+        this.directory = directory;
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize.toBytes());
+        this.maxFileSize = maxFileSize.toBytes();
+        this.ttl = ttl;
+        this.sweepInterval = sweepInterval;
+        this.contentAddressedKeys = contentAddressedKeys;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        store = new UploadSessionStore(directory, objectMapper);
+        for (UploadSession session : store.load()) {
+            sessions.put(session.getId(), session);
+        }
+        log.info("Loaded {} upload sessions from '{}'", sessions.size(), directory);
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("upload-session-sweeper-"));
+        sweeper.scheduleWithFixedDelay(this::sweep, sweepInterval.toMillis(), sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    /**
+     * Opens a session for a file of {@code size} bytes. The client then sends the file in chunks of the returned
+     * chunk size, the last one possibly shorter.
+     */
+    public UploadSessionStatus create(String itemID, String fileName, String contentType, long size, String userID) throws AbstractNotabaristaException {
+        if (contentType == null || !contentType.startsWith("image/")) {
+            throw new MediaStorageException("Invalid content type: " + contentType);
+        }
+        if (size <= 0 || size > maxFileSize) {
+            throw new MediaStorageException("File size must be between 1 and " + maxFileSize + " bytes");
+        }
+        if (!itemService.itemExists(itemID, userID)) {
+            throw new MediaStorageException("Item not found");
+        }
+
+        String sessionID = UUID.randomUUID().toString();
+        String objectKey = contentAddressedKeys ? ObjectKeys.STAGING_PREFIX + sessionID : fileName;
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setUserMetadata(Map.of("itemID", itemID));
+        objectMetadata.setContentType(contentType);
+        String uploadID = storageMetrics.timeS3("initiateMultipartUpload", () -> bucket.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(mediaStorageBucketName, objectKey, objectMetadata))).getUploadId();
+
+        UploadSession session = new UploadSession();
+        session.setId(sessionID);
+        session.setItemID(itemID);
+        session.setUserID(userID);
+        session.setFileName(fileName);
+        session.setContentType(contentType);
+        session.setObjectKey(objectKey);
+        session.setUploadID(uploadID);
+        session.setSize(size);
+        session.setChunkSize(chunkSize);
+        session.setCreatedAt(System.currentTimeMillis());
+        session.setLastModified(session.getCreatedAt());
+        try {
+            save(session);
+        } catch (MediaStorageException e) {
+            abortMultipartUpload(session);
+            throw e;
+        }
+        sessions.put(sessionID, session);
+        log.info("Opened upload session {} for '{}' of item {}, {} bytes", sessionID, fileName, itemID, size);
+        return session.toStatus();
+    }
+
+    /**
+     * Uploads the chunk at {@code offset} as a part of the session's multipart upload. A chunk sent again replaces
+     * the one received before.
+     */
+    public UploadSessionStatus uploadChunk(String sessionID, long offset, InputStream content, long length, String userID) throws IOException {
+        UploadSession session = session(sessionID, userID);
+        long sessionChunkSize = session.getChunkSize();
+        if (offset < 0 || offset >= session.getSize() || offset % sessionChunkSize != 0) {
+            throw new MediaStorageException("Invalid chunk offset: " + offset);
+        }
+        long expectedLength = Math.min(sessionChunkSize, session.getSize() - offset);
+        if (length != expectedLength) {
+            throw new MediaStorageException("Chunk at offset " + offset + " must be " + expectedLength + " bytes");
+        }
+        checkOpen(session);
+
+        InputStream partContent = content;
+        if (offset == 0 && ImageFormatSniffer.isDetectable(session.getContentType())) {
+            PushbackInputStream header = new PushbackInputStream(content, ImageFormatSniffer.HEADER_LENGTH);
+            if (ImageFormatSniffer.detect(header) == null) {
+                throw new MediaStorageException("Invalid file content: " + session.getFileName());
+            }
+            partContent = header;
+        }
+        int partNumber = (int) (offset / sessionChunkSize) + 1;
+        UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                .withBucketName(mediaStorageBucketName)
+                .withKey(session.getObjectKey())
+                .withUploadId(session.getUploadID())
+                .withPartNumber(partNumber)
+                .withPartSize(length)
+                .withInputStream(partContent);
+        String eTag = storageMetrics.timeS3("uploadPart", () -> bucket.uploadPart(uploadPartRequest)).getETag();
+
+        synchronized (session) {
+            if (sessions.get(sessionID) != session) {
+                // aborted while the part was uploaded
+                throw new MediaStorageException("Upload session not found");
+            }
+            session.getParts().put(partNumber, eTag);
+            session.setLastModified(System.currentTimeMillis());
+            save(session);
+            return session.toStatus();
+        }
+    }
+
+    public UploadSessionStatus status(String sessionID, String userID) {
+        UploadSession session = session(sessionID, userID);
+        synchronized (session) {
+            return session.toStatus();
+        }
+    }
+
+    /**
+     * Assembles the received chunks into the media file and links it to the item. Fails, keeping the session open,
+     * while chunks are missing. The session is only removed once the file is linked; if linking fails the assembled
+     * file is kept so the completion can be retried, and deleted when the session is aborted or expires.
+     */
+    public String complete(String sessionID, String userID) throws AbstractNotabaristaException, IOException {
+        UploadSession session = session(sessionID, userID);
+        List<PartETag> partETags = new ArrayList<>();
+        synchronized (session) {
+            checkOpen(session);
+            for (int partNumber = 1; partNumber <= session.getPartCount(); partNumber++) {
+                String eTag = session.getParts().get(partNumber);
+                if (eTag == null) {
+                    throw new MediaStorageException("Chunk at offset " + (partNumber - 1) * session.getChunkSize() + " is missing");
+                }
+                partETags.add(new PartETag(partNumber, eTag));
+            }
+            session.setClosing(true);
+        }
+
+        ContentAddress contentAddress = null;
+        try {
+            if (!session.isAssembled()) {
+                storageMetrics.timeS3("completeMultipartUpload", () -> bucket.completeMultipartUpload(new CompleteMultipartUploadRequest(
+                        mediaStorageBucketName, session.getObjectKey(), session.getUploadID(), partETags)));
+                storageMetrics.recordUpload(session.getSize());
+                synchronized (session) {
+                    session.setAssembled(true);
+                    session.setLastModified(System.currentTimeMillis());
+                    save(session);
+                }
+            }
+
+            if (!contentAddressedKeys) {
+                retain(session.getObjectKey(), session.getItemID());
+            }
+            contentAddress = contentAddressedKeys ? moveToContentAddress(session) : null;
+            String objectKey = contentAddress != null ? contentAddress.getObjectKey() : session.getObjectKey();
+            String resourceUrl = storageMetrics.timeS3("getResourceUrl", () -> s3Client.getResourceUrl(mediaStorageBucketName, objectKey));
+            derivativeService.addMedia(session.getItemID(), userID, List.of(resourceUrl), List.of(objectKey));
+
+            if (contentAddress != null) {
+                deleteObject(session.getObjectKey());
+            } else {
+                storageMetrics.recordStored(session.getSize());
+            }
+            remove(session);
+            log.info("Completed upload session {} of '{}', URL '{}'", sessionID, session.getFileName(), resourceUrl);
+            return resourceUrl;
+        } catch (AbstractNotabaristaException | IOException | RuntimeException e) {
+            if (contentAddress != null) {
+                release(contentAddress.getObjectKey(), session.getItemID(), contentAddress.isCreated());
+            }
+            synchronized (session) {
+                session.setClosing(false);
+            }
+            throw e;
+        }
+    }
+
+    public void abort(String sessionID, String userID) {
+        UploadSession session = session(sessionID, userID);
+        synchronized (session) {
+            checkOpen(session);
+            session.setClosing(true);
+        }
+        try {
+            discard(session);
+        } catch (RuntimeException e) {
+            synchronized (session) {
+                session.setClosing(false);
+            }
+            throw e;
+        }
+        remove(session);
+        log.info("Aborted upload session {} of '{}'", sessionID, session.getFileName());
+    }
+
+    public CompletableFuture<UploadSessionStatus> createAsync(String itemID, String fileName, String contentType, long size, String userID) {
+        return ioExecutor.supply(() -> create(itemID, fileName, contentType, size, userID));
+    }
+
+    public CompletableFuture<UploadSessionStatus> uploadChunkAsync(String sessionID, long offset, InputStream content, long length, String userID) {
+        return ioExecutor.supply(() -> uploadChunk(sessionID, offset, content, length, userID));
+    }
+
+    public CompletableFuture<String> completeAsync(String sessionID, String userID) {
+        return ioExecutor.supply(() -> complete(sessionID, userID));
+    }
+
+    public CompletableFuture<Void> abortAsync(String sessionID, String userID) {
+        return ioExecutor.supply(() -> {
+            abort(sessionID, userID);
+            return null;
+        });
+    }
+
+    /**
+     * Aborts the sessions that received nothing within their time to live. A session whose abort fails stays in the
+     * store and is tried again on the next sweep.
+     */
+    void sweep() {
+        long expiredBefore = System.currentTimeMillis() - ttl.toMillis();
+        int aborted = 0;
+        for (UploadSession session : sessions.values()) {
+            synchronized (session) {
+                if (session.isClosing() || session.getLastModified() > expiredBefore) {
+                    continue;
+                }
+                session.setClosing(true);
+            }
+            try {
+                discard(session);
+                remove(session);
+                aborted++;
+            } catch (RuntimeException e) {
+                synchronized (session) {
+                    session.setClosing(false);
+                }
+                log.error("Could not abort expired upload session {}: {}", session.getId(), e.getMessage());
+            }
+        }
+        if (aborted > 0) {
+            log.info("Aborted {} expired upload sessions", aborted);
+        }
+    }
+
+    private UploadSession session(String sessionID, String userID) {
+        UploadSession session = sessions.get(sessionID);
+        if (session == null || !session.getUserID().equals(userID)) {
+            throw new MediaStorageException("Upload session not found");
+        }
+        return session;
+    }
+
+    private static void checkOpen(UploadSession session) {
+        synchronized (session) {
+            if (session.isClosing()) {
+                throw new MediaStorageException("Upload session is closing");
+            }
+        }
+    }
+
+    private void save(UploadSession session) {
+        try {
+            store.save(session);
+        } catch (IOException e) {
+            log.error("Could not record upload session {}: {}", session.getId(), e.getMessage());
+            throw new MediaStorageException("Could not record upload session");
+        }
+    }
+
+    private void remove(UploadSession session) {
+        sessions.remove(session.getId(), session);
+        try {
+            store.delete(session.getId());
+        } catch (IOException e) {
+            log.error("Could not delete upload session {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Drops what a session wrote to the bucket: its multipart upload, or the assembled file once it was completed.
+     */
+    private void discard(UploadSession session) {
+        if (session.isAssembled()) {
+            storageMetrics.timeS3("deleteObject", () -> {
+                bucket.deleteObject(mediaStorageBucketName, session.getObjectKey());
+                return null;
+            });
+            deleteObject(ObjectKeys.reference(session.getObjectKey(), session.getItemID()));
+        } else {
+            abortMultipartUpload(session);
+        }
+    }
+
+    /**
+     * Records that the item refers to the object stored under {@code objectKey}, before it is stored or linked.
+     */
+    private void retain(String objectKey, String itemID) {
+        storageMetrics.timeS3("putObject", () -> bucket.putObject(mediaStorageBucketName, ObjectKeys.reference(objectKey, itemID), ""));
+    }
+
+    /**
+     * Drops the reference of the item to a content-addressed object it could not link, and deletes the object if the
+     * session created it and no other item refers to it by now.
+     */
+    private void release(String objectKey, String itemID, boolean created) {
+        String reference = ObjectKeys.reference(objectKey, itemID);
+        try {
+            ListObjectsV2Result listing = storageMetrics.timeS3("listObjectsV2",
+                    () -> bucket.listObjectsV2(mediaStorageBucketName, ObjectKeys.references(objectKey)));
+            List<String> references = listing.getObjectSummaries().stream().map(S3ObjectSummary::getKey).collect(Collectors.toList());
+            if (created && !listing.isTruncated() && ObjectKeys.isReleased(objectKey, itemID, references, true)) {
+                deleteObject(objectKey);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not list the references to '{}', keeping it: {}", objectKey, e.getMessage());
+        }
+        deleteObject(reference);
+    }
+
+    private void deleteObject(String objectKey) {
+        try {
+            storageMetrics.timeS3("deleteObject", () -> {
+                bucket.deleteObject(mediaStorageBucketName, objectKey);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not delete '{}': {}", objectKey, e.getMessage());
+        }
+    }
+
+    private void abortMultipartUpload(UploadSession session) {
+        try {
+            storageMetrics.timeS3("abortMultipartUpload", () -> {
+                bucket.abortMultipartUpload(new AbortMultipartUploadRequest(mediaStorageBucketName, session.getObjectKey(), session.getUploadID()));
+                return null;
+            });
+        } catch (AmazonServiceException e) {
+            if (!NO_SUCH_UPLOAD.equals(e.getErrorCode())) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The parts of a session arrive in any order and across restarts, so in content-addressed mode the digest of the
+     * assembled staging object is computed by reading it back once; it is then copied to its content address unless
+     * that is taken already. The staging object is kept until the file is linked.
+     */
+    private ContentAddress moveToContentAddress(UploadSession session) throws IOException {
+        String stagingKey = session.getObjectKey();
+        MessageDigest digest = ObjectKeys.newContentDigest();
+        try (S3Object object = storageMetrics.timeS3("getObject", () -> bucket.getObject(mediaStorageBucketName, stagingKey));
+             InputStream inputStream = new DigestInputStream(object.getObjectContent(), digest)) {
+            inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+        String objectKey = ObjectKeys.contentAddressed(digest.digest(), session.getFileName());
+        retain(objectKey, session.getItemID());
+        boolean exists = storageMetrics.timeS3("getObjectMetadata", () -> bucket.doesObjectExist(mediaStorageBucketName, objectKey));
+        storageMetrics.recordDeduplication(exists, session.getSize());
+        if (!exists) {
+            storageMetrics.timeS3("copyObject", () -> bucket.copyObject(mediaStorageBucketName, stagingKey, mediaStorageBucketName, objectKey));
+            storageMetrics.recordStored(session.getSize());
+        }
+        return new ContentAddress(objectKey, !exists);
+    }
+
+    @lombok.Value
+    private static class ContentAddress {
+        String objectKey;
+        boolean created;
+    }
+}
@@ -0,0 +1,17 @@
+package org.notabarista.storage.service.upload;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * What a client needs to resume an upload: the chunk size and the offsets of the chunks already received.
+ */
+@Value
+public class UploadSessionStatus {
+    String sessionID;
+    String itemID;
+    long size;
+    long chunkSize;
+    List<Long> receivedOffsets;
+}
@@ -0,0 +1,61 @@
+package org.notabarista.storage.service.upload;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps each upload session in its own JSON file, replaced atomically on every change so a crash leaves either the
+ * old or the new state behind.
+ */
+@Log4j2
+class UploadSessionStore {
+
+    private static final String SESSION_SUFFIX = ".json";
+
+    private final Path directory;
+    private final ObjectMapper objectMapper;
+
+    UploadSessionStore(Path directory, ObjectMapper objectMapper) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.objectMapper = objectMapper;
+    }
+
+    List<UploadSession> load() throws IOException {
+        List<Path> files;
+        try (Stream<Path> paths = Files.list(directory)) {
+            files = paths.filter(path -> path.getFileName().toString().endsWith(SESSION_SUFFIX)).collect(Collectors.toList());
+        }
+        List<UploadSession> sessions = new ArrayList<>(files.size());
+        for (Path file : files) {
+            try {
+                sessions.add(objectMapper.readValue(file.toFile(), UploadSession.class));
+            } catch (IOException e) {
+                log.error("Skipping unreadable upload session '{}': {}", file, e.getMessage());
+            }
+        }
+        return sessions;
+    }
+
+    void save(UploadSession session) throws IOException {
+        Path temporary = directory.resolve(session.getId() + SESSION_SUFFIX + ".tmp");
+        objectMapper.writeValue(temporary.toFile(), session);
+        Files.move(temporary, sessionPath(session.getId()), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    void delete(String sessionID) throws IOException {
+        Files.deleteIfExists(sessionPath(sessionID));
+    }
+
+    private Path sessionPath(String sessionID) {
+        return directory.resolve(sessionID + SESSION_SUFFIX);
+    }
+}
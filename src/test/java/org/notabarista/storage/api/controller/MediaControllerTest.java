@@ -1,48 +1,86 @@
 package org.notabarista.storage.api.controller;
 
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.fileupload.FileItemIterator;
 import org.junit.jupiter.api.Test;
 import org.notabarista.service.util.IBackendRequestService;
 import org.notabarista.service.util.ICheckAccessService;
+import org.notabarista.storage.exception.MediaNotFoundException;
 import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.kafka.outbox.MediaEventOutbox;
 import org.notabarista.storage.kafka.producer.MediaEventProducer;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.BulkItemResult;
+import org.notabarista.storage.service.ItemOwnershipCache;
 import org.notabarista.storage.service.ItemService;
 import org.notabarista.storage.service.MediaService;
 import org.notabarista.storage.service.StorageService;
+import org.notabarista.storage.service.derivative.MediaVariant;
+import org.notabarista.storage.service.derivative.VariantService;
+import org.notabarista.storage.service.download.DownloadService;
+import org.notabarista.storage.service.download.ObjectDownload;
+import org.notabarista.storage.service.spool.SpooledUploadStatus;
+import org.notabarista.storage.service.spool.WriteBehindService;
+import org.notabarista.storage.service.upload.DirectUpload;
+import org.notabarista.storage.service.upload.DirectUploadService;
+import org.notabarista.storage.service.upload.UploadSessionService;
 import org.notabarista.util.NABConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
-import static org.mockito.Mockito.doNothing;
-import static org.mockito.Mockito.doThrow;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @WebMvcTest(MediaController.class)
 @Log4j2
 public class MediaControllerTest {
 
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+    private static final byte[] PNG_DATA = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0, 0, 0x0D, 'I', 'H', 'D', 'R'};
+
     @Autowired
     private MockMvc mockMvc;
 
     @MockBean
     private MediaEventProducer mediaEventProducer;
 
+    @MockBean
+    private MediaEventOutbox mediaEventOutbox;
+
     @MockBean
     private IBackendRequestService backendRequestService;
 
@@ -52,28 +90,52 @@ public class MediaControllerTest {
     @MockBean
     private ItemService itemService;
 
+    @MockBean
+    private ItemOwnershipCache itemOwnershipCache;
+
     @MockBean
     private StorageService storageService;
 
+    @MockBean
+    private StorageMetrics storageMetrics;
+
     @MockBean
     private MediaService mediaService;
 
+    @MockBean
+    private UploadSessionService uploadSessionService;
+
+    @MockBean
+    private DirectUploadService directUploadService;
+
+    @MockBean
+    private VariantService variantService;
+
+    @MockBean
+    private DownloadService downloadService;
+
+    @MockBean
+    private WriteBehindService writeBehindService;
+
     @Test
     public void storeFiles_validInputShouldReturnValidOutput() throws Exception {
         // given
         String userIDHeader = "mock";
         String itemID = "mock";
-        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock data".getBytes());
-        MockMultipartFile secondFile = new MockMultipartFile("files", "image2.png", "image/png", "mock data".getBytes());
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        MockMultipartFile secondFile = new MockMultipartFile("files", "image2.png", "image/png", PNG_DATA);
         List<String> mockMediaURLs = List.of("url1", "url2");
-        when(storageService.store(itemID, new MultipartFile[]{firstFile, secondFile}, userIDHeader)).thenReturn(mockMediaURLs);
+        when(storageService.storeAsync(itemID, new MultipartFile[]{firstFile, secondFile}, userIDHeader)).thenReturn(CompletableFuture.completedFuture(mockMediaURLs));
 
         // when
-        this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
-                                                   .file(firstFile)
-                                                   .file(secondFile)
-                                                   .param("itemID", itemID)
-                                                   .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
+                                                                         .file(firstFile)
+                                                                         .file(secondFile)
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                     .andDo(print())
                     // then
                     .andExpect(status().isOk())
@@ -82,12 +144,85 @@ public class MediaControllerTest {
                     .andExpect(jsonPath("$[1]", is(mockMediaURLs.get(1))));
     }
 
+    @Test
+    public void storeFiles_writeBehindShouldReturnAccepted() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        SpooledUploadStatus upload = new SpooledUploadStatus("upload", itemID, "PENDING", 0, null, List.of("url1"));
+        when(writeBehindService.isEnabled()).thenReturn(true);
+        when(writeBehindService.spoolAsync(itemID, new MultipartFile[]{firstFile}, userIDHeader)).thenReturn(CompletableFuture.completedFuture(upload));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
+                                                                         .file(firstFile)
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isAccepted())
+                    .andExpect(header().string("Location", "/uploads/upload"))
+                    .andExpect(jsonPath("$[0]", is("url1")));
+        verify(storageService, never()).storeAsync(any(), any(), any());
+    }
+
+    @Test
+    public void getUpload_shouldReturnStatus() throws Exception {
+        // given
+        when(writeBehindService.status("upload", "mock"))
+                .thenReturn(new SpooledUploadStatus("upload", "item", "UPLOADED", 1, null, List.of("url1")));
+
+        // when
+        this.mockMvc.perform(MockMvcRequestBuilders.get("/uploads/upload")
+                                                   .header(NABConstants.UID_HEADER_NAME, "mock"))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.state", is("UPLOADED")))
+                    .andExpect(jsonPath("$.mediaURLs[0]", is("url1")));
+    }
+
+    @Test
+    public void storeBulk_shouldGroupFilesByItem() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        MockMultipartFile firstFile = new MockMultipartFile("item1", "image1.jpg", "image/jpg", JPEG_DATA);
+        MockMultipartFile secondFile = new MockMultipartFile("item2", "image2.png", "image/png", PNG_DATA);
+        when(storageService.storeAllAsync(any(), eq(userIDHeader)))
+                .thenAnswer(invocation -> {
+                    Map<String, List<MultipartFile>> filesByItem = invocation.getArgument(0);
+                    List<BulkItemResult> results = new ArrayList<>();
+                    filesByItem.forEach((itemID, files) -> results.add(BulkItemResult.succeeded(itemID, List.of(files.get(0).getOriginalFilename()))));
+                    return CompletableFuture.completedFuture(results);
+                });
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.multipart("/bulk")
+                                                                         .file(firstFile)
+                                                                         .file(secondFile)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$", hasSize(2)))
+                    .andExpect(jsonPath("$[0].itemID", is("item1")))
+                    .andExpect(jsonPath("$[0].mediaURLs[0]", is("image1.jpg")))
+                    .andExpect(jsonPath("$[1].itemID", is("item2")));
+    }
+
     @Test
     public void storeFiles_invalidFileTypeShouldReturnBadRequest() throws Exception {
         // given
         String userIDHeader = "mock";
         String itemID = "mock";
-        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock data".getBytes());
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
         MockMultipartFile secondFile = new MockMultipartFile("files", "file.txt", "text/plain", "mock data".getBytes());
 
         // when
@@ -102,6 +237,48 @@ public class MediaControllerTest {
                     .andExpect(content().string(containsString("Invalid content type: text/plain")));
     }
 
+    @Test
+    public void storeFiles_spoofedContentShouldReturnBadRequest() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        MockMultipartFile secondFile = new MockMultipartFile("files", "script.png", "image/png", "mock data".getBytes());
+
+        // when
+        this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
+                                                   .file(firstFile)
+                                                   .file(secondFile)
+                                                   .param("itemID", itemID)
+                                                   .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string(containsString("Invalid file content: script.png")));
+    }
+
+    @Test
+    public void storeFiles_imageTypesWithoutSignatureShouldNotBeSniffed() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        MockMultipartFile bitmap = new MockMultipartFile("files", "image1.bmp", "image/bmp", "BM mock data".getBytes());
+        when(storageService.storeAsync(itemID, new MultipartFile[]{bitmap}, userIDHeader)).thenReturn(CompletableFuture.completedFuture(List.of("url1")));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
+                                                                         .file(bitmap)
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$[0]", is("url1")));
+    }
+
     @Test
     public void storeFiles_missingFilesShouldReturnBadRequest() throws Exception {
         // given
@@ -121,8 +298,8 @@ public class MediaControllerTest {
     public void storeFiles_missingItemIDShouldReturnBadRequest() throws Exception {
         // given
         String userIDHeader = "mock";
-        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock data".getBytes());
-        MockMultipartFile secondFile = new MockMultipartFile("files", "image2.png", "image/png", "mock data".getBytes());
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        MockMultipartFile secondFile = new MockMultipartFile("files", "image2.png", "image/png", PNG_DATA);
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
@@ -139,9 +316,9 @@ public class MediaControllerTest {
         // given
         String userIDHeader = "mock";
         String itemID = "mock";
-        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock data".getBytes());
-        MockMultipartFile secondFile = new MockMultipartFile("files", "image2.png", "image/png", "mock data".getBytes());
-        when(storageService.store(itemID, new MultipartFile[]{firstFile, secondFile}, userIDHeader)).thenThrow(MediaStorageException.class);
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        MockMultipartFile secondFile = new MockMultipartFile("files", "image2.png", "image/png", PNG_DATA);
+        when(storageService.storeAsync(itemID, new MultipartFile[]{firstFile, secondFile}, userIDHeader)).thenReturn(CompletableFuture.failedFuture(new MediaStorageException("Item not found")));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
@@ -153,6 +330,96 @@ public class MediaControllerTest {
                     .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void storeFiles_busyShouldReturnServiceUnavailable() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        when(storageService.storeAsync(itemID, new MultipartFile[]{firstFile}, userIDHeader)).thenReturn(CompletableFuture.failedFuture(new RejectedExecutionException()));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
+                                                                         .file(firstFile)
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isServiceUnavailable());
+    }
+
+    @Test
+    public void storeFiles_overloadedShouldReturnRetryAfter() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        when(storageService.storeAsync(itemID, new MultipartFile[]{firstFile}, userIDHeader))
+                .thenReturn(CompletableFuture.failedFuture(new StorageUnavailableException("Too many media requests in flight", Duration.ofMillis(1500))));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.multipart("/")
+                                                                         .file(firstFile)
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string(HttpHeaders.RETRY_AFTER, "2"));
+    }
+
+    @Test
+    public void streamFiles_validInputShouldReturnValidOutput() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        String body = "--boundary\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"image1.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n"
+                + "mock data\r\n"
+                + "--boundary--\r\n";
+        when(storageService.storeStreamAsync(eq(itemID), any(FileItemIterator.class), eq(userIDHeader))).thenAnswer(invocation -> {
+            FileItemIterator files = invocation.getArgument(1);
+            List<String> mediaURLs = new ArrayList<>();
+            while (files.hasNext()) {
+                mediaURLs.add("http://localhost/" + files.next().getName());
+            }
+            return CompletableFuture.completedFuture(mediaURLs);
+        });
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.post("/stream/" + itemID)
+                                                                         .contentType("multipart/form-data; boundary=boundary")
+                                                                         .content(body)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$", hasSize(1)))
+                    .andExpect(jsonPath("$[0]", is("http://localhost/image1.jpg")));
+    }
+
+    @Test
+    public void streamFiles_notMultipartShouldReturnUnsupportedMediaType() throws Exception {
+        // when
+        this.mockMvc.perform(MockMvcRequestBuilders.post("/stream/mock")
+                                                   .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                   .content("[]")
+                                                   .header(NABConstants.UID_HEADER_NAME, "mock"))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isUnsupportedMediaType());
+    }
+
     @Test
     public void deleteFiles_validInputShouldReturnValidOutput() throws Exception {
         // given
@@ -160,18 +427,22 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(storageService).delete(itemID, mockMediaURLs, userIDHeader);
+        when(storageService.deleteAsync(itemID, mockMediaURLs, userIDHeader)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
-        this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
-                                                   .contentType(MediaType.APPLICATION_JSON_VALUE)
-                                                   .content("[\"" + url1 + "\", \"" + url2 + "\"]")
-                                                   .param("itemID", itemID)
-                                                   .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("[\"" + url1 + "\", \"" + url2 + "\"]")
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                     .andDo(print())
                     // then
                     .andExpect(status().isOk())
                     .andExpect(content().string("Media files deleted successfully!"));
+        verify(variantService).invalidate(mockMediaURLs);
     }
 
     @Test
@@ -181,7 +452,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(storageService).delete(itemID, mockMediaURLs, userIDHeader);
+        when(storageService.deleteAsync(itemID, mockMediaURLs, userIDHeader)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
@@ -199,7 +470,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(storageService).delete(itemID, mockMediaURLs, userIDHeader);
+        when(storageService.deleteAsync(itemID, mockMediaURLs, userIDHeader)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
@@ -218,14 +489,17 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doThrow(MediaStorageException.class).when(storageService).delete(itemID, mockMediaURLs, userIDHeader);
+        when(storageService.deleteAsync(itemID, mockMediaURLs, userIDHeader)).thenReturn(CompletableFuture.failedFuture(new MediaStorageException("Item not found")));
 
         // when
-        this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
-                                                   .contentType(MediaType.APPLICATION_JSON_VALUE)
-                                                   .content("[\"" + url1 + "\", \"" + url2 + "\"]")
-                                                   .param("itemID", itemID)
-                                                   .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("[\"" + url1 + "\", \"" + url2 + "\"]")
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                     .andDo(print())
                     // then
                     .andExpect(status().isBadRequest());
@@ -238,19 +512,71 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doThrow(MalformedURLException.class).when(storageService).delete(itemID, mockMediaURLs, userIDHeader);
+        when(storageService.deleteAsync(itemID, mockMediaURLs, userIDHeader)).thenReturn(CompletableFuture.failedFuture(new MalformedURLException()));
 
         // when
-        this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
-                                                   .contentType(MediaType.APPLICATION_JSON_VALUE)
-                                                   .content("[\"" + url1 + "\", \"" + url2 + "\"]")
-                                                   .param("itemID", itemID)
-                                                   .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.delete("/")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("[\"" + url1 + "\", \"" + url2 + "\"]")
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                     .andDo(print())
                     // then
                     .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void presignUploads_validInputShouldReturnUploadURLs() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        DirectUpload upload = new DirectUpload("key/image1.jpg", "https://mock/key/image1.jpg?X-Amz-Signature=mock",
+                Map.of("Content-Type", "image/jpeg"), "image/jpeg", 1024, Instant.now());
+        when(directUploadService.presignAsync(eq(itemID), any(), eq(userIDHeader))).thenReturn(CompletableFuture.completedFuture(List.of(upload)));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.post("/presigned")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("[{\"fileName\": \"image1.jpg\", \"contentType\": \"image/jpeg\", \"size\": 1024}]")
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$", hasSize(1)))
+                    .andExpect(jsonPath("$[0].objectKey", is("key/image1.jpg")))
+                    .andExpect(jsonPath("$[0].uploadURL", is("https://mock/key/image1.jpg?X-Amz-Signature=mock")));
+    }
+
+    @Test
+    public void confirmUploads_mismatchingUploadShouldReturnBadRequest() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        String itemID = "mock";
+        when(directUploadService.confirmAsync(eq(itemID), any(), eq(userIDHeader)))
+                .thenReturn(CompletableFuture.failedFuture(new MediaStorageException("Media file does not match its upload: key/image1.jpg")));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.post("/presigned/confirm")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("[{\"objectKey\": \"key/image1.jpg\", \"contentType\": \"image/jpeg\", \"size\": 1024}]")
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string(containsString("does not match")));
+    }
+
     @Test
     public void saveLinks_validInputShouldReturnValidOutput() throws Exception {
         // given
@@ -258,19 +584,60 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.addMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
-        this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
-                                                   .contentType(MediaType.APPLICATION_JSON_VALUE)
-                                                   .content("[\"" + url1 + "\", \"" + url2 + "\"]")
-                                                   .param("itemID", itemID)
-                                                   .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("[\"" + url1 + "\", \"" + url2 + "\"]")
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                     .andDo(print())
                     // then
                     .andExpect(status().isOk());
     }
 
+    @Test
+    public void saveLinksBulk_shouldReturnResultPerItem() throws Exception {
+        // given
+        String userIDHeader = "mock";
+        Map<String, List<String>> mediaURLsByItem = Map.of("item1", List.of("url1"), "item2", List.of("url2"));
+        when(mediaService.addMediaAllAsync(mediaURLsByItem, userIDHeader))
+                .thenReturn(CompletableFuture.completedFuture(List.of(BulkItemResult.succeeded("item1", List.of("url1")),
+                        BulkItemResult.failed("item2", "Item not found"))));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.post("/links/bulk")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("{\"item1\": [\"url1\"], \"item2\": [\"url2\"]}")
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$[0].succeeded", is(true)))
+                    .andExpect(jsonPath("$[1].itemID", is("item2")))
+                    .andExpect(jsonPath("$[1].error", is("Item not found")));
+    }
+
+    @Test
+    public void saveLinksBulk_emptyBodyShouldReturnBadRequest() throws Exception {
+        // when
+        this.mockMvc.perform(MockMvcRequestBuilders.post("/links/bulk")
+                                                   .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                   .content("{}")
+                                                   .header(NABConstants.UID_HEADER_NAME, "mock"))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string(containsString("At least one item is required")));
+    }
+
     @Test
     public void saveLinks_missingLinksShouldReturnBadRequest() throws Exception {
         // given
@@ -278,7 +645,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.addMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
@@ -297,7 +664,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.addMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
@@ -316,7 +683,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doThrow(MediaStorageException.class).when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.addMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.failedFuture(new MediaStorageException("Item not found")));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
@@ -335,14 +702,17 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.deleteMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
-        this.mockMvc.perform(MockMvcRequestBuilders.delete("/links")
-                                                   .contentType(MediaType.APPLICATION_JSON_VALUE)
-                                                   .content("[\"" + url1 + "\", \"" + url2 + "\"]")
-                                                   .param("itemID", itemID)
-                                                   .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.delete("/links")
+                                                                         .contentType(MediaType.APPLICATION_JSON_VALUE)
+                                                                         .content("[\"" + url1 + "\", \"" + url2 + "\"]")
+                                                                         .param("itemID", itemID)
+                                                                         .header(NABConstants.UID_HEADER_NAME, userIDHeader))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
                     .andDo(print())
                     // then
                     .andExpect(status().isOk());
@@ -355,7 +725,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.deleteMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
@@ -374,7 +744,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doNothing().when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.deleteMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.completedFuture(null));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
@@ -393,7 +763,7 @@ public class MediaControllerTest {
         String itemID = "mock";
         String url1 = "url1", url2 = "url2";
         List<String> mockMediaURLs = List.of(url1, url2);
-        doThrow(MediaStorageException.class).when(mediaService).addMedia(itemID, userIDHeader, mockMediaURLs);
+        when(mediaService.deleteMediaAsync(itemID, userIDHeader, mockMediaURLs)).thenReturn(CompletableFuture.failedFuture(new MediaStorageException("Item not found")));
 
         // when
         this.mockMvc.perform(MockMvcRequestBuilders.post("/links")
@@ -405,4 +775,107 @@ public class MediaControllerTest {
                     .andExpect(status().isBadRequest());
     }
 
+    @Test
+    public void getVariant_validInputShouldReturnImage() throws Exception {
+        // given
+        when(variantService.getAsync("key/image1.jpg", 160, null, "png"))
+                .thenReturn(CompletableFuture.completedFuture(MediaVariant.rendered("image/png", PNG_DATA)));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.get("/media/key/image1.jpg")
+                                                                         .param("w", "160")
+                                                                         .param("fmt", "png"))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        MvcResult variantResult = this.mockMvc.perform(asyncDispatch(mvcResult))
+                                              .andExpect(request().asyncStarted())
+                                              .andReturn();
+        variantResult.getAsyncResult();
+        this.mockMvc.perform(asyncDispatch(variantResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isOk())
+                    .andExpect(header().string("Content-Type", "image/png"))
+                    .andExpect(header().string("Cache-Control", "max-age=86400, public"))
+                    .andExpect(content().bytes(PNG_DATA));
+    }
+
+    @Test
+    public void getVariant_invalidSizeShouldReturnBadRequest() throws Exception {
+        // given
+        when(variantService.getAsync("image1.jpg", 0, null, null)).thenThrow(new MediaStorageException("w must be between 1 and 2048"));
+
+        // when
+        this.mockMvc.perform(MockMvcRequestBuilders.get("/media/image1.jpg")
+                                                   .param("w", "0"))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isBadRequest())
+                    .andExpect(content().string(containsString("w must be between 1 and 2048")));
+    }
+
+    @Test
+    public void getMedia_rangeShouldReturnPartialContent() throws Exception {
+        // given
+        ObjectDownload download = new ObjectDownload(HttpStatus.PARTIAL_CONTENT, "key/image1.jpg", "etag", 1_600_000_000_000L, "image/jpeg", 10, 2, 5);
+        when(downloadService.prepareAsync(eq("key/image1.jpg"), any())).thenReturn(CompletableFuture.completedFuture(download));
+        doAnswer(invocation -> {
+            invocation.<OutputStream>getArgument(1).write("2345".getBytes());
+            return null;
+        }).when(downloadService).transfer(eq(download), any());
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.get("/media/key/image1.jpg")
+                                                                         .header("Range", "bytes=2-5"))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        MvcResult downloadResult = this.mockMvc.perform(asyncDispatch(mvcResult))
+                                               .andExpect(request().asyncStarted())
+                                               .andReturn();
+        downloadResult.getAsyncResult();
+        this.mockMvc.perform(asyncDispatch(downloadResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isPartialContent())
+                    .andExpect(header().string("Content-Range", "bytes 2-5/10"))
+                    .andExpect(header().string("ETag", "\"etag\""))
+                    .andExpect(header().string("Accept-Ranges", "bytes"))
+                    .andExpect(content().string("2345"));
+    }
+
+    @Test
+    public void getMedia_matchingETagShouldReturnNotModified() throws Exception {
+        // given
+        ObjectDownload download = new ObjectDownload(HttpStatus.NOT_MODIFIED, "image1.jpg", "etag", 1_600_000_000_000L, "image/jpeg", 10, 0, 9);
+        when(downloadService.prepareAsync(eq("image1.jpg"), any())).thenReturn(CompletableFuture.completedFuture(download));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.get("/media/image1.jpg")
+                                                                         .header("If-None-Match", "\"etag\""))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isNotModified())
+                    .andExpect(header().string("ETag", "\"etag\""))
+                    .andExpect(content().bytes(new byte[0]));
+        verify(downloadService, never()).transfer(any(), any());
+    }
+
+    @Test
+    public void getMedia_missingObjectShouldReturnNotFound() throws Exception {
+        // given
+        when(downloadService.prepareAsync(eq("image1.jpg"), any()))
+                .thenReturn(CompletableFuture.failedFuture(new MediaNotFoundException("Media file not found: image1.jpg")));
+
+        // when
+        MvcResult mvcResult = this.mockMvc.perform(MockMvcRequestBuilders.get("/media/image1.jpg"))
+                                          .andExpect(request().asyncStarted())
+                                          .andReturn();
+        this.mockMvc.perform(asyncDispatch(mvcResult))
+                    .andDo(print())
+                    // then
+                    .andExpect(status().isNotFound());
+    }
 }
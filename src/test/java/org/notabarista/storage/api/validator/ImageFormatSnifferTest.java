@@ -0,0 +1,87 @@
+package org.notabarista.storage.api.validator;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImageFormatSnifferTest {
+
+    @Test
+    void detectsJpeg() {
+        assertEquals("image/jpeg", detect(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1}));
+    }
+
+    @Test
+    void detectsPng() {
+        assertEquals("image/png", detect(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}));
+    }
+
+    @Test
+    void detectsGif() {
+        assertEquals("image/gif", detect(ascii("GIF89a")));
+        assertEquals("image/gif", detect(ascii("GIF87a")));
+    }
+
+    @Test
+    void detectsWebp() {
+        assertEquals("image/webp", detect(ascii("RIFF\0\0\0\0WEBPVP8 ")));
+    }
+
+    @Test
+    void detectsAvif() {
+        assertEquals("image/avif", detect(ftyp("avif", "mif1", "miaf")));
+    }
+
+    @Test
+    void detectsHeic() {
+        assertEquals("image/heic", detect(ftyp("heic", "mif1", "heic")));
+    }
+
+    @Test
+    void detectsHeifByCompatibleBrand() {
+        assertEquals("image/heic", detect(ftyp("mif1", "mif1", "heic")));
+        assertEquals("image/avif", detect(ftyp("mif1", "mif1", "avif")));
+    }
+
+    @Test
+    void rejectsOtherContent() {
+        assertNull(detect(ascii("mock data")));
+        assertNull(detect(ftyp("isom", "iso2", "mp41")));
+        assertNull(detect(new byte[0]));
+    }
+
+    @Test
+    void checksOnlyTheDetectedFormats() {
+        assertTrue(ImageFormatSniffer.isDetectable("image/jpeg"));
+        assertTrue(ImageFormatSniffer.isDetectable("image/jpg"));
+        assertTrue(ImageFormatSniffer.isDetectable("Image/PNG; charset=binary"));
+        assertTrue(ImageFormatSniffer.isDetectable("image/heif"));
+        assertFalse(ImageFormatSniffer.isDetectable("image/bmp"));
+        assertFalse(ImageFormatSniffer.isDetectable("image/svg+xml"));
+        assertFalse(ImageFormatSniffer.isDetectable(null));
+    }
+
+    private static String detect(byte[] content) {
+        byte[] header = new byte[ImageFormatSniffer.HEADER_LENGTH];
+        int length = Math.min(content.length, header.length);
+        System.arraycopy(content, 0, header, 0, length);
+        return ImageFormatSniffer.detect(header, length);
+    }
+
+    private static byte[] ftyp(String majorBrand, String... compatibleBrands) {
+        String box = "ftyp" + majorBrand + "\0\0\0\0" + String.join("", compatibleBrands);
+        byte[] content = new byte[4 + box.length()];
+        content[3] = (byte) content.length;
+        System.arraycopy(ascii(box), 0, content, 4, box.length());
+        return content;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
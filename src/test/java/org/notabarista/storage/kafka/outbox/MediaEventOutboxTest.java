@@ -0,0 +1,149 @@
+package org.notabarista.storage.kafka.outbox;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.kafka.MediaEvent;
+import org.notabarista.kafka.MediaEventType;
+import org.notabarista.storage.kafka.producer.MediaEventProducer;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class MediaEventOutboxTest {
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private MediaEventProducer mediaEventProducer;
+
+    @Test
+    public void testAppendedEventsAreRelayedInOrder() throws Exception {
+        when(mediaEventProducer.sendMediaEvent(any(MediaEvent.class))).thenAnswer(invocation -> acknowledged());
+        MediaEventOutbox outbox = outbox();
+        outbox.start();
+        ArgumentCaptor<MediaEvent> mediaEvent = ArgumentCaptor.forClass(MediaEvent.class);
+
+        outbox.append(mediaEvent("url1"));
+        outbox.append(mediaEvent("url2"));
+
+        verify(mediaEventProducer, timeout(2000).times(2)).sendMediaEvent(mediaEvent.capture());
+        assertEquals(List.of("url1"), mediaEvent.getAllValues().get(0).getMediaURLs());
+        assertEquals(List.of("url2"), mediaEvent.getAllValues().get(1).getMediaURLs());
+        outbox.stop();
+    }
+
+    @Test
+    public void testEventsAreSentWithoutWaitingForEarlierAcknowledgements() throws Exception {
+        List<SettableListenableFuture<SendResult<String, String>>> sends = new CopyOnWriteArrayList<>();
+        when(mediaEventProducer.sendMediaEvent(any(MediaEvent.class))).thenAnswer(invocation -> {
+            SettableListenableFuture<SendResult<String, String>> send = new SettableListenableFuture<>();
+            sends.add(send);
+            return send;
+        });
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MediaEventOutbox outbox = outbox(meterRegistry);
+        outbox.start();
+
+        outbox.appendAll(List.of(mediaEvent("url1"), mediaEvent("url2")));
+
+        verify(mediaEventProducer, timeout(2000).times(2)).sendMediaEvent(any(MediaEvent.class));
+        assertEquals(0, meterRegistry.counter("media.events.outbox.relayed").count());
+        sends.forEach(send -> send.set(null));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (meterRegistry.counter("media.events.outbox.relayed").count() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, meterRegistry.counter("media.events.outbox.relayed").count());
+        outbox.stop();
+    }
+
+    @Test
+    public void testUnrelayedEventsAreReplayedAfterRestart() throws Exception {
+        when(mediaEventProducer.sendMediaEvent(any(MediaEvent.class)))
+                .thenAnswer(invocation -> new SettableListenableFuture<SendResult<String, String>>())
+                .thenAnswer(invocation -> acknowledged());
+        MediaEventOutbox outbox = outbox();
+        outbox.start();
+        outbox.append(mediaEvent("url1"));
+        verify(mediaEventProducer, timeout(2000).times(1)).sendMediaEvent(any(MediaEvent.class));
+        outbox.stop();
+
+        MediaEventOutbox restartedOutbox = outbox();
+        restartedOutbox.start();
+
+        verify(mediaEventProducer, timeout(2000).times(2)).sendMediaEvent(any(MediaEvent.class));
+        verify(mediaEventProducer, after(300).times(2)).sendMediaEvent(any(MediaEvent.class));
+        restartedOutbox.stop();
+    }
+
+    @Test
+    public void testPoisonEventIsMovedToTheDeadLettersAndDoesNotBlockLaterEvents() throws Exception {
+        when(mediaEventProducer.sendMediaEvent(argThat(event -> event != null && event.getMediaURLs().contains("url1"))))
+                .thenThrow(new JsonMappingException(null, "cannot serialize"));
+        when(mediaEventProducer.sendMediaEvent(argThat(event -> event != null && event.getMediaURLs().contains("url2"))))
+                .thenAnswer(invocation -> acknowledged());
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MediaEventOutbox outbox = outbox(meterRegistry);
+        outbox.start();
+
+        outbox.append(mediaEvent("url1"));
+        outbox.append(mediaEvent("url2"));
+
+        verify(mediaEventProducer, timeout(2000).times(1)).sendMediaEvent(argThat(event -> event != null && event.getMediaURLs().contains("url2")));
+        verify(mediaEventProducer, times(3)).sendMediaEvent(argThat(event -> event != null && event.getMediaURLs().contains("url1")));
+        assertEquals(1, meterRegistry.counter("media.events.outbox.dead-lettered").count());
+        outbox.stop();
+
+        OutboxJournal deadLetters = new OutboxJournal(directory.resolve("dead-letter"), 1024);
+        MediaEvent deadLetter = new ObjectMapper().readValue(deadLetters.read(deadLetters.getStartOffset()).getPayload(), MediaEvent.class);
+        assertEquals(List.of("url1"), deadLetter.getMediaURLs());
+        deadLetters.close();
+    }
+
+    private MediaEventOutbox outbox() {
+        return outbox(new SimpleMeterRegistry());
+    }
+
+    private MediaEventOutbox outbox(SimpleMeterRegistry meterRegistry) {
+        return new MediaEventOutbox(mediaEventProducer, new ObjectMapper(), meterRegistry, true, directory,
+                DataSize.ofKilobytes(1), Duration.ofMillis(200), Duration.ofMillis(100), 3);
+    }
+
+    private static SettableListenableFuture<SendResult<String, String>> acknowledged() {
+        SettableListenableFuture<SendResult<String, String>> result = new SettableListenableFuture<>();
+        result.set(null);
+        return result;
+    }
+
+    private static MediaEvent mediaEvent(String mediaURL) {
+        return MediaEvent.builder()
+                         .mediaEventType(MediaEventType.ADD)
+                         .itemID("mockItemId")
+                         .mediaURLs(List.of(mediaURL))
+                         .userID("mockUserId")
+                         .build();
+    }
+}
@@ -0,0 +1,120 @@
+package org.notabarista.storage.kafka.outbox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class OutboxJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testAppendedRecordsAreReadInOrder() throws IOException {
+        try (OutboxJournal journal = new OutboxJournal(directory, 1024)) {
+            long firstEnd = journal.append(bytes("first"));
+            journal.sync(journal.append(bytes("second")));
+
+            OutboxJournal.Record first = journal.read(0);
+            OutboxJournal.Record second = journal.read(first.getNextOffset());
+
+            assertArrayEquals(bytes("first"), first.getPayload());
+            assertEquals(firstEnd, first.getNextOffset());
+            assertArrayEquals(bytes("second"), second.getPayload());
+            assertNull(journal.read(second.getNextOffset()));
+        }
+    }
+
+    @Test
+    public void testSyncReopensAChannelClosedByAnInterruptedWriter() throws Exception {
+        try (OutboxJournal journal = new OutboxJournal(directory, 1024)) {
+            long firstEnd = journal.append(bytes("first"));
+            Thread interruptedWriter = new Thread(() -> {
+                Thread.currentThread().interrupt();
+                try {
+                    journal.append(bytes("second"));
+                } catch (IOException expected) {
+                    // the interrupt closed the channel
+                }
+            });
+            interruptedWriter.start();
+            interruptedWriter.join();
+
+            journal.sync(firstEnd);
+
+            assertArrayEquals(bytes("first"), journal.read(0).getPayload());
+            assertNull(journal.read(firstEnd));
+            journal.sync(journal.append(bytes("third")));
+            assertArrayEquals(bytes("third"), journal.read(firstEnd).getPayload());
+        }
+    }
+
+    @Test
+    public void testRecordsSurviveReopen() throws IOException {
+        try (OutboxJournal journal = new OutboxJournal(directory, 1024)) {
+            journal.sync(journal.append(bytes("first")));
+        }
+
+        try (OutboxJournal journal = new OutboxJournal(directory, 1024)) {
+            assertArrayEquals(bytes("first"), journal.read(0).getPayload());
+        }
+    }
+
+    @Test
+    public void testTornRecordIsTruncatedOnOpen() throws IOException {
+        long end;
+        try (OutboxJournal journal = new OutboxJournal(directory, 1024)) {
+            end = journal.append(bytes("first"));
+            journal.sync(end);
+        }
+        try (Stream<Path> segments = Files.list(directory);
+             FileChannel channel = FileChannel.open(segments.findFirst().orElseThrow(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 42, 1, 2}));
+        }
+
+        try (OutboxJournal journal = new OutboxJournal(directory, 1024)) {
+            assertEquals(end, journal.getEndOffset());
+            journal.sync(journal.append(bytes("second")));
+            assertArrayEquals(bytes("second"), journal.read(end).getPayload());
+        }
+    }
+
+    @Test
+    public void testSegmentsRollAndAreDeletedOnceRelayed() throws IOException {
+        try (OutboxJournal journal = new OutboxJournal(directory, 16)) {
+            long firstEnd = journal.append(bytes("0123456789"));
+            journal.append(bytes("0123456789"));
+            long end = journal.append(bytes("0123456789"));
+            journal.sync(end);
+            assertEquals(3, segmentCount());
+
+            journal.deleteBefore(firstEnd);
+
+            assertEquals(2, segmentCount());
+            assertEquals(firstEnd, journal.getStartOffset());
+            assertArrayEquals(bytes("0123456789"), journal.read(firstEnd).getPayload());
+        }
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> segments = Files.list(directory)) {
+            return segments.count();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,127 @@
+package org.notabarista.storage.kafka.producer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.kafka.MediaEvent;
+import org.notabarista.kafka.MediaEventType;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class MediaEventProducerTest {
+
+    @Mock
+    private KafkaTemplate<String, String> kafkaTemplate;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        when(kafkaTemplate.getDefaultTopic()).thenReturn("mock");
+        lenient().when(kafkaTemplate.send(any(ProducerRecord.class))).thenAnswer(invocation -> new SettableListenableFuture<SendResult<String, String>>());
+    }
+
+    @Test
+    public void testEventsAreSentOneByOneWithoutWindow() throws JsonProcessingException {
+        MediaEventProducer mediaEventProducer = new MediaEventProducer(kafkaTemplate, objectMapper, meterRegistry, Duration.ZERO);
+
+        mediaEventProducer.sendMediaEvent(mediaEvent(MediaEventType.ADD, "url1"));
+        mediaEventProducer.sendMediaEvent(mediaEvent(MediaEventType.ADD, "url2"));
+
+        verify(kafkaTemplate, times(2)).send(any(ProducerRecord.class));
+        assertEquals(2, meterRegistry.get("media.events.sent").counter().count());
+    }
+
+    @Test
+    public void testEventsOfSameTypeAreCoalesced() throws Exception {
+        MediaEventProducer mediaEventProducer = new MediaEventProducer(kafkaTemplate, objectMapper, meterRegistry, Duration.ofMillis(50));
+        ArgumentCaptor<ProducerRecord<String, String>> producerRecord = ArgumentCaptor.forClass(ProducerRecord.class);
+
+        mediaEventProducer.sendMediaEvent(mediaEvent(MediaEventType.ADD, "url1"));
+        mediaEventProducer.sendMediaEvent(mediaEvent(MediaEventType.ADD, "url2"));
+
+        verify(kafkaTemplate, timeout(1000).times(1)).send(producerRecord.capture());
+        MediaEvent sentEvent = objectMapper.readValue(producerRecord.getValue().value(), MediaEvent.class);
+        assertEquals("mockItemId", producerRecord.getValue().key());
+        assertEquals(List.of("url1", "url2"), sentEvent.getMediaURLs());
+        assertEquals(2, meterRegistry.get("media.events.requested").counter().count());
+        assertEquals(1, meterRegistry.get("media.events.sent").counter().count());
+    }
+
+    @Test
+    public void testEventOfOtherTypeFlushesPendingEvent() throws Exception {
+        MediaEventProducer mediaEventProducer = new MediaEventProducer(kafkaTemplate, objectMapper, meterRegistry, Duration.ofMillis(50));
+        ArgumentCaptor<ProducerRecord<String, String>> producerRecord = ArgumentCaptor.forClass(ProducerRecord.class);
+
+        mediaEventProducer.sendMediaEvent(mediaEvent(MediaEventType.ADD, "url1"));
+        mediaEventProducer.sendMediaEvent(mediaEvent(MediaEventType.DELETE, "url1"));
+
+        verify(kafkaTemplate, timeout(1000).times(2)).send(producerRecord.capture());
+        assertEquals(MediaEventType.ADD, objectMapper.readValue(producerRecord.getAllValues().get(0).value(), MediaEvent.class).getMediaEventType());
+        assertEquals(MediaEventType.DELETE, objectMapper.readValue(producerRecord.getAllValues().get(1).value(), MediaEvent.class).getMediaEventType());
+    }
+
+    @Test
+    public void testBlockedSendDoesNotHoldUpOtherEvents() throws Exception {
+        MediaEventProducer mediaEventProducer = new MediaEventProducer(kafkaTemplate, objectMapper, meterRegistry, Duration.ofMillis(10));
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(kafkaTemplate.send(any(ProducerRecord.class))).thenAnswer(invocation -> {
+            sending.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return new SettableListenableFuture<SendResult<String, String>>();
+        });
+
+        mediaEventProducer.sendMediaEvent(mediaEvent(MediaEventType.ADD, "url1"));
+        assertTrue(sending.await(1, TimeUnit.SECONDS));
+
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(1),
+                    () -> mediaEventProducer.sendMediaEvent(mediaEvent("otherItemId", MediaEventType.ADD, "url2")));
+        } finally {
+            release.countDown();
+        }
+        verify(kafkaTemplate, timeout(1000).times(2)).send(any(ProducerRecord.class));
+    }
+
+    private static MediaEvent mediaEvent(MediaEventType mediaEventType, String mediaURL) {
+        return mediaEvent("mockItemId", mediaEventType, mediaURL);
+    }
+
+    private static MediaEvent mediaEvent(String itemID, MediaEventType mediaEventType, String mediaURL) {
+        return MediaEvent.builder()
+                         .mediaEventType(mediaEventType)
+                         .itemID(itemID)
+                         .mediaURLs(List.of(mediaURL))
+                         .userID("mockUserId")
+                         .build();
+    }
+}
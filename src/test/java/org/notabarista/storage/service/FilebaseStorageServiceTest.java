@@ -1,29 +1,66 @@
 package org.notabarista.storage.service;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.notabarista.entity.response.Response;
 import org.notabarista.exception.AbstractNotabaristaException;
 import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.resilience.AdaptiveLimiter;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -33,10 +70,17 @@ import static org.mockito.Mockito.when;
 public class FilebaseStorageServiceTest {
 
     private static final String MOCK_BUCKET_NAME = "mock";
+    private static final String BOUNDARY = "mock-boundary";
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+    private static final String JPEG_DATA_KEY = "23e5c96c789570b1a740a7463526bb846d97506642e12a6a5e6b9b3b7a90cd5f.jpg";
 
     @Mock
     private AmazonS3 bucket;
 
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final StorageMetrics storageMetrics = new StorageMetrics(meterRegistry);
+
     @Mock
     private AmazonS3Client s3Client;
 
@@ -48,9 +92,23 @@ public class FilebaseStorageServiceTest {
 
     private StorageService storageService;
 
+    private ExecutorService uploadExecutor;
+
+    private DerivativeService derivativeService;
+
     @BeforeEach
     void setUp() {
-        storageService = new FilebaseStorageService(itemService, mediaService, bucket, MOCK_BUCKET_NAME, s3Client);
+        uploadExecutor = Executors.newFixedThreadPool(2);
+        derivativeService = new DerivativeService(bucket, MOCK_BUCKET_NAME, s3Client, mediaService, storageMetrics, uploadExecutor,
+                false, new int[0], false, 0.85f);
+        S3UploadEngine uploadEngine = new S3UploadEngine(bucket, storageMetrics, uploadExecutor, 1024, 512, 2, 2);
+        storageService = new FilebaseStorageService(itemService, mediaService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client, uploadEngine, storageMetrics, uploadExecutor,
+                new IoExecutor(uploadExecutor, Duration.ofSeconds(5)), AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 2, 1000, false, true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        uploadExecutor.shutdownNow();
     }
 
     @Test
@@ -66,6 +124,109 @@ public class FilebaseStorageServiceTest {
         verify(mediaService, times(1)).addMedia(anyString(), anyString(), anyList());
     }
 
+    @Test
+    public void verifyStoreKeepsFileOrder() throws IOException, AbstractNotabaristaException {
+        MultipartFile[] files = new MultipartFile[5];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new MockMultipartFile("files", "image" + i + ".jpg", "image/jpg", "mock data".getBytes());
+        }
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+
+        List<String> mediaURLs = storageService.store("mock", files, "mock");
+
+        assertEquals(List.of("http://localhost/image0.jpg", "http://localhost/image1.jpg", "http://localhost/image2.jpg",
+                "http://localhost/image3.jpg", "http://localhost/image4.jpg"), mediaURLs);
+        verify(bucket, times(5)).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+        verify(mediaService, times(1)).addMedia("mock", "mock", mediaURLs);
+    }
+
+    @Test
+    public void verifyStoreAllReportsItemsSeparately() throws Exception {
+        Map<String, List<MultipartFile>> filesByItem = new LinkedHashMap<>();
+        filesByItem.put("a", List.of(new MockMultipartFile("a", "a1.jpg", "image/jpeg", JPEG_DATA)));
+        filesByItem.put("b", List.of(new MockMultipartFile("b", "b1.jpg", "image/jpeg", JPEG_DATA)));
+        filesByItem.put("c", List.of(new MockMultipartFile("c", "c1.jpg", "image/jpeg", JPEG_DATA),
+                new MockMultipartFile("c", "c2.jpg", "image/jpeg", JPEG_DATA)));
+        filesByItem.put("d", List.of(new MockMultipartFile("d", "d1.txt", "text/plain", "mock data".getBytes())));
+        when(itemService.itemsExist(filesByItem.keySet(), "mock")).thenReturn(Map.of("a", true, "b", false, "c", true, "d", true));
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+        when(bucket.putObject(eq(MOCK_BUCKET_NAME), anyString(), any(InputStream.class), any(ObjectMetadata.class)))
+                .thenAnswer(invocation -> {
+                    if ("c2.jpg".equals(invocation.getArgument(1))) {
+                        throw new AmazonServiceException("Internal Error");
+                    }
+                    return null;
+                });
+        when(bucket.putObject(eq(MOCK_BUCKET_NAME), startsWith(ObjectKeys.REFERENCE_PREFIX), eq(""))).thenReturn(null);
+        givenReferences();
+        when(mediaService.addMediaAll(Map.of("a", List.of("http://localhost/a1.jpg")), "mock"))
+                .thenReturn(List.of(BulkItemResult.succeeded("a", List.of("http://localhost/a1.jpg"))));
+
+        List<BulkItemResult> results = storageService.storeAll(filesByItem, "mock");
+
+        assertEquals(List.of("a", "b", "c", "d"), results.stream().map(BulkItemResult::getItemID).collect(Collectors.toList()));
+        assertEquals(List.of("http://localhost/a1.jpg"), results.get(0).getMediaURLs());
+        assertEquals("Item not found", results.get(1).getError());
+        assertFalse(results.get(2).isSucceeded());
+        assertEquals("Invalid content type: text/plain", results.get(3).getError());
+        // the file of the failed item that was uploaded is removed again
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, "c1.jpg");
+        verify(bucket, never()).putObject(eq(MOCK_BUCKET_NAME), eq("b1.jpg"), any(InputStream.class), any(ObjectMetadata.class));
+    }
+
+    @Test
+    public void verifyStoreAllRollsBackItemsThatWereNotLinked() throws Exception {
+        Map<String, List<MultipartFile>> filesByItem = new LinkedHashMap<>();
+        filesByItem.put("a", List.of(new MockMultipartFile("a", "a1.jpg", "image/jpeg", JPEG_DATA)));
+        filesByItem.put("b", List.of(new MockMultipartFile("b", "b1.jpg", "image/jpeg", JPEG_DATA)));
+        when(itemService.itemsExist(filesByItem.keySet(), "mock")).thenReturn(Map.of("a", true, "b", true));
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+        when(bucket.putObject(eq(MOCK_BUCKET_NAME), startsWith(ObjectKeys.REFERENCE_PREFIX), eq(""))).thenReturn(null);
+        givenReferences();
+        Map<String, List<String>> mediaURLsByItem = new LinkedHashMap<>();
+        mediaURLsByItem.put("a", List.of("http://localhost/a1.jpg"));
+        mediaURLsByItem.put("b", List.of("http://localhost/b1.jpg"));
+        when(mediaService.addMediaAll(mediaURLsByItem, "mock"))
+                .thenReturn(List.of(BulkItemResult.succeeded("a", List.of("http://localhost/a1.jpg")), BulkItemResult.failed("b", "Item is locked")));
+
+        List<BulkItemResult> results = storageService.storeAll(filesByItem, "mock");
+
+        assertEquals(List.of(BulkItemResult.succeeded("a", List.of("http://localhost/a1.jpg")), BulkItemResult.failed("b", "Item is locked")), results);
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, "b1.jpg");
+        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, "a1.jpg");
+    }
+
+    @Test
+    public void verifyStoreRollsBackOnFailure() throws IOException, AbstractNotabaristaException {
+        MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock data".getBytes());
+        MockMultipartFile secondFile = new MockMultipartFile("files", "image2.png", "image/png", "mock data".getBytes());
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+        CountDownLatch firstUploaded = new CountDownLatch(1);
+        when(bucket.putObject(eq(MOCK_BUCKET_NAME), anyString(), any(InputStream.class), any(ObjectMetadata.class)))
+                .thenAnswer(invocation -> {
+                    if ("image2.png".equals(invocation.getArgument(1))) {
+                        firstUploaded.await(5, TimeUnit.SECONDS);
+                        throw new AmazonServiceException("mock failure");
+                    }
+                    firstUploaded.countDown();
+                    return null;
+                });
+        when(bucket.putObject(eq(MOCK_BUCKET_NAME), startsWith(ObjectKeys.REFERENCE_PREFIX), eq(""))).thenReturn(null);
+        givenReferences();
+
+        assertThrows(
+                AmazonServiceException.class,
+                () -> storageService.store("mock", new MultipartFile[]{firstFile, secondFile}, "mock"),
+                "Expected store() to throw AmazonServiceException, but it didn't"
+        );
+
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, "image1.jpg");
+        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, "image2.png");
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+    }
+
     @Test
     public void verifyStoreItemNotFound() throws IOException, AbstractNotabaristaException {
         MockMultipartFile firstFile = new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock data".getBytes());
@@ -85,14 +246,32 @@ public class FilebaseStorageServiceTest {
     @Test
     public void verifyDelete() throws IOException, AbstractNotabaristaException {
         String fileName1 = "image1.png", fileName2 = "image2.png";
-        Response<Map<String, Object>> response = new Response<>();
         when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
-        when(bucket.doesObjectExist(anyString(), anyString())).thenReturn(true);
+        givenReferences();
+        ArgumentCaptor<DeleteObjectsRequest> deleteObjectsRequest = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
 
         storageService.delete("mock", List.of("http://localhost/" + fileName1, "http://localhost/" + fileName2), "mock");
 
-        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, fileName1);
-        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, fileName2);
+        verify(bucket, times(1)).deleteObjects(deleteObjectsRequest.capture());
+        assertEquals(MOCK_BUCKET_NAME, deleteObjectsRequest.getValue().getBucketName());
+        assertEquals(List.of(fileName1, fileName2), deleteObjectsRequest.getValue().getKeys().stream()
+                                                                          .map(DeleteObjectsRequest.KeyVersion::getKey)
+                                                                          .collect(Collectors.toList()));
+        verify(mediaService, times(1)).deleteMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyDeleteSplitsIntoBatches() throws IOException, AbstractNotabaristaException {
+        storageService = new FilebaseStorageService(itemService, mediaService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client,
+                new S3UploadEngine(bucket, storageMetrics, uploadExecutor, 1024, 512, 2, 2), storageMetrics, uploadExecutor,
+                new IoExecutor(uploadExecutor, Duration.ofSeconds(5)), AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 2, 2, false, true);
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        givenReferences();
+
+        storageService.delete("mock", List.of("http://localhost/image1.png", "http://localhost/image2.png",
+                "http://localhost/image3.png", "http://localhost/image4.png", "http://localhost/image5.png"), "mock");
+
+        verify(bucket, times(3)).deleteObjects(any(DeleteObjectsRequest.class));
         verify(mediaService, times(1)).deleteMedia(anyString(), anyString(), anyList());
     }
 
@@ -107,33 +286,34 @@ public class FilebaseStorageServiceTest {
                 "Expected store() to throw MediaStorageException, but it didn't"
         );
 
-        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, fileName1);
-        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, fileName2);
+        verify(bucket, never()).deleteObjects(any(DeleteObjectsRequest.class));
         verify(mediaService, never()).deleteMedia(anyString(), anyString(), anyList());
     }
 
     @Test
     public void verifyDeleteMediaFileNotFound() throws IOException, AbstractNotabaristaException {
         String fileName1 = "image1.png", fileName2 = "image2.png";
-        Response<Map<String, Object>> response = new Response<>();
         when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
-        when(bucket.doesObjectExist(anyString(), anyString())).thenReturn(false);
+        MultiObjectDeleteException.DeleteError deleteError = new MultiObjectDeleteException.DeleteError();
+        deleteError.setKey(fileName2);
+        deleteError.setCode("NoSuchKey");
+        givenReferences();
+        when(bucket.deleteObjects(any(DeleteObjectsRequest.class)))
+                .thenThrow(new MultiObjectDeleteException(List.of(deleteError), List.of()));
 
-        assertThrows(
+        MediaStorageException exception = assertThrows(
                 MediaStorageException.class,
                 () -> storageService.delete("mock", List.of("http://localhost/" + fileName1, "http://localhost/" + fileName2), "mock"),
                 "Expected store() to throw MediaStorageException, but it didn't"
         );
 
-        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, fileName1);
-        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, fileName2);
+        assertEquals("Unknown media file: " + fileName2, exception.getMessage());
         verify(mediaService, never()).deleteMedia(anyString(), anyString(), anyList());
     }
 
     @Test
     public void verifyDeleteInvalidURLs() throws IOException, AbstractNotabaristaException {
         String fileName1 = "image1.png", fileName2 = "image2.png";
-        Response<Map<String, Object>> response = new Response<>();
         when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
 
         assertThrows(
@@ -142,9 +322,302 @@ public class FilebaseStorageServiceTest {
                 "Expected store() to throw MalformedURLException, but it didn't"
         );
 
-        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, fileName1);
-        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, fileName2);
+        verify(bucket, never()).deleteObjects(any(DeleteObjectsRequest.class));
         verify(mediaService, never()).deleteMedia(anyString(), anyString(), anyList());
     }
 
+    @Test
+    public void verifyStoreStream() throws Exception {
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+
+        List<String> mediaURLs = storageService.storeStream("mock", multipartBody(
+                "image1.jpg", "image/jpeg", JPEG_DATA,
+                "image2.jpg", "image/jpeg", JPEG_DATA), "mock");
+
+        assertEquals(List.of("http://localhost/image1.jpg", "http://localhost/image2.jpg"), mediaURLs);
+        verify(bucket, times(2)).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+        verify(mediaService, times(1)).addMedia("mock", "mock", mediaURLs);
+    }
+
+    @Test
+    public void verifyStoreStreamRollsBackOnInvalidContent() throws Exception {
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        FileItemIterator files = multipartBody(
+                "image1.jpg", "image/jpeg", JPEG_DATA,
+                "script.png", "image/png", "mock data".getBytes());
+        givenReferences();
+
+        MediaStorageException exception = assertThrows(
+                MediaStorageException.class,
+                () -> storageService.storeStream("mock", files, "mock"),
+                "Expected storeStream() to throw MediaStorageException, but it didn't"
+        );
+
+        assertEquals("Invalid file content: script.png", exception.getMessage());
+        verify(bucket, times(1)).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, "image1.jpg");
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyStoreStreamItemNotFound() throws Exception {
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(false);
+        FileItemIterator files = multipartBody("image1.jpg", "image/jpeg", JPEG_DATA);
+
+        assertThrows(
+                MediaStorageException.class,
+                () -> storageService.storeStream("mock", files, "mock"),
+                "Expected storeStream() to throw MediaStorageException, but it didn't"
+        );
+
+        verify(bucket, never()).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyStoreContentAddressed() throws IOException, AbstractNotabaristaException {
+        storageService = contentAddressedStorageService();
+        MockMultipartFile file = new MockMultipartFile("files", "IMG_0001.JPG", "image/jpg", JPEG_DATA);
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+
+        List<String> mediaURLs = storageService.store("mock", new MultipartFile[]{file}, "mock");
+
+        assertEquals(List.of("http://localhost/" + JPEG_DATA_KEY), mediaURLs);
+        verify(bucket, times(1)).putObject(eq(MOCK_BUCKET_NAME), eq(JPEG_DATA_KEY), any(InputStream.class), any(ObjectMetadata.class));
+        assertEquals(1, meterRegistry.get("storage.dedup.requests").tag("result", "miss").counter().count());
+        assertEquals(JPEG_DATA.length, meterRegistry.get("storage.stored.bytes").counter().count());
+    }
+
+    @Test
+    public void verifyStoreContentAddressedSkipsStoredContent() throws IOException, AbstractNotabaristaException {
+        storageService = contentAddressedStorageService();
+        MockMultipartFile file = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(bucket.doesObjectExist(MOCK_BUCKET_NAME, JPEG_DATA_KEY)).thenReturn(true);
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+
+        List<String> mediaURLs = storageService.store("mock", new MultipartFile[]{file}, "mock");
+
+        assertEquals(List.of("http://localhost/" + JPEG_DATA_KEY), mediaURLs);
+        verify(bucket, never()).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+        verify(mediaService, times(1)).addMedia("mock", "mock", mediaURLs);
+        assertEquals(1, meterRegistry.get("storage.dedup.requests").tag("result", "hit").counter().count());
+        assertEquals(JPEG_DATA.length, meterRegistry.get("storage.dedup.saved.bytes").counter().count());
+        assertEquals(0, meterRegistry.get("storage.upload.bytes").counter().count());
+    }
+
+    @Test
+    public void verifyStoreStreamContentAddressed() throws Exception {
+        storageService = contentAddressedStorageService();
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+        ArgumentCaptor<String> stagingKey = ArgumentCaptor.forClass(String.class);
+
+        List<String> mediaURLs = storageService.storeStream("mock", multipartBody("image1.jpg", "image/jpeg", JPEG_DATA), "mock");
+
+        assertEquals(List.of("http://localhost/" + JPEG_DATA_KEY), mediaURLs);
+        verify(bucket, times(1)).putObject(eq(MOCK_BUCKET_NAME), stagingKey.capture(), any(InputStream.class), any(ObjectMetadata.class));
+        verify(bucket, times(1)).copyObject(MOCK_BUCKET_NAME, stagingKey.getValue(), MOCK_BUCKET_NAME, JPEG_DATA_KEY);
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, stagingKey.getValue());
+    }
+
+    @Test
+    public void verifyStoreRecordsReferences() throws IOException, AbstractNotabaristaException {
+        storageService = contentAddressedStorageService();
+        MockMultipartFile file = new MockMultipartFile("files", "image1.jpg", "image/jpg", JPEG_DATA);
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(bucket.doesObjectExist(MOCK_BUCKET_NAME, JPEG_DATA_KEY)).thenReturn(true);
+
+        storageService.store("mock", new MultipartFile[]{file}, "mock");
+
+        verify(bucket, times(1)).putObject(MOCK_BUCKET_NAME, ObjectKeys.reference(JPEG_DATA_KEY, "mock"), "");
+    }
+
+    @Test
+    public void verifyDeleteKeepsObjectsOtherItemsReferTo() throws IOException, AbstractNotabaristaException {
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        givenReferences(ObjectKeys.reference(JPEG_DATA_KEY, "mock"), ObjectKeys.reference(JPEG_DATA_KEY, "other"),
+                ObjectKeys.reference("image1.png", "mock"));
+        ArgumentCaptor<DeleteObjectsRequest> deleteObjectsRequest = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+
+        storageService.delete("mock", List.of("http://localhost/" + JPEG_DATA_KEY, "http://localhost/image1.png"), "mock");
+
+        verify(bucket, times(1)).deleteObjects(deleteObjectsRequest.capture());
+        assertEquals(List.of(ObjectKeys.reference(JPEG_DATA_KEY, "mock"), ObjectKeys.reference("image1.png", "mock"), "image1.png"),
+                deleteObjectsRequest.getValue().getKeys().stream()
+                                    .map(DeleteObjectsRequest.KeyVersion::getKey)
+                                    .collect(Collectors.toList()));
+        verify(mediaService, times(1)).deleteMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyDeleteRemovesTheStoredDerivativesOfDeletedOriginals() throws IOException, AbstractNotabaristaException {
+        derivativeService = new DerivativeService(bucket, MOCK_BUCKET_NAME, s3Client, mediaService, storageMetrics, uploadExecutor,
+                true, new int[]{160, 480}, false, 0.85f);
+        storageService = new FilebaseStorageService(itemService, mediaService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client,
+                new S3UploadEngine(bucket, storageMetrics, uploadExecutor, 1024, 512, 2, 2), storageMetrics, uploadExecutor,
+                new IoExecutor(uploadExecutor, Duration.ofSeconds(5)), AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 2, 1000, false, true);
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+        givenReferences(ObjectKeys.reference(JPEG_DATA_KEY, "mock"), ObjectKeys.reference(JPEG_DATA_KEY, "other"),
+                ObjectKeys.derivative(JPEG_DATA_KEY, 160), ObjectKeys.derivative("image1.png", 480));
+        ArgumentCaptor<DeleteObjectsRequest> deleteObjectsRequest = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+
+        storageService.delete("mock", List.of("http://localhost/" + JPEG_DATA_KEY, "http://localhost/image1.png"), "mock");
+
+        verify(bucket, times(2)).deleteObjects(deleteObjectsRequest.capture());
+        // the derivative of the object the other item refers to is kept with it, but unlinked from this item
+        assertEquals(List.of(ObjectKeys.derivative("image1.png", 480)), deleteObjectsRequest.getValue().getKeys().stream()
+                                                                                            .map(DeleteObjectsRequest.KeyVersion::getKey)
+                                                                                            .collect(Collectors.toList()));
+        verify(mediaService, times(1)).deleteMedia("mock", "mock", List.of("http://localhost/" + JPEG_DATA_KEY, "http://localhost/image1.png",
+                "http://localhost/" + ObjectKeys.derivative(JPEG_DATA_KEY, 160), "http://localhost/" + ObjectKeys.derivative("image1.png", 480)));
+    }
+
+    @Test
+    public void verifyDeleteListsNoDerivativesWhileTheyAreDisabled() throws IOException, AbstractNotabaristaException {
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        givenReferences(ObjectKeys.reference("image1.png", "mock"));
+
+        storageService.delete("mock", List.of("http://localhost/image1.png"), "mock");
+
+        // only the reference markers
+        verify(bucket, times(1)).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(bucket, times(1)).deleteObjects(any(DeleteObjectsRequest.class));
+    }
+
+    @Test
+    public void verifyDeleteKeepsUntrackedObjectsUnlessConfigured() throws IOException, AbstractNotabaristaException {
+        storageService = new FilebaseStorageService(itemService, mediaService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client,
+                new S3UploadEngine(bucket, storageMetrics, uploadExecutor, 1024, 512, 2, 2), storageMetrics, uploadExecutor,
+                new IoExecutor(uploadExecutor, Duration.ofSeconds(5)), AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 2, 1000, true, false);
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        givenReferences();
+
+        storageService.delete("mock", List.of("http://localhost/" + JPEG_DATA_KEY), "mock");
+
+        verify(bucket, never()).deleteObjects(any(DeleteObjectsRequest.class));
+        verify(mediaService, times(1)).deleteMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyRequestsOverTheLimitAreShed() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("media-requests", 1, 1, 1, 0.2);
+        StorageService limitedStorageService = limitedStorageService(limiter);
+        MultipartFile[] files = {new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock data".getBytes())};
+        CountDownLatch release = new CountDownLatch(1);
+        when(itemService.itemExists(anyString(), anyString())).thenAnswer(invocation -> release.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<List<String>> first = limitedStorageService.storeAsync("mock", files, "mock");
+        CompletableFuture<List<String>> second = limitedStorageService.storeAsync("mock", files, "mock");
+
+        ExecutionException e = assertThrows(ExecutionException.class, second::get);
+        assertTrue(e.getCause() instanceof StorageUnavailableException);
+        assertEquals(Duration.ofSeconds(1), ((StorageUnavailableException) e.getCause()).getRetryAfter());
+        assertEquals(1, meterRegistry.get("storage.limiter.rejected").tag("operation", "store").counter().count());
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void verifyOverloadedDeletesLowerTheLimit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("media-requests", 20, 1, 64, 0.2);
+        StorageService limitedStorageService = limitedStorageService(limiter);
+        when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+        AmazonServiceException slowDown = new AmazonServiceException("Slow Down");
+        slowDown.setStatusCode(503);
+        givenReferences();
+        when(bucket.deleteObjects(any(DeleteObjectsRequest.class))).thenThrow(slowDown);
+
+        CompletableFuture<Void> deleted = limitedStorageService.deleteAsync("mock", List.of("http://localhost/image1.png"), "mock");
+
+        assertThrows(ExecutionException.class, () -> deleted.get(5, TimeUnit.SECONDS));
+        assertEquals(18, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void verifyTimedOutDeletesHoldTheirSlotUntilTheDeletionReturns() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("media-requests", 20, 1, 64, 0.2);
+        ExecutorService ioThreads = Executors.newSingleThreadExecutor();
+        try {
+            StorageService limitedStorageService = limitedStorageService(limiter, new IoExecutor(ioThreads, Duration.ofMillis(100)));
+            when(itemService.itemExists(anyString(), anyString())).thenReturn(true);
+            givenReferences();
+            CountDownLatch release = new CountDownLatch(1);
+            when(bucket.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+                release.await(5, TimeUnit.SECONDS);
+                return new DeleteObjectsResult(List.of());
+            });
+
+            CompletableFuture<Void> deleted = limitedStorageService.deleteAsync("mock", List.of("http://localhost/image1.png"), "mock");
+
+            Thread.sleep(300);
+            assertFalse(deleted.isDone());
+            assertEquals(1, limiter.getInFlight());
+            release.countDown();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> deleted.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof TimeoutException);
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            ioThreads.shutdownNow();
+        }
+    }
+
+    private StorageService limitedStorageService(AdaptiveLimiter limiter) {
+        return limitedStorageService(limiter, new IoExecutor(uploadExecutor, Duration.ofSeconds(5)));
+    }
+
+    private StorageService limitedStorageService(AdaptiveLimiter limiter, IoExecutor ioExecutor) {
+        return new FilebaseStorageService(itemService, mediaService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client,
+                new S3UploadEngine(bucket, storageMetrics, uploadExecutor, 1024, 512, 2, 2), storageMetrics, uploadExecutor,
+                ioExecutor, limiter, Duration.ofSeconds(1), 2, 1000, false, true);
+    }
+
+    /**
+     * Lists the reference markers and derivatives among {@code references} whose prefix is requested.
+     */
+    private void givenReferences(String... references) {
+        when(bucket.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+            ListObjectsV2Request listRequest = invocation.getArgument(0);
+            ListObjectsV2Result listing = new ListObjectsV2Result();
+            for (String reference : references) {
+                if (reference.startsWith(listRequest.getPrefix())) {
+                    S3ObjectSummary object = new S3ObjectSummary();
+                    object.setKey(reference);
+                    listing.getObjectSummaries().add(object);
+                }
+            }
+            return listing;
+        });
+    }
+
+    private StorageService contentAddressedStorageService() {
+        return new FilebaseStorageService(itemService, mediaService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client,
+                new S3UploadEngine(bucket, storageMetrics, uploadExecutor, 1024, 512, 2, 2), storageMetrics, uploadExecutor,
+                new IoExecutor(uploadExecutor, Duration.ofSeconds(5)), AdaptiveLimiter.unlimited("media-requests"), Duration.ofSeconds(1), 2, 1000, true, true);
+    }
+
+    /**
+     * @param files file name, content type and content of each part
+     */
+    private static FileItemIterator multipartBody(Object... files) throws IOException, FileUploadException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < files.length; i += 3) {
+            body.write(("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"files\"; filename=\"" + files[i] + "\"\r\n"
+                    + "Content-Type: " + files[i + 1] + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            body.write((byte[]) files[i + 2]);
+            body.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        body.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/stream/mock");
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        request.setContent(body.toByteArray());
+        return new ServletFileUpload().getItemIterator(request);
+    }
 }
@@ -0,0 +1,106 @@
+package org.notabarista.storage.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IoExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void supplyReturnsResult() throws Exception {
+        IoExecutor ioExecutor = new IoExecutor(executor, Duration.ofSeconds(5));
+
+        assertEquals("done", ioExecutor.supply(() -> "done").get());
+    }
+
+    @Test
+    void supplyPassesOnCheckedExceptions() {
+        IoExecutor ioExecutor = new IoExecutor(executor, Duration.ofSeconds(5));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> ioExecutor.supply(() -> {
+            throw new IOException("mock failure");
+        }).get());
+
+        assertEquals(IOException.class, e.getCause().getClass());
+    }
+
+    @Test
+    void supplyTimesOut() {
+        IoExecutor ioExecutor = new IoExecutor(executor, Duration.ofMillis(50));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> ioExecutor.supply(() -> release.await(5, TimeUnit.SECONDS)).get());
+
+        assertEquals(TimeoutException.class, e.getCause().getClass());
+    }
+
+    @Test
+    void supplyInterruptsTimedOutCallAndCompletesOnceItReturned() {
+        IoExecutor ioExecutor = new IoExecutor(executor, Duration.ofMillis(50));
+        AtomicBoolean cleanedUp = new AtomicBoolean();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> ioExecutor.supply(() -> {
+            try {
+                return release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException interrupted) {
+                cleanedUp.set(true);
+                throw interrupted;
+            }
+        }).get(5, TimeUnit.SECONDS));
+
+        assertEquals(TimeoutException.class, e.getCause().getClass());
+        assertTrue(cleanedUp.get());
+    }
+
+    @Test
+    void supplyDropsCallStillQueuedAtItsDeadline() throws Exception {
+        IoExecutor blockingExecutor = new IoExecutor(executor, Duration.ofSeconds(5));
+        IoExecutor ioExecutor = new IoExecutor(executor, Duration.ofMillis(50));
+        AtomicBoolean ran = new AtomicBoolean();
+        CompletableFuture<Boolean> blocking = blockingExecutor.supply(() -> release.await(5, TimeUnit.SECONDS));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> ioExecutor.supply(() -> ran.getAndSet(true)).get(5, TimeUnit.SECONDS));
+        release.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+
+        assertEquals(TimeoutException.class, e.getCause().getClass());
+        assertFalse(ran.get());
+    }
+
+    @Test
+    void supplyFailsWhenExecutorIsFull() {
+        IoExecutor ioExecutor = new IoExecutor(executor, Duration.ofSeconds(5));
+        ioExecutor.supply(() -> release.await(5, TimeUnit.SECONDS));
+        ioExecutor.supply(() -> release.await(5, TimeUnit.SECONDS));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> ioExecutor.supply(() -> "done").get());
+
+        assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+    }
+}
@@ -0,0 +1,128 @@
+package org.notabarista.storage.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.notabarista.exception.AbstractNotabaristaException;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ItemOwnershipCacheTest {
+
+    private MeterRegistry meterRegistry;
+
+    private ItemOwnershipCache ownershipCache;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        ownershipCache = new ItemOwnershipCache(2, Duration.ofMinutes(1), Duration.ZERO, meterRegistry);
+    }
+
+    @Test
+    public void testHitsAndMissesAreCounted() throws AbstractNotabaristaException {
+        AtomicInteger loads = new AtomicInteger();
+
+        assertTrue(ownershipCache.get("item", "user", () -> loads.incrementAndGet() > 0));
+        assertTrue(ownershipCache.get("item", "user", () -> loads.incrementAndGet() > 0));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, meterRegistry.get("catalog.ownership.cache.requests").tag("result", "hit").counter().count());
+        assertEquals(1, meterRegistry.get("catalog.ownership.cache.requests").tag("result", "miss").counter().count());
+    }
+
+    @Test
+    public void testNegativeResultExpires() throws AbstractNotabaristaException {
+        AtomicInteger loads = new AtomicInteger();
+
+        assertFalse(ownershipCache.get("item", "user", () -> loads.incrementAndGet() < 0));
+        assertFalse(ownershipCache.get("item", "user", () -> loads.incrementAndGet() < 0));
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testCacheIsBounded() throws AbstractNotabaristaException {
+        ownershipCache.get("item1", "user", () -> true);
+        ownershipCache.get("item2", "user", () -> true);
+        ownershipCache.get("item3", "user", () -> true);
+
+        assertEquals(2, ownershipCache.size());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws AbstractNotabaristaException {
+        assertThrows(IllegalStateException.class, () -> ownershipCache.get("item", "user", () -> {
+            throw new IllegalStateException("mock failure");
+        }));
+
+        assertTrue(ownershipCache.get("item", "user", () -> true));
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> first = executor.submit(() -> ownershipCache.get("item", "user", () -> {
+                loads.incrementAndGet();
+                loading.countDown();
+                awaitQuietly(release);
+                return true;
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Future<Boolean> second = executor.submit(() -> ownershipCache.get("item", "user", () -> loads.incrementAndGet() > 0));
+            release.countDown();
+
+            assertTrue(first.get(5, TimeUnit.SECONDS));
+            assertTrue(second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidationDuringLoadIsNotOverwritten() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> staleLoad = executor.submit(() -> ownershipCache.get("item", "user", () -> {
+                loading.countDown();
+                awaitQuietly(release);
+                return true;
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            ownershipCache.invalidate("item");
+            release.countDown();
+            assertTrue(staleLoad.get(5, TimeUnit.SECONDS));
+
+            assertFalse(ownershipCache.get("item", "user", () -> false));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.notabarista.storage.service;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -11,15 +13,22 @@ import org.notabarista.entity.response.ResponseStatus;
 import org.notabarista.exception.AbstractNotabaristaException;
 import org.notabarista.service.util.IBackendRequestService;
 import org.notabarista.service.util.enums.MicroService;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
 import org.springframework.core.ParameterizedTypeReference;
 
+import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 
 @ExtendWith(MockitoExtension.class)
 public class ItemServiceTest {
@@ -29,9 +38,12 @@ public class ItemServiceTest {
 
     private ItemService itemService;
 
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
     @BeforeEach
     void setUp() {
-        itemService = new ItemServiceImpl(backendRequestService);
+        itemService = new ItemServiceImpl(backendRequestService,
+                new ItemOwnershipCache(100, Duration.ofMinutes(1), Duration.ofSeconds(5), meterRegistry), new StorageMetrics(meterRegistry), 64, "/item/owned");
     }
 
     @Test
@@ -42,6 +54,7 @@ public class ItemServiceTest {
                 any(), any(ParameterizedTypeReference.class), anyMap())).thenReturn(response);
 
         assertTrue(itemService.itemExists("mockItemID", "mockUserID"));
+        assertEquals(1, meterRegistry.get("storage.catalog.ownership.check").tag("outcome", "owned").timer().count());
     }
 
     @Test
@@ -53,4 +66,75 @@ public class ItemServiceTest {
         assertFalse(itemService.itemExists("mockItemID", "mockUserID"));
     }
 
+    @Test
+    void itemExistsIsCached() throws AbstractNotabaristaException {
+        Response<Map<String, Object>> response = new Response<>();
+        response.setStatus(ResponseStatus.SUCCESS);
+        Mockito.when(backendRequestService.executeGet(any(MicroService.class), anyString(),
+                any(), any(ParameterizedTypeReference.class), anyMap())).thenReturn(response);
+
+        assertTrue(itemService.itemExists("mockItemID", "mockUserID"));
+        assertTrue(itemService.itemExists("mockItemID", "mockUserID"));
+
+        Mockito.verify(backendRequestService, Mockito.times(1)).executeGet(any(MicroService.class), anyString(),
+                any(), any(ParameterizedTypeReference.class), anyMap());
+        // cache hits are not timed as catalog calls
+        assertEquals(1, meterRegistry.get("storage.catalog.ownership.check").timer().count());
+    }
+
+    @Test
+    void invalidateDropsCachedItem() throws AbstractNotabaristaException {
+        Response<Map<String, Object>> response = new Response<>();
+        response.setStatus(ResponseStatus.SUCCESS);
+        Mockito.when(backendRequestService.executeGet(any(MicroService.class), anyString(),
+                any(), any(ParameterizedTypeReference.class), anyMap())).thenReturn(response);
+
+        assertTrue(itemService.itemExists("mockItemID", "mockUserID"));
+        itemService.invalidate("mockItemID");
+        assertTrue(itemService.itemExists("mockItemID", "mockUserID"));
+
+        Mockito.verify(backendRequestService, Mockito.times(2)).executeGet(any(MicroService.class), anyString(),
+                any(), any(ParameterizedTypeReference.class), anyMap());
+    }
+
+    @Test
+    void itemsExistChecksUncachedItemsInOneCall() throws AbstractNotabaristaException {
+        Response<Map<String, Object>> cachedResponse = new Response<>();
+        cachedResponse.setStatus(ResponseStatus.SUCCESS);
+        Mockito.when(backendRequestService.executeGet(any(MicroService.class), anyString(),
+                any(), any(ParameterizedTypeReference.class), anyMap())).thenReturn(cachedResponse);
+        Response<List<String>> response = new Response<>();
+        response.setStatus(ResponseStatus.SUCCESS);
+        response.setData(List.of("item2"));
+        Mockito.when(backendRequestService.executePost(any(MicroService.class), eq("/item/owned"),
+                any(), any(ParameterizedTypeReference.class), anyMap())).thenReturn(response);
+        assertTrue(itemService.itemExists("item1", "mockUserID"));
+
+        Map<String, Boolean> owned = itemService.itemsExist(List.of("item1", "item2", "item3"), "mockUserID");
+
+        assertEquals(List.of("item1", "item2", "item3"), List.copyOf(owned.keySet()));
+        assertEquals(List.of(true, true, false), List.copyOf(owned.values()));
+        Mockito.verify(backendRequestService, Mockito.times(1)).executePost(any(MicroService.class), eq("/item/owned"),
+                eq(List.of("item2", "item3")), any(ParameterizedTypeReference.class), anyMap());
+        // the batch result is cached like single checks
+        assertTrue(itemService.itemExists("item2", "mockUserID"));
+        assertFalse(itemService.itemExists("item3", "mockUserID"));
+        Mockito.verify(backendRequestService, Mockito.times(1)).executeGet(any(MicroService.class), anyString(),
+                any(), any(ParameterizedTypeReference.class), anyMap());
+    }
+
+    @Test
+    void itemsExistFailsWithoutCachingWhenCatalogFails() throws AbstractNotabaristaException {
+        Mockito.when(backendRequestService.executePost(any(MicroService.class), eq("/item/owned"),
+                any(), any(ParameterizedTypeReference.class), anyMap())).thenReturn(null);
+
+        assertThrows(StorageUnavailableException.class, () -> itemService.itemsExist(List.of("item1", "item2"), "mockUserID"));
+
+        Response<List<String>> response = new Response<>();
+        response.setStatus(ResponseStatus.SUCCESS);
+        response.setData(List.of("item1", "item2"));
+        Mockito.when(backendRequestService.executePost(any(MicroService.class), eq("/item/owned"),
+                any(), any(ParameterizedTypeReference.class), anyMap())).thenReturn(response);
+        assertEquals(List.of(true, true), List.copyOf(itemService.itemsExist(List.of("item1", "item2"), "mockUserID").values()));
+    }
 }
@@ -0,0 +1,249 @@
+package org.notabarista.storage.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.local.LocalFileStore;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class LocalFileStorageServiceTest {
+
+    private static final String BASE_URL = "http://media.localhost:8080";
+    private static final String BOUNDARY = "mock-boundary";
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+    private static final String JPEG_DATA_KEY = "23e5c96c789570b1a740a7463526bb846d97506642e12a6a5e6b9b3b7a90cd5f.jpg";
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private ItemService itemService;
+
+    @Mock
+    private MediaService mediaService;
+
+    private LocalFileStore store;
+
+    private ExecutorService ioExecutor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ioExecutor = Executors.newSingleThreadExecutor();
+        store = new LocalFileStore(new StorageMetrics(new SimpleMeterRegistry()), new IoExecutor(ioExecutor, Duration.ofSeconds(5)), directory,
+                BASE_URL);
+        store.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ioExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifyStore() throws IOException, AbstractNotabaristaException {
+        MultipartFile[] files = {
+                new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA),
+                new MockMultipartFile("files", "image2.jpg", "image/jpeg", "mock data".getBytes())
+        };
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        List<String> mediaURLs = storageService(false).store("item", files, "user");
+
+        assertEquals(List.of(BASE_URL + "/media/image1.jpg", BASE_URL + "/media/image2.jpg"), mediaURLs);
+        verify(mediaService).addMedia("item", "user", mediaURLs);
+        assertTrue(store.exists("image1.jpg"));
+        assertTrue(store.exists("image2.jpg"));
+    }
+
+    @Test
+    public void verifyStoreFailsForUnknownItem() throws AbstractNotabaristaException {
+        MultipartFile[] files = {new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA)};
+        when(itemService.itemExists("item", "user")).thenReturn(false);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> storageService(false).store("item", files, "user"));
+
+        assertEquals("Item not found", e.getMessage());
+        assertFalse(store.exists("image1.jpg"));
+    }
+
+    @Test
+    public void verifyStoreRollsBackWhenAFileFails() throws Exception {
+        MultipartFile broken = new MockMultipartFile("files", "image2.jpg", "image/jpeg", JPEG_DATA) {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        MultipartFile[] files = {new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA), broken};
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        assertThrows(IOException.class, () -> storageService(false).store("item", files, "user"));
+
+        assertFalse(store.exists("image1.jpg"));
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyContentAddressedStreamIsDeduplicated() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        StorageService storageService = storageService(true);
+
+        List<String> first = storageService.storeStream("item", multipartBody("image1.JPG"), "user");
+        List<String> second = storageService.storeStream("item", multipartBody("image2.jpg"), "user");
+
+        assertEquals(List.of(BASE_URL + "/media/" + JPEG_DATA_KEY), first);
+        assertEquals(first, second);
+        assertTrue(store.exists(JPEG_DATA_KEY));
+        assertEquals(List.of(ObjectKeys.reference(JPEG_DATA_KEY, "item")), store.list(ObjectKeys.references(JPEG_DATA_KEY)));
+        try (Stream<Path> files = Files.walk(directory)) {
+            // the object and the reference marker of the item
+            assertEquals(2, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void verifyStoreAllFailsItemsOnTheirOwn() throws AbstractNotabaristaException {
+        Map<String, List<MultipartFile>> filesByItem = new LinkedHashMap<>();
+        filesByItem.put("item1", List.of(new MockMultipartFile("item1", "image1.jpg", "image/jpeg", JPEG_DATA)));
+        filesByItem.put("item2", List.of(new MockMultipartFile("item2", "image2.jpg", "image/jpeg", JPEG_DATA)));
+        filesByItem.put("item3", List.of(new MockMultipartFile("item3", "notes.txt", "text/plain", "mock data".getBytes())));
+        when(itemService.itemsExist(filesByItem.keySet(), "user")).thenReturn(Map.of("item1", true, "item2", false, "item3", true));
+        when(mediaService.addMediaAll(Map.of("item1", List.of(BASE_URL + "/media/image1.jpg")), "user"))
+                .thenReturn(List.of(BulkItemResult.succeeded("item1", List.of(BASE_URL + "/media/image1.jpg"))));
+
+        List<BulkItemResult> results = storageService(false).storeAll(filesByItem, "user");
+
+        assertEquals(List.of(BulkItemResult.succeeded("item1", List.of(BASE_URL + "/media/image1.jpg")),
+                BulkItemResult.failed("item2", "Item not found"),
+                BulkItemResult.failed("item3", "Invalid content type: text/plain")), results);
+        assertFalse(store.exists("image2.jpg"));
+    }
+
+    @Test
+    public void verifyStoreAllRollsBackItemsThatWereNotLinked() throws IOException, AbstractNotabaristaException {
+        Map<String, List<MultipartFile>> filesByItem = new LinkedHashMap<>();
+        filesByItem.put("item1", List.of(new MockMultipartFile("item1", "image1.jpg", "image/jpeg", JPEG_DATA)));
+        filesByItem.put("item2", List.of(new MockMultipartFile("item2", "image2.jpg", "image/jpeg", JPEG_DATA)));
+        when(itemService.itemsExist(filesByItem.keySet(), "user")).thenReturn(Map.of("item1", true, "item2", true));
+        when(mediaService.addMediaAll(anyMap(), eq("user")))
+                .thenReturn(List.of(BulkItemResult.succeeded("item1", List.of(BASE_URL + "/media/image1.jpg")), BulkItemResult.failed("item2", "Item is locked")));
+
+        List<BulkItemResult> results = storageService(false).storeAll(filesByItem, "user");
+
+        assertEquals(BulkItemResult.failed("item2", "Item is locked"), results.get(1));
+        assertTrue(store.exists("image1.jpg"));
+        assertFalse(store.exists("image2.jpg"));
+        assertEquals(List.of(), store.list(ObjectKeys.references("image2.jpg")));
+    }
+
+    @Test
+    public void verifyStoreAllRollsBackAllItemsWhenLinkingFails() throws AbstractNotabaristaException {
+        Map<String, List<MultipartFile>> filesByItem = Map.of("item1", List.of(new MockMultipartFile("item1", "image1.jpg", "image/jpeg", JPEG_DATA)));
+        when(itemService.itemsExist(filesByItem.keySet(), "user")).thenReturn(Map.of("item1", true));
+        when(mediaService.addMediaAll(anyMap(), eq("user"))).thenThrow(new IllegalStateException("Producer closed"));
+
+        assertThrows(IllegalStateException.class, () -> storageService(false).storeAll(filesByItem, "user"));
+
+        assertFalse(store.exists("image1.jpg"));
+    }
+
+    @Test
+    public void verifyDelete() throws Exception {
+        store.write("image1.jpg", new ByteArrayInputStream(JPEG_DATA));
+        List<String> mediaURLs = List.of(store.resourceUrl("image1.jpg"));
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        storageService(false).delete("item", mediaURLs, "user");
+
+        assertFalse(store.exists("image1.jpg"));
+        verify(mediaService).deleteMedia("item", "user", mediaURLs);
+    }
+
+    @Test
+    public void verifySharedObjectIsDeletedWithItsLastReference() throws Exception {
+        when(itemService.itemExists(anyString(), eq("user"))).thenReturn(true);
+        StorageService storageService = storageService(true);
+        List<String> mediaURLs = storageService.store("item1", new MultipartFile[]{new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA)}, "user");
+        storageService.store("item2", new MultipartFile[]{new MockMultipartFile("files", "image2.jpg", "image/jpeg", JPEG_DATA)}, "user");
+
+        storageService.delete("item1", mediaURLs, "user");
+
+        assertTrue(store.exists(JPEG_DATA_KEY));
+        assertEquals(List.of(ObjectKeys.reference(JPEG_DATA_KEY, "item2")), store.list(ObjectKeys.references(JPEG_DATA_KEY)));
+
+        storageService.delete("item2", mediaURLs, "user");
+
+        assertFalse(store.exists(JPEG_DATA_KEY));
+        assertEquals(List.of(), store.list(ObjectKeys.references(JPEG_DATA_KEY)));
+    }
+
+    @Test
+    public void verifyDeleteOfUnknownFileDeletesNothing() throws Exception {
+        store.write("image1.jpg", new ByteArrayInputStream(JPEG_DATA));
+        List<String> mediaURLs = List.of(store.resourceUrl("image1.jpg"), store.resourceUrl("image2.jpg"));
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> storageService(false).delete("item", mediaURLs, "user"));
+
+        assertEquals("Unknown media file: image2.jpg", e.getMessage());
+        assertTrue(store.exists("image1.jpg"));
+        verify(mediaService, never()).deleteMedia(anyString(), anyString(), anyList());
+    }
+
+    private StorageService storageService(boolean contentAddressedKeys) {
+        return new LocalFileStorageService(itemService, mediaService, store, new StorageMetrics(new SimpleMeterRegistry()),
+                new IoExecutor(ioExecutor, Duration.ofSeconds(5)), 2, contentAddressedKeys, true);
+    }
+
+    private static FileItemIterator multipartBody(String fileName) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"files\"; filename=\"" + fileName
+                + "\"\r\nContent-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(JPEG_DATA);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/stream/item");
+        request.setContentType("multipart/form-data; boundary=" + BOUNDARY);
+        request.setContent(body.toByteArray());
+        return new ServletFileUpload().getItemIterator(request);
+    }
+}
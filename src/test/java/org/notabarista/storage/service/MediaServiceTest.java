@@ -1,18 +1,28 @@
 package org.notabarista.storage.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.notabarista.exception.AbstractNotabaristaException;
 import org.notabarista.kafka.MediaEvent;
 import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.kafka.outbox.MediaEventOutbox;
 import org.notabarista.storage.kafka.producer.MediaEventProducer;
 
+import java.time.Duration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
@@ -26,14 +36,24 @@ public class MediaServiceTest {
     @Mock
     private MediaEventProducer mediaEventProducer;
 
+    @Mock
+    private MediaEventOutbox mediaEventOutbox;
+
     @Mock
     private ItemService itemService;
 
+    private final IoExecutor ioExecutor = new IoExecutor(Executors.newSingleThreadExecutor(), Duration.ofSeconds(5));
+
     private MediaService mediaService;
 
+    @AfterEach
+    void tearDown() {
+        ioExecutor.shutdown();
+    }
+
     @BeforeEach
     void setUp() {
-        mediaService = new MediaServiceImpl(itemService, mediaEventProducer);
+        mediaService = new MediaServiceImpl(itemService, mediaEventProducer, mediaEventOutbox, ioExecutor);
     }
 
     @Test
@@ -47,6 +67,18 @@ public class MediaServiceTest {
         verify(mediaEventProducer, times(1)).sendMediaEvent(any(MediaEvent.class));
     }
 
+    @Test
+    public void testAddMediaThroughOutbox() throws JsonProcessingException, AbstractNotabaristaException {
+        String itemID = "mockItemId", userID = "mockUserId";
+        when(itemService.itemExists(itemID, userID)).thenReturn(true);
+        when(mediaEventOutbox.isEnabled()).thenReturn(true);
+
+        mediaService.addMedia(itemID, userID, List.of("url1", "url2"));
+
+        verify(mediaEventOutbox, times(1)).append(any(MediaEvent.class));
+        verify(mediaEventProducer, never()).sendMediaEvent(any(MediaEvent.class));
+    }
+
     @Test
     public void testAddMediaItemNotFound() throws JsonProcessingException, AbstractNotabaristaException {
         String itemID = "mockItemId", userID = "mockUserId";
@@ -77,4 +109,44 @@ public class MediaServiceTest {
 
         verify(mediaEventProducer, never()).sendMediaEvent(any(MediaEvent.class));
     }
+
+    @Test
+    public void testAddMediaAsync() throws Exception {
+        String itemID = "mockItemId", userID = "mockUserId";
+        when(itemService.itemExists(itemID, userID)).thenReturn(true);
+
+        mediaService.addMediaAsync(itemID, userID, List.of("url1", "url2")).get();
+
+        verify(mediaEventProducer, times(1)).sendMediaEvent(any(MediaEvent.class));
+    }
+
+    @Test
+    public void testDeleteMediaAsyncItemNotFound() throws JsonProcessingException, AbstractNotabaristaException {
+        String itemID = "mockItemId", userID = "mockUserId";
+        when(itemService.itemExists(itemID, userID)).thenReturn(false);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> mediaService.deleteMediaAsync(itemID, userID, List.of("url1", "url2")).get());
+
+        assertEquals(MediaStorageException.class, e.getCause().getClass());
+        verify(mediaEventProducer, never()).sendMediaEvent(any(MediaEvent.class));
+    }
+
+    @Test
+    public void testAddMediaAllSendsEventsTogether() throws JsonProcessingException, AbstractNotabaristaException {
+        String userID = "mockUserId";
+        Map<String, List<String>> mediaURLsByItem = new LinkedHashMap<>();
+        mediaURLsByItem.put("item1", List.of("url1"));
+        mediaURLsByItem.put("item2", List.of("url2"));
+        mediaURLsByItem.put("item3", List.of("url3"));
+        when(itemService.itemsExist(mediaURLsByItem.keySet(), userID)).thenReturn(Map.of("item1", true, "item2", false, "item3", true));
+        ArgumentCaptor<List<MediaEvent>> mediaEvents = ArgumentCaptor.forClass(List.class);
+
+        List<BulkItemResult> results = mediaService.addMediaAll(mediaURLsByItem, userID);
+
+        assertEquals(List.of(true, false, true), results.stream().map(BulkItemResult::isSucceeded).collect(Collectors.toList()));
+        assertEquals("Item not found", results.get(1).getError());
+        verify(mediaEventProducer, times(1)).sendMediaEvents(mediaEvents.capture());
+        assertEquals(List.of("item1", "item3"), mediaEvents.getValue().stream().map(MediaEvent::getItemID).collect(Collectors.toList()));
+        verify(mediaEventProducer, never()).sendMediaEvent(any(MediaEvent.class));
+    }
 }
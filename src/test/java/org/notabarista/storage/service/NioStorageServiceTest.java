@@ -0,0 +1,161 @@
+package org.notabarista.storage.service;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.nio.LocalS3Server;
+import org.notabarista.storage.service.nio.NioBucketStore;
+import org.notabarista.storage.service.nio.NioS3Client;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class NioStorageServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+
+    @Mock
+    private ItemService itemService;
+
+    @Mock
+    private MediaService mediaService;
+
+    private LocalS3Server server;
+
+    private AmazonS3Client s3Client;
+
+    private NioS3Client nioS3Client;
+
+    private ExecutorService ioExecutor;
+
+    private StorageService storageService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new LocalS3Server(MOCK_BUCKET_NAME, 0);
+        AWSStaticCredentialsProvider credentials = new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret"));
+        s3Client = (AmazonS3Client) AmazonS3ClientBuilder.standard()
+                                                         .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.endpoint(), "us-east-1"))
+                                                         .withPathStyleAccessEnabled(true)
+                                                         .withCredentials(credentials)
+                                                         .build();
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        nioS3Client = new NioS3Client(s3Client, MOCK_BUCKET_NAME, "us-east-1", credentials, 1, Duration.ofSeconds(5),
+                Duration.ofSeconds(5), Duration.ofSeconds(5), Duration.ofSeconds(5), 0, Duration.ofMillis(10), 64, null, storageMetrics);
+        ioExecutor = Executors.newFixedThreadPool(2);
+        DerivativeService derivativeService = new DerivativeService(s3Client, MOCK_BUCKET_NAME, s3Client, mediaService, storageMetrics, ioExecutor,
+                false, new int[0], false, 0.85f);
+        NioBucketStore store = new NioBucketStore(nioS3Client, null, storageMetrics, 1000);
+        storageService = new NioStorageService(itemService, mediaService, derivativeService, store, storageMetrics,
+                new IoExecutor(ioExecutor, Duration.ofSeconds(5)), 2, false, true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ioExecutor.shutdownNow();
+        nioS3Client.shutdown();
+        s3Client.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void verifyStore() throws IOException, AbstractNotabaristaException {
+        MultipartFile[] files = new MultipartFile[3];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new MockMultipartFile("files", "image" + i + ".jpg", "image/jpeg", JPEG_DATA);
+        }
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        List<String> mediaURLs = storageService.store("item", files, "user");
+
+        List<String> expectedURLs = List.of(s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image0.jpg"),
+                s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image1.jpg"), s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image2.jpg"));
+        assertEquals(expectedURLs, mediaURLs);
+        verify(mediaService).addMedia("item", "user", expectedURLs);
+        assertArrayEquals(JPEG_DATA, server.objects().get("image1.jpg").content);
+        assertEquals(Map.of("itemid", "item"), server.objects().get("image1.jpg").userMetadata);
+    }
+
+    @Test
+    public void verifyStoreRollsBackWhenAnUploadFails() throws IOException, AbstractNotabaristaException {
+        MultipartFile[] files = {
+                new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA),
+                new MockMultipartFile("files", "image2.jpg", "image/jpeg", JPEG_DATA)
+        };
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        server.fail("image2.jpg");
+
+        assertThrows(RuntimeException.class, () -> storageService.store("item", files, "user"));
+
+        assertTrue(server.objects().isEmpty());
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyStoreFailsForUnknownItem() throws AbstractNotabaristaException {
+        MultipartFile[] files = {new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA)};
+        when(itemService.itemExists("item", "user")).thenReturn(false);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> storageService.store("item", files, "user"));
+
+        assertEquals("Item not found", e.getMessage());
+        assertTrue(server.objects().isEmpty());
+    }
+
+    @Test
+    public void verifyDelete() throws Exception {
+        s3Client.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content");
+        s3Client.putObject(MOCK_BUCKET_NAME, "image2.jpg", "content");
+        List<String> mediaURLs = List.of("https://mock.s3.filebase.com/image1.jpg");
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        storageService.delete("item", mediaURLs, "user");
+
+        assertEquals(List.of("image2.jpg"), List.copyOf(server.objects().keySet()));
+        verify(mediaService).deleteMedia("item", "user", mediaURLs);
+    }
+
+    @Test
+    public void verifyDeleteFailsWhenAnObjectIsNotDeleted() throws Exception {
+        s3Client.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content");
+        server.fail("image1.jpg");
+        List<String> mediaURLs = List.of("https://mock.s3.filebase.com/image1.jpg");
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> storageService.delete("item", mediaURLs, "user"));
+
+        assertEquals("Could not delete media file: image1.jpg", e.getMessage());
+        verify(mediaService, never()).deleteMedia(anyString(), anyString(), anyList());
+    }
+}
@@ -0,0 +1,172 @@
+package org.notabarista.storage.service;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.bucket.BucketStore;
+import org.notabarista.storage.service.nio.LocalS3Server;
+import org.notabarista.storage.service.tiered.TieredStore;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class TieredStorageServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+    private static final String JPEG_DATA_KEY = "23e5c96c789570b1a740a7463526bb846d97506642e12a6a5e6b9b3b7a90cd5f.jpg";
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private ItemService itemService;
+
+    @Mock
+    private MediaService mediaService;
+
+    private LocalS3Server server;
+    private AmazonS3Client s3Client;
+    private ExecutorService executor;
+    private TieredStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new LocalS3Server(MOCK_BUCKET_NAME, 0);
+        s3Client = (AmazonS3Client) AmazonS3ClientBuilder.standard()
+                                                         .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.endpoint(), "us-east-1"))
+                                                         .withPathStyleAccessEnabled(true)
+                                                         .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                                                         .build();
+        executor = Executors.newFixedThreadPool(2);
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        S3UploadEngine uploadEngine = new S3UploadEngine(s3Client, storageMetrics, executor, 16 * 1024 * 1024, 8 * 1024 * 1024, 2, 2);
+        BucketStore bucketStore = new BucketStore(s3Client, MOCK_BUCKET_NAME, s3Client, uploadEngine, storageMetrics,
+                new IoExecutor(executor, Duration.ofSeconds(5)), 1000, DataSize.ofKilobytes(64), 2);
+        store = new TieredStore(bucketStore, s3Client, MOCK_BUCKET_NAME, storageMetrics, new IoExecutor(executor, Duration.ofSeconds(5)), directory, "http://localhost:8080",
+                DataSize.ofMegabytes(1), 3, 1024, 1, Duration.ofMinutes(1));
+        store.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.stop();
+        executor.shutdownNow();
+        s3Client.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void verifyStoreWritesTheHotTierAndCopiesToTheBucket() throws Exception {
+        MultipartFile[] files = {new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA)};
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        List<String> mediaURLs = storageService(false).store("item", files, "user");
+
+        assertEquals(List.of("http://localhost:8080/media/image1.jpg"), mediaURLs);
+        verify(mediaService).addMedia("item", "user", mediaURLs);
+        assertTrue(store.hotTier().exists("image1.jpg"));
+        for (int i = 0; i < 500 && !server.objects().containsKey("image1.jpg"); i++) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(JPEG_DATA, server.objects().get("image1.jpg").content);
+        assertEquals("item", server.objects().get("image1.jpg").userMetadata.get("itemid"));
+    }
+
+    @Test
+    public void verifyContentAddressedFilesInEitherTierAreDeduplicated() throws Exception {
+        s3Client.putObject(MOCK_BUCKET_NAME, JPEG_DATA_KEY, "stored before");
+        MultipartFile[] files = {new MockMultipartFile("files", "image1.JPG", "image/jpeg", JPEG_DATA)};
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        List<String> mediaURLs = storageService(true).store("item", files, "user");
+
+        assertEquals(List.of("http://localhost:8080/media/" + JPEG_DATA_KEY), mediaURLs);
+        assertFalse(store.hotTier().exists(JPEG_DATA_KEY));
+    }
+
+    @Test
+    public void verifyStoreRollsBackWhenAFileFails() throws Exception {
+        MultipartFile broken = new MockMultipartFile("files", "image2.jpg", "image/jpeg", JPEG_DATA) {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                throw new IOException("Disk full");
+            }
+        };
+        MultipartFile[] files = {new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA), broken};
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        assertThrows(IOException.class, () -> storageService(false).store("item", files, "user"));
+
+        assertFalse(store.hotTier().exists("image1.jpg"));
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyDeleteMapsServiceAndBucketURLsBack() throws Exception {
+        store.write("image1.jpg", "image/jpeg", "item", new ByteArrayInputStream(JPEG_DATA));
+        store.write("image2.jpg", "image/jpeg", "item", new ByteArrayInputStream(JPEG_DATA));
+        // bucket URLs were handed out by earlier versions
+        List<String> mediaURLs = List.of(store.resourceUrl("image1.jpg"), "https://mock.s3.filebase.com/image2.jpg");
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        storageService(false).delete("item", mediaURLs, "user");
+
+        assertFalse(store.exists("image1.jpg"));
+        assertFalse(store.exists("image2.jpg"));
+        verify(mediaService).deleteMedia("item", "user", mediaURLs);
+    }
+
+    @Test
+    public void verifyDeleteOfUnknownFileDeletesNothing() throws AbstractNotabaristaException, IOException {
+        store.write("image1.jpg", "image/jpeg", "item", new ByteArrayInputStream(JPEG_DATA));
+        List<String> mediaURLs = List.of("https://mock.s3.filebase.com/image1.jpg", "https://mock.s3.filebase.com/image2.jpg");
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> storageService(false).delete("item", mediaURLs, "user"));
+
+        assertEquals("Unknown media file: image2.jpg", e.getMessage());
+        assertTrue(store.hotTier().exists("image1.jpg"));
+        verify(mediaService, never()).deleteMedia(anyString(), anyString(), anyList());
+    }
+
+    private StorageService storageService(boolean contentAddressedKeys) {
+        return new TieredStorageService(itemService, mediaService, store, new StorageMetrics(new SimpleMeterRegistry()),
+                new IoExecutor(executor, Duration.ofSeconds(5)), 2, contentAddressedKeys, true);
+    }
+}
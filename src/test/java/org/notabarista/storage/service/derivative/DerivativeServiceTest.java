@@ -0,0 +1,170 @@
+package org.notabarista.storage.service.derivative;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.MediaService;
+import org.notabarista.storage.service.ObjectKeys;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class DerivativeServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+
+    @Mock
+    private AmazonS3 bucket;
+
+    @Mock
+    private AmazonS3Client s3Client;
+
+    @Mock
+    private MediaService mediaService;
+
+    private final StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+
+    private ExecutorService derivativeExecutor;
+
+    @BeforeEach
+    void setUp() {
+        derivativeExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        derivativeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifyAwaitedDerivativesAreLinkedWithOriginals() throws Exception {
+        when(bucket.getObject(MOCK_BUCKET_NAME, "image1.png")).thenReturn(object(png(1200, 800)));
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+        ArgumentCaptor<ObjectMetadata> objectMetadata = ArgumentCaptor.forClass(ObjectMetadata.class);
+
+        derivativeService(true).addMedia("item", "user", List.of("http://localhost/image1.png"), List.of("image1.png"));
+
+        verify(mediaService, times(1)).addMedia("item", "user", List.of("http://localhost/image1.png",
+                "http://localhost/derivatives/image1.png/1080.png", "http://localhost/derivatives/image1.png/480.png",
+                "http://localhost/derivatives/image1.png/160.png"));
+        verify(bucket, times(3)).putObject(eq(MOCK_BUCKET_NAME), anyString(), any(InputStream.class), objectMetadata.capture());
+        assertEquals("image/png", objectMetadata.getValue().getContentType());
+        assertTrue(objectMetadata.getValue().getContentLength() > 0);
+    }
+
+    @Test
+    public void verifyDerivativesFollowInTheirOwnEvent() throws Exception {
+        when(bucket.getObject(MOCK_BUCKET_NAME, "image1.jpg")).thenReturn(object(png(600, 300)));
+        when(s3Client.getResourceUrl(eq(MOCK_BUCKET_NAME), anyString())).thenAnswer(invocation -> "http://localhost/" + invocation.getArgument(1));
+        when(mediaService.addMediaAsync(anyString(), anyString(), any())).thenReturn(CompletableFuture.completedFuture(null));
+
+        derivativeService(false).addMedia("item", "user", List.of("http://localhost/image1.jpg"), List.of("image1.jpg"));
+
+        verify(mediaService, times(1)).addMedia("item", "user", List.of("http://localhost/image1.jpg"));
+        // the original is smaller than 1080 px, it is not scaled up
+        verify(mediaService, timeout(2000).times(1)).addMediaAsync("item", "user",
+                List.of("http://localhost/derivatives/image1.jpg/480.jpg", "http://localhost/derivatives/image1.jpg/160.jpg"));
+    }
+
+    @Test
+    public void verifyUnsupportedFormatIsLinkedWithoutDerivatives() throws Exception {
+        when(bucket.getObject(MOCK_BUCKET_NAME, "image1.webp")).thenReturn(object("RIFF\0\0\0\0WEBPVP8 ".getBytes()));
+
+        derivativeService(true).addMedia("item", "user", List.of("http://localhost/image1.webp"), List.of("image1.webp"));
+
+        verify(mediaService, times(1)).addMedia("item", "user", List.of("http://localhost/image1.webp"));
+        verify(bucket, never()).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+    }
+
+    @Test
+    public void verifyDisabledServiceOnlyLinksOriginals() throws Exception {
+        DerivativeService derivativeService = new DerivativeService(bucket, MOCK_BUCKET_NAME, s3Client, mediaService, storageMetrics,
+                derivativeExecutor, false, new int[]{160}, true, 0.85f);
+
+        derivativeService.addMedia("item", "user", List.of("http://localhost/image1.jpg"), List.of("image1.jpg"));
+
+        verify(mediaService, times(1)).addMedia("item", "user", List.of("http://localhost/image1.jpg"));
+        verify(bucket, never()).getObject(anyString(), anyString());
+    }
+
+    @Test
+    public void verifyDerivativeKeys() {
+        String contentAddressedKey = "23e5c96c789570b1a740a7463526bb846d97506642e12a6a5e6b9b3b7a90cd5f.gif";
+
+        assertEquals("derivatives/photos/image1.JPEG/160.jpg", ObjectKeys.derivative("photos/image1.JPEG", 160));
+        assertEquals("derivatives/photo.jpg/160.jpg", ObjectKeys.derivative("photo.jpg", 160));
+        assertEquals("derivatives/photo.png/160.png", ObjectKeys.derivative("photo.png", 160));
+        assertEquals("derivatives/" + contentAddressedKey + "/160.png", ObjectKeys.derivative(contentAddressedKey, 160));
+    }
+
+    @Test
+    public void verifyStoredDerivativesAreListed() {
+        // derivatives of disabled services and sizes no longer configured are still found
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        listing.getObjectSummaries().add(summary("derivatives/photos/image1.JPEG/720.jpg"));
+        when(bucket.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+            assertEquals("derivatives/photos/image1.JPEG/", invocation.<ListObjectsV2Request>getArgument(0).getPrefix());
+            return listing;
+        });
+        DerivativeService derivativeService = new DerivativeService(bucket, MOCK_BUCKET_NAME, s3Client, mediaService, storageMetrics,
+                derivativeExecutor, false, new int[]{160}, true, 0.85f);
+
+        assertEquals(List.of("derivatives/photos/image1.JPEG/720.jpg"), derivativeService.derivativeKeys("photos/image1.JPEG"));
+    }
+
+    private DerivativeService derivativeService(boolean await) {
+        return new DerivativeService(bucket, MOCK_BUCKET_NAME, s3Client, mediaService, storageMetrics, derivativeExecutor,
+                true, new int[]{480, 160, 1080}, await, 0.85f);
+    }
+
+    private static S3ObjectSummary summary(String key) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        return summary;
+    }
+
+    private static S3Object object(byte[] content) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(content));
+        return object;
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", content);
+        return content.toByteArray();
+    }
+}
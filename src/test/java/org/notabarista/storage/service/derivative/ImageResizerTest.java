@@ -0,0 +1,70 @@
+package org.notabarista.storage.service.derivative;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ImageResizerTest {
+
+    @Test
+    void scalesLongestSideKeepingAspectRatio() {
+        BufferedImage scaled = ImageResizer.scale(new BufferedImage(1200, 800, BufferedImage.TYPE_INT_RGB), 160);
+
+        assertEquals(160, scaled.getWidth());
+        assertEquals(107, scaled.getHeight());
+    }
+
+    @Test
+    void decodeSubsamplesLargeImages() throws IOException {
+        byte[] png = png(new BufferedImage(2000, 1000, BufferedImage.TYPE_INT_RGB));
+
+        BufferedImage decoded = ImageResizer.decode(new ByteArrayInputStream(png), 160);
+
+        // subsampled by 2000 / 320, still at least twice the requested size
+        assertEquals(334, decoded.getWidth());
+        assertEquals(167, decoded.getHeight());
+    }
+
+    @Test
+    void fitsIntoBoxWithoutScalingUp() {
+        BufferedImage image = new BufferedImage(1200, 800, BufferedImage.TYPE_INT_RGB);
+
+        BufferedImage boxed = ImageResizer.fit(image, 300, 100);
+        BufferedImage wide = ImageResizer.fit(image, 600, 0);
+
+        assertEquals(150, boxed.getWidth());
+        assertEquals(100, boxed.getHeight());
+        assertEquals(600, wide.getWidth());
+        assertEquals(400, wide.getHeight());
+        assertSame(image, ImageResizer.fit(image, 0, 1000));
+    }
+
+    @Test
+    void decodeOfUnsupportedFormatReturnsNull() throws IOException {
+        assertNull(ImageResizer.decode(new ByteArrayInputStream("RIFF\0\0\0\0WEBPVP8 ".getBytes()), 160));
+    }
+
+    @Test
+    void encodesTransparentImagesAsOpaqueJpeg() throws IOException {
+        byte[] jpeg = ImageResizer.encode(new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB), ImageResizer.JPEG, 0.85f);
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertEquals(10, decoded.getWidth());
+        assertFalse(decoded.getColorModel().hasAlpha());
+    }
+
+    private static byte[] png(BufferedImage image) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", content);
+        return content.toByteArray();
+    }
+}
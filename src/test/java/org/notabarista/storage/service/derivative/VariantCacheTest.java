@@ -0,0 +1,80 @@
+package org.notabarista.storage.service.derivative;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.notabarista.storage.metrics.StorageMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class VariantCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void evictsLeastRecentlyServedVariants() throws IOException {
+        VariantCache cache = new VariantCache(directory, 10, Duration.ofHours(1), new StorageMetrics(meterRegistry));
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        cache.open("a", "image/jpeg").close();
+
+        cache.put("c", new byte[4]);
+
+        assertNull(cache.open("b", "image/jpeg"));
+        assertFalse(Files.exists(directory.resolve("b")));
+        assertEquals(8, cache.size());
+        assertEquals(1, meterRegistry.get("storage.variants.cache.evictions").counter().count());
+        assertEquals(8, meterRegistry.get("storage.variants.cache.size").gauge().value());
+    }
+
+    @Test
+    void servesCachedVariantFromFile() throws IOException {
+        new VariantCache(directory, 100, Duration.ofHours(1), new StorageMetrics(meterRegistry)).put("a", "variant".getBytes());
+
+        VariantCache cache = new VariantCache(directory, 100, Duration.ofHours(1), new StorageMetrics(meterRegistry));
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (MediaVariant variant = cache.open("a", "image/jpeg")) {
+            assertNotNull(variant);
+            assertTrue(variant.isCached());
+            variant.writeTo(content);
+        }
+
+        assertArrayEquals("variant".getBytes(), content.toByteArray());
+        assertEquals(1, meterRegistry.get("storage.variants.cache.requests").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    void expiredVariantsAreMisses() throws Exception {
+        VariantCache cache = new VariantCache(directory, 100, Duration.ofMillis(1), new StorageMetrics(meterRegistry));
+        cache.put("a", new byte[4]);
+        Thread.sleep(10);
+
+        assertNull(cache.open("a", "image/jpeg"));
+        assertFalse(Files.exists(directory.resolve("a")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void skipsVariantsLargerThanTheCache() throws IOException {
+        VariantCache cache = new VariantCache(directory, 10, Duration.ofHours(1), new StorageMetrics(meterRegistry));
+
+        cache.put("a", new byte[11]);
+
+        assertNull(cache.open("a", "image/jpeg"));
+        assertEquals(1, meterRegistry.get("storage.variants.cache.requests").tag("result", "miss").counter().count());
+    }
+}
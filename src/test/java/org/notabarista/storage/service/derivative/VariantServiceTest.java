@@ -0,0 +1,173 @@
+package org.notabarista.storage.service.derivative;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.ObjectStore;
+import org.springframework.util.unit.DataSize;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class VariantServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private AmazonS3 bucket;
+
+    @Mock
+    private ObjectStore store;
+
+    private ExecutorService renderExecutor;
+
+    private VariantService variantService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        renderExecutor = Executors.newFixedThreadPool(2);
+        variantService = new VariantService(bucket, MOCK_BUCKET_NAME, store, new StorageMetrics(new SimpleMeterRegistry()), renderExecutor,
+                directory, DataSize.ofMegabytes(1), Duration.ofHours(1), new int[]{2048, 100, 160, 320}, 0.85f);
+        variantService.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        renderExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifyRenderedVariantIsCached() throws Exception {
+        when(bucket.getObject(MOCK_BUCKET_NAME, "key/image1.png")).thenReturn(object(png(1200, 800)));
+
+        MediaVariant rendered = variantService.getAsync("key/image1.png", 300, 100, null).join();
+        MediaVariant cached = variantService.getAsync("key/image1.png", 300, 100, null).join();
+
+        assertFalse(rendered.isCached());
+        assertEquals("image/png", rendered.getContentType());
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(content(rendered)));
+        assertEquals(150, image.getWidth());
+        assertEquals(100, image.getHeight());
+        assertTrue(cached.isCached());
+        assertEquals(rendered.getSize(), cached.getSize());
+        cached.close();
+        verify(bucket, times(1)).getObject(MOCK_BUCKET_NAME, "key/image1.png");
+    }
+
+    @Test
+    public void verifyConcurrentRequestsShareOneRender() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        byte[] original = png(800, 600);
+        when(bucket.getObject(MOCK_BUCKET_NAME, "image1.jpg")).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return object(original);
+        });
+
+        CompletableFuture<MediaVariant> first = variantService.getAsync("image1.jpg", 160, null, "jpg");
+        CompletableFuture<MediaVariant> second = variantService.getAsync("image1.jpg", 160, null, "jpeg");
+        release.countDown();
+
+        assertEquals("image/jpeg", first.join().getContentType());
+        assertEquals(first.join().getSize(), second.join().getSize());
+        verify(bucket, times(1)).getObject(MOCK_BUCKET_NAME, "image1.jpg");
+    }
+
+    @Test
+    public void verifyBoundsAreRoundedUpToConfiguredDimensions() throws Exception {
+        when(bucket.getObject(MOCK_BUCKET_NAME, "image1.png")).thenReturn(object(png(1200, 800)));
+
+        MediaVariant rendered = variantService.getAsync("image1.png", 161, null, null).join();
+        MediaVariant cached = variantService.getAsync("image1.png", 320, null, null).join();
+
+        assertEquals(320, ImageIO.read(new ByteArrayInputStream(content(rendered))).getWidth());
+        assertTrue(cached.isCached());
+        cached.close();
+        verify(bucket, times(1)).getObject(MOCK_BUCKET_NAME, "image1.png");
+    }
+
+    @Test
+    public void verifyVariantsOfDeletedOriginalsAreRenderedAgain() throws Exception {
+        when(bucket.getObject(MOCK_BUCKET_NAME, "key/image1.png")).thenAnswer(invocation -> object(png(1200, 800)));
+        variantService.getAsync("key/image1.png", 160, null, null).join();
+        variantService.getAsync("key/image1.png", 320, null, "jpg").join();
+
+        when(store.objectKey("http://localhost/key/image1.png")).thenReturn("key/image1.png");
+        variantService.invalidate(List.of("http://localhost/key/image1.png"));
+
+        assertFalse(variantService.getAsync("key/image1.png", 160, null, null).join().isCached());
+        assertFalse(variantService.getAsync("key/image1.png", 320, null, "jpg").join().isCached());
+        verify(bucket, times(4)).getObject(MOCK_BUCKET_NAME, "key/image1.png");
+    }
+
+    @Test
+    public void verifyMissingOriginalFails() throws Exception {
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        when(bucket.getObject(MOCK_BUCKET_NAME, "image1.jpg")).thenThrow(notFound);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> variantService.getAsync("image1.jpg", 160, 160, null).join());
+
+        assertEquals(MediaNotFoundException.class, e.getCause().getClass());
+        assertEquals("Media file not found: image1.jpg", e.getCause().getMessage());
+    }
+
+    @Test
+    public void verifyInvalidRequestsAreRejected() {
+        assertThrows(MediaStorageException.class, () -> variantService.getAsync("image1.jpg", null, null, null));
+        assertThrows(MediaStorageException.class, () -> variantService.getAsync("image1.jpg", 4096, null, null));
+        assertThrows(MediaStorageException.class, () -> variantService.getAsync("image1.jpg", 160, null, "webp"));
+    }
+
+    private static byte[] content(MediaVariant variant) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        variant.writeTo(content);
+        return content.toByteArray();
+    }
+
+    private static S3Object object(byte[] content) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(content));
+        return object;
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", content);
+        return content.toByteArray();
+    }
+}
@@ -0,0 +1,249 @@
+package org.notabarista.storage.service.download;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.bucket.BucketStore;
+import org.notabarista.storage.service.local.LocalFileStore;
+import org.notabarista.storage.service.tiered.TieredStore;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class DownloadServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final String OBJECT_KEY = "key/image1.jpg";
+    private static final String ETAG = "d41d8cd98f00b204e9800998ecf8427e";
+    private static final long LAST_MODIFIED = 1_600_000_000_000L;
+    // keeps tiered reads from promoting objects in the background
+    private static final int FREQUENCY_NEVER_REACHED = 100;
+
+    @Mock
+    private AmazonS3 bucket;
+
+    private ExecutorService ioExecutor;
+
+    private DownloadService downloadService;
+
+    @BeforeEach
+    void setUp() {
+        ioExecutor = Executors.newSingleThreadExecutor();
+        downloadService = new DownloadService(bucketStore(new StorageMetrics(new SimpleMeterRegistry())), ioExecutor());
+    }
+
+    @AfterEach
+    void tearDown() {
+        ioExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifyFullDownloadIsStreamed() throws Exception {
+        givenObject();
+        when(bucket.getObject(any(GetObjectRequest.class))).thenReturn(object("0123456789".getBytes()));
+        ArgumentCaptor<GetObjectRequest> getRequest = ArgumentCaptor.forClass(GetObjectRequest.class);
+
+        ObjectDownload download = downloadService.prepare(OBJECT_KEY, new HttpHeaders());
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        downloadService.transfer(download, content);
+
+        assertEquals(HttpStatus.OK, download.getStatus());
+        assertEquals(10, download.getContentLength());
+        assertNull(download.getContentRange());
+        assertArrayEquals("0123456789".getBytes(), content.toByteArray());
+        verify(bucket, times(1)).getObject(getRequest.capture());
+        assertNull(getRequest.getValue().getRange());
+        assertEquals(List.of(ETAG), getRequest.getValue().getMatchingETagConstraints());
+    }
+
+    @Test
+    public void verifyRangeIsFetchedFromBucket() throws Exception {
+        givenObject();
+        when(bucket.getObject(any(GetObjectRequest.class))).thenReturn(object("2345".getBytes()));
+        ArgumentCaptor<GetObjectRequest> getRequest = ArgumentCaptor.forClass(GetObjectRequest.class);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=2-5");
+
+        ObjectDownload download = downloadService.prepare(OBJECT_KEY, headers);
+        downloadService.transfer(download, new ByteArrayOutputStream());
+
+        assertEquals(HttpStatus.PARTIAL_CONTENT, download.getStatus());
+        assertEquals(4, download.getContentLength());
+        assertEquals("bytes 2-5/10", download.getContentRange());
+        verify(bucket, times(1)).getObject(getRequest.capture());
+        assertArrayEquals(new long[]{2, 5}, getRequest.getValue().getRange());
+    }
+
+    @Test
+    public void verifySuffixAndUnsatisfiableRanges() {
+        givenObject();
+        HttpHeaders suffix = new HttpHeaders();
+        suffix.set(HttpHeaders.RANGE, "bytes=-3");
+        HttpHeaders beyond = new HttpHeaders();
+        beyond.set(HttpHeaders.RANGE, "bytes=10-");
+
+        assertEquals("bytes 7-9/10", downloadService.prepare(OBJECT_KEY, suffix).getContentRange());
+        ObjectDownload unsatisfiable = downloadService.prepare(OBJECT_KEY, beyond);
+        assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, unsatisfiable.getStatus());
+        assertEquals("bytes */10", unsatisfiable.getContentRange());
+    }
+
+    @Test
+    public void verifyConditionalRequestsAreNotModified() {
+        givenObject();
+        HttpHeaders ifNoneMatch = new HttpHeaders();
+        ifNoneMatch.setIfNoneMatch("\"other\", \"" + ETAG + "\"");
+        HttpHeaders ifModifiedSince = new HttpHeaders();
+        ifModifiedSince.setIfModifiedSince(LAST_MODIFIED + 500);
+        HttpHeaders modified = new HttpHeaders();
+        modified.setIfModifiedSince(LAST_MODIFIED - 1000);
+
+        assertEquals(HttpStatus.NOT_MODIFIED, downloadService.prepare(OBJECT_KEY, ifNoneMatch).getStatus());
+        assertEquals(HttpStatus.NOT_MODIFIED, downloadService.prepare(OBJECT_KEY, ifModifiedSince).getStatus());
+        assertEquals(HttpStatus.OK, downloadService.prepare(OBJECT_KEY, modified).getStatus());
+        verify(bucket, times(0)).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void verifyStaleIfRangeServesWholeObject() {
+        givenObject();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=2-5");
+        headers.set(HttpHeaders.IF_RANGE, "\"other\"");
+        HttpHeaders matching = new HttpHeaders();
+        matching.set(HttpHeaders.RANGE, "bytes=2-5");
+        matching.set(HttpHeaders.IF_RANGE, "\"" + ETAG + "\"");
+
+        assertEquals(HttpStatus.OK, downloadService.prepare(OBJECT_KEY, headers).getStatus());
+        assertEquals(HttpStatus.PARTIAL_CONTENT, downloadService.prepare(OBJECT_KEY, matching).getStatus());
+    }
+
+    @Test
+    public void verifyMissingAndChangedObjectsFail() {
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, "missing.jpg")).thenThrow(notFound);
+        ObjectDownload download = new ObjectDownload(HttpStatus.OK, OBJECT_KEY, ETAG, LAST_MODIFIED, "image/jpeg", 10, 0, 9);
+
+        assertThrows(MediaNotFoundException.class, () -> downloadService.prepare("missing.jpg", new HttpHeaders()));
+        // the SDK returns no object when the ETag constraint fails
+        assertThrows(MediaStorageException.class, () -> downloadService.transfer(download, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void verifyLocalFilesAreServedFromDisk(@TempDir Path directory) throws Exception {
+        LocalFileStore localFileStore = new LocalFileStore(new StorageMetrics(new SimpleMeterRegistry()), ioExecutor(), directory,
+                "http://localhost");
+        localFileStore.start();
+        localFileStore.write(OBJECT_KEY, new ByteArrayInputStream("0123456789".getBytes()));
+        DownloadService localDownloadService = new DownloadService(localFileStore, ioExecutor());
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=2-5");
+
+        ObjectDownload download = localDownloadService.prepare(OBJECT_KEY, headers);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        localDownloadService.transfer(download, content);
+        HttpHeaders ifNoneMatch = new HttpHeaders();
+        ifNoneMatch.setIfNoneMatch("\"" + download.getETag() + "\"");
+
+        assertEquals(HttpStatus.PARTIAL_CONTENT, download.getStatus());
+        assertEquals("image/jpeg", download.getContentType());
+        assertEquals("bytes 2-5/10", download.getContentRange());
+        assertArrayEquals("2345".getBytes(), content.toByteArray());
+        assertEquals(HttpStatus.NOT_MODIFIED, localDownloadService.prepare(OBJECT_KEY, ifNoneMatch).getStatus());
+        assertThrows(MediaNotFoundException.class, () -> localDownloadService.prepare("missing.jpg", new HttpHeaders()));
+        verify(bucket, times(0)).getObjectMetadata(any(String.class), any(String.class));
+    }
+
+    @Test
+    public void verifyTieredReadsAreServedFromTheTierHoldingTheObject(@TempDir Path directory) throws Exception {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StorageMetrics storageMetrics = new StorageMetrics(meterRegistry);
+        TieredStore tieredStore = new TieredStore(bucketStore(storageMetrics), bucket, MOCK_BUCKET_NAME, storageMetrics, ioExecutor(),
+                directory, "http://localhost:8080", DataSize.ofMegabytes(1), FREQUENCY_NEVER_REACHED, 16, 1, Duration.ofMinutes(1));
+        tieredStore.start();
+        try {
+            tieredStore.write("hot.jpg", "image/jpeg", "item", new ByteArrayInputStream("0123456789".getBytes()));
+            givenObject();
+            when(bucket.getObject(any(GetObjectRequest.class))).thenReturn(object("abcdefghij".getBytes()));
+            DownloadService tieredDownloadService = new DownloadService(tieredStore, ioExecutor());
+
+            ObjectDownload hot = tieredDownloadService.prepare("hot.jpg", new HttpHeaders());
+            ByteArrayOutputStream hotContent = new ByteArrayOutputStream();
+            tieredDownloadService.transfer(hot, hotContent);
+            ObjectDownload cold = tieredDownloadService.prepare(OBJECT_KEY, new HttpHeaders());
+            ByteArrayOutputStream coldContent = new ByteArrayOutputStream();
+            tieredDownloadService.transfer(cold, coldContent);
+
+            assertArrayEquals("0123456789".getBytes(), hotContent.toByteArray());
+            assertArrayEquals("abcdefghij".getBytes(), coldContent.toByteArray());
+            assertEquals(ETAG, cold.getETag());
+            assertEquals(1, meterRegistry.get("storage.tier.reads").tag("tier", "hot").counter().count());
+            assertEquals(1, meterRegistry.get("storage.tier.reads").tag("tier", "cold").counter().count());
+            verify(bucket, times(0)).getObjectMetadata(MOCK_BUCKET_NAME, "hot.jpg");
+        } finally {
+            tieredStore.stop();
+        }
+    }
+
+    private BucketStore bucketStore(StorageMetrics storageMetrics) {
+        return new BucketStore(bucket, MOCK_BUCKET_NAME, null, mock(S3UploadEngine.class), storageMetrics, ioExecutor(), 1000,
+                DataSize.ofBytes(4), 2);
+    }
+
+    private IoExecutor ioExecutor() {
+        return new IoExecutor(ioExecutor, Duration.ofSeconds(5));
+    }
+
+    private void givenObject() {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength(10);
+        objectMetadata.setContentType("image/jpeg");
+        objectMetadata.setHeader("ETag", ETAG);
+        objectMetadata.setLastModified(new Date(LAST_MODIFIED));
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, OBJECT_KEY)).thenReturn(objectMetadata);
+    }
+
+    private static S3Object object(byte[] content) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(content));
+        return object;
+    }
+}
@@ -0,0 +1,113 @@
+package org.notabarista.storage.service.local;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.notabarista.storage.exception.MediaNotFoundException;
+import org.notabarista.storage.metrics.StorageMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocalFileStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private LocalFileStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        store = new LocalFileStore(new StorageMetrics(new SimpleMeterRegistry()), null, directory, "http://media.localhost:8080/");
+        store.start();
+    }
+
+    @Test
+    public void verifyFilesAreSpreadByTheHashOfTheirKey() throws IOException {
+        byte[] content = "mock data".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(content.length, store.write("../image 1.jpg", new ByteArrayInputStream(content)));
+
+        Path path = store.path("../image 1.jpg");
+        assertEquals(directory, path.getParent().getParent().getParent());
+        assertEquals(path.getFileName().toString().substring(0, 2), path.getParent().getParent().getFileName().toString());
+        assertArrayEquals(content, Files.readAllBytes(path));
+        assertTrue(store.exists("../image 1.jpg"));
+    }
+
+    @Test
+    public void verifyMediaURLsMapBackToTheirKey() throws Exception {
+        String mediaURL = store.resourceUrl("folder/image 1+ä.jpg");
+
+        assertEquals("http://media.localhost:8080/media/folder/image%201%2B%C3%A4.jpg", mediaURL);
+        assertEquals("folder/image 1+ä.jpg", store.objectKey(mediaURL));
+        assertThrows(MalformedURLException.class, () -> store.objectKey("http://media.localhost:8080/folder/image1.jpg"));
+    }
+
+    @Test
+    public void verifyMediaURLsKeepThePathOfTheBaseURL() throws Exception {
+        LocalFileStore store = new LocalFileStore(new StorageMetrics(new SimpleMeterRegistry()), null, directory, "https://example.com/storage");
+
+        assertEquals("https://example.com/storage/media/image1.jpg", store.resourceUrl("image1.jpg"));
+        assertEquals("image1.jpg", store.objectKey("https://example.com/storage/media/image1.jpg"));
+    }
+
+    @Test
+    public void verifyCommitWithoutReplaceKeepsTheStoredFile() throws IOException {
+        store.write("image1.jpg", new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)));
+        Path staged = store.stage(new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)));
+
+        assertFalse(store.commit(staged, "image1.jpg", false));
+
+        assertFalse(Files.exists(staged));
+        assertEquals("first", Files.readString(store.path("image1.jpg")));
+    }
+
+    @Test
+    public void verifyUnfinishedFilesAreRemovedOnStart() throws IOException {
+        Path staged = store.stage(new ByteArrayInputStream("partial".getBytes(StandardCharsets.UTF_8)));
+
+        new LocalFileStore(new StorageMetrics(new SimpleMeterRegistry()), null, directory, "http://localhost").start();
+
+        assertFalse(Files.exists(staged));
+    }
+
+    @Test
+    public void verifyTransferOfARange() throws IOException {
+        store.write("image1.jpg", new ByteArrayInputStream("0123456789".getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try (FileChannel file = store.open("image1.jpg")) {
+            assertEquals(4, LocalFileStore.transfer(file, 3, 4, outputStream));
+        }
+
+        assertEquals("3456", outputStream.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void verifyDelete() throws IOException {
+        store.write("image1.jpg", new ByteArrayInputStream("mock data".getBytes(StandardCharsets.UTF_8)));
+
+        assertTrue(store.delete("image1.jpg"));
+        assertFalse(store.delete("image1.jpg"));
+
+        assertThrows(MediaNotFoundException.class, () -> store.open("image1.jpg"));
+        try (Stream<Path> files = Files.walk(directory)) {
+            assertTrue(files.noneMatch(Files::isRegularFile));
+        }
+    }
+}
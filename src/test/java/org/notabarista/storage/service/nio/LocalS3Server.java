@@ -0,0 +1,291 @@
+package org.notabarista.storage.service.nio;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for the S3 API of one bucket with path-style URLs: {@code PUT}, {@code HEAD}, {@code GET} and
+ * {@code DELETE} of objects and quiet multi-object deletes. Every request can be delayed to play a remote bucket, and
+ * keys can be made to fail. Requests are not authenticated, their headers are kept for inspection.
+ */
+public class LocalS3Server implements AutoCloseable {
+
+    /** of the threads serving requests, so they can be told apart from those of the client under test */
+    public static final String THREAD_NAME_PREFIX = "local-s3-";
+
+    private static final String STREAMING_PAYLOAD = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
+    private static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+
+    public static final class StoredObject {
+        public final byte[] content;
+        public final String contentType;
+        public final Map<String, String> userMetadata;
+
+        private StoredObject(byte[] content, String contentType, Map<String, String> userMetadata) {
+            this.content = content;
+            this.contentType = contentType;
+            this.userMetadata = userMetadata;
+        }
+    }
+
+    private final String bucketName;
+    private final long latencyMillis;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Set<String> failingKeys = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicInteger> unavailableKeys = new ConcurrentHashMap<>();
+    private volatile Headers lastHeaders;
+
+    public LocalS3Server(String bucketName, long latencyMillis) throws IOException {
+        this.bucketName = bucketName;
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        this.executor = Executors.newCachedThreadPool(new CustomizableThreadFactory(THREAD_NAME_PREFIX));
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String endpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public Map<String, StoredObject> objects() {
+        return objects;
+    }
+
+    /**
+     * Requests for {@code key} fail with a 500 from now on, multi-object deletes report it as not deleted.
+     */
+    public void fail(String key) {
+        failingKeys.add(key);
+    }
+
+    /**
+     * The next {@code times} requests for {@code key} fail with a 503, the ones after them succeed.
+     */
+    public void failTimes(String key, int times) {
+        unavailableKeys.put(key, new AtomicInteger(times));
+    }
+
+    public Headers lastHeaders() {
+        return lastHeaders;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            lastHeaders = exchange.getRequestHeaders();
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if (STREAMING_PAYLOAD.equals(exchange.getRequestHeaders().getFirst("x-amz-content-sha256"))) {
+                body = decodeChunks(body);
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            String path = exchange.getRequestURI().getPath();
+            String bucketPrefix = "/" + bucketName;
+            if (!path.equals(bucketPrefix) && !path.startsWith(bucketPrefix + "/")) {
+                error(exchange, 404, "NoSuchBucket", "The specified bucket does not exist");
+                return;
+            }
+            String key = path.length() > bucketPrefix.length() ? path.substring(bucketPrefix.length() + 1) : "";
+            if (failingKeys.contains(key)) {
+                error(exchange, 500, "InternalError", "We encountered an internal error. Please try again.");
+                return;
+            }
+            AtomicInteger unavailable = unavailableKeys.get(key);
+            if (unavailable != null && unavailable.getAndDecrement() > 0) {
+                error(exchange, 503, "SlowDown", "Please reduce your request rate.");
+                return;
+            }
+            switch (exchange.getRequestMethod()) {
+                case "PUT":
+                    put(exchange, key, body);
+                    break;
+                case "HEAD":
+                case "GET":
+                    String query = exchange.getRequestURI().getRawQuery();
+                    if (key.isEmpty() && query != null && query.contains("list-type=2")) {
+                        list(exchange, query);
+                    } else {
+                        get(exchange, key);
+                    }
+                    break;
+                case "DELETE":
+                    objects.remove(key);
+                    exchange.sendResponseHeaders(204, -1);
+                    break;
+                case "POST":
+                    deleteObjects(exchange, body);
+                    break;
+                default:
+                    error(exchange, 405, "MethodNotAllowed", "The specified method is not allowed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void put(HttpExchange exchange, String key, byte[] body) throws IOException {
+        Map<String, String> userMetadata = new TreeMap<>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            String lowerCaseName = name.toLowerCase(Locale.ROOT);
+            if (lowerCaseName.startsWith("x-amz-meta-")) {
+                userMetadata.put(lowerCaseName.substring("x-amz-meta-".length()), values.get(0));
+            }
+        });
+        objects.put(key, new StoredObject(body, exchange.getRequestHeaders().getFirst("Content-Type"), userMetadata));
+        exchange.getResponseHeaders().set("ETag", etag(body));
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void get(HttpExchange exchange, String key) throws IOException {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", etag(object.content));
+        if (object.contentType != null) {
+            headers.set("Content-Type", object.contentType);
+        }
+        object.userMetadata.forEach((name, value) -> headers.set("x-amz-meta-" + name, value));
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            headers.set("Content-Length", String.valueOf(object.content.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, object.content.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(object.content);
+        }
+    }
+
+    /**
+     * A {@code ListObjectsV2} response with all keys under the {@code prefix} parameter, in one page.
+     */
+    private void list(HttpExchange exchange, String query) throws IOException {
+        String prefix = "";
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("prefix=")) {
+                prefix = URLDecoder.decode(parameter.substring("prefix=".length()), StandardCharsets.UTF_8);
+            }
+        }
+        StringBuilder response = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">")
+                .append("<Name>").append(bucketName).append("</Name><IsTruncated>false</IsTruncated>");
+        for (String key : new TreeMap<>(objects).keySet()) {
+            if (key.startsWith(prefix)) {
+                response.append("<Contents><Key>").append(key.replace("&", "&amp;").replace("<", "&lt;"))
+                        .append("</Key><Size>").append(objects.get(key).content.length).append("</Size></Contents>");
+            }
+        }
+        send(exchange, 200, response.append("</ListBucketResult>").toString());
+    }
+
+    private void deleteObjects(HttpExchange exchange, byte[] body) throws IOException {
+        StringBuilder response = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        Matcher matcher = KEY.matcher(new String(body, StandardCharsets.UTF_8));
+        while (matcher.find()) {
+            String key = matcher.group(1).replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+                                .replace("&apos;", "'").replace("&amp;", "&");
+            if (failingKeys.contains(key)) {
+                response.append("<Error><Key>").append(matcher.group(1)).append("</Key><Code>AccessDenied</Code>")
+                        .append("<Message>Access Denied</Message></Error>");
+            } else {
+                objects.remove(key);
+            }
+        }
+        send(exchange, 200, response.append("</DeleteResult>").toString());
+    }
+
+    private static void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        exchange.getResponseHeaders().set("x-amz-request-id", "local");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        send(exchange, status, "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>" + message
+                + "</Message><RequestId>local</RequestId></Error>");
+    }
+
+    private static void send(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] response = xml.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(response);
+        }
+    }
+
+    /**
+     * The payload of an {@code aws-chunked} body, as the SDK sends it over plain HTTP: chunks of
+     * {@code <hex size>;chunk-signature=<signature>\r\n<data>\r\n}, up to one of size 0.
+     */
+    private static byte[] decodeChunks(byte[] body) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(body.length);
+        int position = 0;
+        while (position < body.length) {
+            int lineEnd = indexOfLineEnd(body, position);
+            String header = new String(body, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+            if (size == 0) {
+                break;
+            }
+            payload.write(body, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return payload.toByteArray();
+    }
+
+    private static int indexOfLineEnd(byte[] body, int from) {
+        for (int i = from; i < body.length - 1; i++) {
+            if (body[i] == '\r' && body[i + 1] == '\n') {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Truncated aws-chunked body");
+    }
+
+    private static String etag(byte[] content) {
+        try {
+            StringBuilder etag = new StringBuilder("\"");
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                etag.append(String.format("%02x", b));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
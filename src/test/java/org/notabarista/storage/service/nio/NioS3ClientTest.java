@@ -0,0 +1,154 @@
+package org.notabarista.storage.service.nio;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.resilience.CircuitBreaker;
+
+import java.net.http.HttpRequest.BodyPublishers;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NioS3ClientTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+
+    private LocalS3Server server;
+    private AmazonS3Client s3Client;
+    private CircuitBreaker circuitBreaker;
+    private NioS3Client nioS3Client;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new LocalS3Server(MOCK_BUCKET_NAME, 0);
+        AWSStaticCredentialsProvider credentials = new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret"));
+        s3Client = (AmazonS3Client) AmazonS3ClientBuilder.standard()
+                                                         .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.endpoint(), "us-east-1"))
+                                                         .withPathStyleAccessEnabled(true)
+                                                         .withCredentials(credentials)
+                                                         .build();
+        circuitBreaker = new CircuitBreaker("test", 4, 4, 0.5, Duration.ofMinutes(1), 1, state -> {
+        });
+        nioS3Client = new NioS3Client(s3Client, MOCK_BUCKET_NAME, "us-east-1", credentials, 1, Duration.ofSeconds(5),
+                Duration.ofSeconds(5), Duration.ofSeconds(5), Duration.ofSeconds(5), 2, Duration.ofMillis(10), 8, circuitBreaker,
+                new StorageMetrics(new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        nioS3Client.shutdown();
+        s3Client.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void verifyPutObjectIsSignedAndKeepsMetadata() {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("image/jpeg");
+        metadata.setUserMetadata(Map.of("itemID", "item"));
+
+        nioS3Client.putObject("image 1.jpg", metadata, BodyPublishers.ofByteArray(JPEG_DATA)).join();
+
+        LocalS3Server.StoredObject stored = server.objects().get("image 1.jpg");
+        assertArrayEquals(JPEG_DATA, stored.content);
+        assertEquals("image/jpeg", stored.contentType);
+        assertEquals(Map.of("itemid", "item"), stored.userMetadata);
+        assertTrue(server.lastHeaders().getFirst("Authorization").startsWith("AWS4-HMAC-SHA256 Credential=access/"));
+        assertEquals("UNSIGNED-PAYLOAD", server.lastHeaders().getFirst("x-amz-content-sha256"));
+        // what the blocking client reads back is what was written
+        assertEquals("item", s3Client.getObjectMetadata(MOCK_BUCKET_NAME, "image 1.jpg").getUserMetaDataOf("itemID"));
+    }
+
+    @Test
+    public void verifyObjectExistence() {
+        s3Client.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content");
+
+        assertTrue(nioS3Client.doesObjectExist("image1.jpg").join());
+        assertFalse(nioS3Client.doesObjectExist("image2.jpg").join());
+    }
+
+    @Test
+    public void verifyDeleteObjectsReportsKeysNotDeleted() {
+        s3Client.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content");
+        s3Client.putObject(MOCK_BUCKET_NAME, "image&2.jpg", "content");
+        s3Client.putObject(MOCK_BUCKET_NAME, "image3.jpg", "content");
+        server.fail("image3.jpg");
+
+        List<DeleteError> deleteErrors = nioS3Client.deleteObjects(List.of("image1.jpg", "image&2.jpg", "image3.jpg")).join();
+
+        assertEquals(1, deleteErrors.size());
+        assertEquals("image3.jpg", deleteErrors.get(0).getKey());
+        assertEquals("AccessDenied", deleteErrors.get(0).getCode());
+        assertEquals(List.of("image3.jpg"), List.copyOf(server.objects().keySet()));
+    }
+
+    @Test
+    public void verifyErrorResponsesFailWithAmazonS3Exception() {
+        server.fail("image1.jpg");
+
+        CompletionException e = assertThrows(CompletionException.class, () -> nioS3Client.deleteObject("image1.jpg").join());
+
+        AmazonS3Exception cause = (AmazonS3Exception) e.getCause();
+        assertEquals(500, cause.getStatusCode());
+        assertEquals("InternalError", cause.getErrorCode());
+        assertEquals("local", cause.getRequestId());
+    }
+
+    @Test
+    public void verifyUnavailableResponsesAreRetried() {
+        server.failTimes("image1.jpg", 2);
+
+        nioS3Client.putObject("image1.jpg", new ObjectMetadata(), BodyPublishers.ofByteArray(JPEG_DATA)).join();
+
+        assertArrayEquals(JPEG_DATA, server.objects().get("image1.jpg").content);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void verifyRetriesStopAfterMaxRetries() {
+        server.failTimes("image1.jpg", 3);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> nioS3Client.doesObjectExist("image1.jpg").join());
+
+        assertEquals(503, ((AmazonS3Exception) e.getCause()).getStatusCode());
+        assertFalse(nioS3Client.doesObjectExist("image1.jpg").join());
+    }
+
+    @Test
+    public void verifyOpenCircuitRejectsCallsWithoutSendingThem() {
+        server.fail("image1.jpg");
+        for (int i = 0; i < 4; i++) {
+            assertThrows(CompletionException.class, () -> nioS3Client.deleteObject("image1.jpg").join());
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        s3Client.putObject(MOCK_BUCKET_NAME, "image2.jpg", "content");
+        CompletionException e = assertThrows(CompletionException.class, () -> nioS3Client.doesObjectExist("image2.jpg").join());
+        assertTrue(e.getCause() instanceof StorageUnavailableException);
+    }
+
+    @Test
+    public void verifyResourceUrlsMatchTheBlockingClient() {
+        assertEquals(s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image 1.jpg"), nioS3Client.getResourceUrl("image 1.jpg"));
+    }
+}
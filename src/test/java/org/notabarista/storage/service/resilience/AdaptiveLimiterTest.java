@@ -0,0 +1,125 @@
+package org.notabarista.storage.service.resilience;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveLimiterTest {
+
+    @Test
+    public void verifyCallsOverTheLimitAreRefused() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 2, 1, 10, 0.2);
+
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.onIgnored();
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void verifyLimitGrowsWhileLatencyIsSteady() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 4, 1, 64, 0.2);
+
+        for (int i = 0; i < 50; i++) {
+            fill(limiter, TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        assertTrue(limiter.getLimit() > 4, "limit " + limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void verifyLimitDoesNotGrowWhileMostlyIdle() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 8, 1, 64, 0.2);
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void verifyLimitShrinksWhenLatencyRises() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 32, 1, 64, 0.2);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onSuccess(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            fill(limiter, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        assertTrue(limiter.getLimit() < 32, "limit " + limiter.getLimit());
+    }
+
+    @Test
+    public void verifySamplesAdjustTheLimitWithoutReleasingCalls() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 4, 1, 64, 0.2);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+
+        for (int i = 0; i < 50; i++) {
+            limiter.sample(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        assertTrue(limiter.getLimit() > 4, "limit " + limiter.getLimit());
+        assertEquals(4, limiter.getInFlight());
+
+        for (int i = 0; i < 4; i++) {
+            limiter.onSuccess();
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void verifyOverloadCutsTheLimitDownToTheMinimum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter("test", 20, 5, 64, 0.2);
+
+        assertTrue(limiter.tryAcquire());
+        limiter.onDropped();
+        assertEquals(18, limiter.getLimit());
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onDropped();
+        }
+        assertEquals(5, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void verifyUnlimitedAdmitsEveryCall() {
+        AdaptiveLimiter limiter = AdaptiveLimiter.unlimited("test");
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        limiter.onDropped();
+
+        assertEquals(Integer.MAX_VALUE, limiter.getLimit());
+        assertEquals(999, limiter.getInFlight());
+    }
+
+    /**
+     * Admits as many calls as the limit allows and completes them all after {@code rttNanos}.
+     */
+    private static void fill(AdaptiveLimiter limiter, long rttNanos) {
+        int admitted = 0;
+        while (limiter.tryAcquire()) {
+            admitted++;
+        }
+        for (int i = 0; i < admitted; i++) {
+            limiter.onSuccess(rttNanos);
+        }
+    }
+}
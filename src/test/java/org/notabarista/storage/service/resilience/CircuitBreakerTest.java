@@ -0,0 +1,72 @@
+package org.notabarista.storage.service.resilience;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private final List<CircuitBreaker.State> transitions = new ArrayList<>();
+
+    @Test
+    public void verifyCircuitOpensOnceTheFailureRateIsReached() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 4, 4, 0.5, Duration.ofMinutes(1), 1, transitions::add);
+
+        record(circuitBreaker, false, true, false);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        record(circuitBreaker, true);
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.tryAcquire());
+        assertEquals(List.of(CircuitBreaker.State.OPEN), transitions);
+    }
+
+    @Test
+    public void verifyOldOutcomesLeaveTheWindow() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 4, 4, 0.5, Duration.ofMinutes(1), 1, transitions::add);
+
+        record(circuitBreaker, true, false, false, false, false, true);
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void verifyTrialCallsCloseOrReopenTheCircuit() throws InterruptedException {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("test", 2, 2, 0.5, Duration.ofMillis(20), 2, transitions::add);
+        record(circuitBreaker, true, true);
+        Thread.sleep(50);
+
+        assertTrue(circuitBreaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        circuitBreaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        Thread.sleep(50);
+
+        assertTrue(circuitBreaker.tryAcquire());
+        assertTrue(circuitBreaker.tryAcquire());
+        assertFalse(circuitBreaker.tryAcquire());
+        circuitBreaker.onSuccess();
+        circuitBreaker.onSuccess();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(List.of(CircuitBreaker.State.OPEN, CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.OPEN,
+                CircuitBreaker.State.HALF_OPEN, CircuitBreaker.State.CLOSED), transitions);
+    }
+
+    private static void record(CircuitBreaker circuitBreaker, boolean... failures) {
+        for (boolean failure : failures) {
+            assertTrue(circuitBreaker.tryAcquire());
+            if (failure) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.notabarista.storage.service.resilience;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.storage.exception.StorageUnavailableException;
+import org.notabarista.storage.metrics.StorageMetrics;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class ResilientS3Test {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+
+    @Mock
+    private AmazonS3 bucket;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void verifySlowCallsTimeOut() {
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg")).thenAnswer(invocation -> {
+            Thread.sleep(5000);
+            return new ObjectMetadata();
+        });
+        AmazonS3 s3 = resilientS3(false, 4, circuitBreaker(10));
+
+        StorageUnavailableException e = assertThrows(StorageUnavailableException.class,
+                () -> s3.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg"));
+
+        assertEquals("Media storage did not answer getObjectMetadata within 100 ms", e.getMessage());
+        assertEquals(1, meterRegistry.counter("storage.s3.timeouts", "operation", "getObjectMetadata").count());
+    }
+
+    @Test
+    public void verifySlowIdempotentCallsAreHedged() {
+        ObjectMetadata metadata = new ObjectMetadata();
+        AtomicInteger calls = new AtomicInteger();
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg")).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() == 4) {
+                Thread.sleep(5000);
+            }
+            return metadata;
+        });
+        AmazonS3 s3 = resilientS3(true, 4, circuitBreaker(10));
+        for (int i = 0; i < 3; i++) {
+            s3.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg");
+        }
+
+        ObjectMetadata result = s3.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg");
+
+        assertSame(metadata, result);
+        verify(bucket, times(5)).getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg");
+        assertEquals(1, meterRegistry.counter("storage.s3.hedges", "operation", "getObjectMetadata", "result", "won").count());
+        assertEquals(0, meterRegistry.counter("storage.s3.timeouts", "operation", "getObjectMetadata").count());
+    }
+
+    @Test
+    public void verifyWritesAreNotHedged() {
+        AtomicInteger calls = new AtomicInteger();
+        when(bucket.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content")).thenAnswer(invocation -> {
+            if (calls.incrementAndGet() == 4) {
+                Thread.sleep(200);
+            }
+            return null;
+        });
+        AmazonS3 s3 = resilientS3(true, 4, circuitBreaker(10));
+
+        for (int i = 0; i < 4; i++) {
+            s3.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content");
+        }
+
+        verify(bucket, times(4)).putObject(MOCK_BUCKET_NAME, "image1.jpg", "content");
+        assertEquals(0, meterRegistry.find("storage.s3.hedges").counters().size());
+    }
+
+    @Test
+    public void verifyWritesAreNotGivenUpOnBeforeTheyReturn() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean stored = new AtomicBoolean();
+        when(bucket.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content")).thenAnswer(invocation -> {
+            started.countDown();
+            // like a request blocked on its socket, which an interrupt does not abort
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            while (System.nanoTime() - until < 0) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // keep writing
+                }
+            }
+            stored.set(true);
+            return null;
+        });
+        AmazonS3 s3 = resilientS3(false, 4, circuitBreaker(10));
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> storedWhenGivenUp = caller.submit(() -> {
+                try {
+                    s3.putObject(MOCK_BUCKET_NAME, "image1.jpg", "content");
+                    return false;
+                } catch (AbortedException e) {
+                    return stored.get();
+                }
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            caller.shutdownNow();
+
+            assertTrue(storedWhenGivenUp.get(5, TimeUnit.SECONDS));
+            assertEquals(0, meterRegistry.counter("storage.s3.timeouts", "operation", "putObject").count());
+        } finally {
+            caller.shutdownNow();
+        }
+    }
+
+    @Test
+    public void verifyBulkheadRejectsCallsOverTheLimit() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(bucket.doesObjectExist(MOCK_BUCKET_NAME, "image1.jpg")).thenAnswer(invocation -> {
+            started.countDown();
+            release.await();
+            return true;
+        });
+        AmazonS3 s3 = resilientS3(false, 1, circuitBreaker(10));
+        Future<Boolean> first = Executors.newSingleThreadExecutor().submit(() -> s3.doesObjectExist(MOCK_BUCKET_NAME, "image1.jpg"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertThrows(StorageUnavailableException.class, () -> s3.doesObjectExist(MOCK_BUCKET_NAME, "image1.jpg"));
+
+        release.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, meterRegistry.counter("storage.s3.bulkhead.rejected", "operation", "doesObjectExist").count());
+    }
+
+    @Test
+    public void verifyCircuitOpensOnServerErrorsOnly() {
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        AmazonS3Exception unavailable = new AmazonS3Exception("Service Unavailable");
+        unavailable.setStatusCode(503);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg"))
+                .thenThrow(notFound, notFound, unavailable, unavailable);
+        CircuitBreaker circuitBreaker = circuitBreaker(4);
+        AmazonS3 s3 = resilientS3(false, 4, circuitBreaker);
+
+        for (int i = 0; i < 4; i++) {
+            assertThrows(AmazonServiceException.class, () -> s3.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg"));
+        }
+        StorageUnavailableException e = assertThrows(StorageUnavailableException.class,
+                () -> s3.getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg"));
+
+        assertEquals("Media storage is unavailable, try again later", e.getMessage());
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        verify(bucket, times(4)).getObjectMetadata(MOCK_BUCKET_NAME, "image1.jpg");
+        assertEquals(1, meterRegistry.counter("storage.s3.circuit.rejected", "operation", "getObjectMetadata").count());
+        assertEquals(2, meterRegistry.get("storage.s3.circuit.state").gauge().value());
+    }
+
+    private CircuitBreaker circuitBreaker(int window) {
+        return new CircuitBreaker("test", window, window, 0.5, Duration.ofMinutes(1), 1, state -> {
+        });
+    }
+
+    private AmazonS3 resilientS3(boolean hedging, int maxConcurrentCalls, CircuitBreaker circuitBreaker) {
+        return new ResilientS3(bucket, executor,
+                new ResilientS3.Timeouts(Duration.ofMillis(100), Duration.ofMillis(100)),
+                new ResilientS3.Hedging(hedging, 0.5, Duration.ofMillis(20), 3),
+                maxConcurrentCalls, Duration.ZERO, circuitBreaker, new StorageMetrics(meterRegistry)).proxy();
+    }
+}
@@ -0,0 +1,243 @@
+package org.notabarista.storage.service.spool;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ItemService;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class WriteBehindServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private AmazonS3 bucket;
+
+    @Mock
+    private AmazonS3Client s3Client;
+
+    @Mock
+    private ItemService itemService;
+
+    @Mock
+    private DerivativeService derivativeService;
+
+    @Mock
+    private S3UploadEngine uploadEngine;
+
+    private ExecutorService ioExecutor;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private WriteBehindService writeBehindService;
+
+    @BeforeEach
+    void setUp() {
+        ioExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (writeBehindService != null) {
+            writeBehindService.stop();
+        }
+        ioExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifySpooledFilesAreUploadedBeforeTheyAreLinked() throws Exception {
+        givenItem();
+        when(s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image1.jpg")).thenReturn("http://localhost/image1.jpg");
+        doAnswer(invocation -> {
+            assertArrayEquals(JPEG_DATA, invocation.getArgument(2, InputStream.class).readAllBytes());
+            return null;
+        }).when(uploadEngine).upload(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), eq((long) JPEG_DATA.length), any(ObjectMetadata.class));
+        writeBehindService = writeBehindService(Duration.ofHours(1), Duration.ofMillis(10));
+
+        SpooledUploadStatus status = writeBehindService.spool("item", files(), "user");
+
+        assertEquals(List.of("http://localhost/image1.jpg"), status.getMediaURLs());
+        verify(derivativeService, timeout(5000)).addMedia("item", "user", List.of("http://localhost/image1.jpg"), List.of("image1.jpg"));
+        verify(uploadEngine, times(1)).upload(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), anyLong(), any(ObjectMetadata.class));
+        awaitState(status.getUploadID(), "UPLOADED");
+        assertFalse(Files.exists(directory.resolve(status.getUploadID()).resolve("part-0")));
+    }
+
+    @Test
+    public void verifyFailedUploadsAreRetried() throws Exception {
+        givenItem();
+        doThrow(new AmazonClientException("Unable to execute HTTP request"))
+                .doNothing()
+                .when(uploadEngine).upload(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), anyLong(), any(ObjectMetadata.class));
+        writeBehindService = writeBehindService(Duration.ofHours(1), Duration.ofMillis(10));
+
+        SpooledUploadStatus status = writeBehindService.spool("item", files(), "user");
+
+        verify(derivativeService, timeout(5000)).addMedia(eq("item"), eq("user"), any(), eq(List.of("image1.jpg")));
+        awaitState(status.getUploadID(), "UPLOADED");
+        assertEquals(1, writeBehindService.status(status.getUploadID(), "user").getAttempts());
+    }
+
+    @Test
+    public void verifyUploadFailsOnceRetriesHaveBeenGivenUpAndIsKeptInTheSpool() throws Exception {
+        givenItem();
+        doThrow(new AmazonClientException("Unable to execute HTTP request"))
+                .when(uploadEngine).upload(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), anyLong(), any(ObjectMetadata.class));
+        writeBehindService = writeBehindService(Duration.ofMillis(100), Duration.ofMillis(10), Duration.ZERO);
+
+        SpooledUploadStatus status = writeBehindService.spool("item", files(), "user");
+
+        awaitState(status.getUploadID(), "FAILED");
+        SpooledUploadStatus failed = writeBehindService.status(status.getUploadID(), "user");
+        assertTrue(failed.getAttempts() > 1);
+        assertEquals("Unable to execute HTTP request", failed.getLastError());
+        verify(derivativeService, never()).addMedia(any(), any(), any(), any());
+        assertEquals(1, meterRegistry.get("storage.spool.failed").gauge().value());
+
+        // failed uploads are past their retention, but are left for an operator
+        writeBehindService.sweep();
+        assertEquals("FAILED", writeBehindService.status(status.getUploadID(), "user").getState());
+        assertTrue(Files.exists(directory.resolve(status.getUploadID()).resolve("part-0")));
+    }
+
+    @Test
+    public void verifyUploadFailsAtOnceWhenTheItemIsGone() throws Exception {
+        givenItem();
+        doThrow(new MediaStorageException("Item not found"))
+                .when(derivativeService).addMedia(eq("item"), eq("user"), any(), eq(List.of("image1.jpg")));
+        writeBehindService = writeBehindService(Duration.ofHours(1), Duration.ofMillis(10));
+
+        SpooledUploadStatus status = writeBehindService.spool("item", files(), "user");
+
+        awaitState(status.getUploadID(), "FAILED");
+        SpooledUploadStatus failed = writeBehindService.status(status.getUploadID(), "user");
+        assertEquals(1, failed.getAttempts());
+        assertEquals("Item not found", failed.getLastError());
+        verify(derivativeService, times(1)).addMedia(any(), any(), any(), any());
+    }
+
+    @Test
+    public void verifyUploadFailsAtOnceWhenTheBucketDeniesIt() throws Exception {
+        givenItem();
+        AmazonS3Exception accessDenied = new AmazonS3Exception("Access Denied");
+        accessDenied.setStatusCode(403);
+        accessDenied.setErrorCode("AccessDenied");
+        doThrow(accessDenied)
+                .when(uploadEngine).upload(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), anyLong(), any(ObjectMetadata.class));
+        writeBehindService = writeBehindService(Duration.ofHours(1), Duration.ofMillis(10));
+
+        SpooledUploadStatus status = writeBehindService.spool("item", files(), "user");
+
+        awaitState(status.getUploadID(), "FAILED");
+        assertEquals(1, writeBehindService.status(status.getUploadID(), "user").getAttempts());
+        verify(uploadEngine, times(1)).upload(any(), any(), any(InputStream.class), anyLong(), any());
+        verify(derivativeService, never()).addMedia(any(), any(), any(), any());
+        assertTrue(Files.exists(directory.resolve(status.getUploadID()).resolve("part-0")));
+    }
+
+    @Test
+    public void verifyPendingUploadsAreRecoveredOnStart() throws Exception {
+        givenItem();
+        doThrow(new AmazonClientException("Unable to execute HTTP request"))
+                .doNothing()
+                .when(uploadEngine).upload(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), anyLong(), any(ObjectMetadata.class));
+        writeBehindService = writeBehindService(Duration.ofDays(7), Duration.ofHours(1));
+        SpooledUploadStatus status = writeBehindService.spool("item", files(), "user");
+        for (int i = 0; i < 500 && writeBehindService.status(status.getUploadID(), "user").getAttempts() == 0; i++) {
+            Thread.sleep(10);
+        }
+        writeBehindService.stop();
+
+        writeBehindService = writeBehindService(Duration.ofDays(7), Duration.ofHours(1));
+
+        verify(derivativeService, timeout(5000)).addMedia(eq("item"), eq("user"), any(), eq(List.of("image1.jpg")));
+        awaitState(status.getUploadID(), "UPLOADED");
+    }
+
+    @Test
+    public void verifySpoolChecksItemAndStatusChecksUser() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(false);
+        writeBehindService = writeBehindService(Duration.ofHours(1), Duration.ofMillis(10));
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> writeBehindService.spool("item", files(), "user"));
+
+        assertEquals("Item not found", e.getMessage());
+        assertThrows(MediaStorageException.class, () -> writeBehindService.status("unknown", "user"));
+        verify(uploadEngine, never()).upload(any(), any(), any(InputStream.class), anyLong(), any());
+    }
+
+    private void givenItem() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+    }
+
+    private void awaitState(String uploadID, String state) throws InterruptedException {
+        for (int i = 0; i < 500 && !state.equals(writeBehindService.status(uploadID, "user").getState()); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, writeBehindService.status(uploadID, "user").getState());
+    }
+
+    private WriteBehindService writeBehindService(Duration giveUpAfter, Duration maxRetryBackoff) throws IOException {
+        return writeBehindService(giveUpAfter, maxRetryBackoff, Duration.ofHours(24));
+    }
+
+    private WriteBehindService writeBehindService(Duration giveUpAfter, Duration maxRetryBackoff, Duration retention) throws IOException {
+        meterRegistry = new SimpleMeterRegistry();
+        WriteBehindService service = new WriteBehindService(itemService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client,
+                uploadEngine, new StorageMetrics(meterRegistry), new IoExecutor(ioExecutor, Duration.ofSeconds(5)),
+                new ObjectMapper(), true, directory, 2, giveUpAfter, maxRetryBackoff, retention, false);
+        service.start();
+        return service;
+    }
+
+    private static MultipartFile[] files() {
+        return new MultipartFile[]{new MockMultipartFile("files", "image1.jpg", "image/jpeg", JPEG_DATA)};
+    }
+}
@@ -0,0 +1,62 @@
+package org.notabarista.storage.service.tiered;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void verifyCountsSaturate() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        long hash = new Random(1).nextLong();
+
+        for (int i = 0; i < 3; i++) {
+            sketch.increment(hash);
+        }
+        assertEquals(3, sketch.frequency(hash));
+
+        for (int i = 0; i < 100; i++) {
+            sketch.increment(hash);
+        }
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(hash));
+    }
+
+    @Test
+    public void verifyCountsOfOtherObjectsStayLow() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        Random random = new Random(2);
+        for (int i = 0; i < 512; i++) {
+            sketch.increment(random.nextLong());
+        }
+
+        int overestimated = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (sketch.frequency(random.nextLong()) > 0) {
+                overestimated++;
+            }
+        }
+        assertTrue(overestimated < 50, overestimated + " of 1000 unseen objects were counted");
+    }
+
+    @Test
+    public void verifyCountsAreHalvedOverTime() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        Random random = new Random(3);
+        long popular = random.nextLong();
+        for (int i = 0; i < 12; i++) {
+            sketch.increment(popular);
+        }
+
+        // ten increments per counter word trigger the halving
+        for (int i = 0; i < 160; i++) {
+            sketch.increment(random.nextLong());
+        }
+
+        int frequency = sketch.frequency(popular);
+        assertTrue(frequency >= 6 && frequency < 12, "frequency " + frequency + " after halving 12");
+    }
+}
@@ -0,0 +1,218 @@
+package org.notabarista.storage.service.tiered;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.bucket.BucketStore;
+import org.notabarista.storage.service.nio.LocalS3Server;
+import org.notabarista.storage.service.upload.S3UploadEngine;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TieredStoreTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final String BASE_URL = "http://media.localhost:8080";
+
+    @TempDir
+    Path directory;
+
+    private final List<LocalS3Server> servers = new ArrayList<>();
+    private final List<AmazonS3Client> s3Clients = new ArrayList<>();
+    private final List<TieredStore> stores = new ArrayList<>();
+    private ExecutorService partUploadExecutor;
+    private MeterRegistry meterRegistry;
+    private LocalS3Server server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        partUploadExecutor = Executors.newFixedThreadPool(2);
+        meterRegistry = new SimpleMeterRegistry();
+        server = server();
+    }
+
+    @AfterEach
+    void tearDown() {
+        stores.forEach(TieredStore::stop);
+        s3Clients.forEach(AmazonS3Client::shutdown);
+        servers.forEach(LocalS3Server::close);
+        partUploadExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifyNewObjectsAreCopiedToTheBucket() throws Exception {
+        TieredStore store = store(server, DataSize.ofMegabytes(1), 3);
+
+        store.write("image1.jpg", "image/jpeg", "item", content("mock data"));
+
+        assertTrue(store.hotTier().exists("image1.jpg"));
+        await(() -> store.pendingCopies() == 0);
+        LocalS3Server.StoredObject stored = server.objects().get("image1.jpg");
+        assertArrayEquals(content("mock data").readAllBytes(), stored.content);
+        assertEquals("image/jpeg", stored.contentType);
+        assertEquals(Map.of("itemid", "item"), stored.userMetadata);
+        assertEquals(BASE_URL + "/media/image1.jpg", store.resourceUrl("image1.jpg"));
+        assertEquals("image1.jpg", store.objectKey(store.resourceUrl("image1.jpg")));
+        assertEquals(1, meterRegistry.get("storage.tier.copies").tag("outcome", "success").counter().count());
+        try (Stream<Path> markers = Files.list(directory.resolve("pending"))) {
+            assertEquals(0, markers.count());
+        }
+    }
+
+    @Test
+    public void verifyPendingCopiesAreResumedOnStart() throws Exception {
+        server.fail("image1.jpg");
+        TieredStore failing = store(server, DataSize.ofMegabytes(1), 3);
+        failing.write("image1.jpg", "image/jpeg", "item", content("mock data"));
+        await(() -> meterRegistry.find("storage.tier.copies").tag("outcome", "error").counter() != null);
+        failing.stop();
+
+        LocalS3Server restarted = server();
+        TieredStore store = store(restarted, DataSize.ofMegabytes(1), 3);
+
+        await(() -> restarted.objects().containsKey("image1.jpg"));
+        assertEquals("item", restarted.objects().get("image1.jpg").userMetadata.get("itemid"));
+        assertTrue(store.hotTier().exists("image1.jpg"));
+        await(() -> store.pendingCopies() == 0);
+    }
+
+    @Test
+    public void verifyFrequentlyReadColdObjectsArePromoted() throws Exception {
+        TieredStore store = store(server, DataSize.ofMegabytes(1), 2);
+        s3Client(server).putObject(MOCK_BUCKET_NAME, "image1.jpg", "mock data");
+
+        assertFalse(store.recordRead("image1.jpg"));
+        assertFalse(store.hotTier().exists("image1.jpg"));
+        assertFalse(store.recordRead("image1.jpg"));
+
+        await(() -> store.hotTier().exists("image1.jpg"));
+        assertTrue(store.recordRead("image1.jpg"));
+        assertEquals("mock data", Files.readString(store.hotTier().path("image1.jpg")));
+        assertEquals(1, meterRegistry.get("storage.tier.promotions").counter().count());
+        assertEquals(1.0 / 3, store.hitRatio(), 1e-9);
+    }
+
+    @Test
+    public void verifyLeastFrequentlyReadObjectsAreEvicted() throws Exception {
+        TieredStore store = store(server, DataSize.ofBytes(30), 10);
+        store.write("a.jpg", "image/jpeg", "item", content("0123456789"));
+        store.write("b.jpg", "image/jpeg", "item", content("0123456789"));
+        store.write("c.jpg", "image/jpeg", "item", content("0123456789"));
+        await(() -> store.pendingCopies() == 0);
+        for (int i = 0; i < 3; i++) {
+            store.recordRead("a.jpg");
+        }
+        store.recordRead("b.jpg");
+
+        store.write("d.jpg", "image/jpeg", "item", content("0123456789"));
+
+        assertFalse(store.hotTier().exists("c.jpg"));
+        assertTrue(store.hotTier().exists("a.jpg"));
+        assertTrue(store.hotTier().exists("b.jpg"));
+        assertTrue(store.hotTier().exists("d.jpg"));
+        assertEquals(30, store.size());
+        assertEquals(1, meterRegistry.get("storage.tier.demotions").counter().count());
+        // demoted, not lost
+        assertTrue(store.exists("c.jpg"));
+        assertFalse(store.recordRead("c.jpg"));
+    }
+
+    @Test
+    public void verifyObjectsWaitingForTheirCopyAreNotEvicted() throws Exception {
+        server.fail("a.jpg");
+        TieredStore store = store(server, DataSize.ofBytes(10), 10);
+
+        store.write("a.jpg", "image/jpeg", "item", content("0123456789"));
+        store.write("b.jpg", "image/jpeg", "item", content("0123456789"));
+        // b.jpg is evictable once its copy is done with, the PUT alone is not enough; a.jpg keeps failing
+        await(() -> store.pendingCopies() == 1);
+        store.write("c.jpg", "image/jpeg", "item", content("0123456789"));
+
+        assertTrue(store.hotTier().exists("a.jpg"));
+        assertFalse(store.hotTier().exists("b.jpg"));
+        assertTrue(store.pendingCopies() >= 1);
+    }
+
+    @Test
+    public void verifyDeleteRemovesBothTiers() throws Exception {
+        TieredStore store = store(server, DataSize.ofMegabytes(1), 3);
+        store.write("image1.jpg", "image/jpeg", "item", content("mock data"));
+        await(() -> server.objects().containsKey("image1.jpg"));
+
+        store.delete("image1.jpg");
+
+        assertFalse(store.hotTier().exists("image1.jpg"));
+        assertFalse(server.objects().containsKey("image1.jpg"));
+        assertFalse(store.exists("image1.jpg"));
+        assertEquals(0, store.size());
+    }
+
+    private TieredStore store(LocalS3Server server, DataSize maxSize, int promotionThreshold) throws IOException {
+        AmazonS3Client s3Client = s3Client(server);
+        StorageMetrics storageMetrics = new StorageMetrics(meterRegistry);
+        S3UploadEngine uploadEngine = new S3UploadEngine(s3Client, storageMetrics, partUploadExecutor, 16 * 1024 * 1024, 8 * 1024 * 1024, 2, 2);
+        IoExecutor ioExecutor = new IoExecutor(partUploadExecutor, Duration.ofSeconds(5));
+        BucketStore bucketStore = new BucketStore(s3Client, MOCK_BUCKET_NAME, s3Client, uploadEngine, storageMetrics, ioExecutor, 1000,
+                DataSize.ofKilobytes(64), 2);
+        TieredStore store = new TieredStore(bucketStore, s3Client, MOCK_BUCKET_NAME, storageMetrics, ioExecutor, directory, BASE_URL,
+                maxSize, promotionThreshold, 1024, 2, Duration.ofMinutes(1));
+        stores.add(store);
+        store.start();
+        return store;
+    }
+
+    private LocalS3Server server() throws IOException {
+        LocalS3Server localS3Server = new LocalS3Server(MOCK_BUCKET_NAME, 0);
+        servers.add(localS3Server);
+        return localS3Server;
+    }
+
+    private AmazonS3Client s3Client(LocalS3Server server) {
+        AmazonS3Client s3Client = (AmazonS3Client) AmazonS3ClientBuilder.standard()
+                                                                        .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.endpoint(), "us-east-1"))
+                                                                        .withPathStyleAccessEnabled(true)
+                                                                        .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("access", "secret")))
+                                                                        .build();
+        s3Clients.add(s3Client);
+        return s3Client;
+    }
+
+    private static ByteArrayInputStream content(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,272 @@
+package org.notabarista.storage.service.upload;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ItemService;
+import org.notabarista.storage.service.MediaService;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class DirectUploadServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final String OBJECT_KEY = "direct-uploads/key/image1.jpg";
+    private static final String CONFIRMED_KEY = "key/image1.jpg";
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+
+    @Mock
+    private AmazonS3 bucket;
+
+    @Mock
+    private AmazonS3Client s3Client;
+
+    @Mock
+    private ItemService itemService;
+
+    @Mock
+    private MediaService mediaService;
+
+    private ExecutorService ioExecutor;
+
+    private DirectUploadService directUploadService;
+
+    @BeforeEach
+    void setUp() {
+        ioExecutor = Executors.newSingleThreadExecutor();
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        DerivativeService derivativeService = new DerivativeService(bucket, MOCK_BUCKET_NAME, s3Client, mediaService, storageMetrics, ioExecutor,
+                false, new int[0], false, 0.85f);
+        directUploadService = new DirectUploadService(itemService, derivativeService, bucket, MOCK_BUCKET_NAME, s3Client,
+                storageMetrics, new IoExecutor(ioExecutor, Duration.ofSeconds(5)),
+                Duration.ofMinutes(15), 2, DataSize.ofKilobytes(1), Duration.ofMinutes(15));
+    }
+
+    @AfterEach
+    void tearDown() {
+        ioExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifyPresignSignsContentTypeLengthAndItem() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.generatePresignedUrl(any(GeneratePresignedUrlRequest.class))).thenReturn(new URL("https://mock/upload"));
+        ArgumentCaptor<GeneratePresignedUrlRequest> presignRequest = ArgumentCaptor.forClass(GeneratePresignedUrlRequest.class);
+
+        List<DirectUpload> uploads = directUploadService.presign("item", List.of(new DirectUploadRequest("image1.jpg", "image/jpeg", 100)), "user");
+
+        assertEquals(1, uploads.size());
+        assertEquals("https://mock/upload", uploads.get(0).getUploadURL());
+        assertTrue(uploads.get(0).getObjectKey().startsWith("direct-uploads/"));
+        assertTrue(uploads.get(0).getObjectKey().endsWith("/image1.jpg"));
+        assertEquals("item", uploads.get(0).getHeaders().get("x-amz-meta-itemid"));
+        assertEquals("100", uploads.get(0).getHeaders().get("Content-Length"));
+        verify(bucket, times(1)).generatePresignedUrl(presignRequest.capture());
+        assertEquals("image/jpeg", presignRequest.getValue().getContentType());
+        assertEquals(Map.of("x-amz-meta-itemid", "item", "Content-Length", "100"), presignRequest.getValue().getCustomRequestHeaders());
+    }
+
+    @Test
+    public void verifyPresignKeepsOnlyTheFileNameOfAPath() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.generatePresignedUrl(any(GeneratePresignedUrlRequest.class))).thenReturn(new URL("https://mock/upload"));
+
+        List<DirectUpload> uploads = directUploadService.presign("item", List.of(new DirectUploadRequest("../../other/image1.jpg", "image/jpeg", 100)), "user");
+
+        assertTrue(uploads.get(0).getObjectKey().matches("direct-uploads/[0-9a-f-]{36}/image1\\.jpg"), uploads.get(0).getObjectKey());
+    }
+
+    @Test
+    public void verifyPresignRejectsInvalidFiles() {
+        assertThrows(MediaStorageException.class,
+                () -> directUploadService.presign("item", List.of(new DirectUploadRequest("doc.pdf", "application/pdf", 100)), "user"));
+        assertThrows(MediaStorageException.class,
+                () -> directUploadService.presign("item", List.of(new DirectUploadRequest("image1.jpg", "image/jpeg", 2048)), "user"));
+        assertThrows(MediaStorageException.class,
+                () -> directUploadService.presign("item", List.of(new DirectUploadRequest(null, "image/jpeg", 100)), "user"));
+        assertThrows(MediaStorageException.class,
+                () -> directUploadService.presign("item", List.of(new DirectUploadRequest("images/..", "image/jpeg", 100)), "user"));
+
+        verify(bucket, never()).generatePresignedUrl(any(GeneratePresignedUrlRequest.class));
+    }
+
+    @Test
+    public void verifyConfirmAddsMedia() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, OBJECT_KEY)).thenReturn(objectMetadata("item", "image/jpeg", 100));
+        when(bucket.getObject(any(GetObjectRequest.class))).thenReturn(object(JPEG_DATA));
+        when(s3Client.getResourceUrl(MOCK_BUCKET_NAME, CONFIRMED_KEY)).thenReturn("http://localhost/" + CONFIRMED_KEY);
+
+        List<String> mediaURLs = directUploadService.confirm("item", List.of(upload("image/jpeg", 100)), "user");
+
+        assertEquals(List.of("http://localhost/" + CONFIRMED_KEY), mediaURLs);
+        verify(bucket, times(1)).copyObject(MOCK_BUCKET_NAME, OBJECT_KEY, MOCK_BUCKET_NAME, CONFIRMED_KEY);
+        verify(mediaService, times(1)).addMedia("item", "user", mediaURLs);
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, OBJECT_KEY);
+    }
+
+    @Test
+    public void verifyConfirmedUploadCannotBeConfirmedAgain() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.doesObjectExist(MOCK_BUCKET_NAME, CONFIRMED_KEY)).thenReturn(true);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class,
+                () -> directUploadService.confirm("item", List.of(upload("image/jpeg", 100)), "user"));
+
+        assertEquals("Media file already confirmed: " + OBJECT_KEY, e.getMessage());
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+        verify(bucket, never()).deleteObject(anyString(), anyString());
+    }
+
+    @Test
+    public void verifyUploadStaysUnconfirmedWhenLinkingFails() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, OBJECT_KEY)).thenReturn(objectMetadata("item", "image/jpeg", 100));
+        when(bucket.getObject(any(GetObjectRequest.class))).thenReturn(object(JPEG_DATA));
+        when(s3Client.getResourceUrl(MOCK_BUCKET_NAME, CONFIRMED_KEY)).thenReturn("http://localhost/" + CONFIRMED_KEY);
+        doThrow(new MediaStorageException("Could not link media")).when(mediaService).addMedia(anyString(), anyString(), anyList());
+
+        assertThrows(MediaStorageException.class, () -> directUploadService.confirm("item", List.of(upload("image/jpeg", 100)), "user"));
+
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, CONFIRMED_KEY);
+        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, OBJECT_KEY);
+    }
+
+    @Test
+    public void verifyConfirmRejectsKeysOutsideTheUploadPrefix() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+
+        assertThrows(MediaStorageException.class, () -> directUploadService.confirm("item",
+                List.of(new DirectUpload(CONFIRMED_KEY, null, null, "image/jpeg", 100, null)), "user"));
+
+        verify(bucket, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void verifySweepDeletesUnconfirmedUploadsPastTheExpiry() {
+        ListObjectsV2Result listing = new ListObjectsV2Result();
+        listing.getObjectSummaries().add(summary("direct-uploads/stale/image1.jpg", Instant.now().minus(Duration.ofHours(1))));
+        listing.getObjectSummaries().add(summary("direct-uploads/recent/image1.jpg", Instant.now()));
+        when(bucket.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(listing);
+
+        directUploadService.sweep();
+
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, "direct-uploads/stale/image1.jpg");
+        verify(bucket, never()).deleteObject(MOCK_BUCKET_NAME, "direct-uploads/recent/image1.jpg");
+    }
+
+    @Test
+    public void verifyConfirmDeletesMismatchingUpload() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, OBJECT_KEY)).thenReturn(objectMetadata("item", "image/jpeg", 500));
+
+        MediaStorageException e = assertThrows(MediaStorageException.class,
+                () -> directUploadService.confirm("item", List.of(upload("image/jpeg", 100)), "user"));
+
+        assertEquals("Media file does not match its upload: " + OBJECT_KEY, e.getMessage());
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, OBJECT_KEY);
+        verify(mediaService, never()).addMedia(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void verifyConfirmDeletesUploadThatIsNoImage() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, OBJECT_KEY)).thenReturn(objectMetadata("item", "image/jpeg", 100));
+        when(bucket.getObject(any(GetObjectRequest.class))).thenReturn(object("%PDF-1.4".getBytes()));
+
+        assertThrows(MediaStorageException.class, () -> directUploadService.confirm("item", List.of(upload("image/jpeg", 100)), "user"));
+
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, OBJECT_KEY);
+    }
+
+    @Test
+    public void verifyConfirmKeepsObjectsOfOtherItems() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, OBJECT_KEY)).thenReturn(objectMetadata("other", "image/jpeg", 100));
+
+        MediaStorageException e = assertThrows(MediaStorageException.class,
+                () -> directUploadService.confirm("item", List.of(upload("image/jpeg", 100)), "user"));
+
+        assertEquals("Media file not uploaded: " + OBJECT_KEY, e.getMessage());
+        verify(bucket, never()).deleteObject(anyString(), anyString());
+    }
+
+    @Test
+    public void verifyConfirmOfMissingObjectFails() throws Exception {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        when(bucket.getObjectMetadata(MOCK_BUCKET_NAME, OBJECT_KEY)).thenThrow(notFound);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class,
+                () -> directUploadService.confirm("item", List.of(upload("image/jpeg", 100)), "user"));
+
+        assertEquals("Media file not uploaded: " + OBJECT_KEY, e.getMessage());
+    }
+
+    private static S3ObjectSummary summary(String key, Instant lastModified) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setLastModified(Date.from(lastModified));
+        return summary;
+    }
+
+    private static DirectUpload upload(String contentType, long size) {
+        return new DirectUpload(OBJECT_KEY, null, null, contentType, size, null);
+    }
+
+    private static ObjectMetadata objectMetadata(String itemID, String contentType, long size) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.addUserMetadata("itemid", itemID);
+        objectMetadata.setContentType(contentType);
+        objectMetadata.setContentLength(size);
+        return objectMetadata;
+    }
+
+    private static S3Object object(byte[] content) {
+        S3Object object = new S3Object();
+        object.setObjectContent(new ByteArrayInputStream(content));
+        return object;
+    }
+}
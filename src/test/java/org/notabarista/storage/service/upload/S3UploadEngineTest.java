@@ -0,0 +1,180 @@
+package org.notabarista.storage.service.upload;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class S3UploadEngineTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+
+    @Mock
+    private AmazonS3 bucket;
+
+    private final StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+
+    private ExecutorService partUploadExecutor;
+
+    private S3UploadEngine uploadEngine;
+
+    @BeforeEach
+    void setUp() {
+        partUploadExecutor = Executors.newFixedThreadPool(2);
+        uploadEngine = new S3UploadEngine(bucket, storageMetrics, partUploadExecutor, 10, 4, 2, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        partUploadExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifySmallFileUsesSinglePutWithContentLength() throws IOException {
+        MockMultipartFile file = new MockMultipartFile("files", "image1.jpg", "image/jpg", "mock".getBytes());
+        ArgumentCaptor<ObjectMetadata> objectMetadata = ArgumentCaptor.forClass(ObjectMetadata.class);
+
+        uploadEngine.upload(MOCK_BUCKET_NAME, "image1.jpg", file, new ObjectMetadata());
+
+        verify(bucket, times(1)).putObject(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), objectMetadata.capture());
+        assertEquals(4, objectMetadata.getValue().getContentLength());
+        verify(bucket, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void verifyLargeFileUsesMultipartUpload() throws IOException {
+        MockMultipartFile file = new MockMultipartFile("files", "image1.jpg", "image/jpg", "0123456789".getBytes());
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload");
+        when(bucket.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+        when(bucket.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        });
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequest = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+
+        uploadEngine.upload(MOCK_BUCKET_NAME, "image1.jpg", file, new ObjectMetadata());
+
+        verify(bucket, times(3)).uploadPart(any(UploadPartRequest.class));
+        verify(bucket, times(1)).completeMultipartUpload(completeRequest.capture());
+        assertEquals(3, completeRequest.getValue().getPartETags().size());
+        assertEquals(1, completeRequest.getValue().getPartETags().get(0).getPartNumber());
+        assertEquals(3, completeRequest.getValue().getPartETags().get(2).getPartNumber());
+        verify(bucket, never()).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+    }
+
+    @Test
+    public void verifyFailedPartAbortsMultipartUpload() {
+        MockMultipartFile file = new MockMultipartFile("files", "image1.jpg", "image/jpg", "0123456789".getBytes());
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload");
+        when(bucket.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+        when(bucket.uploadPart(any(UploadPartRequest.class))).thenThrow(new AmazonServiceException("mock failure"));
+
+        assertThrows(
+                AmazonServiceException.class,
+                () -> uploadEngine.upload(MOCK_BUCKET_NAME, "image1.jpg", file, new ObjectMetadata()),
+                "Expected upload() to throw AmazonServiceException, but it didn't"
+        );
+
+        verify(bucket, times(1)).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(bucket, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void verifyShortStreamUsesSinglePut() throws IOException {
+        ArgumentCaptor<ObjectMetadata> objectMetadata = ArgumentCaptor.forClass(ObjectMetadata.class);
+
+        uploadEngine.upload(MOCK_BUCKET_NAME, "image1.jpg", new ByteArrayInputStream("abc".getBytes()), new ObjectMetadata());
+
+        verify(bucket, times(1)).putObject(eq(MOCK_BUCKET_NAME), eq("image1.jpg"), any(InputStream.class), objectMetadata.capture());
+        assertEquals(3, objectMetadata.getValue().getContentLength());
+        verify(bucket, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void verifyLongStreamUsesMultipartUpload() throws IOException {
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload");
+        when(bucket.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+        when(bucket.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        });
+        ArgumentCaptor<UploadPartRequest> partRequests = ArgumentCaptor.forClass(UploadPartRequest.class);
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequest = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+
+        uploadEngine.upload(MOCK_BUCKET_NAME, "image1.jpg", new ByteArrayInputStream("0123456789".getBytes()), new ObjectMetadata());
+
+        verify(bucket, times(3)).uploadPart(partRequests.capture());
+        assertEquals(List.of(4L, 4L, 2L), partRequests.getAllValues().stream()
+                                                      .sorted(Comparator.comparingInt(UploadPartRequest::getPartNumber))
+                                                      .map(UploadPartRequest::getPartSize)
+                                                      .collect(Collectors.toList()));
+        verify(bucket, times(1)).completeMultipartUpload(completeRequest.capture());
+        assertEquals(3, completeRequest.getValue().getPartETags().size());
+        verify(bucket, never()).putObject(anyString(), anyString(), any(InputStream.class), any(ObjectMetadata.class));
+    }
+
+    @Test
+    public void verifyStreamOfWholePartsEndsWithLastFullPart() throws IOException {
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload");
+        when(bucket.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+        when(bucket.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        });
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequest = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+
+        uploadEngine.upload(MOCK_BUCKET_NAME, "image1.jpg", new ByteArrayInputStream("01234567".getBytes()), new ObjectMetadata());
+
+        verify(bucket, times(2)).uploadPart(any(UploadPartRequest.class));
+        verify(bucket, times(1)).completeMultipartUpload(completeRequest.capture());
+        assertEquals(2, completeRequest.getValue().getPartETags().size());
+    }
+}
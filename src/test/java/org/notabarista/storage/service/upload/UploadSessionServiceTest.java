@@ -0,0 +1,279 @@
+package org.notabarista.storage.service.upload;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.notabarista.exception.AbstractNotabaristaException;
+import org.notabarista.storage.exception.MediaStorageException;
+import org.notabarista.storage.metrics.StorageMetrics;
+import org.notabarista.storage.service.IoExecutor;
+import org.notabarista.storage.service.ItemService;
+import org.notabarista.storage.service.MediaService;
+import org.notabarista.storage.service.derivative.DerivativeService;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class UploadSessionServiceTest {
+
+    private static final String MOCK_BUCKET_NAME = "mock";
+    private static final long CHUNK_SIZE = UploadSessionService.MIN_CHUNK_SIZE;
+    private static final long FILE_SIZE = CHUNK_SIZE + 10;
+    private static final byte[] JPEG_DATA = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 0x10, 'J', 'F', 'I', 'F', 0};
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private AmazonS3 bucket;
+
+    @Mock
+    private AmazonS3Client s3Client;
+
+    @Mock
+    private ItemService itemService;
+
+    @Mock
+    private MediaService mediaService;
+
+    private ExecutorService ioExecutor;
+
+    private UploadSessionService uploadSessionService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ioExecutor = Executors.newSingleThreadExecutor();
+        uploadSessionService = uploadSessionService(Duration.ofHours(24));
+    }
+
+    @AfterEach
+    void tearDown() {
+        uploadSessionService.stop();
+        ioExecutor.shutdownNow();
+    }
+
+    @Test
+    public void verifyCreateInitiatesMultipartUpload() throws AbstractNotabaristaException {
+        givenMultipartUpload();
+
+        UploadSessionStatus status = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user");
+
+        assertEquals("item", status.getItemID());
+        assertEquals(CHUNK_SIZE, status.getChunkSize());
+        assertEquals(List.of(), status.getReceivedOffsets());
+        ArgumentCaptor<InitiateMultipartUploadRequest> initiateRequest = ArgumentCaptor.forClass(InitiateMultipartUploadRequest.class);
+        verify(bucket, times(1)).initiateMultipartUpload(initiateRequest.capture());
+        assertEquals("image1.jpg", initiateRequest.getValue().getKey());
+        assertEquals("image/jpeg", initiateRequest.getValue().getObjectMetadata().getContentType());
+    }
+
+    @Test
+    public void verifyCreateChecksItem() throws AbstractNotabaristaException {
+        when(itemService.itemExists("item", "user")).thenReturn(false);
+
+        MediaStorageException e = assertThrows(MediaStorageException.class,
+                () -> uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user"));
+
+        assertEquals("Item not found", e.getMessage());
+        verify(bucket, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void verifyChunksAreUploadedAsPartsAndCompleted() throws Exception {
+        givenMultipartUpload();
+        givenPartUploads();
+        when(s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image1.jpg")).thenReturn("http://localhost/image1.jpg");
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+
+        uploadSessionService.uploadChunk(sessionID, CHUNK_SIZE, new ByteArrayInputStream(new byte[10]), 10, "user");
+        UploadSessionStatus status = uploadSessionService.uploadChunk(sessionID, 0, new ByteArrayInputStream(firstChunk()), CHUNK_SIZE, "user");
+        String mediaURL = uploadSessionService.complete(sessionID, "user");
+
+        assertEquals(List.of(0L, CHUNK_SIZE), status.getReceivedOffsets());
+        assertEquals("http://localhost/image1.jpg", mediaURL);
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequest = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(bucket, times(1)).completeMultipartUpload(completeRequest.capture());
+        assertEquals(List.of("etag1", "etag2"), completeRequest.getValue().getPartETags().stream()
+                                                              .map(PartETag::getETag)
+                                                              .collect(Collectors.toList()));
+        verify(mediaService, times(1)).addMedia("item", "user", List.of("http://localhost/image1.jpg"));
+        assertThrows(MediaStorageException.class, () -> uploadSessionService.status(sessionID, "user"));
+    }
+
+    @Test
+    public void verifyFailedLinkKeepsSessionForRetry() throws Exception {
+        givenMultipartUpload();
+        givenPartUploads();
+        when(s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image1.jpg")).thenReturn("http://localhost/image1.jpg");
+        doThrow(new MediaStorageException("Could not link media"))
+                .doNothing()
+                .when(mediaService).addMedia("item", "user", List.of("http://localhost/image1.jpg"));
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+        uploadSessionService.uploadChunk(sessionID, CHUNK_SIZE, new ByteArrayInputStream(new byte[10]), 10, "user");
+        uploadSessionService.uploadChunk(sessionID, 0, new ByteArrayInputStream(firstChunk()), CHUNK_SIZE, "user");
+
+        assertThrows(MediaStorageException.class, () -> uploadSessionService.complete(sessionID, "user"));
+        assertEquals(List.of(0L, CHUNK_SIZE), uploadSessionService.status(sessionID, "user").getReceivedOffsets());
+
+        assertEquals("http://localhost/image1.jpg", uploadSessionService.complete(sessionID, "user"));
+        verify(bucket, times(1)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        verify(bucket, never()).deleteObject(anyString(), anyString());
+    }
+
+    @Test
+    public void verifyAbortOfAssembledSessionDeletesTheFile() throws Exception {
+        givenMultipartUpload();
+        givenPartUploads();
+        when(s3Client.getResourceUrl(MOCK_BUCKET_NAME, "image1.jpg")).thenReturn("http://localhost/image1.jpg");
+        doThrow(new MediaStorageException("Could not link media")).when(mediaService).addMedia(anyString(), anyString(), anyList());
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+        uploadSessionService.uploadChunk(sessionID, CHUNK_SIZE, new ByteArrayInputStream(new byte[10]), 10, "user");
+        uploadSessionService.uploadChunk(sessionID, 0, new ByteArrayInputStream(firstChunk()), CHUNK_SIZE, "user");
+        assertThrows(MediaStorageException.class, () -> uploadSessionService.complete(sessionID, "user"));
+
+        uploadSessionService.abort(sessionID, "user");
+
+        verify(bucket, times(1)).deleteObject(MOCK_BUCKET_NAME, "image1.jpg");
+        verify(bucket, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void verifyCompleteFailsWhileChunksAreMissing() throws Exception {
+        givenMultipartUpload();
+        givenPartUploads();
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+        uploadSessionService.uploadChunk(sessionID, CHUNK_SIZE, new ByteArrayInputStream(new byte[10]), 10, "user");
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> uploadSessionService.complete(sessionID, "user"));
+
+        assertEquals("Chunk at offset 0 is missing", e.getMessage());
+        verify(bucket, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        assertEquals(List.of(CHUNK_SIZE), uploadSessionService.status(sessionID, "user").getReceivedOffsets());
+    }
+
+    @Test
+    public void verifyInvalidChunksAreRejected() throws Exception {
+        givenMultipartUpload();
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+
+        assertThrows(MediaStorageException.class,
+                () -> uploadSessionService.uploadChunk(sessionID, 10, new ByteArrayInputStream(new byte[10]), 10, "user"));
+        assertThrows(MediaStorageException.class,
+                () -> uploadSessionService.uploadChunk(sessionID, CHUNK_SIZE, new ByteArrayInputStream(new byte[5]), 5, "user"));
+        MediaStorageException e = assertThrows(MediaStorageException.class,
+                () -> uploadSessionService.uploadChunk(sessionID, 0, new ByteArrayInputStream(new byte[(int) CHUNK_SIZE]), CHUNK_SIZE, "user"));
+
+        assertEquals("Invalid file content: image1.jpg", e.getMessage());
+        verify(bucket, never()).uploadPart(any(UploadPartRequest.class));
+    }
+
+    @Test
+    public void verifySessionIsPrivateToItsUser() throws AbstractNotabaristaException {
+        givenMultipartUpload();
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+
+        MediaStorageException e = assertThrows(MediaStorageException.class, () -> uploadSessionService.status(sessionID, "other"));
+
+        assertEquals("Upload session not found", e.getMessage());
+    }
+
+    @Test
+    public void verifySessionsSurviveRestart() throws Exception {
+        givenMultipartUpload();
+        givenPartUploads();
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+        uploadSessionService.uploadChunk(sessionID, CHUNK_SIZE, new ByteArrayInputStream(new byte[10]), 10, "user");
+        uploadSessionService.stop();
+
+        uploadSessionService = uploadSessionService(Duration.ofHours(24));
+
+        assertEquals(List.of(CHUNK_SIZE), uploadSessionService.status(sessionID, "user").getReceivedOffsets());
+    }
+
+    @Test
+    public void verifySweepAbortsExpiredSessions() throws Exception {
+        uploadSessionService.stop();
+        uploadSessionService = uploadSessionService(Duration.ZERO);
+        givenMultipartUpload();
+        String sessionID = uploadSessionService.create("item", "image1.jpg", "image/jpeg", FILE_SIZE, "user").getSessionID();
+
+        uploadSessionService.sweep();
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abortRequest = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(bucket, times(1)).abortMultipartUpload(abortRequest.capture());
+        assertEquals("upload", abortRequest.getValue().getUploadId());
+        assertThrows(MediaStorageException.class, () -> uploadSessionService.status(sessionID, "user"));
+    }
+
+    private UploadSessionService uploadSessionService(Duration ttl) throws IOException {
+        UploadSessionService service = new UploadSessionService(itemService, derivativeService(), bucket, MOCK_BUCKET_NAME, s3Client,
+                new StorageMetrics(new SimpleMeterRegistry()), new IoExecutor(ioExecutor, Duration.ofSeconds(5)), new ObjectMapper(), directory,
+                DataSize.ofBytes(CHUNK_SIZE), DataSize.ofMegabytes(25), ttl, Duration.ofHours(1), false);
+        service.start();
+        return service;
+    }
+
+    private DerivativeService derivativeService() {
+        return new DerivativeService(bucket, MOCK_BUCKET_NAME, s3Client, mediaService, new StorageMetrics(new SimpleMeterRegistry()), ioExecutor,
+                false, new int[0], false, 0.85f);
+    }
+
+    private void givenMultipartUpload() throws AbstractNotabaristaException {
+        when(itemService.itemExists("item", "user")).thenReturn(true);
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId("upload");
+        when(bucket.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiateResult);
+    }
+
+    private void givenPartUploads() {
+        when(bucket.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgument(0);
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag" + request.getPartNumber());
+            return result;
+        });
+    }
+
+    private static byte[] firstChunk() {
+        byte[] chunk = new byte[(int) CHUNK_SIZE];
+        System.arraycopy(JPEG_DATA, 0, chunk, 0, JPEG_DATA.length);
+        return chunk;
+    }
+}